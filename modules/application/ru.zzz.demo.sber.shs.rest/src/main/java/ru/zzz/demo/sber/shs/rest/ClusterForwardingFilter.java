@@ -0,0 +1,220 @@
+package ru.zzz.demo.sber.shs.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.UriUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+import ru.zzz.demo.sber.shs.model.device.InvalidAddressException;
+import ru.zzz.demo.sber.shs.rest.dto.DeviceRegistrationRequestDto;
+import ru.zzz.demo.sber.shs.service.cluster.ClusterRing;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+
+/**
+ * Forwards requests to a device to the cluster node owning it, see {@link ClusterRing}, and answers with the reply
+ * of the owner. Requests are sent over a pool of keep-alive connections to every node, so forwarding costs no
+ * connection handshakes. A forwarded request is marked by the {@value #FORWARDED_BY_HEADER} header and never
+ * forwarded again: if nodes disagree on the owner, it is answered with 421 Misdirected Request rather than served
+ * by a node not owning the device. If the owner cannot be connected or does not reply in time, the request is
+ * answered with 503 Service Unavailable, if forwarding fails otherwise, with 502 Bad Gateway.
+ *
+ * <p>Requests to no device, e.g. listing, are served by the node which receives them and involve its devices only.
+ */
+@Component("SHS.Application.Rest.ClusterForwardingFilter")
+public class ClusterForwardingFilter implements WebFilter, DisposableBean {
+    /**
+     * A request header with the node which forwarded the request.
+     */
+    public static final String FORWARDED_BY_HEADER = "X-Forwarded-By";
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterForwardingFilter.class);
+    private static final String DEVICES_PATH = "/api/device";
+    private static final int MAX_CONNECTIONS_PER_NODE = 256;
+    // Not in HttpStatus of this Spring version
+    private static final int MISDIRECTED_REQUEST = 421;
+    // Hop-by-hop headers and ones the client sets itself
+    private static final Collection<String> UNFORWARDED_HEADERS = Arrays.asList(HttpHeaders.HOST,
+            HttpHeaders.CONNECTION, HttpHeaders.CONTENT_LENGTH, HttpHeaders.TRANSFER_ENCODING, HttpHeaders.UPGRADE);
+
+    private final ClusterRing ring;
+    private final ObjectMapper mapper;
+    private final ConnectionProvider connections;
+    private final HttpClient client;
+    private final Duration timeout;
+
+    @Autowired
+    public ClusterForwardingFilter(ClusterRing ring, ObjectMapper mapper, ServerConfig config) {
+        this(ring, mapper, config.clusterForwardTimeoutMillis());
+    }
+
+    /**
+     * @param timeoutMillis time to wait for the owner node to connect and reply
+     */
+    ClusterForwardingFilter(ClusterRing ring, ObjectMapper mapper, long timeoutMillis) {
+        if (timeoutMillis <= 0) throw new IllegalArgumentException("forward timeout must be positive");
+        this.ring = ring;
+        this.mapper = mapper;
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.connections = ConnectionProvider.builder("shs-cluster").maxConnections(MAX_CONNECTIONS_PER_NODE).build();
+        this.client = HttpClient.create(connections).keepAlive(true).tcpConfiguration(tcp ->
+                tcp.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(timeoutMillis, Integer.MAX_VALUE)));
+    }
+
+    @Override
+    public void destroy() {
+        connections.dispose();
+    }
+
+    @NonNull
+    @Override
+    public Mono<Void> filter(@NonNull ServerWebExchange exchange, @NonNull WebFilterChain chain) {
+        ServerHttpRequest request = exchange.getRequest();
+        if (!ring.isEnabled()) return chain.filter(exchange);
+        String path = request.getPath().pathWithinApplication().value();
+        if (DEVICES_PATH.equals(path) && request.getMethod() == HttpMethod.POST) {
+            // The address of a device to register is in the body, it is read and replayed if the device is local
+            return readBody(request).flatMap(body -> {
+                DeviceAddress address = registeredAddress(body);
+                if (address == null || ring.isLocal(address))
+                    return chain.filter(exchange.mutate().request(replay(exchange, body)).build());
+                return forwardToOwner(exchange, address, body);
+            });
+        }
+        DeviceAddress address = pathAddress(path);
+        if (address == null || ring.isLocal(address)) return chain.filter(exchange);
+        return readBody(request).flatMap(body -> forwardToOwner(exchange, address, body));
+    }
+
+    private Mono<Void> forwardToOwner(ServerWebExchange exchange, DeviceAddress address, byte[] body) {
+        ServerHttpRequest request = exchange.getRequest();
+        String owner = ring.ownerOf(address);
+        String forwardedBy = request.getHeaders().getFirst(FORWARDED_BY_HEADER);
+        if (forwardedBy == null) return forward(exchange, owner, body);
+        // Nodes disagree on the owner, e.g. while the cluster is being reconfigured
+        LOGGER.warn("{} forwarded {} {} of a device owned by {}", forwardedBy, request.getMethodValue(),
+                request.getURI().getRawPath(), owner);
+        ServerHttpResponse response = exchange.getResponse();
+        response.setRawStatusCode(MISDIRECTED_REQUEST);
+        return response.setComplete();
+    }
+
+    private Mono<Void> forward(ServerWebExchange exchange, String owner, byte[] body) {
+        ServerHttpRequest request = exchange.getRequest();
+        ServerHttpResponse response = exchange.getResponse();
+        String query = request.getURI().getRawQuery();
+        String uri = "http://" + owner + request.getURI().getRawPath() + ((query == null) ? "" : "?" + query);
+        return client.headers(headers -> {
+            for (Map.Entry<String, List<String>> h : request.getHeaders().entrySet()) {
+                if (isForwarded(h.getKey())) headers.add(h.getKey(), h.getValue());
+            }
+            headers.set(FORWARDED_BY_HEADER, ring.getSelf());
+            headers.set(HttpHeaders.CONTENT_LENGTH, body.length);
+        }).request(io.netty.handler.codec.http.HttpMethod.valueOf(request.getMethodValue())).uri(uri)
+                .send(Mono.just(Unpooled.wrappedBuffer(body)))
+                .responseSingle((reply, content) -> content.asByteArray().defaultIfEmpty(new byte[0]).map(bytes -> {
+                    HttpStatus status = HttpStatus.resolve(reply.status().code());
+                    response.setStatusCode((status == null) ? BAD_GATEWAY : status);
+                    for (Map.Entry<String, String> h : reply.responseHeaders()) {
+                        if (isForwarded(h.getKey())) response.getHeaders().add(h.getKey(), h.getValue());
+                    }
+                    return bytes;
+                }))
+                // Waiting for a connection from the pool, connecting and replying
+                .timeout(timeout)
+                .flatMap(bytes -> response.writeWith(Mono.just(response.bufferFactory().wrap(bytes))))
+                .onErrorResume(e -> !response.isCommitted(), e -> {
+                    LOGGER.warn("Cannot forward {} {} to {}", request.getMethodValue(), uri, owner, e);
+                    // The owner is out of reach or the reply cannot be passed on
+                    boolean unavailable = e instanceof IOException || e instanceof TimeoutException;
+                    response.setStatusCode(unavailable ? SERVICE_UNAVAILABLE : BAD_GATEWAY);
+                    return response.setComplete();
+                });
+    }
+
+    /**
+     * @return the address of the device of a path like /api/device/{addr}/..., null if it is not about a device.
+     */
+    private static DeviceAddress pathAddress(String path) {
+        if (!path.startsWith(DEVICES_PATH + "/")) return null;
+        int start = DEVICES_PATH.length() + 1;
+        int end = path.indexOf('/', start);
+        String segment = path.substring(start, (end < 0) ? path.length() : end);
+        if (segment.isEmpty() || "status".equals(segment)) return null;
+        try {
+            return DeviceAddress.of(UriUtils.decode(segment, StandardCharsets.UTF_8));
+        } catch (InvalidAddressException e) {
+            // The controller answers it
+            return null;
+        }
+    }
+
+    /**
+     * @return the address of a device registration request body, null if it cannot be read.
+     */
+    private DeviceAddress registeredAddress(byte[] body) {
+        try {
+            return DeviceAddress.of(mapper.readValue(body, DeviceRegistrationRequestDto.class).getAddress());
+        } catch (IOException | InvalidAddressException e) {
+            // The controller answers it
+            return null;
+        }
+    }
+
+    private static Mono<byte[]> readBody(ServerHttpRequest request) {
+        return DataBufferUtils.join(request.getBody()).map(buffer -> {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            DataBufferUtils.release(buffer);
+            return bytes;
+        }).defaultIfEmpty(new byte[0]);
+    }
+
+    private static ServerHttpRequest replay(ServerWebExchange exchange, byte[] body) {
+        return new ServerHttpRequestDecorator(exchange.getRequest()) {
+            @NonNull
+            @Override
+            public Flux<DataBuffer> getBody() {
+                return Flux.defer(() -> Flux.just(exchange.getResponse().bufferFactory().wrap(body)));
+            }
+        };
+    }
+
+    private static boolean isForwarded(String header) {
+        for (String h : UNFORWARDED_HEADERS) {
+            if (h.equalsIgnoreCase(header)) return false;
+        }
+        return true;
+    }
+}
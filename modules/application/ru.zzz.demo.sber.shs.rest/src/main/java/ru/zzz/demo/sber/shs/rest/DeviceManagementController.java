@@ -5,6 +5,7 @@ import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.server.ResponseStatusException;
 import org.springframework.web.server.ServerWebExchange;
@@ -14,19 +15,25 @@ import reactor.core.scheduler.Scheduler;
 import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
 import ru.zzz.demo.sber.shs.rest.dto.DeviceDescriptorDto;
 import ru.zzz.demo.sber.shs.rest.dto.DeviceRegistrationRequestDto;
+import ru.zzz.demo.sber.shs.rest.dto.DeviceStateChangeDto;
 import ru.zzz.demo.sber.shs.rest.dto.DeviceUnregistrationResponseDto;
 import ru.zzz.demo.sber.shs.rest.dto.ValueDto;
 import ru.zzz.demo.sber.shs.service.api.AlreadyAssociatedException;
 import ru.zzz.demo.sber.shs.service.api.DeviceDescriptor;
 import ru.zzz.demo.sber.shs.service.api.DeviceManagementException;
 import ru.zzz.demo.sber.shs.service.api.DeviceManager;
+import ru.zzz.demo.sber.shs.service.api.DevicePage;
 import ru.zzz.demo.sber.shs.service.api.UnknownDeviceException;
 
-import java.util.List;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.CONFLICT;
 import static org.springframework.http.HttpStatus.FAILED_DEPENDENCY;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 import static org.springframework.web.bind.annotation.RequestMethod.DELETE;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
@@ -34,6 +41,13 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
 @Controller("SHS.Application.Rest.Controller")
 public class DeviceManagementController {
+    /**
+     * A response header with the token of the next page of devices.
+     */
+    public static final String NEXT_PAGE_HEADER = "X-Next-Page";
+    private static final int MAX_PAGE_SIZE = 10_000;
+    private static final int STREAM_PAGE_SIZE = 1000;
+
     private final DeviceManager deviceManager;
     private final Scheduler scheduler;
 
@@ -43,27 +57,53 @@ public class DeviceManagementController {
         this.scheduler = scheduler;
     }
 
+    /**
+     * Answers OK once devices are loaded, so a balancer may route requests to the server.
+     */
+    @RequestMapping(value = "/api/ready", method = GET)
+    public Mono<Void> ready(ServerWebExchange exchange) {
+        return deviceManager.isReady()
+                ? Mono.empty()
+                : Mono.error(new ResponseStatusException(SERVICE_UNAVAILABLE, "Devices are being loaded"));
+    }
+
+    /**
+     * Lists devices in the order of addresses. With a limit it answers one page and the token of the next one,
+     * if any, in the {@value #NEXT_PAGE_HEADER} header. Without one it streams all devices page by page.
+     *
+     * @param prefix only devices with addresses starting with it. All by default.
+     * @param after  the token of the previous page. The first page by default.
+     * @param limit  maximum number of devices in a page.
+     */
     @RequestMapping(value = "/api/device", method = GET, produces = APPLICATION_JSON_VALUE)
     @ResponseBody
-    public Flux<DeviceAddress> deviceList(ServerWebExchange exchange) {
-        List<DeviceAddress> list = deviceManager.list();
-        return Flux.fromIterable(list);
+    public Flux<DeviceAddress> deviceList(ServerWebExchange exchange,
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "limit", required = false) Integer limit) {
+        return listDevices(exchange, prefix, after, limit).map(d -> DeviceAddress.of(d.getAddress()));
     }
 
+    /**
+     * Lists devices along with their status, see {@link #deviceList(ServerWebExchange, String, String, Integer)}.
+     */
     @RequestMapping(value = "/api/device/status", method = GET, produces = APPLICATION_JSON_VALUE)
     @ResponseBody
-    public Flux<DeviceDescriptorDto> deviceListStatus(ServerWebExchange exchange) {
-        List<DeviceDescriptor> list = deviceManager.listWithCurrentStatus();
-        return Flux.fromIterable(list).map(DeviceDescriptorDto::of);
+    public Flux<DeviceDescriptorDto> deviceListStatus(ServerWebExchange exchange,
+            @RequestParam(value = "prefix", required = false) String prefix,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "limit", required = false) Integer limit) {
+        return listDevices(exchange, prefix, after, limit).map(DeviceDescriptorDto::of);
     }
 
     @RequestMapping(value = "/api/device/{addr}", method = GET, produces = APPLICATION_JSON_VALUE)
     @ResponseBody
     public Mono<DeviceDescriptorDto> deviceStatus(ServerWebExchange exchange,
             @PathVariable("addr") String addr) {
-        return deviceManager.getDevice(DeviceAddress.of(addr))
-                .map(deviceDescriptor -> Mono.just(DeviceDescriptorDto.of(deviceDescriptor)))
-                .orElseGet(Mono::empty);
+        return Mono.fromSupplier(() -> deviceManager.getDevice(DeviceAddress.of(addr)))
+                .subscribeOn(scheduler)
+                .flatMap(Mono::justOrEmpty)
+                .map(DeviceDescriptorDto::of);
     }
 
     @RequestMapping(value = "/api/device", method = POST, consumes = APPLICATION_JSON_VALUE)
@@ -84,14 +124,14 @@ public class DeviceManagementController {
     public Mono<DeviceUnregistrationResponseDto> deviceUnregister(ServerWebExchange exchange,
             @PathVariable("addr") String addr) {
         return deviceManager.unregister(DeviceAddress.of(addr))
-                .publishOn(scheduler)
+                .subscribeOn(scheduler)
                 .map(DeviceUnregistrationResponseDto::ofReallyUnregistered);
     }
 
     @RequestMapping(value = "/api/device/{addr}/on", method = POST)
     public Mono<Void> deviceOn(ServerWebExchange exchange, @PathVariable("addr") String addr) {
         return deviceManager.on(DeviceAddress.of(addr))
-                .publishOn(scheduler)
+                .subscribeOn(scheduler)
                 .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
                 .onErrorMap(DeviceManagementException.class,
                         e -> new ResponseStatusException(FAILED_DEPENDENCY, e.getMessage()));
@@ -100,7 +140,7 @@ public class DeviceManagementController {
     @RequestMapping(value = "/api/device/{addr}/off", method = POST)
     public Mono<Void> deviceOff(ServerWebExchange exchange, @PathVariable("addr") String addr) {
         return deviceManager.off(DeviceAddress.of(addr))
-                .publishOn(scheduler)
+                .subscribeOn(scheduler)
                 .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
                 .onErrorMap(DeviceManagementException.class,
                         e -> new ResponseStatusException(FAILED_DEPENDENCY, e.getMessage()));
@@ -110,7 +150,7 @@ public class DeviceManagementController {
     @ResponseBody
     public Mono<ValueDto> deviceIncrement(ServerWebExchange exchange, @PathVariable("addr") String addr) {
         return deviceManager.increment(DeviceAddress.of(addr))
-                .publishOn(scheduler)
+                .subscribeOn(scheduler)
                 .map(ValueDto::of)
                 .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
                 .onErrorMap(DeviceManagementException.class,
@@ -121,10 +161,82 @@ public class DeviceManagementController {
     @ResponseBody
     public Mono<ValueDto> deviceDecrement(ServerWebExchange exchange, @PathVariable("addr") String addr) {
         return deviceManager.decrement(DeviceAddress.of(addr))
-                .publishOn(scheduler)
+                .subscribeOn(scheduler)
+                .map(ValueDto::of)
+                .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
+                .onErrorMap(DeviceManagementException.class,
+                        e -> new ResponseStatusException(FAILED_DEPENDENCY, e.getMessage()));
+    }
+
+    @RequestMapping(value = "/api/device/{addr}/undo", method = POST)
+    @ResponseBody
+    public Mono<ValueDto> deviceUndo(ServerWebExchange exchange, @PathVariable("addr") String addr) {
+        return deviceManager.undo(DeviceAddress.of(addr))
+                .subscribeOn(scheduler)
                 .map(ValueDto::of)
                 .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
                 .onErrorMap(DeviceManagementException.class,
                         e -> new ResponseStatusException(FAILED_DEPENDENCY, e.getMessage()));
     }
+
+    @RequestMapping(value = "/api/device/{addr}/redo", method = POST)
+    @ResponseBody
+    public Mono<ValueDto> deviceRedo(ServerWebExchange exchange, @PathVariable("addr") String addr) {
+        return deviceManager.redo(DeviceAddress.of(addr))
+                .subscribeOn(scheduler)
+                .map(ValueDto::of)
+                .onErrorMap(UnknownDeviceException.class, e -> new ResponseStatusException(NOT_FOUND))
+                .onErrorMap(DeviceManagementException.class,
+                        e -> new ResponseStatusException(FAILED_DEPENDENCY, e.getMessage()));
+    }
+
+    /**
+     * @param from ISO-8601 moment, inclusive. A day before to by default.
+     * @param to   ISO-8601 moment, exclusive. Now by default.
+     */
+    @RequestMapping(value = "/api/device/{addr}/history", method = GET, produces = APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public Flux<DeviceStateChangeDto> deviceHistory(ServerWebExchange exchange, @PathVariable("addr") String addr,
+            @RequestParam(value = "from", required = false) String from,
+            @RequestParam(value = "to", required = false) String to) {
+        Instant toMoment = (to == null) ? Instant.now() : parseMoment(to);
+        Instant fromMoment = (from == null) ? toMoment.minus(1, ChronoUnit.DAYS) : parseMoment(from);
+        return deviceManager.history(DeviceAddress.of(addr), fromMoment, toMoment)
+                .subscribeOn(scheduler)
+                .map(DeviceStateChangeDto::of);
+    }
+
+    /**
+     * Reads pages one at a time, so at most a page of devices is held whatever the number of devices is.
+     */
+    private Flux<DeviceDescriptor> listDevices(ServerWebExchange exchange, String prefix, String after,
+            Integer limit) {
+        if (limit != null) {
+            if (limit <= 0 || limit > MAX_PAGE_SIZE)
+                throw new ResponseStatusException(BAD_REQUEST, "Limit must be from 1 to " + MAX_PAGE_SIZE);
+            // The first call loads devices from the storage, so it must not run on a server selector
+            return Mono.fromSupplier(() -> deviceManager.listPage(prefix, after, limit))
+                    .subscribeOn(scheduler)
+                    .doOnNext(page -> {
+                        if (page.getNext() != null)
+                            exchange.getResponse().getHeaders().set(NEXT_PAGE_HEADER, page.getNext());
+                    })
+                    .flatMapIterable(DevicePage::getDevices);
+        }
+        return Mono.fromSupplier(() -> deviceManager.listPage(prefix, after, STREAM_PAGE_SIZE))
+                .subscribeOn(scheduler)
+                .expand(page -> (page.getNext() == null)
+                        ? Mono.empty()
+                        : Mono.fromSupplier(() -> deviceManager.listPage(prefix, page.getNext(), STREAM_PAGE_SIZE))
+                                .subscribeOn(scheduler))
+                .flatMapIterable(DevicePage::getDevices, 1);
+    }
+
+    private static Instant parseMoment(String s) {
+        try {
+            return Instant.parse(s);
+        } catch (DateTimeParseException e) {
+            throw new ResponseStatusException(BAD_REQUEST, "Not an ISO-8601 moment: " + s);
+        }
+    }
 }
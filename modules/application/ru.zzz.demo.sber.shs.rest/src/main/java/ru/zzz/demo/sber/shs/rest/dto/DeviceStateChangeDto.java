@@ -0,0 +1,42 @@
+package ru.zzz.demo.sber.shs.rest.dto;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.service.api.DeviceStateChange;
+
+public class DeviceStateChangeDto {
+    private final String state;
+    private final int value;
+    private final String moment;
+
+    private DeviceStateChangeDto(String state, int value, String moment) {
+        this.state = state;
+        this.value = value;
+        this.moment = moment;
+    }
+
+    @NonNull
+    public static DeviceStateChangeDto of(DeviceStateChange c) {
+        return new DeviceStateChangeDto(c.getState().name(), c.getValue(), c.getMoment().toString());
+    }
+
+    @JsonProperty("state")
+    @NonNull
+    public String getState() {
+        return state;
+    }
+
+    @JsonProperty("value")
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * @return ISO-8601 UTC moment of the change.
+     */
+    @JsonProperty("moment")
+    @NonNull
+    public String getMoment() {
+        return moment;
+    }
+}
@@ -0,0 +1,191 @@
+package ru.zzz.demo.sber.shs.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+import ru.zzz.demo.sber.shs.service.cluster.ClusterRing;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ClusterForwardingFilterTest {
+    private static final String SELF = "localhost:1";
+
+    // The owner node: replies 201 with the body it gets, never replies to .../hang
+    private DisposableServer owner;
+    private volatile String receivedUri;
+    private volatile io.netty.handler.codec.http.HttpHeaders receivedHeaders;
+    private volatile String receivedBody;
+    private ClusterRing ring;
+    private ClusterForwardingFilter filter;
+
+    @BeforeEach
+    void beforeEach() {
+        owner = HttpServer.create().host("localhost").port(0).route(routes -> routes
+                .route(request -> request.uri().endsWith("/hang"), (request, response) -> Mono.never())
+                .route(request -> true, (request, response) -> request.receive().aggregate().asString()
+                        .defaultIfEmpty("")
+                        .flatMap(body -> {
+                            receivedUri = request.uri();
+                            receivedHeaders = request.requestHeaders();
+                            receivedBody = body;
+                            return response.status(201).header("X-Reply", "owner")
+                                    .sendString(Mono.just("owner " + body)).then();
+                        })))
+                .bindNow();
+    }
+
+    @AfterEach
+    void afterEach() {
+        if (filter != null) filter.destroy();
+        owner.dispose();
+    }
+
+    @Test
+    void registrationOfRemoteDeviceIsForwardedWithItsBody() {
+        WebTestClient client = client("localhost:" + owner.port());
+        String body = "{\"address\":\"" + remote() + "\"}";
+        client.post().uri("/api/device").contentType(MediaType.APPLICATION_JSON)
+                .header("X-Custom", "1").header(HttpHeaders.CONNECTION, "close")
+                .bodyValue(body)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectHeader().valueEquals("X-Reply", "owner")
+                .expectBody(String.class).isEqualTo("owner " + body);
+        assertEquals("/api/device", receivedUri);
+        assertEquals(body, receivedBody);
+        assertEquals("1", receivedHeaders.get("X-Custom"));
+        assertEquals(SELF, receivedHeaders.get(ClusterForwardingFilter.FORWARDED_BY_HEADER));
+        // Hop-by-hop headers are not forwarded, the connection to the owner is kept
+        assertFalse("close".equalsIgnoreCase(receivedHeaders.get(HttpHeaders.CONNECTION)));
+    }
+
+    @Test
+    void registrationOfLocalDeviceIsServedWithItsBody() {
+        WebTestClient client = client("localhost:" + owner.port());
+        String body = "{\"address\":\"" + local() + "\"}";
+        client.post().uri("/api/device").contentType(MediaType.APPLICATION_JSON).bodyValue(body)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("local " + body);
+        assertNull(receivedUri);
+    }
+
+    @Test
+    void requestToRemoteDeviceIsForwardedWithItsQuery() {
+        WebTestClient client = client("localhost:" + owner.port());
+        client.get().uri("/api/device/" + remote() + "/history?from=1")
+                .exchange()
+                .expectStatus().isCreated()
+                .expectBody(String.class).isEqualTo("owner ");
+        assertEquals("/api/device/" + remote() + "/history?from=1", receivedUri);
+    }
+
+    @Test
+    void forwardedRequestIsNotForwardedAgain() {
+        WebTestClient client = client("localhost:" + owner.port());
+        client.get().uri("/api/device/" + remote())
+                .header(ClusterForwardingFilter.FORWARDED_BY_HEADER, "localhost:2")
+                .exchange()
+                .expectStatus().isEqualTo(421);
+        client.post().uri("/api/device").contentType(MediaType.APPLICATION_JSON)
+                .header(ClusterForwardingFilter.FORWARDED_BY_HEADER, "localhost:2")
+                .bodyValue("{\"address\":\"" + remote() + "\"}")
+                .exchange()
+                .expectStatus().isEqualTo(421);
+        assertNull(receivedUri);
+    }
+
+    @Test
+    void forwardedRequestToLocalDeviceIsServed() {
+        WebTestClient client = client("localhost:" + owner.port());
+        client.get().uri("/api/device/" + local())
+                .header(ClusterForwardingFilter.FORWARDED_BY_HEADER, "localhost:2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("local " + local());
+        assertNull(receivedUri);
+    }
+
+    @Test
+    void ownerNotReplyingInTimeIsUnavailable() {
+        WebTestClient client = client("localhost:" + owner.port());
+        client.get().uri("/api/device/" + remote() + "/hang")
+                .exchange()
+                .expectStatus().isEqualTo(503);
+    }
+
+    @Test
+    void ownerNotListeningIsUnavailable() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        WebTestClient client = client("localhost:" + closedPort);
+        client.get().uri("/api/device/" + remote())
+                .exchange()
+                .expectStatus().isEqualTo(503);
+    }
+
+    @Test
+    void ownerFailingOtherwiseIsBadGateway() {
+        // A port out of range fails before connecting
+        WebTestClient client = client("localhost:70000");
+        client.get().uri("/api/device/" + remote())
+                .exchange()
+                .expectStatus().isEqualTo(502);
+    }
+
+    private WebTestClient client(String ownerNode) {
+        ring = new ClusterRing(Arrays.asList(SELF, ownerNode), SELF);
+        filter = new ClusterForwardingFilter(ring, new ObjectMapper(), 300);
+        return WebTestClient.bindToController(new LocalDevices()).webFilter(filter).build();
+    }
+
+    private String remote() {
+        return addressOf(a -> !ring.isLocal(a));
+    }
+
+    private String local() {
+        return addressOf(a -> ring.isLocal(a));
+    }
+
+    private static String addressOf(Predicate<DeviceAddress> node) {
+        return IntStream.range(0, 100).mapToObj(i -> "d" + i).filter(a -> node.test(DeviceAddress.of(a)))
+                .findFirst().orElseThrow(IllegalStateException::new);
+    }
+
+    // Devices of this node
+    @RestController
+    static class LocalDevices {
+        @PostMapping("/api/device")
+        Mono<String> register(@RequestBody String body) {
+            return Mono.just("local " + body);
+        }
+
+        @GetMapping("/api/device/{addr}")
+        Mono<String> get(@PathVariable("addr") String addr) {
+            return Mono.just("local " + addr);
+        }
+    }
+}
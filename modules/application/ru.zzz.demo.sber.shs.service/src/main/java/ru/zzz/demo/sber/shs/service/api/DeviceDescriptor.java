@@ -16,8 +16,10 @@ public class DeviceDescriptor {
 
     public DeviceDescriptor(Device device) {
         this.address = device.getAddress().getRawAddress();
-        this.isOn = device.isOn();
-        this.value = device.getValue().orElse(null);
+        // Both are taken from one state, so they agree
+        long state = device.getState();
+        this.isOn = Device.isOn(state);
+        this.value = isOn ? Device.valueOf(state) : null;
     }
 
     @NonNull
@@ -1,12 +1,14 @@
 package ru.zzz.demo.sber.shs.service.api;
 
 import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.zzz.demo.sber.shs.db.DbActionException;
 import ru.zzz.demo.sber.shs.db.DbConnectionException;
 import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
 import ru.zzz.demo.sber.shs.model.device.DeviceIsOffException;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,6 +17,11 @@ import java.util.Optional;
  * organizes communication with them and reads and updates an external devices store (DB).
  */
 public interface DeviceManager {
+    /**
+     * @return whether devices are loaded from the store. Calls made before wait until they are loaded.
+     */
+    boolean isReady();
+
     /**
      * @return a list of addresses of all known devices.
      */
@@ -27,6 +34,20 @@ public interface DeviceManager {
     @NonNull
     List<DeviceDescriptor> listWithCurrentStatus();
 
+    /**
+     * Lists devices in the order of their addresses a page at a time, so a client may walk any number of devices
+     * without copying all of them at once. Devices registered or unregistered during the walk may or may not be
+     * listed.
+     *
+     * @param prefix only devices with addresses starting with it are listed, null or empty to list all
+     * @param after  the token of the previous page, null for the first page
+     * @param limit  maximum number of devices in the page
+     * @return a page of devices along with their status.
+     * @throws IllegalArgumentException if limit is not positive
+     */
+    @NonNull
+    DevicePage listPage(String prefix, String after, int limit);
+
     /**
      * @param address device address
      * @return device along with their status
@@ -104,4 +125,50 @@ public interface DeviceManager {
 
     @NonNull
     Mono<Integer> decrement(DeviceAddress address);
+
+    /**
+     * Reverts the last value change of a device not reverted yet and returns its value on success. A device keeps
+     * a number of last changes set in the server configuration, older ones cannot be undone.
+     *
+     * @param address device address
+     * @return Mono(new value), the value is not changed if there is nothing to undo
+     * <p>Mono({@link DeviceManagementException}) on device communication problems.
+     * <p>Mono({@link DeviceIsOffException}) if the device is known to be off (no device communication
+     * issued).
+     * <p>Mono({@link DbActionException}) if the device state was updated but the storage was not.
+     * <p>Mono({@link DbConnectionException}) if the device state was updated but the storage was not.
+     * @throws IllegalArgumentException if address is null
+     */
+    @NonNull
+    Mono<Integer> undo(DeviceAddress address);
+
+    /**
+     * Makes again the last value change of a device reverted by {@link #undo(DeviceAddress)}, unless the value
+     * was changed since, and returns its value on success.
+     *
+     * @param address device address
+     * @return Mono(new value), the value is not changed if there is nothing to redo
+     * <p>Mono({@link DeviceManagementException}) on device communication problems.
+     * <p>Mono({@link DeviceIsOffException}) if the device is known to be off (no device communication
+     * issued).
+     * <p>Mono({@link DbActionException}) if the device state was updated but the storage was not.
+     * <p>Mono({@link DbConnectionException}) if the device state was updated but the storage was not.
+     * @throws IllegalArgumentException if address is null
+     */
+    @NonNull
+    Mono<Integer> redo(DeviceAddress address);
+
+    /**
+     * Reads the history of device state changes. It is kept only if enabled in the server configuration.
+     *
+     * @param address device address, the device need not be registered now
+     * @param from    inclusive
+     * @param to      exclusive
+     * @return Flux of changes made in the given period, oldest first. An empty Flux if no history is kept.
+     * <p>Flux({@link DbActionException}) if the storage rejected the query.
+     * <p>Flux({@link DbConnectionException}) if the storage is not available.
+     * @throws IllegalArgumentException if any argument is null
+     */
+    @NonNull
+    Flux<DeviceStateChange> history(DeviceAddress address, Instant from, Instant to);
 }
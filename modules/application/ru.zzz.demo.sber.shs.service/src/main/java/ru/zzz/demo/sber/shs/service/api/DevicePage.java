@@ -0,0 +1,36 @@
+package ru.zzz.demo.sber.shs.service.api;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DTO to transfer a page of devices, in the order of their addresses, to clients in read only manner.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+public class DevicePage {
+    private final List<DeviceDescriptor> devices;
+    private final String next;
+
+    public DevicePage(List<DeviceDescriptor> devices, String next) {
+        this.devices = Collections.unmodifiableList(devices);
+        this.next = next;
+    }
+
+    @NonNull
+    public List<DeviceDescriptor> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return a token to pass to {@link DeviceManager#listPage(String, String, int)} for the next page, null if
+     * this page is the last one.
+     */
+    @Nullable
+    public String getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,58 @@
+package ru.zzz.demo.sber.shs.service.api;
+
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.db.DeviceStateTransition;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * DTO to transfer a device state change from the history to clients in read only manner.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+public class DeviceStateChange {
+    /**
+     * A state a device came to.
+     */
+    public enum State {
+        ON,
+        OFF,
+        /** The device was unregistered */
+        REMOVED
+    }
+
+    private final String address;
+    private final State state;
+    private final int value;
+    private final Instant moment;
+
+    public DeviceStateChange(DeviceStateTransition transition) {
+        this.address = transition.getAddress();
+        this.state = State.valueOf(transition.getState().name());
+        this.value = transition.getValue();
+        this.moment = transition.getChangeDateUtc().toInstant(ZoneOffset.UTC);
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    @NonNull
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the value of the device. It is the last value set if the device is off.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    @NonNull
+    public Instant getMoment() {
+        return moment;
+    }
+}
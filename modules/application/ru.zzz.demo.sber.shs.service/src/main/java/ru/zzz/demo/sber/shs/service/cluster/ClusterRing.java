@@ -0,0 +1,110 @@
+package ru.zzz.demo.sber.shs.service.cluster;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Splits the device address space among the nodes of a cluster by consistent hashing. Every node is placed on
+ * a ring of 64-bit hashes at a number of points, a device is owned by the node of the first point at or after
+ * the hash of its address. Adding or removing a node moves only the devices of its points.
+ *
+ * <p>Nodes are identified by the host:port their REST API listens at. Every node of a cluster must be given the
+ * same list of nodes, so they agree on owners. Without nodes the cluster is disabled and every device is local.
+ *
+ * <p>Instances of this class are immutable.
+ */
+@Component("SHS.Application.ClusterRing")
+public class ClusterRing {
+    private static final int POINTS_PER_NODE = 128;
+
+    private final List<String> nodes;
+    private final String self;
+    // Point hash -> node, read only after construction
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    @Autowired
+    ClusterRing(ServerConfig config) {
+        this(parseNodes(config.clusterNodes()), config.clusterSelf());
+    }
+
+    /**
+     * @param nodes host:port of every node, empty to disable the cluster
+     * @param self  host:port of this node, one of nodes
+     * @throws IllegalArgumentException if self is not one of nodes
+     */
+    public ClusterRing(List<String> nodes, String self) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.self = self;
+        if (nodes.isEmpty()) return;
+        if (!nodes.contains(self))
+            throw new IllegalArgumentException("Node " + self + " is not one of cluster nodes " + nodes);
+        for (String node : nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public boolean isEnabled() {
+        return !ring.isEmpty();
+    }
+
+    @NonNull
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return host:port of this node.
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @return host:port of the node owning the device, this node if the cluster is disabled.
+     */
+    public String ownerOf(DeviceAddress address) {
+        if (ring.isEmpty()) return self;
+        Map.Entry<Long, String> point = ring.ceilingEntry(hash(address.getRawAddress()));
+        return (point == null ? ring.firstEntry() : point).getValue();
+    }
+
+    public boolean isLocal(DeviceAddress address) {
+        return ring.isEmpty() || self.equals(ownerOf(address));
+    }
+
+    /**
+     * FNV-1a of UTF-8 bytes mixed by the MurmurHash3 finalizer, so close strings land far apart on the ring.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static List<String> parseNodes(String nodes) {
+        List<String> parsed = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            if (!node.trim().isEmpty()) parsed.add(node.trim());
+        }
+        return parsed;
+    }
+}
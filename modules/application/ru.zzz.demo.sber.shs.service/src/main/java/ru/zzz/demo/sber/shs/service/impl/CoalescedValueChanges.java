@@ -0,0 +1,68 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import ru.zzz.demo.sber.shs.model.device.Device;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.ToIntFunction;
+
+/**
+ * Relative changes of a device value waiting in the device mailbox to be applied at once: the model applies them
+ * one by one, while the device and the store get the net value only.
+ *
+ * <p>Changes are added while the instance is open and applied after it is closed. Adding and closing must be
+ * ordered by the caller, e.g. by a lock.
+ */
+class CoalescedValueChanges {
+    private final List<ToIntFunction<Device>> changes = new ArrayList<>();
+    private final List<CompletableFuture<Integer>> results = new ArrayList<>();
+    // Values of the device after respective changes, -1 for failed ones
+    private int[] values;
+
+    /**
+     * @param change changes the model value and returns the new one
+     * @param result completed with the value of the device after the change when it is set to the device and
+     *               stored
+     */
+    void add(ToIntFunction<Device> change, CompletableFuture<Integer> result) {
+        changes.add(change);
+        results.add(result);
+    }
+
+    /**
+     * Applies the changes to the model in order. A change which fails fails its result and is skipped.
+     *
+     * @return the value after the last applied change, -1 if none is applied.
+     */
+    int apply(Device device) {
+        values = new int[changes.size()];
+        int value = -1;
+        for (int i = 0; i < values.length; i++) {
+            try {
+                value = changes.get(i).applyAsInt(device);
+                values[i] = value;
+            } catch (RuntimeException e) {
+                values[i] = -1;
+                results.get(i).completeExceptionally(e);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Completes the results of the applied changes with the values they made.
+     */
+    void complete() {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] >= 0) results.get(i).complete(values[i]);
+        }
+    }
+
+    /**
+     * Fails the results which are not completed yet.
+     */
+    void fail(Throwable e) {
+        for (CompletableFuture<Integer> result : results) result.completeExceptionally(e);
+    }
+}
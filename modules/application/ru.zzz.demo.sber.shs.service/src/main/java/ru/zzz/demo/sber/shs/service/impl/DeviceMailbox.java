@@ -0,0 +1,172 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.model.device.Device;
+import ru.zzz.demo.sber.shs.service.api.DeviceManagementException;
+
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * Executes commands to a device one at a time in the order they are submitted.
+ *
+ * <p>A command is asynchronous: it is over when the future it returns completes, and the next one starts then.
+ * Commands submitted while another one is in progress are queued. There is no lock. Without an executor there is
+ * no worker thread either: the thread submitting a command to an idle device executes it, and the thread
+ * completing a command executes the queued ones. With an executor, e.g. the one of a shard, commands are executed
+ * by it. A command must not block in either case.
+ *
+ * <p>The queue is bounded: a command submitted to a device with as many commands queued or in progress as the
+ * depth is rejected. Concurrent submitters may exceed the depth by their number.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+class DeviceMailbox {
+    private final Device device;
+    private final int depth;
+    // Executes commands, null to execute them by submitting and completing threads
+    private final Executor executor;
+    // Commands returning true if they are over, false if they end later
+    private final Queue<BooleanSupplier> commands = new ConcurrentLinkedQueue<>();
+    // Number of commands queued or in progress. The submitter which makes it 1 executes commands
+    private final AtomicInteger pending = new AtomicInteger();
+    // Number of commands started, changed only by the command in progress
+    private volatile long version;
+
+    /**
+     * @param depth maximum number of commands queued or in progress
+     */
+    DeviceMailbox(Device device, int depth) {
+        this(device, depth, null);
+    }
+
+    /**
+     * @param depth    maximum number of commands queued or in progress
+     * @param executor executes commands, null to execute them by submitting and completing threads
+     */
+    DeviceMailbox(Device device, int depth, Executor executor) {
+        if (device == null || depth <= 0) throw new IllegalArgumentException();
+        this.device = device;
+        this.depth = depth;
+        this.executor = executor;
+    }
+
+    @NonNull
+    Device get() {
+        return device;
+    }
+
+    /**
+     * @return an executor to continue commands by, so they change the device on the thread they started on.
+     */
+    @NonNull
+    Executor executor() {
+        return (executor == null) ? Runnable::run : executor;
+    }
+
+    /**
+     * Queues a command.
+     *
+     * @return the result of the command: completed with its result or failed with its exception.
+     * @throws DeviceManagementException if the queue is full
+     */
+    @NonNull
+    <T> CompletableFuture<T> submit(Function<Device, CompletableFuture<T>> command) {
+        if (pending.get() >= depth) throw new DeviceManagementException(
+                "Device " + device.getAddress() + " has too many commands queued");
+        CompletableFuture<T> result = new CompletableFuture<>();
+        commands.add(() -> {
+            version++;
+            CompletableFuture<T> done;
+            try {
+                done = command.apply(device);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return true;
+            }
+            if (done.isDone()) {
+                complete(result, done);
+                return true;
+            }
+            done.whenComplete((v, e) -> {
+                complete(result, done);
+                release();
+            });
+            return false;
+        });
+        if (pending.getAndIncrement() == 0) schedule();
+        return result;
+    }
+
+    /**
+     * @return a number which changes when a command starts, -1 if a command is in progress.
+     */
+    long version() {
+        long v = version;
+        return (pending.get() > 0) ? -1 : v;
+    }
+
+    /**
+     * Executes a command at once if the device is idle and no command started since the version was taken. Like
+     * a submitted command, it is over when the future it returns completes, and the next one starts then.
+     *
+     * @return the result of the command, empty if the device is busy or has changed.
+     */
+    <T> Optional<CompletableFuture<T>> callIfUnchanged(long sinceVersion,
+            Function<Device, CompletableFuture<T>> command) {
+        if (!pending.compareAndSet(0, 1)) return Optional.empty();
+        CompletableFuture<T> done;
+        try {
+            if (version != sinceVersion) {
+                release();
+                return Optional.empty();
+            }
+            version++;
+            done = command.apply(device);
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        done.whenComplete((v, e) -> release());
+        return Optional.of(done);
+    }
+
+    /**
+     * Ends a command which did not complete at once, executing the commands queued meanwhile.
+     */
+    private void release() {
+        if (pending.decrementAndGet() > 0) schedule();
+    }
+
+    private void schedule() {
+        if (executor == null) drain();
+        else executor.execute(this::drain);
+    }
+
+    /**
+     * Executes queued commands until there are none or one is in progress. Commands completing at once are
+     * executed in a loop rather than recursively.
+     */
+    private void drain() {
+        do {
+            if (!commands.poll().getAsBoolean()) return;
+        } while (pending.decrementAndGet() > 0);
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, CompletableFuture<T> done) {
+        try {
+            result.complete(done.join());
+        } catch (CompletionException e) {
+            result.completeExceptionally((e.getCause() != null) ? e.getCause() : e);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+}
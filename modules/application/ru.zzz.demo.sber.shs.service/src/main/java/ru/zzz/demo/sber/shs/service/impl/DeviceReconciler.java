@@ -0,0 +1,218 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Service;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Walks the registry in the background asking devices their state, so the model and the store do not drift
+ * from devices changed bypassing the server.
+ *
+ * <p>Devices are asked in slices: a slice of a number of devices is asked at once, the next slice is started
+ * when the previous one is replied, not sooner than the rate allows. A pass over all devices is followed by
+ * a pause. The registry is not copied, a pass walks it by a cursor.
+ *
+ * <p>Commands are not delayed by reconciliation, a device with a command in progress is skipped.
+ */
+@Service("SHS.Application.DeviceReconciler")
+@ManagedResource(objectName = "SHS:type=Device,name=Reconciler")
+public class DeviceReconciler implements InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceReconciler.class);
+
+    /**
+     * Result of reconciliation of a device.
+     */
+    enum Outcome {
+        IN_SYNC,
+        // The device is on while the model is off or vice versa
+        STATE_DRIFT,
+        // The device has a value other than the model
+        VALUE_DRIFT,
+        // The device is busy, has changed while it was asked or is unregistered
+        SKIPPED,
+        // The device has not replied its state
+        UNREACHABLE
+    }
+
+    private final InMemoryDeviceManager dm;
+    private final boolean enabled;
+    private final int parallelism;
+    private final long sliceIntervalMillis;
+    private final long passIntervalMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Accessed by the scheduler thread only
+    private Iterator<DeviceAddress> cursor;
+    private long passStartedMillis;
+    private long nextPassMillis;
+    private ScheduledExecutorService scheduler;
+
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder inSync = new LongAdder();
+    private final LongAdder stateDrifts = new LongAdder();
+    private final LongAdder valueDrifts = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder unreachable = new LongAdder();
+    private volatile long lastPassMillis;
+
+    @Autowired
+    DeviceReconciler(InMemoryDeviceManager dm, ServerConfig config) {
+        this(dm, config.deviceReconcileEnabled(), config.deviceReconcileDevicesPerSecond(),
+                config.deviceReconcileParallelism(), config.deviceReconcilePassIntervalMillis());
+    }
+
+    DeviceReconciler(InMemoryDeviceManager dm, boolean enabled, int devicesPerSecond, int parallelism,
+            long passIntervalMillis) {
+        if (devicesPerSecond <= 0 || parallelism <= 0 || passIntervalMillis < 0)
+            throw new IllegalArgumentException("reconciliation rate and parallelism must be positive");
+        this.dm = dm;
+        this.enabled = enabled;
+        this.parallelism = parallelism;
+        this.sliceIntervalMillis = Math.max(1, parallelism * 1000L / devicesPerSecond);
+        this.passIntervalMillis = passIntervalMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled) return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "device-reconciler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcileSlice();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Reconciliation of devices failed", e);
+            }
+        }, sliceIntervalMillis, sliceIntervalMillis, MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (scheduler == null) return;
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(10, SECONDS);
+    }
+
+    /**
+     * Asks the next slice of devices, unless the previous one is being asked or it is a pause between passes.
+     *
+     * @return number of devices asked.
+     */
+    int reconcileSlice() {
+        if (inFlight.get() > 0) return 0;
+        long now = System.currentTimeMillis();
+        if (cursor == null || !cursor.hasNext()) {
+            if (cursor != null) {
+                cursor = null;
+                lastPassMillis = now - passStartedMillis;
+                nextPassMillis = now + passIntervalMillis;
+                LOGGER.debug("Reconciliation pass is over in {} ms", lastPassMillis);
+            }
+            if (now < nextPassMillis) return 0;
+            cursor = dm.registryCursor();
+            passStartedMillis = now;
+            passes.increment();
+        }
+        int asked = 0;
+        while (asked < parallelism && cursor.hasNext()) {
+            DeviceAddress address = cursor.next();
+            inFlight.incrementAndGet();
+            asked++;
+            try {
+                dm.reconcile(address).whenComplete((outcome, e) -> {
+                    count((e == null) ? outcome : Outcome.UNREACHABLE);
+                    inFlight.decrementAndGet();
+                });
+            } catch (RuntimeException e) {
+                count(Outcome.UNREACHABLE);
+                inFlight.decrementAndGet();
+            }
+        }
+        return asked;
+    }
+
+    private void count(Outcome outcome) {
+        checked.increment();
+        switch (outcome) {
+            case IN_SYNC:
+                inSync.increment();
+                break;
+            case STATE_DRIFT:
+                stateDrifts.increment();
+                break;
+            case VALUE_DRIFT:
+                valueDrifts.increment();
+                break;
+            case SKIPPED:
+                skipped.increment();
+                break;
+            default:
+                unreachable.increment();
+                break;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of passes over all devices started")
+    public long getPasses() {
+        return passes.sum();
+    }
+
+    @ManagedAttribute(description = "Duration of the last pass over all devices")
+    public long getLastPassMillis() {
+        return lastPassMillis;
+    }
+
+    @ManagedAttribute(description = "Number of devices asked their state")
+    public long getChecked() {
+        return checked.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices being asked their state")
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    @ManagedAttribute(description = "Number of devices in the state of the model")
+    public long getInSync() {
+        return inSync.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices found on while off in the model or vice versa")
+    public long getStateDrifts() {
+        return stateDrifts.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices found with a value other than in the model")
+    public long getValueDrifts() {
+        return valueDrifts.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices skipped because a command was in progress")
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices which have not replied their state")
+    public long getUnreachable() {
+        return unreachable.sum();
+    }
+}
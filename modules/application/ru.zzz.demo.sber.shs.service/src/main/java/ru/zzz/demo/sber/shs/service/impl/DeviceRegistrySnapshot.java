@@ -0,0 +1,127 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.model.device.Device;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Devices of the registry saved to a file together with a watermark: the moment since which the storage
+ * may have changes the snapshot does not reflect. The file is
+ * <pre>
+ * magic: int, watermark epoch millis: long, count: int,
+ * count * (is on: byte, value: int, address length: short, address: UTF-8),
+ * crc32 of the preceding bytes: int
+ * </pre>
+ */
+final class DeviceRegistrySnapshot {
+    private static final int MAGIC = 0x53485352;
+    private static final int HEADER_BYTES = 4 + 8 + 4;
+
+    private final long watermarkEpochMillis;
+    private final List<Device> devices;
+
+    private DeviceRegistrySnapshot(long watermarkEpochMillis, List<Device> devices) {
+        this.watermarkEpochMillis = watermarkEpochMillis;
+        this.devices = devices;
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, syncs it and replaces the file atomically, so a crash leaves
+     * either the previous snapshot or the new one.
+     */
+    static void write(Path path, long watermarkEpochMillis, Collection<Device> devices) throws IOException {
+        Path tmp = Paths.get(path + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new CheckedOutputStream(file, crc), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(watermarkEpochMillis);
+            out.writeInt(devices.size());
+            for (Device d : devices) {
+                byte[] address = d.getAddress().getRawAddress().getBytes(StandardCharsets.UTF_8);
+                if (address.length > 0xFFFF) throw new IllegalArgumentException("Address is too long: " + d);
+                out.writeByte(d.isOn() ? 1 : 0);
+                out.writeInt(d.getLastValue());
+                out.writeShort(address.length);
+                out.write(address);
+            }
+            out.flush();
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps a snapshot file and reads it.
+     *
+     * @param historyDepth number of value changes devices keep to undo
+     * @return null if there is no snapshot file.
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    static DeviceRegistrySnapshot read(Path path, int historyDepth) throws IOException {
+        if (!Files.exists(path)) return null;
+        try (FileChannel channel = FileChannel.open(path)) {
+            if (channel.size() < HEADER_BYTES + 4 || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot " + path + " has a wrong size");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buffer.limit() - 4;
+            ByteBuffer checked = buffer.duplicate();
+            checked.limit(end);
+            CRC32 crc = new CRC32();
+            crc.update(checked);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(end) != (int) crc.getValue())
+                throw new IOException("Snapshot " + path + " is corrupted");
+            long watermark = buffer.getLong(4);
+            int count = buffer.getInt(12);
+            List<Device> devices = new ArrayList<>(count);
+            buffer.position(HEADER_BYTES);
+            for (int i = 0; i < count; i++) {
+                boolean isOn = buffer.get() != 0;
+                int value = buffer.getInt();
+                byte[] address = new byte[buffer.getShort() & 0xFFFF];
+                buffer.get(address);
+                devices.add(Device.of(DeviceAddress.of(new String(address, StandardCharsets.UTF_8)), value, isOn,
+                        historyDepth));
+            }
+            return new DeviceRegistrySnapshot(watermark, Collections.unmodifiableList(devices));
+        } catch (RuntimeException e) {
+            throw new IOException("Snapshot " + path + " is corrupted", e);
+        }
+    }
+
+    /**
+     * @return the moment since which storage records must be read to bring the snapshot up to date.
+     */
+    long getWatermarkEpochMillis() {
+        return watermarkEpochMillis;
+    }
+
+    @NonNull
+    List<Device> getDevices() {
+        return devices;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Single-threaded executors devices are partitioned among by address hash. A device is changed by the thread
+ * of its shard only, so devices of different shards never share a cache line being written, and a shard runs
+ * commands one after another from its own queue.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+class DeviceShards {
+    private final ExecutorService[] shards;
+
+    /**
+     * @param count number of shards, normally the number of cores
+     */
+    DeviceShards(int count) {
+        if (count <= 0) throw new IllegalArgumentException("count must be positive");
+        shards = new ExecutorService[count];
+        for (int i = 0; i < count; i++) {
+            String name = "device-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread t = new Thread(runnable, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    int count() {
+        return shards.length;
+    }
+
+    /**
+     * @return the executor of the shard owning the device.
+     */
+    @NonNull
+    Executor of(DeviceAddress address) {
+        int h = address.hashCode();
+        // Spread high bits, as addresses alike differ in the last characters
+        h ^= (h >>> 16);
+        return shards[Math.floorMod(h, shards.length)];
+    }
+
+    void shutdown() throws InterruptedException {
+        for (ExecutorService shard : shards) shard.shutdown();
+        for (ExecutorService shard : shards) shard.awaitTermination(10, SECONDS);
+    }
+}
@@ -2,6 +2,8 @@ package ru.zzz.demo.sber.shs.service.impl;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Service;
@@ -9,6 +11,10 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.zzz.demo.sber.shs.CircuitBreaker.device.DeviceCircuitBreaker;
 import ru.zzz.demo.sber.shs.CircuitBreaker.storage.DeviceStorageCircuitBreaker;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceHistory;
+import ru.zzz.demo.sber.shs.db.DeviceStateTransition;
 import ru.zzz.demo.sber.shs.device.Reply;
 import ru.zzz.demo.sber.shs.device.Request;
 import ru.zzz.demo.sber.shs.model.device.Device;
@@ -17,38 +23,153 @@ import ru.zzz.demo.sber.shs.model.device.DeviceIsOffException;
 import ru.zzz.demo.sber.shs.service.api.DeviceDescriptor;
 import ru.zzz.demo.sber.shs.service.api.DeviceManagementException;
 import ru.zzz.demo.sber.shs.service.api.DeviceManager;
+import ru.zzz.demo.sber.shs.service.api.DevicePage;
+import ru.zzz.demo.sber.shs.service.api.DeviceStateChange;
 import ru.zzz.demo.sber.shs.service.api.UnknownDeviceException;
+import ru.zzz.demo.sber.shs.service.cluster.ClusterRing;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.ToIntFunction;
 import java.util.stream.Collectors;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
 
 @Service("SHS.Application.DeviceManager")
-class InMemoryDeviceManager implements DeviceManager {
+class InMemoryDeviceManager implements DeviceManager, InitializingBean, DisposableBean {
     private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryDeviceManager.class);
+    private static final int MAX_PRESIZED_DEVICES = 1 << 30;
+    private static final int DEFAULT_MAILBOX_DEPTH = 16;
+    private static final long LOAD_RETRY_MILLIS = 1000;
 
-    // devices list
-    private final Map<DeviceAddress, DeviceAccessSerializer> devices = new ConcurrentHashMap<>();
+    // devices list. It is replaced by a list loaded from a store once, before devicesLoaded is completed.
+    private Map<DeviceAddress, DeviceMailbox> devices = new ConcurrentHashMap<>();
+    // The same devices by raw addresses in their order, for listing. Changed within the devices map compute
+    // methods, so the two agree. It is replaced along with devices.
+    private NavigableMap<String, DeviceMailbox> index = new ConcurrentSkipListMap<>();
     // An interface of a pseudo circuit breaker to the device
     private final DeviceCircuitBreaker deviceCircuitBreaker;
     // An interface of a pseudo circuit breaker to the devices state store
     private final DeviceStorageCircuitBreaker deviceStorageCircuitBreaker;
-    // A monitor to guarantee devices list is loaded from a store once.
-    private final Object devicesInitializationLock = new Object();
-    // Flag indicating that initial state was read from a DB.
-    private boolean devicesInitialized = false;
+    // A flag to guarantee devices list is loaded from a store by one caller at a time. Cleared if loading fails.
+    private final AtomicBoolean devicesLoadStarted = new AtomicBoolean();
+    // A readiness signal completed when initial state was read from a DB. If it cannot be read, the signal is
+    // failed to callers waiting for it and replaced by a new one for the next attempt.
+    private volatile CompletableFuture<Void> devicesLoaded = new CompletableFuture<>();
+    // Loads devices in the background until they are loaded
+    private Thread loader;
+    // A registry snapshot file, null if snapshots are disabled
+    private final Path snapshotPath;
+    private final long snapshotIntervalMillis;
+    private final long snapshotClockSkewMillis;
+    // Saves snapshots once devices are loaded
+    private ScheduledExecutorService snapshotSaver;
+    // Device state changes history, null if it is not kept
+    private final DeviceHistory history;
+    // Maximum number of commands to a device queued or in progress
+    private final int mailboxDepth;
+    // Number of value changes a device keeps to undo
+    private final int historyDepth;
+    // Executors of device commands, null to execute them by submitting and replying threads
+    private final DeviceShards shards;
+    // Value changes queued in device mailboxes and open to join, null if changes are not coalesced
+    private final Map<DeviceAddress, CoalescedValueChanges> openValueChanges;
+    // Devices of the cluster nodes, only ones of this node are loaded. Null if there is no cluster
+    private final ClusterRing ring;
 
-    @Autowired
     InMemoryDeviceManager(DeviceCircuitBreaker deviceCircuitBreaker,
             DeviceStorageCircuitBreaker deviceStorageCircuitBreaker) {
+        this(deviceCircuitBreaker, deviceStorageCircuitBreaker, new Settings());
+    }
+
+    @Autowired
+    InMemoryDeviceManager(DeviceCircuitBreaker deviceCircuitBreaker,
+            DeviceStorageCircuitBreaker deviceStorageCircuitBreaker, ServerConfig config, DeviceHistory history,
+            ClusterRing ring) {
+        this(deviceCircuitBreaker, deviceStorageCircuitBreaker, Settings.of(config, ring).history(history));
+    }
+
+    InMemoryDeviceManager(DeviceCircuitBreaker deviceCircuitBreaker,
+            DeviceStorageCircuitBreaker deviceStorageCircuitBreaker, Settings settings) {
         this.deviceCircuitBreaker = deviceCircuitBreaker;
         this.deviceStorageCircuitBreaker = deviceStorageCircuitBreaker;
+        if (settings.snapshotPath != null && settings.ring != null)
+            LOGGER.info("Registry snapshots are disabled in a cluster, devices are read from a DB on start");
+        this.snapshotPath = (settings.ring == null) ? settings.snapshotPath : null;
+        this.snapshotIntervalMillis = settings.snapshotIntervalMillis;
+        this.snapshotClockSkewMillis = settings.snapshotClockSkewMillis;
+        this.history = settings.history;
+        this.mailboxDepth = settings.mailboxDepth;
+        this.openValueChanges = settings.coalesceValueChanges ? new ConcurrentHashMap<>() : null;
+        this.historyDepth = settings.historyDepth;
+        this.shards = settings.shards;
+        this.ring = settings.ring;
+    }
+
+    /**
+     * Starts loading devices in the background, so the server starts at once and serves requests as soon as
+     * they are loaded, see {@link #isReady()}. If a DB cannot be read, loading is retried until it is.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        loader = new Thread(() -> {
+            while (!isReady()) {
+                try {
+                    getDevices();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Cannot load devices, retrying in {} ms", LOAD_RETRY_MILLIS, e);
+                    try {
+                        Thread.sleep(LOAD_RETRY_MILLIS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }, "device-registry-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Saves the last snapshot, so the next start reads as few records as possible, and stops shards.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        if (loader != null) loader.interrupt();
+        if (snapshotSaver != null) {
+            snapshotSaver.execute(this::saveSnapshot);
+            snapshotSaver.shutdown();
+            snapshotSaver.awaitTermination(10, SECONDS);
+        }
+        if (shards != null) shards.shutdown();
+    }
+
+    @Override
+    public boolean isReady() {
+        CompletableFuture<Void> loaded = devicesLoaded;
+        return loaded.isDone() && !loaded.isCompletedExceptionally();
     }
 
     @Override
@@ -62,15 +183,36 @@ class InMemoryDeviceManager implements DeviceManager {
     public List<DeviceDescriptor> listWithCurrentStatus() {
         return getDevices().values()
                 .stream()
-                .map(DeviceAccessSerializer::get)
+                .map(DeviceMailbox::get)
                 .map(DeviceDescriptor::new)
                 .collect(Collectors.toList());
     }
 
+    @Override
+    @NonNull
+    public DevicePage listPage(String prefix, String after, int limit) {
+        if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+        String from = (prefix == null) ? "" : prefix;
+        // Wait until the index is loaded
+        getDevices();
+        NavigableMap<String, DeviceMailbox> tail = (after != null && after.compareTo(from) >= 0)
+                ? index.tailMap(after, false)
+                : index.tailMap(from, true);
+        List<DeviceDescriptor> page = new ArrayList<>(Math.min(limit, 1024));
+        String last = null;
+        for (Map.Entry<String, DeviceMailbox> e : tail.entrySet()) {
+            if (!e.getKey().startsWith(from)) break;
+            if (page.size() == limit) return new DevicePage(page, last);
+            page.add(new DeviceDescriptor(e.getValue().get()));
+            last = e.getKey();
+        }
+        return new DevicePage(page, null);
+    }
+
     @Override
     public Optional<DeviceDescriptor> getDevice(DeviceAddress address) {
-        DeviceAccessSerializer serializer = getDevices().get(address);
-        return (serializer == null) ? Optional.empty() : Optional.of(new DeviceDescriptor(serializer.get()));
+        DeviceMailbox mailbox = getDevices().get(address);
+        return (mailbox == null) ? Optional.empty() : Optional.of(new DeviceDescriptor(mailbox.get()));
     }
 
     @Override
@@ -78,7 +220,12 @@ class InMemoryDeviceManager implements DeviceManager {
         if (address == null) throw new IllegalArgumentException("address is null");
         // Create a device in an off state
         return Mono.fromCallable(() -> getDevices().compute(address, (addr, existing) -> {
-            if (existing == null) return new DeviceAccessSerializer(Device.of(addr));
+            if (existing == null) {
+                record(addr, DeviceStateTransition.State.OFF, 0);
+                DeviceMailbox mailbox = newMailbox(Device.of(addr, 0, false, historyDepth));
+                index.put(addr.getRawAddress(), mailbox);
+                return mailbox;
+            }
             throw new DeviceManagementException("Already associated");
         })).flatMap(v -> {
             // Update devices store
@@ -90,7 +237,17 @@ class InMemoryDeviceManager implements DeviceManager {
     public Mono<Boolean> unregister(DeviceAddress address) {
         if (address == null) throw new IllegalArgumentException("address is null");
         // Update model and then the devices store in case the device really existed
-        return Mono.fromCallable(() -> getDevices().remove(address) != null).flatMap(removed -> {
+        return Mono.fromCallable(() -> {
+            boolean[] removed = new boolean[1];
+            getDevices().computeIfPresent(address, (addr, existing) -> {
+                index.remove(addr.getRawAddress(), existing);
+                removed[0] = true;
+                return null;
+            });
+            if (!removed[0]) return false;
+            record(address, DeviceStateTransition.State.REMOVED, 0);
+            return true;
+        }).flatMap(removed -> {
             if (removed != null && removed) {
                 return deviceStorageCircuitBreaker.removeDevice(address.getRawAddress())
                         .then(Mono.just(true));
@@ -104,26 +261,25 @@ class InMemoryDeviceManager implements DeviceManager {
     @NonNull
     public Mono<Void> on(DeviceAddress address) {
         if (address == null) throw new IllegalArgumentException("address is null");
-        return Mono.fromCallable(() -> {
-            DeviceAccessSerializer serializer = getDevices().get(address);
-            if (serializer == null) throw new UnknownDeviceException(address);
-            return serializer.call(device -> {
-                // Update a device stub
-                Reply onReply = deviceCircuitBreaker.accept(Request.on(address.getRawAddress()));
-                if (onReply instanceof Reply.Error) throw new DeviceManagementException(
-                        "Cannot switch device " + address + " on: " + ((Reply.Error) onReply).getReason());
+        return submit(address, (device, executor) -> {
+            // Switch a device stub on and set its value in one batch, the device executes them in order
+            int v = device.getLastValue();
+            return deviceCircuitBreaker.acceptAllAsync(Arrays.asList(Request.on(address.getRawAddress()),
+                    Request.set(address.getRawAddress(), v))).thenApplyAsync(replies -> {
+                Reply on = replies.get(0);
+                Reply set = replies.get(1);
+                if (on instanceof Reply.Error) throw new DeviceManagementException(
+                        "Cannot switch device " + address + " on: " + ((Reply.Error) on).getReason());
                 // Update model
                 device.on();
-                // Set value to the device stub
-                Integer v = device.getValue().orElseThrow(() -> new IllegalStateException("Device is off"));
-                Reply setReply = deviceCircuitBreaker.accept(Request.set(address.getRawAddress(), v));
-                if (setReply instanceof Reply.Error) throw new DeviceManagementException(
-                        "Cannot set device " + address + " value: " + ((Reply.Error) setReply).getReason());
+                record(address, DeviceStateTransition.State.ON, v);
+                if (set instanceof Reply.Error) throw new DeviceManagementException(
+                        "Cannot set device " + address + " value: " + ((Reply.Error) set).getReason());
                 return v;
+            }, executor).thenCompose(value -> {
+                // Update the devices store (DB)
+                return store(value, deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), value));
             });
-        }).flatMap(v -> {
-            // Update the devices store (DB)
-            return deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), v);
         }).then();
     }
 
@@ -131,21 +287,19 @@ class InMemoryDeviceManager implements DeviceManager {
     @NonNull
     public Mono<Void> off(DeviceAddress address) {
         if (address == null) throw new IllegalArgumentException("address is null");
-        return Mono.fromCallable(() -> {
-            DeviceAccessSerializer serializer = getDevices().get(address);
-            if (serializer == null) throw new UnknownDeviceException(address);
-            return serializer.call(device -> {
-                // Update a device stub
-                Reply onReply = deviceCircuitBreaker.accept(Request.off(address.getRawAddress()));
+        return submit(address, (device, executor) -> {
+            // Update a device stub
+            return deviceCircuitBreaker.acceptAsync(Request.off(address.getRawAddress())).thenApplyAsync(onReply -> {
                 if (onReply instanceof Reply.Error) throw new DeviceManagementException(
                         "Cannot switch device " + address + " off: " + ((Reply.Error) onReply).getReason());
                 // Update model
                 device.off();
+                record(address, DeviceStateTransition.State.OFF, device.getLastValue());
                 return true;
+            }, executor).thenCompose(v -> {
+                // Update the devices store (DB)
+                return store(v, deviceStorageCircuitBreaker.setDeviceIsOff(address.getRawAddress()));
             });
-        }).flatMap(v -> {
-            // Update the devices store (DB)
-            return deviceStorageCircuitBreaker.setDeviceIsOff(address.getRawAddress());
         }).then();
     }
 
@@ -153,100 +307,485 @@ class InMemoryDeviceManager implements DeviceManager {
     @NonNull
     public Mono<Integer> increment(DeviceAddress address) {
         if (address == null) throw new IllegalArgumentException("address is null");
-        return Mono.fromCallable(() -> {
-            DeviceAccessSerializer serializer = getDevices().get(address);
-            if (serializer == null) throw new UnknownDeviceException(address);
-            return serializer.call(device -> {
-                // Update a device stub
-                if(!device.isOn()) throw new DeviceIsOffException(address);
-                int newValue = device.incrementValue();
-                Reply onReply = deviceCircuitBreaker.accept(Request.set(address.getRawAddress(), newValue));
-                if (onReply instanceof Reply.Error) throw new DeviceManagementException(
-                        "Cannot set device " + address + " value to " + newValue + ": " +
-                                ((Reply.Error) onReply).getReason());
-                return newValue;
-            });
-        }).flatMap(v -> {
-            // Update the devices store (DB)
-            return deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), v).map(dummy -> v);
-        });
+        return changeValue(address, Device::incrementValue);
     }
 
     @Override
     @NonNull
     public Mono<Integer> decrement(DeviceAddress address) {
         if (address == null) throw new IllegalArgumentException("address is null");
-        return Mono.fromCallable(() -> {
-            DeviceAccessSerializer serializer = getDevices().get(address);
-            if (serializer == null) throw new UnknownDeviceException(address);
-            return serializer.call(device -> {
-                // Update a device stub
-                if(!device.isOn()) throw new DeviceIsOffException(address);
-                int newValue = device.decrementValue();
-                Reply onReply = deviceCircuitBreaker.accept(Request.set(address.getRawAddress(), newValue));
-                if (onReply instanceof Reply.Error) throw new DeviceManagementException(
-                        "Cannot set device " + address + " value to " + newValue + ": " +
-                                ((Reply.Error) onReply).getReason());
-                return newValue;
+        return changeValue(address, Device::decrementValue);
+    }
+
+    @Override
+    @NonNull
+    public Mono<Integer> undo(DeviceAddress address) {
+        if (address == null) throw new IllegalArgumentException("address is null");
+        return changeValue(address, Device::undoValueChange);
+    }
+
+    @Override
+    @NonNull
+    public Mono<Integer> redo(DeviceAddress address) {
+        if (address == null) throw new IllegalArgumentException("address is null");
+        return changeValue(address, Device::redoValueChange);
+    }
+
+    /**
+     * Changes the value of the model, then of a device and of the store, in a single command to the device.
+     */
+    private Mono<Integer> changeValue(DeviceAddress address, ToIntFunction<Device> change) {
+        if (openValueChanges != null) return Mono.defer(() -> Mono.fromFuture(coalesceValueChange(address, change)));
+        return Mono.defer(() -> Mono.fromFuture(mailboxOf(address).submit(device -> {
+            // Update a device stub
+            if (!device.isOn()) throw new DeviceIsOffException(address);
+            int newValue = change.applyAsInt(device);
+            record(address, DeviceStateTransition.State.ON, newValue);
+            return deviceCircuitBreaker.acceptAsync(Request.set(address.getRawAddress(), newValue))
+                    .thenApply(onReply -> {
+                        if (onReply instanceof Reply.Error) throw new DeviceManagementException(
+                                "Cannot set device " + address + " value to " + newValue + ": " +
+                                        ((Reply.Error) onReply).getReason());
+                        return newValue;
+                    })
+                    .thenCompose(v -> store(v, deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), v)));
+        })));
+    }
+
+    /**
+     * Joins a value change to the changes queued to the device, or queues new ones. Queued changes are applied
+     * to the model one by one, then the device and the store get the value of the last one, see
+     * {@link #setValueChanges(DeviceAddress, Device, CoalescedValueChanges)}.
+     *
+     * @return the value after the change.
+     */
+    private CompletableFuture<Integer> coalesceValueChange(DeviceAddress address, ToIntFunction<Device> change) {
+        DeviceMailbox mailbox = mailboxOf(address);
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        CoalescedValueChanges[] opened = new CoalescedValueChanges[1];
+        // Joining and closing changes are ordered by the map
+        openValueChanges.compute(address, (addr, open) -> {
+            if (open == null) open = opened[0] = new CoalescedValueChanges();
+            open.add(change, result);
+            return open;
+        });
+        if (opened[0] == null) return result;
+        CoalescedValueChanges changes = opened[0];
+        try {
+            mailbox.submit(device -> setValueChanges(address, device, changes)).whenComplete((v, e) -> {
+                if (e != null) changes.fail(e);
+                else if (v >= 0) changes.complete();
             });
-        }).flatMap(v -> {
-            // Update the devices store (DB)
-            return deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), v).map(dummy -> v);
+        } catch (RuntimeException e) {
+            openValueChanges.remove(address, changes);
+            changes.fail(e);
+        }
+        return result;
+    }
+
+    /**
+     * Closes value changes to joining, applies them to the model, sets the device value and stores it.
+     *
+     * @return the value set, -1 if no change is applied.
+     */
+    private CompletableFuture<Integer> setValueChanges(DeviceAddress address, Device device,
+            CoalescedValueChanges changes) {
+        openValueChanges.remove(address, changes);
+        int newValue = changes.apply(device);
+        if (newValue < 0) return CompletableFuture.completedFuture(-1);
+        record(address, DeviceStateTransition.State.ON, newValue);
+        return deviceCircuitBreaker.acceptAsync(Request.set(address.getRawAddress(), newValue)).thenApply(onReply -> {
+            if (onReply instanceof Reply.Error) throw new DeviceManagementException(
+                    "Cannot set device " + address + " value to " + newValue + ": " +
+                            ((Reply.Error) onReply).getReason());
+            return newValue;
+        }).thenCompose(v -> store(v, deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), v)));
+    }
+
+    /**
+     * Updates the devices store (DB) as the last step of a command, so the next command to the device starts
+     * after the write and writes to a device are stored in the order of its commands.
+     *
+     * @return the result of the command when the write is over.
+     */
+    private static <T> CompletableFuture<T> store(T result, Mono<?> write) {
+        return write.toFuture().thenApply(dummy -> result);
+    }
+
+    /**
+     * Submits a command to the device mailbox. A command which changes the model after a reply continues by the
+     * executor it gets, so the device is changed by the thread of its shard, if there are shards.
+     */
+    private <T> Mono<T> submit(DeviceAddress address, BiFunction<Device, Executor, CompletableFuture<T>> command) {
+        return Mono.defer(() -> {
+            DeviceMailbox mailbox = mailboxOf(address);
+            return Mono.fromFuture(mailbox.submit(device -> command.apply(device, mailbox.executor())));
         });
     }
 
     /**
-     * On the first access this method reads devices state from the store
+     * @throws UnknownDeviceException if there is no such device
+     */
+    @NonNull
+    private DeviceMailbox mailboxOf(DeviceAddress address) {
+        DeviceMailbox mailbox = getDevices().get(address);
+        if (mailbox == null) throw new UnknownDeviceException(address);
+        return mailbox;
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceStateChange> history(DeviceAddress address, Instant from, Instant to) {
+        if (address == null || from == null || to == null) throw new IllegalArgumentException();
+        if (history == null) return Flux.empty();
+        return history.read(address.getRawAddress(), LocalDateTime.ofInstant(from, ZoneOffset.UTC),
+                LocalDateTime.ofInstant(to, ZoneOffset.UTC)).map(DeviceStateChange::new);
+    }
+
+    /**
+     * @return a cursor over addresses of registered devices. It does not copy the registry, it sees devices
+     * registered and unregistered while it is walked or not.
+     */
+    @NonNull
+    Iterator<DeviceAddress> registryCursor() {
+        return getDevices().keySet().iterator();
+    }
+
+    /**
+     * Asks the device its state and corrects the model and the store if they drifted from it. The device is not
+     * held while it is asked, so commands are not delayed: if a command starts meanwhile, the reply may be stale
+     * and the device is skipped.
+     *
+     * <p>A device replying {@link Reply#DEVICE_IS_OFF} is off, a value means it is on. The value of an off
+     * device is unknown, so it is left as is.
+     */
+    @NonNull
+    CompletableFuture<DeviceReconciler.Outcome> reconcile(DeviceAddress address) {
+        if (address == null) throw new IllegalArgumentException("address is null");
+        DeviceMailbox mailbox = getDevices().get(address);
+        if (mailbox == null) return CompletableFuture.completedFuture(DeviceReconciler.Outcome.SKIPPED);
+        long version = mailbox.version();
+        if (version < 0) return CompletableFuture.completedFuture(DeviceReconciler.Outcome.SKIPPED);
+        return deviceCircuitBreaker.acceptAsync(Request.get(address.getRawAddress())).thenComposeAsync(reply -> {
+            boolean on;
+            int value;
+            if (reply instanceof Reply.Val && ((Reply.Val) reply).getVal() >= 0) {
+                on = true;
+                value = ((Reply.Val) reply).getVal();
+            } else if (reply instanceof Reply.Error
+                    && Reply.DEVICE_IS_OFF.equals(((Reply.Error) reply).getReason())) {
+                on = false;
+                value = 0;
+            } else {
+                return CompletableFuture.completedFuture(DeviceReconciler.Outcome.UNREACHABLE);
+            }
+            return mailbox.callIfUnchanged(version, device -> correct(device, on, value))
+                    .orElse(CompletableFuture.completedFuture(DeviceReconciler.Outcome.SKIPPED));
+        }, mailbox.executor());
+    }
+
+    /**
+     * Brings the model and the store to the state of the device. It is called while the device is idle and holds
+     * it until the store is written, so writes of later commands are not overwritten by the correction.
+     *
+     * @return the outcome when the store is written, whether or not it succeeds.
+     */
+    private CompletableFuture<DeviceReconciler.Outcome> correct(Device device, boolean on, int value) {
+        DeviceAddress address = device.getAddress();
+        Mono<Boolean> write;
+        DeviceReconciler.Outcome outcome;
+        if (!on) {
+            if (!device.isOn()) return CompletableFuture.completedFuture(DeviceReconciler.Outcome.IN_SYNC);
+            device.off();
+            record(address, DeviceStateTransition.State.OFF, device.getLastValue());
+            write = deviceStorageCircuitBreaker.setDeviceIsOff(address.getRawAddress());
+            outcome = DeviceReconciler.Outcome.STATE_DRIFT;
+        } else {
+            long s = device.getState();
+            if (Device.isOn(s) && Device.valueOf(s) == value)
+                return CompletableFuture.completedFuture(DeviceReconciler.Outcome.IN_SYNC);
+            outcome = Device.isOn(s) ? DeviceReconciler.Outcome.VALUE_DRIFT : DeviceReconciler.Outcome.STATE_DRIFT;
+            device.resetState(value, true);
+            record(address, DeviceStateTransition.State.ON, value);
+            write = deviceStorageCircuitBreaker.setDeviceValue(address.getRawAddress(), value);
+        }
+        LOGGER.info("Device {} drifted, the model is corrected to {}", address, device);
+        return store(outcome, write).exceptionally(e -> {
+            LOGGER.warn("Cannot store corrected state of device {}", address, e);
+            return outcome;
+        });
+    }
+
+    /**
+     * Records a change of the model to the history. It is called by a command of the device mailbox, so changes
+     * of a device are recorded in order.
+     */
+    private void record(DeviceAddress address, DeviceStateTransition.State state, int value) {
+        if (history != null) history.record(address.getRawAddress(), state, value);
+    }
+
+    /**
+     * On the first access this method reads devices state from the store, unless it is being read in the
+     * background. Other callers wait until it is read, later calls do not take any lock: they read one volatile
+     * field of a completed future. If devices cannot be read, the caller reading them and the ones waiting fail,
+     * and the next call tries again.
      *
      * @return device address -> Device
+     * @throws DeviceManagementException if devices cannot be read from the store
      */
     @NonNull
-    private Map<DeviceAddress, DeviceAccessSerializer> getDevices() {
-        synchronized (devicesInitializationLock) {
-            if (!devicesInitialized) {
-                devicesInitialized = true;
-                deviceStorageCircuitBreaker.readAll().onErrorResume(t -> {
-                    LOGGER.warn("Error reading devices state from a DB", t);
-                    return Flux.empty();
-                }).toStream().forEach(dto -> {
-                    DeviceAddress addr = DeviceAddress.of(dto.getAddr());
-                    Device d = Device.of(addr, dto.getValue(), dto.isOn());
-                    devices.put(addr, new DeviceAccessSerializer(d));
-                });
+    private Map<DeviceAddress, DeviceMailbox> getDevices() {
+        CompletableFuture<Void> loaded = devicesLoaded;
+        if (!loaded.isDone()) {
+            if (devicesLoadStarted.compareAndSet(false, true)) {
+                // The signal of this attempt, the one read before may be of a failed attempt
+                loaded = devicesLoaded;
+                try {
+                    loadDevices();
+                } catch (RuntimeException e) {
+                    // Later callers wait for the next attempt, the current ones fail
+                    devicesLoaded = new CompletableFuture<>();
+                    devicesLoadStarted.set(false);
+                    loaded.completeExceptionally(e);
+                    throw new DeviceManagementException("Devices are not loaded", e);
+                }
+                loaded.complete(null);
+            }
+            try {
+                loaded.join();
+            } catch (CompletionException e) {
+                throw new DeviceManagementException("Devices are not loaded", e.getCause());
             }
         }
         return devices;
     }
 
     /**
-     * Guaranties sequential access to the device by allowing only one action at a time.
+     * Reads devices state into a map sized for the number of stored devices. If there is a snapshot, only
+     * records changed since it was saved are read. The registry is replaced only if devices are read.
      *
-     * <p>{@link #call(Function)} action must not call these methods recursively directly or indirectly.
-     * <p>
-     * TODO remember thread inside a lock to validate calling thread is not the same.
+     * @throws RuntimeException if devices cannot be read from the store
      */
-    private static class DeviceAccessSerializer {
-        private final Device device;
-        private final Semaphore parallelAccessLimiter = new Semaphore(1);
+    private void loadDevices() {
+        long start = System.currentTimeMillis();
+        // Nodes of a cluster share a DB, so the number of stored devices is not the number of own ones. They
+        // have no snapshot to check against it either
+        long stored = (ring == null) ? countStoredDevices() : -1;
+        DeviceRegistrySnapshot snapshot = readSnapshot();
+        int expected = (int) Math.min(Math.max(stored, (snapshot == null) ? 0 : snapshot.getDevices().size()),
+                MAX_PRESIZED_DEVICES);
+        Map<DeviceAddress, DeviceMailbox> loaded = new ConcurrentHashMap<>(expected);
+        if (snapshot == null || !readChangedDevices(snapshot, stored, loaded)) {
+            loaded.clear();
+            readStoredDevices(loaded);
+        }
+        NavigableMap<String, DeviceMailbox> ordered = new ConcurrentSkipListMap<>();
+        for (Map.Entry<DeviceAddress, DeviceMailbox> e : loaded.entrySet())
+            ordered.put(e.getKey().getRawAddress(), e.getValue());
+        index = ordered;
+        devices = loaded;
+        LOGGER.info("{} devices are loaded in {} ms", devices.size(), System.currentTimeMillis() - start);
+        scheduleSnapshots();
+    }
 
-        private DeviceAccessSerializer(Device device) {
-            this.device = device;
+    /**
+     * @return number of stored devices or -1 if it is unknown.
+     */
+    private long countStoredDevices() {
+        return deviceStorageCircuitBreaker.count().onErrorResume(t -> {
+            LOGGER.warn("Error counting devices in a DB", t);
+            return Mono.empty();
+        }).blockOptional().orElse(-1L);
+    }
+
+    /**
+     * @return the last saved snapshot or null if there is none or it cannot be read.
+     */
+    private DeviceRegistrySnapshot readSnapshot() {
+        if (snapshotPath == null) return null;
+        try {
+            return DeviceRegistrySnapshot.read(snapshotPath, historyDepth);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read devices snapshot, all devices are read from a DB", e);
+            return null;
         }
+    }
 
-        @NonNull
-        Device get() {
-            return device;
+    /**
+     * Puts devices of a snapshot and then records changed since the snapshot watermark. A DB does not
+     * report removed records, so if the number of devices differs from the number of stored ones all
+     * devices have to be read.
+     *
+     * @return false if the snapshot cannot be brought up to date.
+     */
+    private boolean readChangedDevices(DeviceRegistrySnapshot snapshot, long stored,
+            Map<DeviceAddress, DeviceMailbox> target) {
+        for (Device d : snapshot.getDevices()) target.put(d.getAddress(), newMailbox(d));
+        LocalDateTime since =
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(snapshot.getWatermarkEpochMillis()), ZoneOffset.UTC);
+        try {
+            long changed = deviceStorageCircuitBreaker.readChangedSince(since).doOnNext(dto -> put(dto, target))
+                    .count().blockOptional().orElse(0L);
+            LOGGER.info("{} devices are read from a snapshot, {} changed ones from a DB",
+                    snapshot.getDevices().size(), changed);
+        } catch (RuntimeException e) {
+            // A DB is not available, a snapshot is better than nothing
+            LOGGER.warn("Error reading changed devices from a DB, devices state may be stale", e);
+            return true;
+        }
+        if (stored >= 0 && target.size() != stored) {
+            LOGGER.info("{} devices are known but {} are stored, reading all", target.size(), stored);
+            return false;
         }
+        return true;
+    }
 
-        <T> T call(Function<Device, T> action) {
-            boolean acquired = parallelAccessLimiter.tryAcquire();
-            if (!acquired) throw new DeviceManagementException(
-                    "Device " + device.getAddress() + " is currently executing another action");
-            try {
-                return action.apply(device);
-            } finally {
-                parallelAccessLimiter.release();
+    /**
+     * The store may read partitions in parallel, but their records are merged into one stream and put one at a
+     * time, possibly by different threads.
+     *
+     * @throws RuntimeException if the store fails, devices read so far are not all of them
+     */
+    private void readStoredDevices(Map<DeviceAddress, DeviceMailbox> target) {
+        deviceStorageCircuitBreaker.readAll().doOnNext(dto -> put(dto, target)).blockLast();
+    }
+
+    private void put(DeviceDto dto, Map<DeviceAddress, DeviceMailbox> target) {
+        DeviceAddress addr = DeviceAddress.of(dto.getAddr());
+        if (!isOwn(addr)) return;
+        Device d = Device.of(addr, dto.getValue(), dto.isOn(), historyDepth);
+        target.put(addr, newMailbox(d));
+    }
+
+    private boolean isOwn(DeviceAddress address) {
+        return ring == null || ring.isLocal(address);
+    }
+
+    private DeviceMailbox newMailbox(Device device) {
+        return new DeviceMailbox(device, mailboxDepth, (shards == null) ? null : shards.of(device.getAddress()));
+    }
+
+    private void scheduleSnapshots() {
+        if (snapshotPath == null) return;
+        snapshotSaver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "registry-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotSaver.scheduleWithFixedDelay(this::saveSnapshot, snapshotIntervalMillis, snapshotIntervalMillis,
+                MILLISECONDS);
+    }
+
+    /**
+     * Saves the registry. Devices may change while they are saved, so the watermark is taken before, and
+     * moved back by the clock skew, as a DB sets last_save_date_utc by its own clock.
+     */
+    private void saveSnapshot() {
+        long watermark = System.currentTimeMillis() - snapshotClockSkewMillis;
+        List<Device> state = devices.values().stream().map(DeviceMailbox::get).collect(Collectors.toList());
+        try {
+            DeviceRegistrySnapshot.write(snapshotPath, watermark, state);
+            LOGGER.debug("{} devices are saved to a snapshot", state.size());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Cannot save devices snapshot", e);
+        }
+    }
+
+    /**
+     * Optional parts and tunables of a manager. Defaults keep no snapshots and no history, do not coalesce value
+     * changes and execute commands by submitting and replying threads of a single node.
+     */
+    static final class Settings {
+        private Path snapshotPath;
+        private long snapshotIntervalMillis;
+        private long snapshotClockSkewMillis;
+        private DeviceHistory history;
+        private int mailboxDepth = DEFAULT_MAILBOX_DEPTH;
+        private boolean coalesceValueChanges;
+        private int historyDepth = Device.DEFAULT_HISTORY_DEPTH;
+        private DeviceShards shards;
+        private ClusterRing ring;
+
+        @NonNull
+        static Settings of(ServerConfig config, ClusterRing ring) {
+            Settings settings = new Settings()
+                    .mailboxDepth(config.deviceMailboxDepth())
+                    .coalesceValueChanges(config.deviceCoalesceValueChanges())
+                    .historyDepth(config.deviceHistoryDepth());
+            if (config.registrySnapshotEnabled()) {
+                settings.snapshot(Paths.get(config.registrySnapshotPath()), config.registrySnapshotIntervalMillis(),
+                        config.registrySnapshotClockSkewMillis());
             }
+            if (config.deviceRegistryShards() > 0) settings.shards(new DeviceShards(config.deviceRegistryShards()));
+            return ring.isEnabled() ? settings.ring(ring) : settings;
+        }
+
+        /**
+         * @param path a registry snapshot file, null to disable snapshots. Ignored in a cluster: the DB does not
+         *             tell which devices moved to this node or were removed since the snapshot
+         */
+        @NonNull
+        Settings snapshot(Path path, long intervalMillis, long clockSkewMillis) {
+            this.snapshotPath = path;
+            this.snapshotIntervalMillis = intervalMillis;
+            this.snapshotClockSkewMillis = clockSkewMillis;
+            return this;
+        }
+
+        /**
+         * @param history device state changes history, null to keep none
+         */
+        @NonNull
+        Settings history(DeviceHistory history) {
+            this.history = history;
+            return this;
+        }
+
+        /**
+         * @param depth maximum number of commands to a device queued or in progress
+         */
+        @NonNull
+        Settings mailboxDepth(int depth) {
+            if (depth <= 0) throw new IllegalArgumentException("mailbox depth must be positive");
+            this.mailboxDepth = depth;
+            return this;
+        }
+
+        /**
+         * @param coalesce whether increments and decrements queued to a device are set to it at once
+         */
+        @NonNull
+        Settings coalesceValueChanges(boolean coalesce) {
+            this.coalesceValueChanges = coalesce;
+            return this;
+        }
+
+        /**
+         * @param depth number of value changes a device keeps to undo
+         */
+        @NonNull
+        Settings historyDepth(int depth) {
+            if (depth < 0) throw new IllegalArgumentException("history depth must not be negative");
+            this.historyDepth = depth;
+            return this;
+        }
+
+        /**
+         * @param shards executors of device commands, null to execute them by submitting and replying threads
+         */
+        @NonNull
+        Settings shards(DeviceShards shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        /**
+         * @param ring cluster nodes to load devices of this node only, null to load all devices
+         */
+        @NonNull
+        Settings ring(ClusterRing ring) {
+            this.ring = ring;
+            return this;
         }
     }
 }
@@ -0,0 +1,68 @@
+package ru.zzz.demo.sber.shs.service.cluster;
+
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterRingTest {
+    private static final int DEVICES = 30_000;
+
+    @Test
+    void withoutNodesAllDevicesAreLocal() {
+        ClusterRing ring = new ClusterRing(Collections.emptyList(), "localhost:8080");
+        assertFalse(ring.isEnabled());
+        assertTrue(ring.isLocal(DeviceAddress.of("a")));
+        assertEquals("localhost:8080", ring.ownerOf(DeviceAddress.of("a")));
+    }
+
+    @Test
+    void selfMustBeANode() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ClusterRing(Arrays.asList("h:1", "h:2"), "h:3"));
+    }
+
+    @Test
+    void nodesAgreeOnOwners() {
+        ClusterRing first = new ClusterRing(Arrays.asList("h:1", "h:2", "h:3"), "h:1");
+        ClusterRing second = new ClusterRing(Arrays.asList("h:1", "h:2", "h:3"), "h:2");
+        for (int i = 0; i < DEVICES; i++) {
+            DeviceAddress address = DeviceAddress.of("device-" + i);
+            assertEquals(first.ownerOf(address), second.ownerOf(address));
+            assertEquals("h:1".equals(first.ownerOf(address)), first.isLocal(address));
+            assertEquals("h:2".equals(second.ownerOf(address)), second.isLocal(address));
+        }
+    }
+
+    @Test
+    void devicesAreSpreadEvenly() {
+        ClusterRing ring = new ClusterRing(Arrays.asList("h:1", "h:2", "h:3", "h:4"), "h:1");
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < DEVICES; i++) owned.merge(ring.ownerOf(DeviceAddress.of("device-" + i)), 1, Integer::sum);
+        assertEquals(4, owned.size());
+        for (int count : owned.values()) assertTrue(Math.abs(count - DEVICES / 4) < DEVICES / 4 / 5, owned::toString);
+    }
+
+    @Test
+    void addedNodeTakesDevicesOfOthersOnly() {
+        ClusterRing before = new ClusterRing(Arrays.asList("h:1", "h:2", "h:3"), "h:1");
+        ClusterRing after = new ClusterRing(Arrays.asList("h:1", "h:2", "h:3", "h:4"), "h:1");
+        int moved = 0;
+        for (int i = 0; i < DEVICES; i++) {
+            DeviceAddress address = DeviceAddress.of("device-" + i);
+            String owner = after.ownerOf(address);
+            if (owner.equals(before.ownerOf(address))) continue;
+            assertEquals("h:4", owner);
+            moved++;
+        }
+        assertTrue(Math.abs(moved - DEVICES / 4) < DEVICES / 4 / 5, "Moved " + moved);
+    }
+}
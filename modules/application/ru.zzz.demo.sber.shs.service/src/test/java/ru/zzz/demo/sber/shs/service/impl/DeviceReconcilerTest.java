@@ -0,0 +1,49 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DeviceReconcilerTest {
+    private final InMemoryDeviceManager dm = mock(InMemoryDeviceManager.class);
+
+    @Test
+    void registryIsWalkedInSlices() {
+        //setup: 5 devices, a slice of 2, a pause between passes
+        when(dm.registryCursor()).thenAnswer(invocation -> Arrays.asList(DeviceAddress.of("a"),
+                DeviceAddress.of("b"), DeviceAddress.of("c"), DeviceAddress.of("d"), DeviceAddress.of("e")).iterator());
+        CompletableFuture<DeviceReconciler.Outcome> slow = new CompletableFuture<>();
+        when(dm.reconcile(any(DeviceAddress.class)))
+                .thenReturn(CompletableFuture.completedFuture(DeviceReconciler.Outcome.IN_SYNC))
+                .thenReturn(CompletableFuture.completedFuture(DeviceReconciler.Outcome.VALUE_DRIFT))
+                .thenReturn(slow)
+                .thenReturn(CompletableFuture.completedFuture(DeviceReconciler.Outcome.STATE_DRIFT));
+        DeviceReconciler reconciler = new DeviceReconciler(dm, true, 1000, 2, 60_000);
+        //test and assert
+        assertEquals(2, reconciler.reconcileSlice());
+        assertEquals(2, reconciler.reconcileSlice());
+        // The previous slice is not replied yet
+        assertEquals(0, reconciler.reconcileSlice());
+        slow.complete(DeviceReconciler.Outcome.SKIPPED);
+        assertEquals(1, reconciler.reconcileSlice());
+        // A pause after the pass
+        assertEquals(0, reconciler.reconcileSlice());
+        verify(dm, times(1)).registryCursor();
+        verify(dm, times(5)).reconcile(any(DeviceAddress.class));
+        assertEquals(1, reconciler.getPasses());
+        assertEquals(5, reconciler.getChecked());
+        assertEquals(1, reconciler.getInSync());
+        assertEquals(1, reconciler.getValueDrifts());
+        assertEquals(2, reconciler.getStateDrifts());
+        assertEquals(1, reconciler.getSkipped());
+    }
+}
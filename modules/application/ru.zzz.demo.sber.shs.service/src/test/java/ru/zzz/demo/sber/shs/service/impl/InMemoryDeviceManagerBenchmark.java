@@ -0,0 +1,82 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.CircuitBreaker.device.DeviceCircuitBreaker;
+import ru.zzz.demo.sber.shs.CircuitBreaker.storage.DeviceStorageCircuitBreaker;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+import ru.zzz.demo.sber.shs.service.api.DeviceDescriptor;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reading devices of a loaded registry by many threads at once, the steady state of the request path. Every
+ * request looks up the registry first, so any lock there would make the throughput flat in the number of threads.
+ *
+ * <p>Run {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class InMemoryDeviceManagerBenchmark {
+    @Param({"100000"})
+    public int devices;
+
+    private InMemoryDeviceManager dm;
+    private DeviceAddress[] addresses;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        DeviceStorageCircuitBreaker dscb = mock(DeviceStorageCircuitBreaker.class);
+        LocalDateTime now = LocalDateTime.now();
+        when(dscb.count()).thenReturn(Mono.just((long) devices));
+        when(dscb.readAll()).thenReturn(Flux.range(0, devices).map(i -> DeviceDto.of("dev" + i, true, i, now)));
+        dm = new InMemoryDeviceManager(mock(DeviceCircuitBreaker.class), dscb);
+        dm.afterPropertiesSet();
+        addresses = new DeviceAddress[devices];
+        for (int i = 0; i < devices; i++) addresses[i] = DeviceAddress.of("dev" + i);
+        // Wait for the registry to load
+        dm.list();
+    }
+
+    @Benchmark
+    public Optional<DeviceDescriptor> getDevice() {
+        return dm.getDevice(addresses[ThreadLocalRandom.current().nextInt(devices)]);
+    }
+
+    @Benchmark
+    public boolean isReady() {
+        return dm.isReady();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(InMemoryDeviceManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
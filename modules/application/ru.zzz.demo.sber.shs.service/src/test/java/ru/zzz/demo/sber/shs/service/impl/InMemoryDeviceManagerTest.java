@@ -2,6 +2,8 @@ package ru.zzz.demo.sber.shs.service.impl;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.InOrder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
@@ -9,29 +11,47 @@ import ru.zzz.demo.sber.shs.CircuitBreaker.device.DeviceCircuitBreaker;
 import ru.zzz.demo.sber.shs.CircuitBreaker.storage.DeviceStorageCircuitBreaker;
 import ru.zzz.demo.sber.shs.db.DbActionException;
 import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceHistory;
+import ru.zzz.demo.sber.shs.db.DeviceStateTransition;
 import ru.zzz.demo.sber.shs.device.Reply;
 import ru.zzz.demo.sber.shs.device.Request;
 import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
 import ru.zzz.demo.sber.shs.service.api.DeviceDescriptor;
 import ru.zzz.demo.sber.shs.service.api.DeviceManagementException;
+import ru.zzz.demo.sber.shs.service.api.DevicePage;
 import ru.zzz.demo.sber.shs.service.api.UnknownDeviceException;
+import ru.zzz.demo.sber.shs.service.cluster.ClusterRing;
 
+import java.nio.file.Path;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.Collections.singletonList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -44,6 +64,12 @@ class InMemoryDeviceManagerTest {
     @BeforeEach
     void beforeEach() {
         when(dscb.readAll()).thenReturn(Flux.empty());
+        when(dscb.count()).thenReturn(Mono.just(0L));
+        // Asynchronous calls reply what synchronous ones do
+        when(dcb.acceptAsync(any(Request.class))).thenAnswer(
+                invocation -> CompletableFuture.completedFuture(dcb.accept(invocation.getArgument(0))));
+        when(dcb.acceptAllAsync(anyList())).thenAnswer(invocation -> CompletableFuture.completedFuture(
+                invocation.<List<Request>>getArgument(0).stream().map(dcb::accept).collect(Collectors.toList())));
     }
 
     @Test
@@ -134,7 +160,8 @@ class InMemoryDeviceManagerTest {
                 .expectError(DeviceManagementException.class)
                 .log()
                 .verify();
-        verify(dcb, times(1)).accept(any(Request.class));
+        // The value is sent along with the switch
+        verify(dcb, times(2)).accept(any(Request.class));
     }
 
     @Test
@@ -248,32 +275,421 @@ class InMemoryDeviceManagerTest {
     }
 
     @Test
-    void concurrentOperationsOnTheSameDeviceAreNotAllowed() throws InterruptedException {
+    void undoAndRedoUpdateDeviceAndStorage() {
         //setup: a exists and is on
         DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
         when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
         InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
         when(dscb.setDeviceValue(eq("a"), anyInt())).thenReturn(Mono.just(TRUE));
-        CountDownLatch parallelThreadStartedLatch = new CountDownLatch(1);
-        CountDownLatch mainThreadFinishedLatch = new CountDownLatch(1);
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        DeviceAddress address = DeviceAddress.of("a");
+        StepVerifier.create(dm.increment(address)).expectNext(43).expectComplete().verify();
+        StepVerifier.create(dm.undo(address)).expectNext(42).expectComplete().verify();
+        StepVerifier.create(dm.redo(address)).expectNext(43).expectComplete().verify();
+        // verify
+        InOrder inOrder = inOrder(dcb, dscb);
+        for (int value : new int[]{43, 42, 43}) {
+            inOrder.verify(dcb).accept(argThat(r -> r instanceof Request.Set && ((Request.Set) r).getVal() == value));
+            inOrder.verify(dscb).setDeviceValue("a", value);
+        }
+    }
+
+    @Test
+    void concurrentOperationsOnTheSameDeviceAreQueued() {
+        //setup: a exists and is on, the device replies the first command later
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        when(dscb.setDeviceValue(eq("a"), anyInt())).thenReturn(Mono.just(TRUE));
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        CompletableFuture<Reply> firstReply = new CompletableFuture<>();
+        when(dcb.acceptAsync(any(Request.Set.class))).thenReturn(firstReply).thenAnswer(
+                invocation -> CompletableFuture.completedFuture(dcb.accept(invocation.getArgument(0))));
+        CompletableFuture<Integer> first = dm.increment(DeviceAddress.of("a")).toFuture();
+        CompletableFuture<Integer> second = dm.increment(DeviceAddress.of("a")).toFuture();
+        //verify: the second command waits for the first one
+        assertFalse(second.isDone());
+        verify(dcb, times(1)).acceptAsync(any(Request.Set.class));
+        firstReply.complete(Reply.ok());
+        assertEquals(43, first.join());
+        assertEquals(44, second.join());
+        InOrder inOrder = inOrder(dscb);
+        inOrder.verify(dscb).setDeviceValue("a", 43);
+        inOrder.verify(dscb).setDeviceValue("a", 44);
+    }
+
+    @Test
+    void storeWritesOfADeviceAreOrdered() {
+        assertStoreWritesAreOrdered(false);
+    }
+
+    @Test
+    void storeWritesOfCoalescedChangesAreOrdered() {
+        assertStoreWritesAreOrdered(true);
+    }
+
+    private void assertStoreWritesAreOrdered(boolean coalesceValueChanges) {
+        //setup: a exists and is on, the store writes the first value later
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().coalesceValueChanges(coalesceValueChanges));
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        CompletableFuture<Boolean> firstWrite = new CompletableFuture<>();
+        when(dscb.setDeviceValue(eq("a"), anyInt())).thenReturn(Mono.fromFuture(firstWrite), Mono.just(TRUE));
+        DeviceAddress address = DeviceAddress.of("a");
+        CompletableFuture<Integer> first = dm.increment(address).toFuture();
+        CompletableFuture<Integer> second = dm.decrement(address).toFuture();
+        //verify: the next command waits for the write of the previous one
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        verify(dcb, times(1)).acceptAsync(any(Request.Set.class));
+        firstWrite.complete(TRUE);
+        assertEquals(43, first.join());
+        assertEquals(42, second.join());
+        InOrder inOrder = inOrder(dscb);
+        inOrder.verify(dscb).setDeviceValue("a", 43);
+        inOrder.verify(dscb).setDeviceValue("a", 42);
+    }
+
+    @Test
+    void commandsBeyondMailboxDepthAreRejected() {
+        //setup: a exists and is on, the device does not reply
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().mailboxDepth(1));
+        when(dcb.acceptAsync(any(Request.Set.class))).thenReturn(new CompletableFuture<>());
+        CompletableFuture<Integer> first = dm.increment(DeviceAddress.of("a")).toFuture();
+        //verify
+        StepVerifier.create(dm.decrement(DeviceAddress.of("a")))
+                .expectError(DeviceManagementException.class)
+                .verify();
+        assertFalse(first.isDone());
+        verify(dcb, times(1)).acceptAsync(any(Request.Set.class));
+    }
+
+    @Test
+    void queuedValueChangesAreCoalesced() {
+        //setup: a exists and is on, the device replies the first command later
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().coalesceValueChanges(true));
+        when(dscb.setDeviceValue(eq("a"), anyInt())).thenReturn(Mono.just(TRUE));
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        CompletableFuture<Reply> firstReply = new CompletableFuture<>();
+        when(dcb.acceptAsync(any(Request.Set.class))).thenReturn(firstReply).thenAnswer(
+                invocation -> CompletableFuture.completedFuture(dcb.accept(invocation.getArgument(0))));
+        DeviceAddress address = DeviceAddress.of("a");
+        CompletableFuture<Integer> first = dm.increment(address).toFuture();
+        List<CompletableFuture<Integer>> queued = new ArrayList<>();
+        for (int i = 0; i < 3; i++) queued.add(dm.increment(address).toFuture());
+        queued.add(dm.decrement(address).toFuture());
+        firstReply.complete(Reply.ok());
+        //verify: every caller gets its value, the device and the store get the last one only
+        assertEquals(43, first.join());
+        assertEquals(Arrays.asList(44, 45, 46, 45),
+                queued.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+        verify(dcb, times(2)).acceptAsync(any(Request.Set.class));
+        InOrder inOrder = inOrder(dscb);
+        inOrder.verify(dscb).setDeviceValue("a", 43);
+        inOrder.verify(dscb).setDeviceValue("a", 45);
+        verify(dscb, times(2)).setDeviceValue(eq("a"), anyInt());
+        assertEquals(Optional.of(45), dm.getDevice(address).map(DeviceDescriptor::getValue));
+    }
+
+    @Test
+    void commandsOfShardedDevicesRunOnTheirShards() throws InterruptedException {
+        //setup: a and b exist and are on
+        LocalDateTime now = LocalDateTime.now();
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of("a", true, 0, now), DeviceDto.of("b", true, 0, now)));
+        when(dscb.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(TRUE));
+        Set<String> threads = ConcurrentHashMap.newKeySet();
         when(dcb.accept(any(Request.Set.class))).thenAnswer(invocation -> {
-            parallelThreadStartedLatch.countDown();
-            if (!mainThreadFinishedLatch.await(1, SECONDS)) fail("Latch wait failed.");
+            threads.add(Thread.currentThread().getName());
             return Reply.ok();
         });
-        Thread t = new Thread(() -> {
-            StepVerifier.create(dm.increment(DeviceAddress.of("a"))).expectNext(43).expectComplete().verify();
-        }, "TestParallelCall-concurrentOperationsOnTheSameDeviceAreNotAllowed");
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().mailboxDepth(1000).shards(new DeviceShards(2)));
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            results.add(dm.increment(DeviceAddress.of("a")).toFuture());
+            results.add(dm.increment(DeviceAddress.of("b")).toFuture());
+        }
+        results.forEach(CompletableFuture::join);
+        //verify
+        assertEquals(100, dm.getDevice(DeviceAddress.of("a")).map(DeviceDescriptor::getValue).orElse(null));
+        assertEquals(100, dm.getDevice(DeviceAddress.of("b")).map(DeviceDescriptor::getValue).orElse(null));
+        assertFalse(threads.isEmpty());
+        for (String thread : threads) assertTrue(thread.startsWith("device-shard-"), thread);
+        dm.destroy();
+    }
+
+    @Test
+    void devicesAreListedByPages() {
+        //setup: devices b1..b5 and a, c stored, b3 unregistered, b6 registered
+        LocalDateTime now = LocalDateTime.now();
+        when(dscb.readAll()).thenReturn(Flux.just("b4", "a", "b1", "c", "b3", "b5", "b2")
+                .map(addr -> DeviceDto.of(addr, false, 0, now)));
+        when(dscb.removeDevice("b3")).thenReturn(Mono.just(TRUE));
+        when(dscb.setDeviceIsOff("b6")).thenReturn(Mono.just(TRUE));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        StepVerifier.create(dm.unregister(DeviceAddress.of("b3"))).expectNext(true).expectComplete().verify();
+        StepVerifier.create(dm.register(DeviceAddress.of("b6"))).expectComplete().verify();
+        //verify
+        List<String> listed = new ArrayList<>();
+        String next = null;
+        int pages = 0;
+        do {
+            DevicePage page = dm.listPage("b", next, 2);
+            page.getDevices().forEach(d -> listed.add(d.getAddress()));
+            next = page.getNext();
+            pages++;
+        } while (next != null);
+        assertEquals(Arrays.asList("b1", "b2", "b4", "b5", "b6"), listed);
+        assertEquals(3, pages);
+        assertEquals(7, dm.listPage(null, null, 100).getDevices().size());
+        assertEquals(singletonList("c"), dm.listPage("", "b6", 100).getDevices().stream()
+                .map(DeviceDescriptor::getAddress).collect(Collectors.toList()));
+    }
+
+    @Test
+    void devicesAreLoadedInBackgroundOnStart() throws InterruptedException {
+        //setup: the store is slow to read
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.count()).thenReturn(Mono.just(1L));
+        when(dscb.readAll()).thenReturn(Flux.just(a).delayElements(Duration.ofMillis(200)));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        dm.afterPropertiesSet();
+        assertFalse(dm.isReady());
+        //verify: devices are loaded without a call
+        for (int i = 0; i < 100 && !dm.isReady(); i++) Thread.sleep(50);
+        assertTrue(dm.isReady());
+        assertEquals(singletonList(DeviceAddress.of("a")), dm.list());
+        verify(dscb, times(1)).readAll();
+    }
+
+    @Test
+    void devicesAreLoadedOnceByConcurrentCallers() throws InterruptedException {
+        //setup: the store is slow to read
+        DeviceDto a = DeviceDto.of("a", true, 42, LocalDateTime.now());
+        when(dscb.count()).thenReturn(Mono.just(1L));
+        when(dscb.readAll()).thenReturn(Flux.just(a).delayElements(Duration.ofMillis(200)));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        List<List<DeviceAddress>> lists = new CopyOnWriteArrayList<>();
+        Thread t = new Thread(() -> lists.add(dm.list()),
+                "TestParallelCall-devicesAreLoadedOnceByConcurrentCallers");
         t.setDaemon(true);
         t.start();
-        parallelThreadStartedLatch.await(1, SECONDS);
-        StepVerifier.create(dm.increment(DeviceAddress.of("a")))
-                .expectError(DeviceManagementException.class)
-                .verify();
-        mainThreadFinishedLatch.countDown();
-        // verify
-        t.join(100);
-        verify(dcb, times(1)).accept(any(Request.class));
-        verify(dscb, times(1)).setDeviceValue(eq("a"), eq(43));
+        lists.add(dm.list());
+        t.join(1000);
+        //verify: both callers see the loaded device
+        assertEquals(2, lists.size());
+        for (List<DeviceAddress> list : lists) assertEquals(singletonList(DeviceAddress.of("a")), list);
+        verify(dscb, times(1)).readAll();
+    }
+
+    @Test
+    void devicesAreLoadedIfCountFails() {
+        //setup
+        DeviceDto a = DeviceDto.of("a", false, 0, LocalDateTime.now());
+        when(dscb.count()).thenReturn(Mono.error(new DbActionException("DB fail", new SQLException("sql"))));
+        when(dscb.readAll()).thenReturn(Flux.just(a));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        //test and assert
+        assertEquals(singletonList(DeviceAddress.of("a")), dm.list());
+    }
+
+    @Test
+    void devicesAreNotReadyUntilTheStoreIsRead() {
+        //setup: the store fails the first read
+        DeviceDto a = DeviceDto.of("a", false, 0, LocalDateTime.now());
+        when(dscb.count()).thenReturn(Mono.just(1L));
+        when(dscb.readAll()).thenReturn(Flux.error(new DbActionException("DB fail", new SQLException("sql"))),
+                Flux.just(a));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        //test and assert: a failed read is not an empty registry, the next call reads again
+        assertThrows(DeviceManagementException.class, dm::list);
+        assertFalse(dm.isReady());
+        assertEquals(singletonList(DeviceAddress.of("a")), dm.list());
+        assertTrue(dm.isReady());
+        verify(dscb, times(2)).readAll();
+    }
+
+    @Test
+    void devicesAreLoadedFromSnapshotAndChanges(@TempDir Path dir) throws InterruptedException {
+        //setup: a previous run saves a snapshot of a and b on shutdown
+        Path snapshot = dir.resolve("registry.snapshot");
+        when(dscb.count()).thenReturn(Mono.just(2L));
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of("a", true, 1, LocalDateTime.now()),
+                DeviceDto.of("b", false, 7, LocalDateTime.now())));
+        InMemoryDeviceManager previous = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000));
+        assertEquals(2, previous.list().size());
+        previous.destroy();
+        //setup: b has been switched on since then
+        when(dscb.readChangedSince(any())).thenReturn(Flux.just(DeviceDto.of("b", true, 8, LocalDateTime.now())));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000));
+        //test and assert: the whole state is not read again
+        assertTrue(dm.getDevice(DeviceAddress.of("a")).get().isOn());
+        assertTrue(dm.getDevice(DeviceAddress.of("b")).get().isOn());
+        assertEquals(8, dm.getDevice(DeviceAddress.of("b")).get().getValue().intValue());
+        verify(dscb, times(1)).readAll();
+    }
+
+    @Test
+    void devicesAreReadAgainIfSnapshotMissesRemoval(@TempDir Path dir) throws InterruptedException {
+        //setup: a previous run saves a snapshot of a and b on shutdown
+        Path snapshot = dir.resolve("registry.snapshot");
+        when(dscb.count()).thenReturn(Mono.just(2L));
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of("a", true, 1, LocalDateTime.now()),
+                DeviceDto.of("b", false, 7, LocalDateTime.now())));
+        InMemoryDeviceManager previous = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000));
+        previous.list();
+        previous.destroy();
+        //setup: b has been removed since then
+        when(dscb.count()).thenReturn(Mono.just(1L));
+        when(dscb.readChangedSince(any())).thenReturn(Flux.empty());
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of("a", true, 1, LocalDateTime.now())));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000));
+        //test and assert
+        assertEquals(singletonList(DeviceAddress.of("a")), dm.list());
+        verify(dscb, times(2)).readAll();
+    }
+
+    @Test
+    void clusterNodeReadsAllItsDevicesDespiteSnapshot(@TempDir Path dir) throws InterruptedException {
+        //setup: a previous run without a cluster saves a snapshot of a
+        ClusterRing ring = new ClusterRing(Arrays.asList("n1:1", "n2:2"), "n1:1");
+        List<String> own = IntStream.range(0, 100).mapToObj(i -> "d" + i)
+                .filter(addr -> ring.isLocal(DeviceAddress.of(addr))).limit(2).collect(Collectors.toList());
+        Path snapshot = dir.resolve("registry.snapshot");
+        when(dscb.count()).thenReturn(Mono.just(1L));
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of(own.get(0), true, 1, LocalDateTime.now())));
+        InMemoryDeviceManager previous = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000));
+        previous.list();
+        previous.destroy();
+        //setup: the second device has moved to the node unchanged
+        when(dscb.count()).thenReturn(Mono.just(2L));
+        when(dscb.readChangedSince(any())).thenReturn(Flux.empty());
+        when(dscb.readAll()).thenReturn(Flux.just(DeviceDto.of(own.get(0), true, 1, LocalDateTime.now()),
+                DeviceDto.of(own.get(1), false, 7, LocalDateTime.now())));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().snapshot(snapshot, 60000, 1000).ring(ring));
+        //test and assert
+        assertEquals(own.stream().map(DeviceAddress::of).collect(Collectors.toSet()), new HashSet<>(dm.list()));
+        verify(dscb, times(2)).readAll();
+    }
+
+    @Test
+    void stateChangesAreRecordedToHistory() {
+        //setup
+        DeviceHistory history = mock(DeviceHistory.class);
+        when(dscb.setDeviceIsOff(anyString())).thenReturn(Mono.just(TRUE));
+        when(dscb.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(TRUE));
+        when(dscb.removeDevice(anyString())).thenReturn(Mono.just(TRUE));
+        when(dcb.accept(any(Request.class))).thenReturn(Reply.ok());
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb,
+                new InMemoryDeviceManager.Settings().history(history));
+        DeviceAddress a = DeviceAddress.of("a");
+        //test
+        dm.register(a).block();
+        dm.on(a).block();
+        dm.increment(a).block();
+        dm.off(a).block();
+        dm.unregister(a).block();
+        //verify
+        InOrder order = inOrder(history);
+        order.verify(history).record("a", DeviceStateTransition.State.OFF, 0);
+        order.verify(history).record("a", DeviceStateTransition.State.ON, 0);
+        order.verify(history).record("a", DeviceStateTransition.State.ON, 1);
+        order.verify(history).record("a", DeviceStateTransition.State.OFF, 1);
+        order.verify(history).record("a", DeviceStateTransition.State.REMOVED, 0);
+    }
+
+    @Test
+    void reconciliationCorrectsDriftedDevices() {
+        //setup: a is on with 1, b is off, c is on with 2, d is on with 3
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{
+                DeviceDto.of("a", true, 1, LocalDateTime.now()), DeviceDto.of("b", false, 0, LocalDateTime.now()),
+                DeviceDto.of("c", true, 2, LocalDateTime.now()), DeviceDto.of("d", true, 3, LocalDateTime.now())}));
+        when(dscb.setDeviceIsOff(anyString())).thenReturn(Mono.just(TRUE));
+        when(dscb.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(TRUE));
+        // a is switched off, b is switched on with 5, c has 7, d cannot be reached
+        when(dcb.accept(getOf("a"))).thenReturn(Reply.error(Reply.DEVICE_IS_OFF));
+        when(dcb.accept(getOf("b"))).thenReturn(Reply.val(5));
+        when(dcb.accept(getOf("c"))).thenReturn(Reply.val(7));
+        when(dcb.accept(getOf("d"))).thenReturn(Reply.error("Timeout"));
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        //test
+        assertEquals(DeviceReconciler.Outcome.STATE_DRIFT, dm.reconcile(DeviceAddress.of("a")).join());
+        assertEquals(DeviceReconciler.Outcome.STATE_DRIFT, dm.reconcile(DeviceAddress.of("b")).join());
+        assertEquals(DeviceReconciler.Outcome.VALUE_DRIFT, dm.reconcile(DeviceAddress.of("c")).join());
+        assertEquals(DeviceReconciler.Outcome.UNREACHABLE, dm.reconcile(DeviceAddress.of("d")).join());
+        assertEquals(DeviceReconciler.Outcome.IN_SYNC, dm.reconcile(DeviceAddress.of("c")).join());
+        //verify
+        assertFalse(dm.getDevice(DeviceAddress.of("a")).get().isOn());
+        assertEquals(5, dm.getDevice(DeviceAddress.of("b")).get().getValue().intValue());
+        assertEquals(7, dm.getDevice(DeviceAddress.of("c")).get().getValue().intValue());
+        assertEquals(3, dm.getDevice(DeviceAddress.of("d")).get().getValue().intValue());
+        verify(dscb, times(1)).setDeviceIsOff(eq("a"));
+        verify(dscb, times(1)).setDeviceValue(eq("b"), eq(5));
+        verify(dscb, times(1)).setDeviceValue(eq("c"), eq(7));
+    }
+
+    @Test
+    void reconciliationSkipsDeviceChangedMeanwhile() {
+        //setup: a is on with 1
+        DeviceDto a = DeviceDto.of("a", true, 1, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        when(dscb.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(TRUE));
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        CompletableFuture<Reply> get = new CompletableFuture<>();
+        when(dcb.acceptAsync(getOf("a"))).thenReturn(get);
+        //test: the device is incremented while it is asked, the reply is stale
+        CompletableFuture<DeviceReconciler.Outcome> outcome = dm.reconcile(DeviceAddress.of("a"));
+        StepVerifier.create(dm.increment(DeviceAddress.of("a"))).expectNext(2).expectComplete().verify();
+        get.complete(Reply.val(1));
+        //verify
+        assertEquals(DeviceReconciler.Outcome.SKIPPED, outcome.join());
+        assertEquals(2, dm.getDevice(DeviceAddress.of("a")).get().getValue().intValue());
+    }
+
+    @Test
+    void commandAfterCorrectionWaitsForItsWrite() {
+        //setup: a is off, the device is on with 5 and the store writes the correction later
+        DeviceDto a = DeviceDto.of("a", false, 0, LocalDateTime.now());
+        when(dscb.readAll()).thenReturn(Flux.fromArray(new DeviceDto[]{a}));
+        CompletableFuture<Boolean> correctionWrite = new CompletableFuture<>();
+        when(dscb.setDeviceValue(eq("a"), anyInt())).thenReturn(Mono.fromFuture(correctionWrite), Mono.just(TRUE));
+        when(dcb.accept(getOf("a"))).thenReturn(Reply.val(5));
+        when(dcb.accept(any(Request.Set.class))).thenReturn(Reply.ok());
+        InMemoryDeviceManager dm = new InMemoryDeviceManager(dcb, dscb);
+        //test: the device is on with the corrected value at once, the next command waits for the write
+        CompletableFuture<DeviceReconciler.Outcome> outcome = dm.reconcile(DeviceAddress.of("a"));
+        DeviceDescriptor corrected = dm.getDevice(DeviceAddress.of("a")).get();
+        assertTrue(corrected.isOn());
+        assertEquals(5, corrected.getValue().intValue());
+        CompletableFuture<Integer> increment = dm.increment(DeviceAddress.of("a")).toFuture();
+        assertFalse(outcome.isDone());
+        assertFalse(increment.isDone());
+        verify(dcb, times(0)).acceptAsync(any(Request.Set.class));
+        correctionWrite.complete(TRUE);
+        //verify
+        assertEquals(DeviceReconciler.Outcome.STATE_DRIFT, outcome.join());
+        assertEquals(6, increment.join());
+        InOrder inOrder = inOrder(dscb);
+        inOrder.verify(dscb).setDeviceValue("a", 5);
+        inOrder.verify(dscb).setDeviceValue("a", 6);
+    }
+
+    private static Request getOf(String address) {
+        return argThat(r -> r instanceof Request.Get && r.getAddress().equals(address));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package ru.zzz.demo.sber.shs.service.impl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.CircuitBreaker.device.DeviceCircuitBreaker;
+import ru.zzz.demo.sber.shs.CircuitBreaker.storage.DeviceStorageCircuitBreaker;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+import ru.zzz.demo.sber.shs.model.device.DeviceAddress;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.lang.Boolean.TRUE;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Increments of random devices by 32 threads with commands executed by the calling threads (0 shards) and by
+ * a number of shards. Devices and stores reply at once, so it is the cost of the registry and mailboxes. Run it
+ * with shards up to the number of cores to see whether the throughput scales with them.
+ *
+ * <p>Run {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class ShardedDeviceManagerBenchmark {
+    @Param({"0", "4", "16", "32"})
+    public int shards;
+
+    @Param({"100000"})
+    public int devices;
+
+    private InMemoryDeviceManager dm;
+    private DeviceAddress[] addresses;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Stubs which do not record calls, so they do not serialize threads
+        DeviceCircuitBreaker dcb = mock(DeviceCircuitBreaker.class, withSettings().stubOnly());
+        when(dcb.acceptAsync(any(Request.class))).thenReturn(CompletableFuture.completedFuture(Reply.ok()));
+        DeviceStorageCircuitBreaker dscb = mock(DeviceStorageCircuitBreaker.class, withSettings().stubOnly());
+        LocalDateTime now = LocalDateTime.now();
+        when(dscb.count()).thenReturn(Mono.just((long) devices));
+        when(dscb.readAll()).thenReturn(Flux.range(0, devices).map(i -> DeviceDto.of("dev" + i, true, 0, now)));
+        when(dscb.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(TRUE));
+        dm = new InMemoryDeviceManager(dcb, dscb, new InMemoryDeviceManager.Settings().mailboxDepth(1000)
+                .shards((shards > 0) ? new DeviceShards(shards) : null));
+        addresses = new DeviceAddress[devices];
+        for (int i = 0; i < devices; i++) addresses[i] = DeviceAddress.of("dev" + i);
+        dm.list();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        dm.destroy();
+    }
+
+    @Benchmark
+    public Integer increment() {
+        return dm.increment(addresses[ThreadLocalRandom.current().nextInt(devices)]).block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShardedDeviceManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -5,9 +5,14 @@ import ru.zzz.demo.sber.shs.device.DeviceManager;
 import ru.zzz.demo.sber.shs.device.Reply;
 import ru.zzz.demo.sber.shs.device.Request;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
- * This is a circuit breaker which does nothing but delegate calls to the {@link DeviceManager}.
- * Writing proper circuit breaker or integrate something like Hystrix is too much work for the small project.
+ * A circuit breaker in front of the {@link DeviceManager}. A call may be replied with {@link Reply.Error}
+ * without reaching the device while the device or device I/O as a whole is considered unavailable.
+ *
+ * @see PerDeviceCircuitBreaker
  */
 public interface DeviceCircuitBreaker {
     /**
@@ -20,4 +25,41 @@ public interface DeviceCircuitBreaker {
      */
     @NonNull
     Reply accept(Request msg);
+
+    /**
+     * Issues a command without waiting for a reply, so many commands may be in flight. Commands to a device are
+     * executed in the order they are issued.
+     *
+     * @param msg a requested commend.
+     * @return future reply. Errors are indicated as a {@link Reply.Error}, the future does not fail.
+     *
+     * @throws IllegalArgumentException is an msg is null.
+     */
+    @NonNull
+    CompletableFuture<Reply> acceptAsync(Request msg);
+
+    /**
+     * Issues a batch of commands, e.g. commands to many devices or a few steps of a command to one device.
+     * Commands to a device are executed in the order of the batch.
+     *
+     * @param msgs requested commends.
+     * @return replies in the order of requests. Errors are indicated as a {@link Reply.Error}.
+     *
+     * @throws IllegalArgumentException is msgs is null or contains null.
+     */
+    @NonNull
+    List<Reply> acceptAll(List<Request> msgs);
+
+    /**
+     * Issues a batch of commands without waiting for replies. Commands to a device are executed in the order
+     * of the batch.
+     *
+     * @param msgs requested commends.
+     * @return future replies in the order of requests. Errors are indicated as a {@link Reply.Error}, the future
+     * does not fail.
+     *
+     * @throws IllegalArgumentException is msgs is null or contains null.
+     */
+    @NonNull
+    CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs);
 }
@@ -0,0 +1,413 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.device;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
+import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.PendingReplies;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Calls devices with a deadline and stops calling devices which do not reply.
+ *
+ * <p>Device calls run in a bulkhead: a pool of a fixed number of threads without a queue, so there is
+ * a limit of device calls in progress and a call beyond it is rejected at once. The caller waits for a reply
+ * until the deadline. A call which has not replied in time is interrupted, but it holds its thread until it
+ * returns, and a device is not called again until its previous call returns. So a hung device holds at
+ * most one thread of the bulkhead. Device managers do not rely on the interrupt and reply with an error after
+ * a deadline of their own. A call which has not started by the deadline never starts and frees the device.
+ *
+ * <p>A call timed out or failed with an exception is a failure of the device. A device which failed a
+ * number of times in a row is not called for a while, then a single probe call is let through. A success
+ * forgets the failures. Only devices with failures are tracked, so healthy ones cost nothing.
+ *
+ * <p>Asynchronous calls go straight to the device manager if it is an {@link AsyncDeviceManager}, otherwise
+ * they run in the bulkhead. A device may have many asynchronous calls in flight, their total number is limited
+ * instead. A deadline of an asynchronous call replies it with an error, frees its place among the ones in flight
+ * and cancels the device call, so a reply the device never sends does not hold the place.
+ * A batch is sent at once, with a single deadline, except requests to devices which failed recently.
+ *
+ * <p>Rejected, timed out and failed calls are replied with {@link Reply.Error}.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@Component("SHS.Infrastructure.DeviceCircuitBreaker")
+@ManagedResource(objectName = "SHS:type=Device,name=CircuitBreaker")
+public class PerDeviceCircuitBreaker implements DeviceManager, AsyncDeviceManager, DeviceCircuitBreaker,
+        InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PerDeviceCircuitBreaker.class);
+
+    private final DeviceManager dm;
+    private final long callTimeoutMillis;
+    private final int bulkheadSize;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final int maxAsyncInFlight;
+    // Addresses of devices failed since their last success
+    private final Map<String, Health> unhealthy = new ConcurrentHashMap<>();
+    // Addresses of devices with a call in progress
+    private final Set<String> busy = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger asyncInFlight = new AtomicInteger();
+    private ThreadPoolExecutor bulkhead;
+    // Asynchronous calls, the bulkhead if the device manager is synchronous
+    private AsyncDeviceManager async;
+    // Fires deadlines of asynchronous calls
+    private ScheduledThreadPoolExecutor timer;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejectedOpen = new LongAdder();
+    private final LongAdder rejectedBusy = new LongAdder();
+    private final LongAdder rejectedBulkhead = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+
+    @Autowired
+    public PerDeviceCircuitBreaker(DeviceManager dm, ServerConfig config) {
+        this.dm = dm;
+        this.callTimeoutMillis = config.deviceCallTimeoutMillis();
+        this.bulkheadSize = config.deviceBulkheadSize();
+        this.failureThreshold = config.deviceBreakerFailureThreshold();
+        this.openMillis = config.deviceBreakerOpenMillis();
+        this.maxAsyncInFlight = config.deviceAsyncMaxInFlight();
+        if (callTimeoutMillis <= 0 || bulkheadSize <= 0 || failureThreshold <= 0 || maxAsyncInFlight <= 0)
+            throw new IllegalArgumentException("device call timeout, bulkhead and threshold must be positive");
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        bulkhead = newBulkhead(bulkheadSize);
+        bulkhead.allowCoreThreadTimeOut(true);
+        async = (dm instanceof AsyncDeviceManager) ? (AsyncDeviceManager) dm : new BulkheadDeviceManager();
+        timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread t = new Thread(runnable, "device-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return a pool of the given number of threads without a queue.
+     */
+    ThreadPoolExecutor newBulkhead(int size) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadPoolExecutor(size, size, 60, SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread t = new Thread(runnable, "device-io-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        timer.shutdownNow();
+        bulkhead.shutdownNow();
+        bulkhead.awaitTermination(10, SECONDS);
+    }
+
+    @Override
+    @NonNull
+    public Reply accept(Request msg) {
+        if (msg == null) throw new IllegalArgumentException();
+        String address = msg.getAddress();
+        calls.increment();
+        Health health = unhealthy.get(address);
+        if (health != null && System.currentTimeMillis() < health.openUntilMillis) {
+            rejectedOpen.increment();
+            return Reply.error("Device " + address + " is not called after " + health.failures + " failures");
+        }
+        if (!busy.add(address)) {
+            rejectedBusy.increment();
+            return Reply.error("Device " + address + " has not replied to a previous call yet");
+        }
+        // Whoever claims the call frees the device: the call if it starts, or the caller if it gives up first
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<Reply> reply;
+        try {
+            reply = bulkhead.submit(() -> {
+                if (!claimed.compareAndSet(false, true))
+                    return Reply.error("Device " + address + " call is cancelled before it started");
+                try {
+                    return dm.accept(msg);
+                } finally {
+                    busy.remove(address);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busy.remove(address);
+            rejectedBulkhead.increment();
+            return Reply.error("Too many device calls in progress, device " + address + " is not called");
+        }
+        try {
+            Reply r = reply.get(callTimeoutMillis, MILLISECONDS);
+            // A get of an unhealthy device is an extra lookup, healthy devices are not in the map
+            if (health != null) unhealthy.remove(address);
+            return r;
+        } catch (TimeoutException e) {
+            cancel(reply, claimed, address);
+            timedOut.increment();
+            failed(address);
+            return Reply.error("Device " + address + " has not replied in " + callTimeoutMillis + " ms");
+        } catch (ExecutionException e) {
+            failed.increment();
+            failed(address);
+            LOGGER.debug("Device {} call failed", address, e.getCause());
+            return Reply.error("Device " + address + " call failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            cancel(reply, claimed, address);
+            Thread.currentThread().interrupt();
+            return Reply.error("Interrupted waiting for device " + address);
+        }
+    }
+
+    /**
+     * Cancels a call the caller gives up on, freeing the device if the call has not started.
+     */
+    private void cancel(Future<Reply> reply, AtomicBoolean claimed, String address) {
+        if (claimed.compareAndSet(false, true)) busy.remove(address);
+        reply.cancel(true);
+    }
+
+    /**
+     * Calls all devices of the batch at once, with a single deadline.
+     */
+    @Override
+    @NonNull
+    public List<Reply> acceptAll(List<Request> msgs) {
+        return acceptAllAsync(msgs).join();
+    }
+
+    @Override
+    @NonNull
+    public CompletableFuture<Reply> acceptAsync(Request msg) {
+        if (msg == null) throw new IllegalArgumentException();
+        // Cancelling the list cancels the reply
+        return callAsync(Collections.singletonList(msg),
+                admitted -> PendingReplies.all(Collections.singletonList(async.acceptAsync(msg))))
+                .thenApply(replies -> replies.get(0));
+    }
+
+    /**
+     * Rejects requests to devices which failed recently and sends others as a batch with a single deadline.
+     */
+    @Override
+    @NonNull
+    public CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs) {
+        if (msgs == null || msgs.contains(null)) throw new IllegalArgumentException();
+        return callAsync(msgs, async::acceptAllAsync);
+    }
+
+    @NonNull
+    private CompletableFuture<List<Reply>> callAsync(List<Request> msgs,
+            Function<List<Request>, CompletableFuture<List<Reply>>> send) {
+        calls.add(msgs.size());
+        // Replies to rejected requests, nulls in place of admitted ones
+        List<Reply> rejected = new ArrayList<>(msgs.size());
+        List<Request> admitted = new ArrayList<>(msgs.size());
+        // Addresses of admitted requests, null values for healthy devices
+        Map<String, Health> healthOf = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (Request msg : msgs) {
+            Health health = unhealthy.get(msg.getAddress());
+            if (health != null && now < health.openUntilMillis) {
+                rejectedOpen.increment();
+                rejected.add(Reply.error("Device " + msg.getAddress() + " is not called after " + health.failures +
+                        " failures"));
+            } else {
+                rejected.add(null);
+                admitted.add(msg);
+                healthOf.put(msg.getAddress(), health);
+            }
+        }
+        if (admitted.isEmpty()) return CompletableFuture.completedFuture(rejected);
+        int n = admitted.size();
+        CompletableFuture<List<Reply>> call = null;
+        if (asyncInFlight.addAndGet(n) <= maxAsyncInFlight) {
+            try {
+                call = send.apply(admitted);
+            } catch (RejectedExecutionException ignored) {
+                // The bulkhead is full
+            }
+        }
+        if (call == null) {
+            asyncInFlight.addAndGet(-n);
+            rejectedBulkhead.add(n);
+            return CompletableFuture.completedFuture(merge(rejected, admitted, address ->
+                    "Too many device calls in progress, device " + address + " is not called"));
+        }
+        CompletableFuture<List<Reply>> replies = new CompletableFuture<>();
+        // The call leaves the ones in flight either at the deadline or when it is over
+        AtomicBoolean inFlight = new AtomicBoolean(true);
+        CompletableFuture<List<Reply>> sent = call;
+        ScheduledFuture<?> deadline = timer.schedule(() -> {
+            if (!replies.complete(merge(rejected, admitted, address ->
+                    "Device " + address + " has not replied in " + callTimeoutMillis + " ms"))) return;
+            if (inFlight.compareAndSet(true, false)) asyncInFlight.addAndGet(-n);
+            // Forgets the requests, a device manager may wait for the replies forever
+            sent.cancel(false);
+            timedOut.add(n);
+            healthOf.keySet().forEach(this::failed);
+        }, callTimeoutMillis, MILLISECONDS);
+        call.whenComplete((r, e) -> {
+            if (inFlight.compareAndSet(true, false)) asyncInFlight.addAndGet(-n);
+            deadline.cancel(false);
+            if (e != null) {
+                if (!replies.complete(merge(rejected, admitted, address ->
+                        "Device " + address + " call failed: " + e))) return;
+                failed.add(n);
+                healthOf.keySet().forEach(this::failed);
+                LOGGER.debug("Device call failed", e);
+            } else if (replies.complete(merge(rejected, r))) {
+                healthOf.forEach((address, health) -> {
+                    if (health != null) unhealthy.remove(address);
+                });
+            }
+        });
+        return replies;
+    }
+
+    /**
+     * @return replies to rejected requests and errors in place of admitted ones.
+     */
+    @NonNull
+    private static List<Reply> merge(List<Reply> rejected, List<Request> admitted, Function<String, String> error) {
+        return merge(rejected, admitted.stream().map(msg -> Reply.error(error.apply(msg.getAddress())))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * @return replies to rejected requests and replies to admitted ones in place of them.
+     */
+    @NonNull
+    private static List<Reply> merge(List<Reply> rejected, List<Reply> admitted) {
+        List<Reply> merged = new ArrayList<>(rejected.size());
+        Iterator<Reply> next = admitted.iterator();
+        for (Reply r : rejected) merged.add((r == null) ? next.next() : r);
+        return merged;
+    }
+
+    @ManagedAttribute(description = "Number of device calls")
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @ManagedAttribute(description = "Number of device calls in progress")
+    public int getActive() {
+        return bulkhead.getActiveCount();
+    }
+
+    @ManagedAttribute(description = "Number of asynchronous device calls in progress")
+    public int getAsyncInFlight() {
+        return asyncInFlight.get();
+    }
+
+    @ManagedAttribute(description = "Number of device calls timed out")
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @ManagedAttribute(description = "Number of device calls failed with an exception")
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @ManagedAttribute(description = "Number of calls rejected as the device failed recently")
+    public long getRejectedOpen() {
+        return rejectedOpen.sum();
+    }
+
+    @ManagedAttribute(description = "Number of calls rejected as the device has not replied to a previous call")
+    public long getRejectedBusy() {
+        return rejectedBusy.sum();
+    }
+
+    @ManagedAttribute(description = "Number of calls rejected as the bulkhead was full")
+    public long getRejectedBulkhead() {
+        return rejectedBulkhead.sum();
+    }
+
+    @ManagedAttribute(description = "Number of times a device breaker opened")
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @ManagedAttribute(description = "Number of devices failed since their last success")
+    public int getUnhealthyDevices() {
+        return unhealthy.size();
+    }
+
+    private void failed(String address) {
+        long now = System.currentTimeMillis();
+        unhealthy.compute(address, (a, h) -> {
+            int failures = (h == null) ? 1 : h.failures + 1;
+            if (failures < failureThreshold) return new Health(failures, 0);
+            opened.increment();
+            return new Health(failures, now + openMillis);
+        });
+    }
+
+    /**
+     * Runs a synchronous device manager in the bulkhead. A batch runs in a single thread, so requests of a batch
+     * are executed in order, while separate requests may be executed in any order.
+     */
+    private final class BulkheadDeviceManager implements AsyncDeviceManager {
+        @Override
+        @NonNull
+        public CompletableFuture<Reply> acceptAsync(Request msg) {
+            return CompletableFuture.supplyAsync(() -> dm.accept(msg), bulkhead);
+        }
+
+        @Override
+        @NonNull
+        public CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs) {
+            return CompletableFuture.supplyAsync(() -> dm.acceptAll(msgs), bulkhead);
+        }
+    }
+
+    private static final class Health {
+        private final int failures;
+        // Calls are rejected until then
+        private final long openUntilMillis;
+
+        private Health(int failures, long openUntilMillis) {
+            this.failures = failures;
+            this.openUntilMillis = openUntilMillis;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DbOverloadedException;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Limits the number of storage calls in progress, the limit adapts to the storage latency.
+ *
+ * <p>The limit is a {@link VegasLimit}: it goes down as calls take longer than the storage does without
+ * load, and up as they get fast again. Latency is sampled on successful writes and counts, reads are long
+ * by nature and only take a place. A call failed with {@link DbOverloadedException} cuts the limit.
+ *
+ * <p>A call beyond the limit waits in a queue for a place. A call which finds the queue full or does not
+ * get a place in time fails with {@link DbOverloadedException} without reaching the delegate.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Db,name=StorageLimiter")
+public class AdaptiveLimitDeviceStorageCircuitBreaker implements DeviceStorageCircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveLimitDeviceStorageCircuitBreaker.class);
+
+    private final DeviceStorageCircuitBreaker delegate;
+    private final int queueSize;
+    private final Duration queueTimeout;
+    private final Object lock = new Object();
+    // Guarded by the lock
+    private final VegasLimit limit;
+    private final Deque<Permit> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder queueDelayNanos = new LongAdder();
+    private final LongAdder increases = new LongAdder();
+    private final LongAdder decreases = new LongAdder();
+
+    AdaptiveLimitDeviceStorageCircuitBreaker(DeviceStorageCircuitBreaker delegate, ServerConfig config) {
+        this.delegate = delegate;
+        this.limit = new VegasLimit(config.dbLimiterInitialLimit(), config.dbLimiterMinLimit(),
+                config.dbLimiterMaxLimit());
+        this.queueSize = config.dbLimiterQueueSize();
+        this.queueTimeout = Duration.ofMillis(config.dbLimiterQueueTimeoutMillis());
+        if (queueSize < 0) throw new IllegalArgumentException("queue size must not be negative");
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Set device value", () -> delegate.setDeviceValue(address, value));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Switch device off", () -> delegate.setDeviceIsOff(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Remove device", () -> delegate.removeDevice(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        return call("Apply updates", () -> delegate.applyAll(updates));
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        return read("Read devices", delegate::readAll);
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return read("Read changed devices", () -> delegate.readChangedSince(sinceUtc));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return call("Count devices", delegate::count);
+    }
+
+    @ManagedAttribute(description = "Number of storage calls allowed in progress")
+    public int getLimit() {
+        synchronized (lock) {
+            return limit.get();
+        }
+    }
+
+    @ManagedAttribute(description = "Number of storage calls in progress")
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    @ManagedAttribute(description = "Number of storage calls waiting for the limit")
+    public int getQueued() {
+        synchronized (lock) {
+            return waiting.size();
+        }
+    }
+
+    @ManagedAttribute(description = "The lowest latency of the storage seen lately, ms")
+    public long getBaselineLatencyMillis() {
+        synchronized (lock) {
+            return NANOSECONDS.toMillis(limit.getBaselineNanos());
+        }
+    }
+
+    @ManagedAttribute(description = "Number of calls rejected without calling the storage")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Number of calls waited for the limit")
+    public long getDelayed() {
+        return delayed.sum();
+    }
+
+    @ManagedAttribute(description = "Total time calls waited for the limit, ms")
+    public long getQueueDelayMillis() {
+        return NANOSECONDS.toMillis(queueDelayNanos.sum());
+    }
+
+    @ManagedAttribute(description = "Number of times the limit went up")
+    public long getLimitIncreases() {
+        return increases.sum();
+    }
+
+    @ManagedAttribute(description = "Number of times the limit went down")
+    public long getLimitDecreases() {
+        return decreases.sum();
+    }
+
+    @NonNull
+    private <T> Mono<T> call(String operation, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            Permit permit = acquire(operation);
+            return permit.granted(operation)
+                    .then(Mono.defer(() -> {
+                        long start = System.nanoTime();
+                        return Mono.defer(call)
+                                .doOnSuccess(v -> permit.release(System.nanoTime() - start, null))
+                                .doOnError(e -> permit.release(0, e));
+                    }))
+                    .doOnCancel(permit::abandon);
+        });
+    }
+
+    @NonNull
+    private <T> Flux<T> read(String operation, Supplier<Flux<T>> read) {
+        return Flux.defer(() -> {
+            Permit permit = acquire(operation);
+            return permit.granted(operation)
+                    .thenMany(Flux.defer(read)
+                            .doOnComplete(() -> permit.release(0, null))
+                            .doOnError(e -> permit.release(0, e)))
+                    .doOnCancel(permit::abandon);
+        });
+    }
+
+    /**
+     * @return a permit, granted already if the limit allows
+     * @throws DbOverloadedException if the queue is full
+     */
+    @NonNull
+    private Permit acquire(String operation) {
+        Permit permit = new Permit();
+        synchronized (lock) {
+            if (inFlight < limit.get()) {
+                inFlight++;
+                permit.state.set(Permit.GRANTED);
+                permit.future.complete(null);
+                return permit;
+            }
+            if (waiting.size() < queueSize) {
+                waiting.addLast(permit);
+                return permit;
+            }
+        }
+        rejected.increment();
+        throw new DbOverloadedException(operation + " is rejected, " + queueSize + " storage calls are waiting");
+    }
+
+    /**
+     * Frees a place, adjusts the limit and grants places to waiting calls as the limit allows.
+     *
+     * @param latencyNanos latency of a successful call to sample, 0 not to sample
+     */
+    private void release(long latencyNanos, Throwable error) {
+        List<Permit> granted = new ArrayList<>();
+        int before;
+        int after;
+        synchronized (lock) {
+            before = limit.get();
+            if (error instanceof DbOverloadedException) {
+                limit.overloaded();
+            } else if (latencyNanos > 0) {
+                limit.sample(latencyNanos, inFlight);
+            }
+            after = limit.get();
+            inFlight--;
+            while (inFlight < after && !waiting.isEmpty()) {
+                Permit next = waiting.pollFirst();
+                if (next.state.compareAndSet(Permit.WAITING, Permit.GRANTED)) {
+                    inFlight++;
+                    granted.add(next);
+                }
+            }
+        }
+        if (after > before) {
+            increases.increment();
+            LOGGER.debug("Storage call limit went up from {} to {}", before, after);
+        } else if (after < before) {
+            decreases.increment();
+            LOGGER.debug("Storage call limit went down from {} to {}", before, after);
+        }
+        // Completion runs the waiting calls, they must not run under the lock
+        for (Permit p : granted) {
+            delayed.increment();
+            queueDelayNanos.add(System.nanoTime() - p.createdNanos);
+            p.future.complete(null);
+        }
+    }
+
+    /**
+     * A place of a call within the limit. It is waiting, granted and then done. A waiting permit becomes done
+     * when the call gives up waiting, a granted one when the call completes or is cancelled.
+     */
+    private final class Permit {
+        private static final int WAITING = 0;
+        private static final int GRANTED = 1;
+        private static final int DONE = 2;
+
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final long createdNanos = System.nanoTime();
+
+        /**
+         * @return Mono completing when the permit is granted, or failing with {@link DbOverloadedException}
+         * if it is not granted in time.
+         */
+        @NonNull
+        Mono<Void> granted(String operation) {
+            if (future.isDone()) return Mono.empty();
+            return Mono.fromFuture(future)
+                    .timeout(queueTimeout)
+                    .onErrorMap(TimeoutException.class, e -> {
+                        rejected.increment();
+                        // Granted just now, but the call is rejected anyway
+                        if (!giveUp()) release(0, null);
+                        return new DbOverloadedException(operation + " waited for the storage for " +
+                                queueTimeout.toMillis() + " ms", e);
+                    });
+        }
+
+        void release(long latencyNanos, Throwable error) {
+            if (state.compareAndSet(GRANTED, DONE))
+                AdaptiveLimitDeviceStorageCircuitBreaker.this.release(latencyNanos, error);
+        }
+
+        void abandon() {
+            if (!giveUp()) release(0, null);
+        }
+
+        /**
+         * @return true if the permit stopped waiting, false if it is not waiting
+         */
+        private boolean giveUp() {
+            if (!state.compareAndSet(WAITING, DONE)) return false;
+            synchronized (lock) {
+                waiting.remove(this);
+            }
+            return true;
+        }
+    }
+}
@@ -5,12 +5,21 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.zzz.demo.sber.shs.db.DbActionException;
 import ru.zzz.demo.sber.shs.db.DbConnectionException;
+import ru.zzz.demo.sber.shs.db.DbOverloadedException;
 import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
 import ru.zzz.demo.sber.shs.db.DeviceStorageRepository;
 
+import java.time.LocalDateTime;
+import java.util.List;
+
 /**
- * This is a circuit breaker which does nothing but delegate calls to the {@link DeviceStorageRepository}.
- * Writing proper circuit breaker or integrate something like Hystrix is too much work for the small project.
+ * A circuit breaker in front of the {@link DeviceStorageRepository}. Any call may fail with
+ * {@link DbConnectionException} without reaching the storage while the storage is considered unavailable,
+ * or with {@link DbOverloadedException} while too many calls are in progress.
+ *
+ * @see SlidingWindowDeviceStorageCircuitBreaker
+ * @see AdaptiveLimitDeviceStorageCircuitBreaker
  */
 public interface DeviceStorageCircuitBreaker {
     /**
@@ -52,8 +61,36 @@ public interface DeviceStorageCircuitBreaker {
     Mono<Boolean> removeDevice(String address);
 
     /**
-     * @return Flux(all device records as DTO)
+     * Applies state updates in the given order.
+     *
+     * @param updates updates to apply
+     * @return Mono(true)
+     * <p>Mono({@link DbActionException}) if the device state was updated but the storage was not.
+     * <p>Mono({@link DbConnectionException}) if the device state was updated but the storage was not.
+     * @throws IllegalArgumentException if updates is null
+     */
+    @NonNull
+    Mono<Boolean> applyAll(List<DeviceStateUpdate> updates);
+
+    /**
+     * @return Flux(all device records as DTO) in no particular order
      */
     @NonNull
     Flux<DeviceDto> readAll();
+
+    /**
+     * @param sinceUtc the earliest last_save_date_utc to read, inclusive
+     * @return Flux(device records saved since a given moment as DTO) in no particular order.
+     * Removed records are not reported.
+     */
+    @NonNull
+    Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc);
+
+    /**
+     * @return Mono(number of device records)
+     * <p>Mono({@link DbActionException}) if the storage cannot count records.
+     * <p>Mono({@link DbConnectionException}) if the storage cannot count records.
+     */
+    @NonNull
+    Mono<Long> count();
 }
@@ -0,0 +1,60 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DeviceStateJournal;
+import ru.zzz.demo.sber.shs.db.DeviceStorageRepository;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Assembles the {@link DeviceStorageCircuitBreaker} out of a breaker, an optional limiter and an optional outbox
+ * in front of them according to the {@link ServerConfig}.
+ */
+@Configuration("SHS.Infrastructure.DeviceStorageCircuitBreakerConfiguration")
+class DeviceStorageCircuitBreakerConfiguration {
+    private final ServerConfig config;
+
+    @Autowired
+    DeviceStorageCircuitBreakerConfiguration(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * The breaker and the limiter are beans of their own, so their metrics are exported when a stage is in front
+     * of them.
+     */
+    @Bean("SHS.Infrastructure.StorageCircuitBreaker")
+    @NonNull
+    DeviceStorageCircuitBreaker storageCircuitBreaker(DeviceStorageRepository repository) {
+        return config.dbBreakerEnabled()
+                ? new SlidingWindowDeviceStorageCircuitBreaker(repository, config)
+                : new SingleConnectionBreaksNothingDeviceStorageCircuitBreaker(repository);
+    }
+
+    @Bean("SHS.Infrastructure.StorageLimiter")
+    @NonNull
+    DeviceStorageCircuitBreaker storageLimiter(
+            @Qualifier("SHS.Infrastructure.StorageCircuitBreaker") DeviceStorageCircuitBreaker breaker) {
+        return config.dbLimiterEnabled() ? new AdaptiveLimitDeviceStorageCircuitBreaker(breaker, config) : breaker;
+    }
+
+    @Bean("SHS.Infrastructure.DeviceStorageCircuitBreaker")
+    @Primary
+    @NonNull
+    DeviceStorageCircuitBreaker deviceStorageCircuitBreaker(
+            @Qualifier("SHS.Infrastructure.StorageLimiter") DeviceStorageCircuitBreaker breaker)
+            throws IOException {
+        if (!config.dbOutboxEnabled()) return breaker;
+        DeviceStateJournal journal = DeviceStateJournal.open(Paths.get(config.dbOutboxDir()),
+                config.dbOutboxSegmentBytes());
+        return new OutboxDeviceStorageCircuitBreaker(breaker, journal, config.dbOutboxBatchSize(),
+                config.dbOutboxRetryMinMillis(), config.dbOutboxRetryMaxMillis());
+    }
+}
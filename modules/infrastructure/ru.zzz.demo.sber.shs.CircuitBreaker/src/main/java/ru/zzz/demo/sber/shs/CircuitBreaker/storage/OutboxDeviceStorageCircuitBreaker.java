@@ -0,0 +1,290 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import ru.zzz.demo.sber.shs.db.DbActionException;
+import ru.zzz.demo.sber.shs.db.DbOverloadedException;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStateJournal;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Completes writes once they are in a local {@link DeviceStateJournal} and replays the journal to a delegate
+ * in background, so device commands neither wait for nor fail with the storage.
+ *
+ * <p>The journal is replayed in batches in the order of writes. A batch failed with
+ * {@link DbActionException} is replayed update by update and updates the storage rejects are dropped, as
+ * retrying them will not help. Other failures leave the batch in the journal and the replay is retried with
+ * an exponentially growing delay.
+ *
+ * <p>Reads replay the journal first, so they reflect all writes if the storage is available.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Db,name=Outbox")
+public class OutboxDeviceStorageCircuitBreaker implements DeviceStorageCircuitBreaker, InitializingBean,
+        DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxDeviceStorageCircuitBreaker.class);
+    // Appends wait for the disk. A few threads are enough for group commit to sync appends of the others.
+    private static final int APPEND_THREADS = 4;
+    private static final int APPEND_QUEUE = 10_000;
+
+    private final DeviceStorageCircuitBreaker delegate;
+    private final DeviceStateJournal journal;
+    private final int batchSize;
+    private final long retryMinMillis;
+    private final long retryMaxMillis;
+    private final AtomicBoolean replayRequested = new AtomicBoolean();
+    private Scheduler appender;
+    private ScheduledThreadPoolExecutor replayer;
+    // Written by the replayer thread only, 0 unless the last replay failed
+    private volatile long retryMillis;
+    private ScheduledFuture<?> retry;
+    // Written by the replayer thread only, when the oldest update waiting to be replayed was journaled, 0 if none
+    private volatile long oldestEpochMillis;
+
+    private final LongAdder journaled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failedReplays = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    OutboxDeviceStorageCircuitBreaker(DeviceStorageCircuitBreaker delegate, DeviceStateJournal journal,
+            int batchSize, long retryMinMillis, long retryMaxMillis) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+        if (retryMinMillis <= 0 || retryMaxMillis < retryMinMillis)
+            throw new IllegalArgumentException("retry delays must be positive and ordered");
+        this.delegate = delegate;
+        this.journal = journal;
+        this.batchSize = batchSize;
+        this.retryMinMillis = retryMinMillis;
+        this.retryMaxMillis = retryMaxMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        AtomicInteger appenders = new AtomicInteger();
+        appender = Schedulers.fromExecutorService(new ThreadPoolExecutor(APPEND_THREADS, APPEND_THREADS, 0, SECONDS,
+                new ArrayBlockingQueue<>(APPEND_QUEUE), runnable -> {
+                    Thread t = new Thread(runnable, "db-outbox-append-" + appenders.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }));
+        replayer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread t = new Thread(runnable, "db-outbox-replay");
+            t.setDaemon(true);
+            return t;
+        });
+        // A pending retry must not delay shutdown, the journal keeps its updates
+        replayer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        // Updates left by the previous run
+        replayer.execute(this::replay);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException, IOException {
+        if (replayer == null) return;
+        appender.dispose();
+        if (retryMillis == 0) replayer.execute(this::replay);
+        replayer.shutdown();
+        if (!replayer.awaitTermination(10, SECONDS)) replayer.shutdownNow();
+        journal.close();
+        long left = journal.size();
+        if (left > 0) LOGGER.info("{} device states are left in the outbox", left);
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.value(address, value)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.off(address)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.remove(address)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        return append(updates);
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        return replayed().thenMany(Flux.defer(delegate::readAll));
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return replayed().thenMany(Flux.defer(() -> delegate.readChangedSince(sinceUtc)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return replayed().then(Mono.defer(delegate::count));
+    }
+
+    @ManagedAttribute(description = "Number of updates waiting to be replayed")
+    public long getSize() {
+        return journal.size();
+    }
+
+    @ManagedAttribute(description = "Milliseconds the oldest update has been waiting to be replayed")
+    public long getLagMillis() {
+        long oldest = oldestEpochMillis;
+        return oldest == 0 ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    @ManagedAttribute(description = "Number of updates journaled")
+    public long getJournaled() {
+        return journaled.sum();
+    }
+
+    @ManagedAttribute(description = "Number of updates replayed")
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    @ManagedAttribute(description = "Number of batches replayed")
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @ManagedAttribute(description = "Number of replays failed")
+    public long getFailedReplays() {
+        return failedReplays.sum();
+    }
+
+    @ManagedAttribute(description = "Number of updates rejected by the storage and dropped")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @ManagedAttribute(description = "Delay before the next replay attempt, 0 if the last replay succeeded")
+    public long getRetryMillis() {
+        return retryMillis;
+    }
+
+    @NonNull
+    private Mono<Boolean> append(List<DeviceStateUpdate> updates) {
+        return Mono.fromCallable(() -> {
+            journal.append(updates);
+            journaled.add(updates.size());
+            requestReplay();
+            return true;
+        }).subscribeOn(appender).onErrorMap(RejectedExecutionException.class,
+                e -> new DbOverloadedException("Outbox append queue is full", e));
+    }
+
+    /**
+     * @return Mono completing when an attempt to replay everything journaled so far is over.
+     */
+    @NonNull
+    private Mono<Void> replayed() {
+        return Mono.fromFuture(() -> CompletableFuture.runAsync(this::replay, replayer));
+    }
+
+    private void requestReplay() {
+        // A failed replay is retried by timer
+        if (retryMillis > 0 || !replayRequested.compareAndSet(false, true)) return;
+        try {
+            replayer.execute(this::replay);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the journal keeps the update for the next start
+            replayRequested.set(false);
+        }
+    }
+
+    /**
+     * Replays the journal until it is empty or the delegate fails. Runs on the replayer thread only, so
+     * batches are replayed one by one in the order of writes.
+     */
+    private void replay() {
+        replayRequested.set(false);
+        try {
+            while (true) {
+                DeviceStateJournal.Batch batch = journal.peek(batchSize);
+                oldestEpochMillis = batch.getFirstEpochMillis();
+                if (batch.isEmpty()) break;
+                write(batch.getUpdates());
+                journal.commit(batch);
+                batches.increment();
+                replayed.add(batch.getUpdates().size());
+            }
+            retryMillis = 0;
+        } catch (RuntimeException e) {
+            failedReplays.increment();
+            if (retryMillis == 0) {
+                retryMillis = retryMinMillis;
+                LOGGER.warn("Cannot replay the outbox, retrying in {} ms", retryMillis, e);
+            } else {
+                // The cause has been logged already
+                retryMillis = Math.min(retryMillis * 2, retryMaxMillis);
+                LOGGER.warn("Cannot replay the outbox, retrying in {} ms: {}", retryMillis, e.toString());
+            }
+            if (retry == null || retry.isDone()) {
+                try {
+                    retry = replayer.schedule(this::replay, retryMillis, MILLISECONDS);
+                } catch (RejectedExecutionException ignored) {
+                    // Shutting down
+                }
+            }
+        }
+    }
+
+    private void write(List<DeviceStateUpdate> updates) {
+        try {
+            delegate.applyAll(updates).block();
+        } catch (DbActionException e) {
+            if (updates.size() == 1) {
+                dropped.increment();
+                LOGGER.error("Storage rejected {}, it is dropped", updates.get(0), e);
+                return;
+            }
+            // Find out which updates the storage rejects
+            for (DeviceStateUpdate u : updates) write(Collections.singletonList(u));
+        }
+    }
+}
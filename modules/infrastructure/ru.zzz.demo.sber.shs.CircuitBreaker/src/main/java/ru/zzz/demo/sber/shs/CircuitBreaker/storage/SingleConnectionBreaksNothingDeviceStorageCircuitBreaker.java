@@ -1,19 +1,19 @@
 package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
 
-import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.lang.NonNull;
-import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
 import ru.zzz.demo.sber.shs.db.DeviceStorageRepository;
 
-@Component("SHS.Infrastructure.DeviceStorageCircuitBreaker")
+import java.time.LocalDateTime;
+import java.util.List;
+
 class SingleConnectionBreaksNothingDeviceStorageCircuitBreaker implements DeviceStorageCircuitBreaker {
     private final DeviceStorageRepository repository;
 
-    @Autowired
-    public SingleConnectionBreaksNothingDeviceStorageCircuitBreaker(DeviceStorageRepository repository) {
+    SingleConnectionBreaksNothingDeviceStorageCircuitBreaker(DeviceStorageRepository repository) {
         this.repository = repository;
     }
 
@@ -35,9 +35,27 @@ class SingleConnectionBreaksNothingDeviceStorageCircuitBreaker implements Device
         return repository.removeDevice(address);
     }
 
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        return repository.applyAll(updates);
+    }
+
     @Override
     @NonNull
     public Flux<DeviceDto> readAll() {
         return repository.readAll();
     }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        return repository.readChangedSince(sinceUtc);
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return repository.count();
+    }
 }
@@ -0,0 +1,105 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.springframework.lang.NonNull;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Outcomes of calls made during the last window of time. The window is split into buckets, a bucket counts
+ * calls of its own period and is reused for a later period once it falls out of the window.
+ *
+ * <p>Buckets are immutable and replaced by compare-and-set, so recording takes no lock. A call recorded
+ * later than a whole window after it was made is ignored.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+final class SlidingWindow {
+    private final long bucketMillis;
+    private final AtomicReferenceArray<Counts> buckets;
+
+    SlidingWindow(long windowMillis, int bucketCount) {
+        if (bucketCount <= 0 || windowMillis < bucketCount)
+            throw new IllegalArgumentException("window must have at least a millisecond per bucket");
+        this.bucketMillis = windowMillis / bucketCount;
+        this.buckets = new AtomicReferenceArray<>(bucketCount);
+        reset();
+    }
+
+    void record(long nowMillis, boolean failed, boolean slow) {
+        long period = nowMillis / bucketMillis;
+        int i = (int) (period % buckets.length());
+        while (true) {
+            Counts bucket = buckets.get(i);
+            if (bucket.period > period) return;
+            // A bucket of an older period is reused
+            Counts next = (bucket.period == period) ? bucket : new Counts(period, 0, 0, 0);
+            next = next.plus(failed, slow);
+            if (buckets.compareAndSet(i, bucket, next)) return;
+        }
+    }
+
+    /**
+     * @return sums of the buckets of the window ending now.
+     */
+    @NonNull
+    Counts sum(long nowMillis) {
+        long period = nowMillis / bucketMillis;
+        int calls = 0;
+        int failures = 0;
+        int slowCalls = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            Counts bucket = buckets.get(i);
+            if (bucket.period <= period - buckets.length() || bucket.period > period) continue;
+            calls += bucket.calls;
+            failures += bucket.failures;
+            slowCalls += bucket.slowCalls;
+        }
+        return new Counts(period, calls, failures, slowCalls);
+    }
+
+    /**
+     * Forgets all calls.
+     */
+    void reset() {
+        for (int i = 0; i < buckets.length(); i++) buckets.set(i, Counts.EMPTY);
+    }
+
+    static final class Counts {
+        static final Counts EMPTY = new Counts(-1, 0, 0, 0);
+
+        private final long period;
+        private final int calls;
+        private final int failures;
+        private final int slowCalls;
+
+        private Counts(long period, int calls, int failures, int slowCalls) {
+            this.period = period;
+            this.calls = calls;
+            this.failures = failures;
+            this.slowCalls = slowCalls;
+        }
+
+        int getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return percent of failed calls, 0 if there were no calls.
+         */
+        int getFailureRate() {
+            return (calls == 0) ? 0 : (int) (100L * failures / calls);
+        }
+
+        /**
+         * @return percent of slow calls, 0 if there were no calls.
+         */
+        int getSlowCallRate() {
+            return (calls == 0) ? 0 : (int) (100L * slowCalls / calls);
+        }
+
+        @NonNull
+        private Counts plus(boolean failed, boolean slow) {
+            return new Counts(period, calls + 1, failures + (failed ? 1 : 0), slowCalls + (slow ? 1 : 0));
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DbConnectionException;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
+import ru.zzz.demo.sber.shs.db.DeviceStorageRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Fails storage calls fast while the storage fails or hangs, so callers do not pile up waiting for it.
+ *
+ * <p>Outcomes of calls are counted in a {@link SlidingWindow}. A call failed with
+ * {@link DbConnectionException} or timed out is a failure, a call lasted longer than the slow call
+ * duration is slow. While the breaker is closed, calls pass. It opens when there are enough calls in the
+ * window and the failure rate or the slow call rate reaches its threshold. An open breaker rejects calls
+ * with {@link DbConnectionException} for a while and then becomes half-open: a few probe calls pass and
+ * others are rejected. If all probes succeed in time the breaker closes, otherwise it opens again.
+ *
+ * <p>Every write and count has a timeout. A read times out if no record comes within the read timeout,
+ * so reading many records is not a failure while the time to the first one is measured for slowness.
+ * A timed out call may still run in the storage, the caller just does not wait for it.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Db,name=StorageCircuitBreaker")
+public class SlidingWindowDeviceStorageCircuitBreaker implements DeviceStorageCircuitBreaker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SlidingWindowDeviceStorageCircuitBreaker.class);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final DeviceStorageRepository repository;
+    private final SlidingWindow window;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallNanos;
+    private final long openMillis;
+    private final int halfOpenProbes;
+    private final Duration callTimeout;
+    private final Duration readTimeout;
+    private final AtomicReference<Phase> phase = new AtomicReference<>(Phase.closed());
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder halfOpened = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+
+    SlidingWindowDeviceStorageCircuitBreaker(DeviceStorageRepository repository, ServerConfig config) {
+        this.repository = repository;
+        this.window = new SlidingWindow(config.dbBreakerWindowMillis(), config.dbBreakerWindowBuckets());
+        this.minimumCalls = config.dbBreakerMinimumCalls();
+        this.failureRateThreshold = config.dbBreakerFailureRateThreshold();
+        this.slowCallRateThreshold = config.dbBreakerSlowCallRateThreshold();
+        this.slowCallNanos = MILLISECONDS.toNanos(config.dbBreakerSlowCallMillis());
+        this.openMillis = config.dbBreakerOpenMillis();
+        this.halfOpenProbes = config.dbBreakerHalfOpenProbes();
+        this.callTimeout = Duration.ofMillis(config.dbBreakerCallTimeoutMillis());
+        this.readTimeout = Duration.ofMillis(config.dbBreakerReadTimeoutMillis());
+        if (minimumCalls <= 0 || halfOpenProbes <= 0)
+            throw new IllegalArgumentException("minimum calls and half-open probes must be positive");
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Set device value", () -> repository.setDeviceValue(address, value));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Switch device off", () -> repository.setDeviceIsOff(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return call("Remove device", () -> repository.removeDevice(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        return call("Apply updates", () -> repository.applyAll(updates));
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        return read("Read devices", repository::readAll);
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return read("Read changed devices", () -> repository.readChangedSince(sinceUtc));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return call("Count devices", repository::count);
+    }
+
+    @ManagedAttribute(description = "CLOSED, OPEN or HALF_OPEN")
+    public String getState() {
+        return phase.get().state.name();
+    }
+
+    @ManagedAttribute(description = "Number of calls in the window")
+    public int getCalls() {
+        return window.sum(System.currentTimeMillis()).getCalls();
+    }
+
+    @ManagedAttribute(description = "Percent of failed calls in the window")
+    public int getFailureRate() {
+        return window.sum(System.currentTimeMillis()).getFailureRate();
+    }
+
+    @ManagedAttribute(description = "Percent of slow calls in the window")
+    public int getSlowCallRate() {
+        return window.sum(System.currentTimeMillis()).getSlowCallRate();
+    }
+
+    @ManagedAttribute(description = "Number of calls rejected without calling the storage")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Number of calls timed out")
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @ManagedAttribute(description = "Number of transitions to the open state")
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @ManagedAttribute(description = "Number of transitions to the half-open state")
+    public long getHalfOpened() {
+        return halfOpened.sum();
+    }
+
+    @ManagedAttribute(description = "Number of transitions to the closed state")
+    public long getClosed() {
+        return closed.sum();
+    }
+
+    @NonNull
+    private <T> Mono<T> call(String operation, Supplier<Mono<T>> call) {
+        return Mono.defer(() -> {
+            Phase admitted = admit(operation);
+            long start = System.nanoTime();
+            return call.get()
+                    .timeout(callTimeout)
+                    .onErrorMap(TimeoutException.class, e -> timedOut(operation, callTimeout, e))
+                    .doOnSuccess(v -> completed(admitted, System.nanoTime() - start, null))
+                    .doOnError(e -> completed(admitted, System.nanoTime() - start, e))
+                    .doOnCancel(() -> cancelled(admitted));
+        });
+    }
+
+    @NonNull
+    private <T> Flux<T> read(String operation, Supplier<Flux<T>> read) {
+        return Flux.defer(() -> {
+            Phase admitted = admit(operation);
+            long start = System.nanoTime();
+            // Nanos to the first record, 0 until it comes
+            AtomicLong latency = new AtomicLong();
+            return read.get()
+                    .timeout(readTimeout)
+                    .onErrorMap(TimeoutException.class, e -> timedOut(operation, readTimeout, e))
+                    .doOnNext(v -> latency.compareAndSet(0, Math.max(1, System.nanoTime() - start)))
+                    .doOnComplete(() -> completed(admitted, latencyOf(latency, start), null))
+                    .doOnError(e -> completed(admitted, latencyOf(latency, start), e))
+                    .doOnCancel(() -> cancelled(admitted));
+        });
+    }
+
+    private static long latencyOf(AtomicLong latency, long start) {
+        long l = latency.get();
+        return (l == 0) ? System.nanoTime() - start : l;
+    }
+
+    @NonNull
+    private DbConnectionException timedOut(String operation, Duration timeout, Throwable cause) {
+        timedOut.increment();
+        return new DbConnectionException(operation + " timed out in " + timeout.toMillis() + " ms", cause);
+    }
+
+    /**
+     * @return the phase the call is admitted in.
+     * @throws DbConnectionException if the call is rejected
+     */
+    @NonNull
+    private Phase admit(String operation) {
+        while (true) {
+            Phase current = phase.get();
+            switch (current.state) {
+                case CLOSED:
+                    return current;
+                case OPEN:
+                    if (System.currentTimeMillis() - current.sinceMillis < openMillis) break;
+                    transition(current, Phase.halfOpen(halfOpenProbes));
+                    // Someone else may have made the transition, take the probe permit anyway
+                    continue;
+                case HALF_OPEN:
+                    if (takePermit(current.permits)) return current;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown state " + current.state);
+            }
+            rejected.increment();
+            throw new DbConnectionException(operation + " is rejected, storage circuit breaker is " + current.state);
+        }
+    }
+
+    /**
+     * Takes a probe permit unless there are none. Permits never go below zero, so a permit returned by a
+     * cancelled probe admits another one.
+     */
+    private static boolean takePermit(AtomicInteger permits) {
+        while (true) {
+            int available = permits.get();
+            if (available <= 0) return false;
+            if (permits.compareAndSet(available, available - 1)) return true;
+        }
+    }
+
+    private void completed(Phase admitted, long latencyNanos, Throwable error) {
+        boolean failed = error instanceof DbConnectionException;
+        boolean slow = latencyNanos >= slowCallNanos;
+        long now = System.currentTimeMillis();
+        window.record(now, failed, slow);
+        switch (admitted.state) {
+            case CLOSED:
+                if (!failed && !slow) return;
+                SlidingWindow.Counts counts = window.sum(now);
+                if (counts.getCalls() >= minimumCalls && (counts.getFailureRate() >= failureRateThreshold ||
+                        counts.getSlowCallRate() >= slowCallRateThreshold)) {
+                    if (transition(admitted, Phase.open(now))) LOGGER.warn("Storage circuit breaker is open: " +
+                                    "{} calls, {}% failed, {}% slow, the last one took {} ms", counts.getCalls(),
+                            counts.getFailureRate(), counts.getSlowCallRate(), NANOSECONDS.toMillis(latencyNanos),
+                            error);
+                }
+                return;
+            case HALF_OPEN:
+                if (failed || slow) {
+                    if (transition(admitted, Phase.open(now))) LOGGER.warn(
+                            "Storage circuit breaker is open again, a probe took {} ms",
+                            NANOSECONDS.toMillis(latencyNanos), error);
+                } else if (admitted.successes.incrementAndGet() == halfOpenProbes) {
+                    // Failures of the outage must not open the breaker again
+                    window.reset();
+                    if (transition(admitted, Phase.closed())) LOGGER.info("Storage circuit breaker is closed");
+                }
+                return;
+            default:
+                // Calls are not admitted in the open state
+        }
+    }
+
+    private void cancelled(Phase admitted) {
+        // Let another probe in
+        if (admitted.state == State.HALF_OPEN) admitted.permits.incrementAndGet();
+    }
+
+    private boolean transition(Phase from, Phase to) {
+        if (!phase.compareAndSet(from, to)) return false;
+        switch (to.state) {
+            case OPEN:
+                opened.increment();
+                break;
+            case HALF_OPEN:
+                halfOpened.increment();
+                break;
+            case CLOSED:
+                closed.increment();
+                break;
+            default:
+        }
+        return true;
+    }
+
+    /**
+     * A state of the breaker. A transition replaces the phase, so outcomes of calls admitted in an earlier
+     * phase do not affect a later one.
+     */
+    private static final class Phase {
+        private final State state;
+        private final long sinceMillis;
+        // Half-open only: probes which may be admitted yet
+        private final AtomicInteger permits;
+        // Half-open only: probes succeeded
+        private final AtomicInteger successes = new AtomicInteger();
+
+        private Phase(State state, long sinceMillis, int permits) {
+            this.state = state;
+            this.sinceMillis = sinceMillis;
+            this.permits = new AtomicInteger(permits);
+        }
+
+        @NonNull
+        static Phase closed() {
+            return new Phase(State.CLOSED, 0, 0);
+        }
+
+        @NonNull
+        static Phase open(long nowMillis) {
+            return new Phase(State.OPEN, nowMillis, 0);
+        }
+
+        @NonNull
+        static Phase halfOpen(int probes) {
+            return new Phase(State.HALF_OPEN, 0, probes);
+        }
+    }
+}
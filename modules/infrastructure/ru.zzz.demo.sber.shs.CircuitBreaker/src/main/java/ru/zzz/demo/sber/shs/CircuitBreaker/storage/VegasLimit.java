@@ -0,0 +1,73 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+/**
+ * A limit of calls in progress adapting to the latency of calls, after TCP Vegas.
+ *
+ * <p>The lowest latency seen is the baseline, the latency of the storage without load. The part of a
+ * latency above the baseline is time spent in queues, so {@code limit * (1 - baseline / latency)} estimates
+ * the number of calls queued in the storage. While the queue is short the limit grows, fast if there is no
+ * queue at all. When the queue is long the limit goes down. A call failed as the storage was overloaded cuts
+ * the limit at once.
+ *
+ * <p>The limit grows only if at least half of it is in use, otherwise low latency says nothing about
+ * the limit. The baseline is measured again every {@value #BASELINE_SAMPLES} samples, so it follows the
+ * storage when it gets slower for good.
+ *
+ * <p>Instances of this class are not thread safe.
+ */
+final class VegasLimit {
+    static final int BASELINE_SAMPLES = 1000;
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    // 0 until measured
+    private long baselineNanos;
+    private int samples;
+
+    VegasLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("limits must be positive and ordered");
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+    }
+
+    int get() {
+        return (int) limit;
+    }
+
+    long getBaselineNanos() {
+        return baselineNanos;
+    }
+
+    /**
+     * @param latencyNanos latency of a successful call
+     * @param inFlight     number of calls in progress when it completed, including itself
+     * @return the new limit
+     */
+    int sample(long latencyNanos, int inFlight) {
+        if (++samples % BASELINE_SAMPLES == 0) baselineNanos = 0;
+        if (baselineNanos == 0 || latencyNanos < baselineNanos) {
+            baselineNanos = Math.max(1, latencyNanos);
+            return get();
+        }
+        double queue = Math.ceil(limit * (1 - (double) baselineNanos / latencyNanos));
+        double step = Math.max(1, Math.log10(limit));
+        if (queue > 6 * step) {
+            limit = Math.max(minLimit, limit - step);
+        } else if (queue < 3 * step && 2 * inFlight >= limit) {
+            limit = Math.min(maxLimit, limit + ((queue <= step) ? 6 * step : step));
+        }
+        return get();
+    }
+
+    /**
+     * @return the new limit
+     */
+    int overloaded() {
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        return get();
+    }
+}
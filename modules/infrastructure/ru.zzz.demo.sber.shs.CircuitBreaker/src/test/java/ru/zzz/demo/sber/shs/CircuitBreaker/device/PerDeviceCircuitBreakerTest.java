@@ -0,0 +1,208 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.device;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
+import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class PerDeviceCircuitBreakerTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private final DeviceManager dm = mock(DeviceManager.class);
+    // Calls to the device "hung" wait for it, deaf to interrupts
+    private final CountDownLatch hungDeviceReplies = new CountDownLatch(1);
+    private volatile boolean brokenDeviceFails = true;
+    private PerDeviceCircuitBreaker breaker;
+
+    @BeforeEach
+    void beforeEach() {
+        when(config.deviceCallTimeoutMillis()).thenReturn(50L);
+        when(config.deviceBulkheadSize()).thenReturn(4);
+        when(config.deviceBreakerFailureThreshold()).thenReturn(2);
+        when(config.deviceBreakerOpenMillis()).thenReturn(60000L);
+        when(config.deviceAsyncMaxInFlight()).thenReturn(100);
+        when(dm.accept(any())).thenAnswer(invocation -> {
+            Request msg = invocation.getArgument(0);
+            switch (msg.getAddress()) {
+                case "hung":
+                    awaitIgnoringInterrupts(hungDeviceReplies);
+                    return Reply.ok();
+                case "broken":
+                    if (brokenDeviceFails) throw new IllegalStateException("broken");
+                    return Reply.ok();
+                default:
+                    return Reply.ok();
+            }
+        });
+    }
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        hungDeviceReplies.countDown();
+        breaker.destroy();
+    }
+
+    @Test
+    void hungDeviceHoldsOneThreadOnly() {
+        open();
+        assertTrue(breaker.accept(Request.on("hung")) instanceof Reply.Error);
+        // The previous call has not returned yet
+        assertTrue(breaker.accept(Request.on("hung")) instanceof Reply.Error);
+        assertEquals(1, breaker.getTimedOut());
+        assertEquals(1, breaker.getRejectedBusy());
+        assertTrue(breaker.accept(Request.on("healthy")) instanceof Reply.Ok);
+        verify(dm, times(1)).accept(argThat(msg -> msg.getAddress().equals("hung")));
+    }
+
+    @Test
+    void failingDeviceIsNotCalledUntilProbe() throws InterruptedException {
+        when(config.deviceBreakerOpenMillis()).thenReturn(50L);
+        open();
+        assertTrue(breaker.accept(Request.on("broken")) instanceof Reply.Error);
+        assertTrue(breaker.accept(Request.on("broken")) instanceof Reply.Error);
+        assertEquals(1, breaker.getOpened());
+        assertTrue(breaker.accept(Request.on("broken")) instanceof Reply.Error);
+        assertEquals(1, breaker.getRejectedOpen());
+        verify(dm, times(2)).accept(any());
+        // A successful probe closes the breaker
+        brokenDeviceFails = false;
+        Thread.sleep(60);
+        assertTrue(breaker.accept(Request.on("broken")) instanceof Reply.Ok);
+        assertEquals(0, breaker.getUnhealthyDevices());
+    }
+
+    @Test
+    void bulkheadCapsCallsInProgress() throws InterruptedException {
+        when(config.deviceBulkheadSize()).thenReturn(1);
+        open();
+        assertTrue(breaker.accept(Request.on("hung")) instanceof Reply.Error);
+        assertTrue(breaker.accept(Request.on("healthy")) instanceof Reply.Error);
+        assertEquals(1, breaker.getRejectedBulkhead());
+        hungDeviceReplies.countDown();
+        await(() -> breaker.getActive() == 0);
+        assertTrue(breaker.accept(Request.on("healthy")) instanceof Reply.Ok);
+    }
+
+    @Test
+    void callCancelledBeforeItStartsFreesDevice() throws InterruptedException {
+        CountDownLatch callsStart = new CountDownLatch(1);
+        breaker = new PerDeviceCircuitBreaker(dm, config) {
+            @Override
+            ThreadPoolExecutor newBulkhead(int size) {
+                // Calls are handed to threads but do not start until let
+                return new ThreadPoolExecutor(size, size, 60, SECONDS, new SynchronousQueue<>()) {
+                    @Override
+                    protected void beforeExecute(Thread t, Runnable r) {
+                        awaitIgnoringInterrupts(callsStart);
+                    }
+                };
+            }
+        };
+        breaker.afterPropertiesSet();
+        assertTrue(breaker.accept(Request.on("healthy")) instanceof Reply.Error);
+        assertEquals(1, breaker.getTimedOut());
+        callsStart.countDown();
+        await(() -> breaker.getActive() == 0);
+        // The device is not held by the call which never started
+        assertTrue(breaker.accept(Request.on("healthy")) instanceof Reply.Ok);
+        assertEquals(0, breaker.getRejectedBusy());
+        verify(dm, times(1)).accept(any());
+    }
+
+    @Test
+    void asyncCallsArePipelinedAndTimeOut() throws InterruptedException {
+        DeviceManager asyncDm = mock(DeviceManager.class, withSettings().extraInterfaces(AsyncDeviceManager.class));
+        CompletableFuture<Reply> firstHung = new CompletableFuture<>();
+        CompletableFuture<Reply> secondHung = new CompletableFuture<>();
+        when(((AsyncDeviceManager) asyncDm).acceptAsync(any())).thenReturn(firstHung, secondHung);
+        breaker = new PerDeviceCircuitBreaker(asyncDm, config);
+        breaker.afterPropertiesSet();
+        CompletableFuture<Reply> first = breaker.acceptAsync(Request.on("hung"));
+        CompletableFuture<Reply> second = breaker.acceptAsync(Request.set("hung", 1));
+        assertEquals(2, breaker.getAsyncInFlight());
+        assertTrue(first.join() instanceof Reply.Error);
+        assertTrue(second.join() instanceof Reply.Error);
+        await(() -> breaker.getOpened() == 1);
+        assertEquals(2, breaker.getTimedOut());
+        assertEquals(0, breaker.getRejectedBusy());
+        // Replies which never come free their places in flight and are forgotten by the device manager
+        assertEquals(0, breaker.getAsyncInFlight());
+        assertTrue(firstHung.isCancelled());
+        assertTrue(secondHung.isCancelled());
+        // The device is not called until a probe
+        assertTrue(breaker.acceptAsync(Request.on("hung")).join() instanceof Reply.Error);
+        assertEquals(1, breaker.getRejectedOpen());
+        verify((AsyncDeviceManager) asyncDm, times(2)).acceptAsync(any());
+    }
+
+    @Test
+    void asyncCallsToSyncDeviceManagerRunInBulkhead() throws InterruptedException {
+        open();
+        assertTrue(breaker.acceptAsync(Request.on("healthy")).join() instanceof Reply.Ok);
+        assertTrue(breaker.acceptAsync(Request.on("broken")).join() instanceof Reply.Error);
+        await(() -> breaker.getUnhealthyDevices() == 1);
+        assertEquals(1, breaker.getFailed());
+    }
+
+    @Test
+    void batchSkipsFailingDevices() {
+        when(dm.acceptAll(anyList())).thenAnswer(invocation ->
+                invocation.<List<Request>>getArgument(0).stream().map(dm::accept).collect(Collectors.toList()));
+        open();
+        breaker.accept(Request.on("broken"));
+        breaker.accept(Request.on("broken"));
+        List<Reply> replies = breaker.acceptAll(Arrays.asList(Request.on("healthy"), Request.on("broken"),
+                Request.set("healthy", 1)));
+        assertTrue(replies.get(0) instanceof Reply.Ok);
+        assertTrue(replies.get(1) instanceof Reply.Error);
+        assertTrue(replies.get(2) instanceof Reply.Ok);
+        assertEquals(1, breaker.getRejectedOpen());
+        verify(dm, times(1)).acceptAll(argThat(msgs -> msgs.size() == 2));
+    }
+
+    private void open() {
+        breaker = new PerDeviceCircuitBreaker(dm, config);
+        breaker.afterPropertiesSet();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static void awaitIgnoringInterrupts(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException ignored) {
+                // A hung device does not notice
+            }
+        }
+    }
+}
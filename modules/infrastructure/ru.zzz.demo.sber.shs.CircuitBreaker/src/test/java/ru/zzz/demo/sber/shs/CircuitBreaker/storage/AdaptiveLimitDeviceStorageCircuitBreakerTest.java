@@ -0,0 +1,109 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DbOverloadedException;
+
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AdaptiveLimitDeviceStorageCircuitBreakerTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private final DeviceStorageCircuitBreaker delegate = mock(DeviceStorageCircuitBreaker.class);
+    private final CompletableFuture<Boolean> storageReplies = new CompletableFuture<>();
+
+    @BeforeEach
+    void beforeEach() {
+        when(config.dbLimiterInitialLimit()).thenReturn(1);
+        when(config.dbLimiterMinLimit()).thenReturn(1);
+        when(config.dbLimiterMaxLimit()).thenReturn(1);
+        when(config.dbLimiterQueueSize()).thenReturn(1);
+        when(config.dbLimiterQueueTimeoutMillis()).thenReturn(10000L);
+        when(delegate.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.fromFuture(storageReplies));
+    }
+
+    @Test
+    void callsBeyondLimitWaitForPlace() {
+        AdaptiveLimitDeviceStorageCircuitBreaker limiter = open();
+        CompletableFuture<Boolean> first = limiter.setDeviceValue("a", 1).toFuture();
+        CompletableFuture<Boolean> second = limiter.setDeviceValue("b", 1).toFuture();
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(1, limiter.getQueued());
+        verify(delegate, times(1)).setDeviceValue(anyString(), anyInt());
+        storageReplies.complete(true);
+        assertTrue(first.join());
+        assertTrue(second.join());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(1, limiter.getDelayed());
+        verify(delegate, times(2)).setDeviceValue(anyString(), anyInt());
+    }
+
+    @Test
+    void callsBeyondQueueAreRejected() {
+        AdaptiveLimitDeviceStorageCircuitBreaker limiter = open();
+        limiter.setDeviceValue("a", 1).subscribe();
+        limiter.setDeviceValue("b", 1).subscribe();
+        assertThrows(DbOverloadedException.class, () -> limiter.setDeviceValue("c", 1).block());
+        assertEquals(1, limiter.getRejected());
+        verify(delegate, times(1)).setDeviceValue(anyString(), anyInt());
+    }
+
+    @Test
+    void waitingCallsTimeOut() {
+        when(config.dbLimiterQueueTimeoutMillis()).thenReturn(20L);
+        AdaptiveLimitDeviceStorageCircuitBreaker limiter = open();
+        limiter.setDeviceValue("a", 1).subscribe();
+        assertThrows(DbOverloadedException.class, () -> limiter.setDeviceValue("b", 1).block());
+        assertEquals(0, limiter.getQueued());
+        assertEquals(1, limiter.getRejected());
+        // The place is still taken by the first call only
+        storageReplies.complete(true);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void overloadedStorageCutsLimit() {
+        when(config.dbLimiterInitialLimit()).thenReturn(10);
+        when(config.dbLimiterMaxLimit()).thenReturn(10);
+        when(delegate.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.error(new DbOverloadedException("full")));
+        AdaptiveLimitDeviceStorageCircuitBreaker limiter = open();
+        assertThrows(DbOverloadedException.class, () -> limiter.setDeviceValue("a", 1).block());
+        assertEquals(9, limiter.getLimit());
+        assertEquals(1, limiter.getLimitDecreases());
+        assertEquals(0, limiter.getRejected());
+    }
+
+    @Test
+    void limitFollowsLatency() {
+        VegasLimit limit = new VegasLimit(10, 1, 100);
+        limit.sample(MILLISECONDS.toNanos(10), 10);
+        // No queue in the storage
+        assertEquals(16, limit.sample(MILLISECONDS.toNanos(10), 10));
+        // Too few calls in progress to tell
+        assertEquals(16, limit.sample(MILLISECONDS.toNanos(10), 1));
+        // Calls queue up in the storage
+        int before = limit.get();
+        for (int i = 0; i < 10; i++) limit.sample(MILLISECONDS.toNanos(40), before);
+        assertTrue(limit.get() < before);
+        // The storage is fast again
+        before = limit.get();
+        for (int i = 0; i < 10; i++) limit.sample(MILLISECONDS.toNanos(10), before);
+        assertTrue(limit.get() > before);
+    }
+
+    private AdaptiveLimitDeviceStorageCircuitBreaker open() {
+        return new AdaptiveLimitDeviceStorageCircuitBreaker(delegate, config);
+    }
+}
@@ -0,0 +1,119 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.db.DbActionException;
+import ru.zzz.demo.sber.shs.db.DbConnectionException;
+import ru.zzz.demo.sber.shs.db.DeviceStateJournal;
+import ru.zzz.demo.sber.shs.db.DeviceStateUpdate;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OutboxDeviceStorageCircuitBreakerTest {
+    @TempDir
+    Path dir;
+    private final DeviceStorageCircuitBreaker delegate = mock(DeviceStorageCircuitBreaker.class);
+    // Updates the delegate has accepted
+    private final List<DeviceStateUpdate> stored = new CopyOnWriteArrayList<>();
+    private volatile boolean storageDown;
+    private OutboxDeviceStorageCircuitBreaker outbox;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        when(delegate.applyAll(any())).thenAnswer(invocation -> Mono.fromCallable(() -> {
+            if (storageDown) throw new DbConnectionException("down");
+            List<DeviceStateUpdate> updates = invocation.getArgument(0);
+            for (DeviceStateUpdate u : updates)
+                if (u.getAddress().equals("bad")) throw new DbActionException("bad", null);
+            stored.addAll(updates);
+            return true;
+        }));
+        when(delegate.readAll()).thenReturn(Flux.empty());
+        open();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException, InterruptedException {
+        outbox.destroy();
+    }
+
+    @Test
+    void writesCompleteWhileStorageIsDown() throws InterruptedException {
+        storageDown = true;
+        assertTrue(outbox.setDeviceValue("a", 1).block());
+        assertTrue(outbox.setDeviceIsOff("a").block());
+        await(() -> outbox.getFailedReplays() > 0);
+        assertEquals(2, outbox.getSize());
+        await(() -> outbox.getLagMillis() > 0);
+        assertTrue(stored.isEmpty());
+        storageDown = false;
+        await(() -> outbox.getSize() == 0);
+        assertEquals("[DeviceStateUpdate{VALUE a=1}, DeviceStateUpdate{OFF a}]", stored.toString());
+        await(() -> outbox.getLagMillis() == 0);
+    }
+
+    @Test
+    void batchIsJournaledOffTheCallerThread() throws InterruptedException {
+        storageDown = true;
+        String thread = outbox.applyAll(Arrays.asList(DeviceStateUpdate.value("a", 1), DeviceStateUpdate.off("b")))
+                .map(journaled -> Thread.currentThread().getName()).block();
+        assertTrue(thread.startsWith("db-outbox-append"), thread);
+        assertEquals(2, outbox.getJournaled());
+        assertEquals(2, outbox.getSize());
+        storageDown = false;
+        await(() -> outbox.getSize() == 0);
+        assertEquals("[DeviceStateUpdate{VALUE a=1}, DeviceStateUpdate{OFF b}]", stored.toString());
+    }
+
+    @Test
+    void journaledWritesAreReplayedAfterRestart() throws IOException, InterruptedException {
+        storageDown = true;
+        outbox.setDeviceValue("a", 1).block();
+        outbox.removeDevice("b").block();
+        outbox.destroy();
+        storageDown = false;
+        open();
+        // Reading replays the journal first
+        outbox.readAll().blockLast();
+        assertEquals("[DeviceStateUpdate{VALUE a=1}, DeviceStateUpdate{REMOVE b}]", stored.toString());
+    }
+
+    @Test
+    void rejectedUpdatesAreDropped() throws InterruptedException {
+        storageDown = true;
+        outbox.setDeviceValue("a", 1).block();
+        outbox.setDeviceValue("bad", 2).block();
+        outbox.setDeviceValue("c", 3).block();
+        storageDown = false;
+        await(() -> outbox.getSize() == 0);
+        assertEquals(1, outbox.getDropped());
+        assertEquals("[DeviceStateUpdate{VALUE a=1}, DeviceStateUpdate{VALUE c=3}]", stored.toString());
+    }
+
+    private void open() throws IOException {
+        outbox = new OutboxDeviceStorageCircuitBreaker(delegate, DeviceStateJournal.open(dir, 4096), 10, 10, 50);
+        outbox.afterPropertiesSet();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,146 @@
+package ru.zzz.demo.sber.shs.CircuitBreaker.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.db.DbActionException;
+import ru.zzz.demo.sber.shs.db.DbConnectionException;
+import ru.zzz.demo.sber.shs.db.DeviceDto;
+import ru.zzz.demo.sber.shs.db.DeviceStorageRepository;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SlidingWindowDeviceStorageCircuitBreakerTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private final DeviceStorageRepository repository = mock(DeviceStorageRepository.class);
+
+    @BeforeEach
+    void beforeEach() {
+        when(config.dbBreakerWindowMillis()).thenReturn(10000L);
+        when(config.dbBreakerWindowBuckets()).thenReturn(10);
+        when(config.dbBreakerMinimumCalls()).thenReturn(4);
+        when(config.dbBreakerFailureRateThreshold()).thenReturn(50);
+        when(config.dbBreakerSlowCallRateThreshold()).thenReturn(100);
+        when(config.dbBreakerSlowCallMillis()).thenReturn(10000L);
+        when(config.dbBreakerOpenMillis()).thenReturn(60000L);
+        when(config.dbBreakerHalfOpenProbes()).thenReturn(2);
+        when(config.dbBreakerCallTimeoutMillis()).thenReturn(10000L);
+        when(config.dbBreakerReadTimeoutMillis()).thenReturn(10000L);
+    }
+
+    @Test
+    void opensOnFailuresAndRejectsCalls() {
+        storageFails();
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        for (int i = 0; i < 4; i++) assertFails(DbConnectionException.class, breaker);
+        assertEquals("OPEN", breaker.getState());
+        assertFails(DbConnectionException.class, breaker);
+        verify(repository, times(4)).setDeviceValue("a", 1);
+        assertEquals(1, breaker.getRejected());
+        assertEquals(1, breaker.getOpened());
+    }
+
+    @Test
+    void rejectedQueriesDoNotOpen() {
+        when(repository.setDeviceValue(anyString(), anyInt()))
+                .thenReturn(Mono.error(new DbActionException("bad", null)));
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        for (int i = 0; i < 10; i++) assertFails(DbActionException.class, breaker);
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(10, breaker.getCalls());
+        assertEquals(0, breaker.getFailureRate());
+    }
+
+    @Test
+    void probesCloseOrOpenAgain() throws InterruptedException {
+        when(config.dbBreakerOpenMillis()).thenReturn(20L);
+        storageFails();
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        for (int i = 0; i < 4; i++) assertFails(DbConnectionException.class, breaker);
+        // A failed probe opens the breaker again
+        Thread.sleep(30);
+        assertFails(DbConnectionException.class, breaker);
+        assertEquals("OPEN", breaker.getState());
+        assertEquals(1, breaker.getHalfOpened());
+        // Successful probes close it
+        when(repository.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.just(true));
+        Thread.sleep(30);
+        assertTrue(breaker.setDeviceValue("a", 1).block());
+        assertEquals("HALF_OPEN", breaker.getState());
+        assertTrue(breaker.setDeviceValue("a", 1).block());
+        assertEquals("CLOSED", breaker.getState());
+        assertEquals(0, breaker.getCalls());
+        assertEquals(2, breaker.getOpened());
+        assertEquals(1, breaker.getClosed());
+    }
+
+    @Test
+    void halfOpenBreakerLetsLimitedProbesIn() throws InterruptedException {
+        when(config.dbBreakerOpenMillis()).thenReturn(20L);
+        storageFails();
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        for (int i = 0; i < 4; i++) assertFails(DbConnectionException.class, breaker);
+        Thread.sleep(30);
+        // Probes are in progress
+        when(repository.setDeviceValue(anyString(), anyInt())).thenReturn(Mono.never());
+        Disposable probe = breaker.setDeviceValue("a", 1).subscribe();
+        breaker.setDeviceValue("a", 1).subscribe();
+        assertFails(DbConnectionException.class, breaker);
+        assertFails(DbConnectionException.class, breaker);
+        assertEquals("HALF_OPEN", breaker.getState());
+        assertEquals(2, breaker.getRejected());
+        // A cancelled probe lets another one in, however many calls were rejected
+        probe.dispose();
+        breaker.setDeviceValue("a", 1).subscribe();
+        assertEquals(2, breaker.getRejected());
+        assertFails(DbConnectionException.class, breaker);
+        assertEquals(3, breaker.getRejected());
+    }
+
+    @Test
+    void hangingCallsTimeOut() {
+        when(config.dbBreakerCallTimeoutMillis()).thenReturn(20L);
+        when(repository.count()).thenReturn(Mono.never());
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        assertThrows(DbConnectionException.class, () -> breaker.count().block());
+        assertEquals(1, breaker.getTimedOut());
+        assertEquals(100, breaker.getFailureRate());
+    }
+
+    @Test
+    void longReadsDoNotTimeOut() {
+        when(config.dbBreakerReadTimeoutMillis()).thenReturn(100L);
+        when(repository.readAll()).thenReturn(Flux.interval(Duration.ofMillis(20)).take(10)
+                .map(i -> DeviceDto.of("d" + i, true, i.intValue(), LocalDateTime.now())));
+        SlidingWindowDeviceStorageCircuitBreaker breaker = open();
+        assertEquals(10L, breaker.readAll().count().block().longValue());
+        assertEquals(0, breaker.getTimedOut());
+    }
+
+    private SlidingWindowDeviceStorageCircuitBreaker open() {
+        return new SlidingWindowDeviceStorageCircuitBreaker(repository, config);
+    }
+
+    private void storageFails() {
+        when(repository.setDeviceValue(anyString(), anyInt()))
+                .thenReturn(Mono.error(new DbConnectionException("down")));
+    }
+
+    private static void assertFails(Class<? extends RuntimeException> failure, DeviceStorageCircuitBreaker breaker) {
+        assertThrows(failure, () -> breaker.setDeviceValue("a", 1).block());
+    }
+}
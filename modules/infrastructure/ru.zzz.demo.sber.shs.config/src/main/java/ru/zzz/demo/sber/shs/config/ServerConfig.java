@@ -23,4 +23,386 @@ public interface ServerConfig {
 
     @NonNull
     String dbUserPassword();
+
+    /**
+     * @return maximum number of connections to the devices storage.
+     */
+    int dbPoolSize();
+
+    /**
+     * @return how long a storage call may wait for a free connection before it fails.
+     */
+    long dbPoolAcquireTimeoutMillis();
+
+    /**
+     * @return idle connections that were not used for this time are validated before reuse.
+     */
+    long dbPoolValidationIntervalMillis();
+
+    /**
+     * @return true if pooled connections keep their prepared statements open for reuse.
+     */
+    boolean dbStatementCacheEnabled();
+
+    /**
+     * @return number of threads running blocking storage calls.
+     */
+    int dbThreads();
+
+    /**
+     * @return number of storage calls that may wait for a thread. Calls beyond it are rejected.
+     */
+    int dbQueueCapacity();
+
+    /**
+     * @return number of address hash partitions the whole device state is read in parallel by.
+     */
+    int dbReadPartitions();
+
+    /**
+     * @return number of rows fetched from a cursor in one round trip.
+     */
+    int dbFetchSize();
+
+    /**
+     * @return "oracle" to keep device states in Oracle or "log" to keep them in a local embedded log.
+     */
+    @NonNull
+    String dbEngine();
+
+    /**
+     * @return a directory of the embedded log.
+     */
+    @NonNull
+    String dbLogDir();
+
+    /**
+     * @return size of an embedded log segment file. A full segment triggers compaction.
+     */
+    int dbLogSegmentBytes();
+
+    /**
+     * @return how often the embedded log is compacted into a snapshot.
+     */
+    long dbLogCompactionIntervalMillis();
+
+    /**
+     * @return true if storage writes are queued and written in batches.
+     */
+    boolean dbWriteBehindEnabled();
+
+    /**
+     * @return number of pending addresses that triggers a batch write.
+     */
+    int dbWriteBehindBatchSize();
+
+    /**
+     * @return maximum time an update waits in a write-behind queue.
+     */
+    long dbWriteBehindFlushIntervalMillis();
+
+    /**
+     * @return "enqueue" to complete a write once it is queued or "flush" to complete it once it is written.
+     */
+    @NonNull
+    String dbWriteBehindAck();
+
+    /**
+     * @return true if storage writes are journaled locally and replayed to the storage in background.
+     */
+    boolean dbOutboxEnabled();
+
+    /**
+     * @return a directory of the outbox journal.
+     */
+    @NonNull
+    String dbOutboxDir();
+
+    /**
+     * @return size of an outbox journal segment file.
+     */
+    int dbOutboxSegmentBytes();
+
+    /**
+     * @return maximum number of journaled updates replayed to the storage at once.
+     */
+    int dbOutboxBatchSize();
+
+    /**
+     * @return delay before replaying the outbox again after the first failure. It doubles with every next one.
+     */
+    long dbOutboxRetryMinMillis();
+
+    /**
+     * @return maximum delay before replaying the outbox again after a failure.
+     */
+    long dbOutboxRetryMaxMillis();
+
+    /**
+     * @return true if the device registry is periodically saved to a local snapshot to speed up the next start.
+     */
+    boolean registrySnapshotEnabled();
+
+    /**
+     * @return a device registry snapshot file. By default it is named after the port, so servers started in
+     * one directory do not share it.
+     */
+    @NonNull
+    String registrySnapshotPath();
+
+    /**
+     * @return how often the device registry snapshot is saved.
+     */
+    long registrySnapshotIntervalMillis();
+
+    /**
+     * @return maximum difference between the server and the DB clocks. Records saved that much before
+     * a snapshot are read again on start.
+     */
+    long registrySnapshotClockSkewMillis();
+
+    /**
+     * @return true if every device state change is kept in the history warehouse.
+     */
+    boolean historyEnabled();
+
+    /**
+     * @return maximum number of state changes waiting to be written to the history. Changes beyond it are
+     * dropped.
+     */
+    int historyBufferSize();
+
+    /**
+     * @return maximum number of state changes written to the history in one batch.
+     */
+    int historyBatchSize();
+
+    /**
+     * @return how often buffered state changes are written to the history.
+     */
+    long historyFlushIntervalMillis();
+
+    /**
+     * @return true if storage calls go through a circuit breaker failing them fast while the storage
+     * fails or hangs.
+     */
+    boolean dbBreakerEnabled();
+
+    /**
+     * @return length of the sliding window the circuit breaker calculates failure rates over.
+     */
+    long dbBreakerWindowMillis();
+
+    /**
+     * @return number of buckets the circuit breaker window is split into.
+     */
+    int dbBreakerWindowBuckets();
+
+    /**
+     * @return minimum number of calls in the window before the circuit breaker may open.
+     */
+    int dbBreakerMinimumCalls();
+
+    /**
+     * @return percent of failed calls in the window which opens the circuit breaker.
+     */
+    int dbBreakerFailureRateThreshold();
+
+    /**
+     * @return percent of slow calls in the window which opens the circuit breaker.
+     */
+    int dbBreakerSlowCallRateThreshold();
+
+    /**
+     * @return duration of a storage call which makes it slow.
+     */
+    long dbBreakerSlowCallMillis();
+
+    /**
+     * @return how long the circuit breaker rejects calls once opened before letting probes in.
+     */
+    long dbBreakerOpenMillis();
+
+    /**
+     * @return number of probe calls which must succeed to close the circuit breaker.
+     */
+    int dbBreakerHalfOpenProbes();
+
+    /**
+     * @return maximum duration of a storage write or count, the call fails after it.
+     */
+    long dbBreakerCallTimeoutMillis();
+
+    /**
+     * @return maximum time to wait for the next record of a storage read, the read fails after it.
+     */
+    long dbBreakerReadTimeoutMillis();
+
+    /**
+     * @return maximum time to wait for a device reply, the call fails after it.
+     */
+    long deviceCallTimeoutMillis();
+
+    /**
+     * @return maximum number of device calls in progress at once, others are rejected.
+     */
+    int deviceBulkheadSize();
+
+    /**
+     * @return number of consecutive failed calls which opens the circuit breaker of a device.
+     */
+    int deviceBreakerFailureThreshold();
+
+    /**
+     * @return how long calls to a device are rejected once its circuit breaker opens before a probe.
+     */
+    long deviceBreakerOpenMillis();
+
+    /**
+     * @return whether the number of storage calls in progress adapts to the storage latency.
+     */
+    boolean dbLimiterEnabled();
+
+    /**
+     * @return number of storage calls allowed in progress at start.
+     */
+    int dbLimiterInitialLimit();
+
+    /**
+     * @return the lowest number of storage calls in progress the limit goes down to.
+     */
+    int dbLimiterMinLimit();
+
+    /**
+     * @return the highest number of storage calls in progress the limit goes up to.
+     */
+    int dbLimiterMaxLimit();
+
+    /**
+     * @return maximum number of storage calls waiting for the limit, others are rejected.
+     */
+    int dbLimiterQueueSize();
+
+    /**
+     * @return maximum time a storage call waits for the limit, it is rejected after it.
+     */
+    long dbLimiterQueueTimeoutMillis();
+
+    /**
+     * @return maximum number of asynchronous device calls in progress at once, others are rejected.
+     */
+    int deviceAsyncMaxInFlight();
+
+    /**
+     * @return true if devices are managed through a device gateway over TCP, false if by in-process stubs.
+     */
+    boolean deviceGatewayEnabled();
+
+    /**
+     * @return host of the device gateway.
+     */
+    String deviceGatewayHost();
+
+    /**
+     * @return port of the device gateway.
+     */
+    int deviceGatewayPort();
+
+    /**
+     * @return number of connections to the device gateway, requests to all devices are multiplexed over them.
+     */
+    int deviceGatewayConnections();
+
+    /**
+     * @return true if devices are simulated with latencies and failures for load tests, false if by plain stubs.
+     * Ignored if the device gateway is enabled.
+     */
+    boolean deviceSimulatorEnabled();
+
+    /**
+     * @return number of simulated devices.
+     */
+    int deviceSimulatorDevices();
+
+    /**
+     * @return seed of random numbers of the simulator, the same seed gives the same load test.
+     */
+    long deviceSimulatorSeed();
+
+    /**
+     * @return classes of simulated devices as {@code name:weight:latency:errorRate} separated by {@code ;},
+     * e.g. {@code lamp:80:uniform(1,5):0.001;thermostat:20:lognormal(20,200):0.01}.
+     */
+    String deviceSimulatorClasses();
+
+    /**
+     * @return mean time between disconnect storms of simulated devices, 0 if there are none.
+     */
+    long deviceSimulatorStormIntervalMillis();
+
+    /**
+     * @return duration of a disconnect storm.
+     */
+    long deviceSimulatorStormDurationMillis();
+
+    /**
+     * @return share of simulated devices disconnected by a storm.
+     */
+    double deviceSimulatorStormFraction();
+
+    /**
+     * @return true if devices are asked their state in the background to correct drift of the model.
+     */
+    boolean deviceReconcileEnabled();
+
+    /**
+     * @return maximum number of devices asked their state per second.
+     */
+    int deviceReconcileDevicesPerSecond();
+
+    /**
+     * @return maximum number of devices asked their state at once.
+     */
+    int deviceReconcileParallelism();
+
+    /**
+     * @return pause between passes over all devices.
+     */
+    long deviceReconcilePassIntervalMillis();
+
+    /**
+     * @return maximum number of commands to a device queued or in progress, further ones are rejected.
+     */
+    int deviceMailboxDepth();
+
+    /**
+     * @return whether increments and decrements queued to a device are set to it and stored at once.
+     */
+    boolean deviceCoalesceValueChanges();
+
+    /**
+     * @return number of value changes a device keeps to undo, 0 to keep none.
+     */
+    int deviceHistoryDepth();
+
+    /**
+     * @return number of single-threaded shards executing device commands, 0 to execute them by request and reply
+     * threads.
+     */
+    int deviceRegistryShards();
+
+    /**
+     * @return comma separated host:port of REST APIs of all cluster nodes, empty if there is no cluster.
+     */
+    String clusterNodes();
+
+    /**
+     * @return host:port of the REST API of this node as it is given in {@link #clusterNodes()}.
+     */
+    String clusterSelf();
+
+    /**
+     * @return time to wait for the owner node to connect and reply to a forwarded request.
+     */
+    long clusterForwardTimeoutMillis();
 }
@@ -56,4 +56,380 @@ class SpringPropertiesServerConfig implements ServerConfig {
     public String dbUserPassword() {
         return env.getProperty("db.password", "shs_api");
     }
+
+    @Override
+    public int dbPoolSize() {
+        return Integer.parseInt(env.getProperty("db.pool.size", "10"));
+    }
+
+    @Override
+    public long dbPoolAcquireTimeoutMillis() {
+        return Long.parseLong(env.getProperty("db.pool.acquireTimeoutMillis", "5000"));
+    }
+
+    @Override
+    public long dbPoolValidationIntervalMillis() {
+        return Long.parseLong(env.getProperty("db.pool.validationIntervalMillis", "30000"));
+    }
+
+    @Override
+    public boolean dbStatementCacheEnabled() {
+        return Boolean.parseBoolean(env.getProperty("db.statementCache.enabled", "true"));
+    }
+
+    @Override
+    public int dbThreads() {
+        return Integer.parseInt(env.getProperty("db.threads", "10"));
+    }
+
+    @Override
+    public int dbQueueCapacity() {
+        return Integer.parseInt(env.getProperty("db.queueCapacity", "1000"));
+    }
+
+    @Override
+    public int dbReadPartitions() {
+        return Integer.parseInt(env.getProperty("db.readPartitions", "4"));
+    }
+
+    @Override
+    public int dbFetchSize() {
+        return Integer.parseInt(env.getProperty("db.fetchSize", "1000"));
+    }
+
+    @Override
+    @NonNull
+    public String dbEngine() {
+        return env.getProperty("db.engine", "oracle");
+    }
+
+    @Override
+    @NonNull
+    public String dbLogDir() {
+        return env.getProperty("db.log.dir", "shs-data");
+    }
+
+    @Override
+    public int dbLogSegmentBytes() {
+        return Integer.parseInt(env.getProperty("db.log.segmentBytes", String.valueOf(64 * 1024 * 1024)));
+    }
+
+    @Override
+    public long dbLogCompactionIntervalMillis() {
+        return Long.parseLong(env.getProperty("db.log.compactionIntervalMillis", "600000"));
+    }
+
+    @Override
+    public boolean dbWriteBehindEnabled() {
+        return Boolean.parseBoolean(env.getProperty("db.writeBehind.enabled", "false"));
+    }
+
+    @Override
+    public int dbWriteBehindBatchSize() {
+        return Integer.parseInt(env.getProperty("db.writeBehind.batchSize", "500"));
+    }
+
+    @Override
+    public long dbWriteBehindFlushIntervalMillis() {
+        return Long.parseLong(env.getProperty("db.writeBehind.flushIntervalMillis", "100"));
+    }
+
+    @Override
+    @NonNull
+    public String dbWriteBehindAck() {
+        return env.getProperty("db.writeBehind.ack", "flush");
+    }
+
+    @Override
+    public boolean dbOutboxEnabled() {
+        return Boolean.parseBoolean(env.getProperty("db.outbox.enabled", "false"));
+    }
+
+    @Override
+    @NonNull
+    public String dbOutboxDir() {
+        return env.getProperty("db.outbox.dir", "shs-outbox");
+    }
+
+    @Override
+    public int dbOutboxSegmentBytes() {
+        return Integer.parseInt(env.getProperty("db.outbox.segmentBytes", String.valueOf(16 * 1024 * 1024)));
+    }
+
+    @Override
+    public int dbOutboxBatchSize() {
+        return Integer.parseInt(env.getProperty("db.outbox.batchSize", "500"));
+    }
+
+    @Override
+    public long dbOutboxRetryMinMillis() {
+        return Long.parseLong(env.getProperty("db.outbox.retryMinMillis", "100"));
+    }
+
+    @Override
+    public long dbOutboxRetryMaxMillis() {
+        return Long.parseLong(env.getProperty("db.outbox.retryMaxMillis", "30000"));
+    }
+
+    @Override
+    public boolean registrySnapshotEnabled() {
+        return Boolean.parseBoolean(env.getProperty("registry.snapshot.enabled", "false"));
+    }
+
+    @Override
+    @NonNull
+    public String registrySnapshotPath() {
+        return env.getProperty("registry.snapshot.path", "shs-registry-" + port() + ".snapshot");
+    }
+
+    @Override
+    public long registrySnapshotIntervalMillis() {
+        return Long.parseLong(env.getProperty("registry.snapshot.intervalMillis", "60000"));
+    }
+
+    @Override
+    public long registrySnapshotClockSkewMillis() {
+        return Long.parseLong(env.getProperty("registry.snapshot.clockSkewMillis", "60000"));
+    }
+
+    @Override
+    public boolean historyEnabled() {
+        return Boolean.parseBoolean(env.getProperty("history.enabled", "false"));
+    }
+
+    @Override
+    public int historyBufferSize() {
+        return Integer.parseInt(env.getProperty("history.bufferSize", "100000"));
+    }
+
+    @Override
+    public int historyBatchSize() {
+        return Integer.parseInt(env.getProperty("history.batchSize", "1000"));
+    }
+
+    @Override
+    public long historyFlushIntervalMillis() {
+        return Long.parseLong(env.getProperty("history.flushIntervalMillis", "1000"));
+    }
+
+    @Override
+    public boolean dbBreakerEnabled() {
+        return Boolean.parseBoolean(env.getProperty("db.breaker.enabled", "true"));
+    }
+
+    @Override
+    public long dbBreakerWindowMillis() {
+        return Long.parseLong(env.getProperty("db.breaker.windowMillis", "10000"));
+    }
+
+    @Override
+    public int dbBreakerWindowBuckets() {
+        return Integer.parseInt(env.getProperty("db.breaker.windowBuckets", "10"));
+    }
+
+    @Override
+    public int dbBreakerMinimumCalls() {
+        return Integer.parseInt(env.getProperty("db.breaker.minimumCalls", "20"));
+    }
+
+    @Override
+    public int dbBreakerFailureRateThreshold() {
+        return Integer.parseInt(env.getProperty("db.breaker.failureRateThreshold", "50"));
+    }
+
+    @Override
+    public int dbBreakerSlowCallRateThreshold() {
+        return Integer.parseInt(env.getProperty("db.breaker.slowCallRateThreshold", "80"));
+    }
+
+    @Override
+    public long dbBreakerSlowCallMillis() {
+        return Long.parseLong(env.getProperty("db.breaker.slowCallMillis", "2000"));
+    }
+
+    @Override
+    public long dbBreakerOpenMillis() {
+        return Long.parseLong(env.getProperty("db.breaker.openMillis", "5000"));
+    }
+
+    @Override
+    public int dbBreakerHalfOpenProbes() {
+        return Integer.parseInt(env.getProperty("db.breaker.halfOpenProbes", "3"));
+    }
+
+    @Override
+    public long dbBreakerCallTimeoutMillis() {
+        return Long.parseLong(env.getProperty("db.breaker.callTimeoutMillis", "10000"));
+    }
+
+    @Override
+    public long dbBreakerReadTimeoutMillis() {
+        return Long.parseLong(env.getProperty("db.breaker.readTimeoutMillis", "30000"));
+    }
+
+    @Override
+    public long deviceCallTimeoutMillis() {
+        return Long.parseLong(env.getProperty("device.callTimeoutMillis", "1000"));
+    }
+
+    @Override
+    public int deviceBulkheadSize() {
+        return Integer.parseInt(env.getProperty("device.bulkhead.size", "64"));
+    }
+
+    @Override
+    public int deviceBreakerFailureThreshold() {
+        return Integer.parseInt(env.getProperty("device.breaker.failureThreshold", "3"));
+    }
+
+    @Override
+    public long deviceBreakerOpenMillis() {
+        return Long.parseLong(env.getProperty("device.breaker.openMillis", "10000"));
+    }
+
+    @Override
+    public boolean dbLimiterEnabled() {
+        return Boolean.parseBoolean(env.getProperty("db.limiter.enabled", "true"));
+    }
+
+    @Override
+    public int dbLimiterInitialLimit() {
+        return Integer.parseInt(env.getProperty("db.limiter.initialLimit", "10"));
+    }
+
+    @Override
+    public int dbLimiterMinLimit() {
+        return Integer.parseInt(env.getProperty("db.limiter.minLimit", "1"));
+    }
+
+    @Override
+    public int dbLimiterMaxLimit() {
+        return Integer.parseInt(env.getProperty("db.limiter.maxLimit", "100"));
+    }
+
+    @Override
+    public int dbLimiterQueueSize() {
+        return Integer.parseInt(env.getProperty("db.limiter.queueSize", "200"));
+    }
+
+    @Override
+    public long dbLimiterQueueTimeoutMillis() {
+        return Long.parseLong(env.getProperty("db.limiter.queueTimeoutMillis", "1000"));
+    }
+
+    @Override
+    public int deviceAsyncMaxInFlight() {
+        return Integer.parseInt(env.getProperty("device.async.maxInFlight", "10000"));
+    }
+
+    @Override
+    public boolean deviceGatewayEnabled() {
+        return Boolean.parseBoolean(env.getProperty("device.gateway.enabled", "false"));
+    }
+
+    @Override
+    public String deviceGatewayHost() {
+        return env.getProperty("device.gateway.host", "localhost");
+    }
+
+    @Override
+    public int deviceGatewayPort() {
+        return Integer.parseInt(env.getProperty("device.gateway.port", "7070"));
+    }
+
+    @Override
+    public int deviceGatewayConnections() {
+        return Integer.parseInt(env.getProperty("device.gateway.connections", "4"));
+    }
+
+    @Override
+    public boolean deviceSimulatorEnabled() {
+        return Boolean.parseBoolean(env.getProperty("device.simulator.enabled", "false"));
+    }
+
+    @Override
+    public int deviceSimulatorDevices() {
+        return Integer.parseInt(env.getProperty("device.simulator.devices", "1000000"));
+    }
+
+    @Override
+    public long deviceSimulatorSeed() {
+        return Long.parseLong(env.getProperty("device.simulator.seed", "1"));
+    }
+
+    @Override
+    public String deviceSimulatorClasses() {
+        return env.getProperty("device.simulator.classes",
+                "lamp:80:uniform(1,5):0.001;thermostat:20:lognormal(20,200):0.01");
+    }
+
+    @Override
+    public long deviceSimulatorStormIntervalMillis() {
+        return Long.parseLong(env.getProperty("device.simulator.stormIntervalMillis", "0"));
+    }
+
+    @Override
+    public long deviceSimulatorStormDurationMillis() {
+        return Long.parseLong(env.getProperty("device.simulator.stormDurationMillis", "5000"));
+    }
+
+    @Override
+    public double deviceSimulatorStormFraction() {
+        return Double.parseDouble(env.getProperty("device.simulator.stormFraction", "0.1"));
+    }
+
+    @Override
+    public boolean deviceReconcileEnabled() {
+        return Boolean.parseBoolean(env.getProperty("device.reconcile.enabled", "false"));
+    }
+
+    @Override
+    public int deviceReconcileDevicesPerSecond() {
+        return Integer.parseInt(env.getProperty("device.reconcile.devicesPerSecond", "1000"));
+    }
+
+    @Override
+    public int deviceReconcileParallelism() {
+        return Integer.parseInt(env.getProperty("device.reconcile.parallelism", "100"));
+    }
+
+    @Override
+    public long deviceReconcilePassIntervalMillis() {
+        return Long.parseLong(env.getProperty("device.reconcile.passIntervalMillis", "60000"));
+    }
+
+    @Override
+    public int deviceMailboxDepth() {
+        return Integer.parseInt(env.getProperty("device.mailbox.depth", "16"));
+    }
+
+    @Override
+    public boolean deviceCoalesceValueChanges() {
+        return Boolean.parseBoolean(env.getProperty("device.coalesceValueChanges", "false"));
+    }
+
+    @Override
+    public int deviceHistoryDepth() {
+        return Integer.parseInt(env.getProperty("device.historyDepth", "32"));
+    }
+
+    @Override
+    public int deviceRegistryShards() {
+        return Integer.parseInt(env.getProperty("device.registry.shards", "0"));
+    }
+
+    @Override
+    public String clusterNodes() {
+        return env.getProperty("cluster.nodes", "");
+    }
+
+    @Override
+    public String clusterSelf() {
+        return env.getProperty("cluster.self", "localhost:" + port());
+    }
+
+    @Override
+    public long clusterForwardTimeoutMillis() {
+        return Long.parseLong(env.getProperty("cluster.forwardTimeoutMillis", "5000"));
+    }
 }
@@ -0,0 +1,263 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A fixed size pool of connections to the devices storage.
+ * Connections are opened lazily. An idle connection is validated before reuse if it has not been used for
+ * a while, and a connection is evicted if it turns out to be broken after a failed call.
+ *
+ * <p>The pool is not set up unless device states or their history are kept in Oracle, so the driver is not
+ * needed then.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@Component("SHS.Infrastructure.DbConnectionPool")
+@ManagedResource(objectName = "SHS:type=Db,name=ConnectionPool")
+public class ConnectionPool implements InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private final ServerConfig config;
+    private final int size;
+    private final long validationIntervalNanos;
+    // Whether a storage engine uses the pool
+    private final boolean used;
+    // A permit is a right to hold one connection
+    private final Semaphore permits;
+    // Most recently used connections are at the head
+    private final Deque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder acquireWaitNanos = new LongAdder();
+    private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder statementsPrepared = new LongAdder();
+    private final LongAdder statementsReused = new LongAdder();
+
+    @Autowired
+    public ConnectionPool(ServerConfig config) {
+        if (config.dbPoolSize() <= 0) throw new IllegalArgumentException("db pool size must be positive");
+        this.config = config;
+        this.size = config.dbPoolSize();
+        this.validationIntervalNanos = MILLISECONDS.toNanos(config.dbPoolValidationIntervalMillis());
+        this.permits = new Semaphore(size, true);
+        this.used = config.historyEnabled() ||
+                DeviceStorageConfiguration.Engine.of(config) == DeviceStorageConfiguration.Engine.ORACLE;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!used) {
+            LOGGER.info("Device states are kept in {}, the connection pool is not set up", config.dbEngine());
+            return;
+        }
+        Class.forName("oracle.jdbc.driver.OracleDriver");
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) close(pc);
+    }
+
+    /**
+     * Takes a connection from the pool waiting for a free one no longer than configured.
+     * The caller must return it with {@link #release(PooledConnection, Throwable)}.
+     *
+     * @return a connection which was valid recently.
+     * @throws DbConnectionException if there is no free connection or a new one cannot be opened.
+     */
+    @NonNull
+    PooledConnection acquire() {
+        if (closed) throw new DbConnectionException("Connection pool is closed");
+        if (!used) throw new DbConnectionException("Connection pool is not set up for " + config.dbEngine());
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(config.dbPoolAcquireTimeoutMillis(), MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbConnectionException("Interrupted while waiting for a connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+        if (!acquired) {
+            acquireTimeouts.increment();
+            throw new DbConnectionException(
+                    "No free connection in " + config.dbPoolAcquireTimeoutMillis() + " ms");
+        }
+        try {
+            return takeValidOrOpen();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection to the pool.
+     *
+     * @param pc      a connection got from {@link #acquire()}
+     * @param failure an error the connection has caused, if any. If it is not null the connection is
+     *                validated and evicted if it is broken.
+     */
+    void release(PooledConnection pc, @Nullable Throwable failure) {
+        try {
+            if (closed || (failure != null && !isValid(pc))) {
+                evict(pc);
+            } else {
+                if (failure != null) {
+                    pc.discardStatements();
+                } else {
+                    pc.releaseStatements();
+                }
+                pc.touch();
+                idle.offerFirst(pc);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    @ManagedAttribute(description = "Maximum number of connections")
+    public int getSize() {
+        return size;
+    }
+
+    @ManagedAttribute(description = "Number of connections held by callers")
+    public int getInUse() {
+        return size - permits.availablePermits();
+    }
+
+    @ManagedAttribute(description = "Share of connections held by callers, 0..1")
+    public double getUtilisation() {
+        return (double) getInUse() / size;
+    }
+
+    @ManagedAttribute(description = "Number of threads waiting for a connection")
+    public int getWaitingThreads() {
+        return permits.getQueueLength();
+    }
+
+    @ManagedAttribute(description = "Number of successful and failed connection requests")
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @ManagedAttribute(description = "Number of connection requests failed by timeout")
+    public long getAcquireTimeouts() {
+        return acquireTimeouts.sum();
+    }
+
+    @ManagedAttribute(description = "Average time spent waiting for a connection, ms")
+    public double getAverageAcquireWaitMillis() {
+        long count = acquisitions.sum();
+        return count == 0 ? 0 : (double) NANOSECONDS.toMicros(acquireWaitNanos.sum()) / count / 1000;
+    }
+
+    @ManagedAttribute(description = "Maximum time spent waiting for a connection, ms")
+    public double getMaxAcquireWaitMillis() {
+        return (double) NANOSECONDS.toMicros(maxAcquireWaitNanos.get()) / 1000;
+    }
+
+    @ManagedAttribute(description = "Number of connections opened")
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    @ManagedAttribute(description = "Number of connections closed as broken or on shutdown")
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    @ManagedAttribute(description = "Number of statements prepared by the database")
+    public long getStatementsPrepared() {
+        return statementsPrepared.sum();
+    }
+
+    @ManagedAttribute(description = "Number of statements taken from connection statement caches")
+    public long getStatementsReused() {
+        return statementsReused.sum();
+    }
+
+    @NonNull
+    private PooledConnection takeValidOrOpen() {
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            if (pc.idleNanos() < validationIntervalNanos || isValid(pc)) return pc;
+            evict(pc);
+        }
+        return open();
+    }
+
+    @NonNull
+    private PooledConnection open() {
+        try {
+            LOGGER.debug("Connecting to {} as {}", config.dbConnectionString(), config.dbUserName());
+            PooledConnection pc = new PooledConnection(
+                    DriverManager.getConnection(config.dbConnectionString(), config.dbUserName(),
+                            config.dbUserPassword()), config.dbStatementCacheEnabled(), statementsPrepared,
+                    statementsReused);
+            opened.increment();
+            LOGGER.debug("Connected to {} as {}", config.dbConnectionString(), config.dbUserName());
+            return pc;
+        } catch (SQLException e) {
+            LOGGER.warn("Cannot connect to {} as {}", config.dbConnectionString(), config.dbUserName());
+            throw new DbConnectionException(
+                    "Cannot connect to " + config.dbConnectionString() + " as " + config.dbUserName() + ": " +
+                            e.getMessage(), e);
+        }
+    }
+
+    private static boolean isValid(PooledConnection pc) {
+        try {
+            return pc.get().isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void evict(PooledConnection pc) {
+        evicted.increment();
+        close(pc);
+    }
+
+    private static void close(PooledConnection pc) {
+        try {
+            pc.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close a connection", e);
+        }
+    }
+
+    private void recordWait(long nanos) {
+        acquisitions.increment();
+        acquireWaitNanos.add(nanos);
+        maxAcquireWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+}
@@ -0,0 +1,14 @@
+package ru.zzz.demo.sber.shs.db;
+
+/**
+ * Indicates that the storage is saturated and a call was rejected without being sent to it.
+ */
+public class DbOverloadedException extends RuntimeException {
+    public DbOverloadedException(String s) {
+        super(s);
+    }
+
+    public DbOverloadedException(String s, Throwable throwable) {
+        super(s, throwable);
+    }
+}
@@ -0,0 +1,168 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A dedicated pool of threads for blocking storage calls. Its queue is bounded, so when the storage cannot
+ * keep up new calls fail fast with {@link DbOverloadedException} instead of piling up.
+ *
+ * <p>It intentionally does not implement {@link Scheduler}: the only general purpose scheduler bean is the
+ * one of the web server.
+ */
+@Component("SHS.Infrastructure.DbScheduler")
+@ManagedResource(objectName = "SHS:type=Db,name=Scheduler")
+public class DbScheduler implements InitializingBean, DisposableBean {
+    private final AtomicInteger threadsNamePostfix = new AtomicInteger();
+    private final ServerConfig config;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private ThreadPoolExecutor executor;
+    private Scheduler scheduler;
+
+    @Autowired
+    public DbScheduler(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        ThreadFactory threadFactory = runnable -> {
+            Thread t = new Thread(runnable, "db-io-" + threadsNamePostfix.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        executor = new TimedThreadPoolExecutor(config.dbThreads(), config.dbQueueCapacity(), threadFactory);
+        scheduler = Schedulers.fromExecutorService(executor);
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.dispose();
+    }
+
+    /**
+     * Makes a blocking call run on a storage thread whoever subscribes to it.
+     *
+     * @return the call. It fails with {@link DbOverloadedException} if the storage queue is full.
+     */
+    @NonNull
+    public <T> Mono<T> run(Mono<T> call) {
+        return call.subscribeOn(scheduler).onErrorMap(RejectedExecutionException.class, this::overloaded);
+    }
+
+    /**
+     * Makes a blocking cursor run on a storage thread whoever subscribes to and requests from it.
+     *
+     * @return the cursor. It fails with {@link DbOverloadedException} if the storage queue is full.
+     */
+    @NonNull
+    public <T> Flux<T> run(Flux<T> cursor) {
+        return cursor.subscribeOn(scheduler, true).onErrorMap(RejectedExecutionException.class, this::overloaded);
+    }
+
+    @ManagedAttribute(description = "Number of storage threads")
+    public int getThreads() {
+        return config.dbThreads();
+    }
+
+    @ManagedAttribute(description = "Number of threads executing storage calls")
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    @ManagedAttribute(description = "Number of storage calls waiting for a thread")
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    @ManagedAttribute(description = "Maximum number of storage calls waiting for a thread")
+    public int getQueueCapacity() {
+        return config.dbQueueCapacity();
+    }
+
+    @ManagedAttribute(description = "Number of storage tasks finished")
+    public long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    @ManagedAttribute(description = "Number of storage calls rejected because the queue was full")
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @ManagedAttribute(description = "Average time a storage call waits for a thread, ms")
+    public double getAverageQueueWaitMillis() {
+        long count = started.sum();
+        return count == 0 ? 0 : (double) NANOSECONDS.toMicros(queueWaitNanos.sum()) / count / 1000;
+    }
+
+    @NonNull
+    private DbOverloadedException overloaded(Throwable e) {
+        return new DbOverloadedException("Storage queue is full: " + getQueued() + " calls are waiting", e);
+    }
+
+    /**
+     * Measures time tasks spend in the queue and counts rejections.
+     */
+    private class TimedThreadPoolExecutor extends ThreadPoolExecutor {
+        TimedThreadPoolExecutor(int threads, int queueCapacity, ThreadFactory threadFactory) {
+            super(threads, threads, 0, MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), threadFactory,
+                    (task, executor) -> {
+                        rejected.increment();
+                        throw new RejectedExecutionException("Storage queue is full");
+                    });
+        }
+
+        @Override
+        protected <V> RunnableFuture<V> newTaskFor(Callable<V> callable) {
+            return new TimedTask<>(callable);
+        }
+
+        @Override
+        protected <V> RunnableFuture<V> newTaskFor(Runnable runnable, V value) {
+            return new TimedTask<>(Executors.callable(runnable, value));
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            if (r instanceof TimedTask) {
+                started.increment();
+                queueWaitNanos.add(System.nanoTime() - ((TimedTask<?>) r).createdNanos);
+            }
+        }
+    }
+
+    private static class TimedTask<V> extends FutureTask<V> {
+        private final long createdNanos = System.nanoTime();
+
+        TimedTask(Callable<V> callable) {
+            super(callable);
+        }
+    }
+}
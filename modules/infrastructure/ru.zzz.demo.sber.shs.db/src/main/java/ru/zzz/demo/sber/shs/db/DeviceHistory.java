@@ -0,0 +1,225 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Records device state changes to the {@link DeviceHistoryRepository} off the request path.
+ *
+ * <p>Changes are put into a bounded buffer and a single thread writes them in batches, when a batch is full
+ * or by timer. Recording never waits for the storage: when the buffer is full the change is dropped and
+ * counted. A batch failed for the storage is not available is retried by timer, one the storage rejects is
+ * dropped.
+ *
+ * <p>It does nothing unless the history is enabled in {@link ServerConfig}.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@Component("SHS.Infrastructure.DeviceHistory")
+@ManagedResource(objectName = "SHS:type=Db,name=History")
+public class DeviceHistory implements InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceHistory.class);
+
+    private final ServerConfig config;
+    private final DeviceHistoryRepository repository;
+    private final Clock clock = Clock.systemUTC();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private BlockingQueue<DeviceStateTransition> buffer;
+    private int batchSize;
+    private ScheduledThreadPoolExecutor flusher;
+    private volatile boolean enabled;
+    // Accessed by the flusher thread only. Not empty while a failed batch waits for a retry.
+    private final List<DeviceStateTransition> pending = new ArrayList<>();
+    // Written by the flusher thread only, true if the last write failed
+    private volatile boolean failing;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    @Autowired
+    public DeviceHistory(ServerConfig config, DeviceHistoryRepository repository) {
+        this.config = config;
+        this.repository = repository;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (!config.historyEnabled()) return;
+        batchSize = config.historyBatchSize();
+        if (batchSize <= 0) throw new IllegalArgumentException("history batch size must be positive");
+        buffer = new ArrayBlockingQueue<>(config.historyBufferSize());
+        flusher = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread t = new Thread(runnable, "db-history");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        long interval = config.historyFlushIntervalMillis();
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, MILLISECONDS);
+        enabled = true;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (!enabled) return;
+        enabled = false;
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        if (!flusher.awaitTermination(10, SECONDS)) flusher.shutdownNow();
+        int left = buffer.size() + pending.size();
+        if (left > 0) LOGGER.warn("{} device state transitions are not written to the history", left);
+    }
+
+    /**
+     * @return true if state changes are recorded.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a state change made right now. It returns at once.
+     *
+     * @throws IllegalArgumentException if the change is not a valid {@link DeviceStateTransition}
+     */
+    public void record(String address, DeviceStateTransition.State state, int value) {
+        if (!enabled) return;
+        DeviceStateTransition transition = DeviceStateTransition.of(address, state, value, LocalDateTime.now(clock));
+        if (!buffer.offer(transition)) {
+            dropped.increment();
+            return;
+        }
+        recorded.increment();
+        if (buffer.size() >= batchSize) requestFlush();
+    }
+
+    /**
+     * Reads the history of a device. Changes recorded so far are written first, if the storage is available.
+     *
+     * @return see {@link DeviceHistoryRepository#read(String, LocalDateTime, LocalDateTime)}.
+     * An empty Flux if the history is disabled.
+     */
+    @NonNull
+    public Flux<DeviceStateTransition> read(String address, LocalDateTime fromUtc, LocalDateTime toUtc) {
+        if (address == null || address.isEmpty() || fromUtc == null || toUtc == null)
+            throw new IllegalArgumentException();
+        if (!enabled) return Flux.empty();
+        return flushed().thenMany(Flux.defer(() -> repository.read(address, fromUtc, toUtc)));
+    }
+
+    @ManagedAttribute(description = "Number of transitions waiting to be written")
+    public long getBuffered() {
+        return enabled ? buffer.size() : 0;
+    }
+
+    @ManagedAttribute(description = "Number of transitions recorded")
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    @ManagedAttribute(description = "Number of transitions written")
+    public long getWritten() {
+        return written.sum();
+    }
+
+    @ManagedAttribute(description = "Number of batches written")
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @ManagedAttribute(description = "Number of batch writes failed")
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    @ManagedAttribute(description = "Number of transitions dropped as the buffer was full or the storage rejected them")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Mono completing when an attempt to write everything recorded so far is over.
+     */
+    @NonNull
+    private Mono<Void> flushed() {
+        return Mono.fromFuture(() -> CompletableFuture.runAsync(this::flush, flusher));
+    }
+
+    private void requestFlush() {
+        // A failed batch is retried by timer
+        if (failing || !flushRequested.compareAndSet(false, true)) return;
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the final flush takes the buffer
+            flushRequested.set(false);
+        }
+    }
+
+    /**
+     * Writes batches until the buffer is empty or the storage fails. Runs on the flusher thread only.
+     */
+    private void flush() {
+        flushRequested.set(false);
+        try {
+            if (pending.isEmpty()) buffer.drainTo(pending, batchSize);
+            while (!pending.isEmpty()) {
+                write();
+                pending.clear();
+                buffer.drainTo(pending, batchSize);
+            }
+            failing = false;
+        } catch (RuntimeException e) {
+            failedBatches.increment();
+            if (!failing) {
+                failing = true;
+                LOGGER.warn("Cannot write {} device state transitions to the history, retrying by timer",
+                        pending.size(), e);
+            } else {
+                // The cause has been logged already
+                LOGGER.warn("Cannot write {} device state transitions to the history: {}", pending.size(),
+                        e.toString());
+            }
+        }
+    }
+
+    private void write() {
+        try {
+            repository.insertAll(pending).block();
+            batches.increment();
+            written.add(pending.size());
+        } catch (DbActionException e) {
+            // Retrying will not help
+            dropped.add(pending.size());
+            LOGGER.error("Storage rejected {} device state transitions, they are dropped", pending.size(), e);
+        }
+    }
+}
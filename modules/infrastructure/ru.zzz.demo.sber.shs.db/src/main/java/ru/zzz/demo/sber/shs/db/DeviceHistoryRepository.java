@@ -0,0 +1,37 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * An interface of the device state history warehouse. It is append-only.
+ * Implementations may be called from many threads at once. Any call may fail with
+ * {@link DbOverloadedException} when the storage is saturated.
+ */
+public interface DeviceHistoryRepository {
+    /**
+     * Appends state changes to the history in a single round trip.
+     *
+     * @return Mono(true)
+     * <p>Mono({@link DbActionException}) if the storage rejected the changes, none of them is kept.
+     * <p>Mono({@link DbConnectionException}) if the storage is not available.
+     * @throws IllegalArgumentException if transitions is null
+     */
+    @NonNull
+    Mono<Boolean> insertAll(List<DeviceStateTransition> transitions);
+
+    /**
+     * @param fromUtc inclusive
+     * @param toUtc   exclusive
+     * @return Flux of state changes of a device made in the given period, oldest first.
+     * <p>Flux({@link DbActionException}) if the storage rejected the query.
+     * <p>Flux({@link DbConnectionException}) if the storage is not available.
+     * @throws IllegalArgumentException if any argument is null or empty
+     */
+    @NonNull
+    Flux<DeviceStateTransition> read(String address, LocalDateTime fromUtc, LocalDateTime toUtc);
+}
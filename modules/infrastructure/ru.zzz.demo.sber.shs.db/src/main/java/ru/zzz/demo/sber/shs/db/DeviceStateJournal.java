@@ -0,0 +1,363 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * A durable queue of device state updates in a local directory. Updates are appended to memory-mapped
+ * segments in the {@link LogSegment} format and consumed in the same order by {@link #peek(int)} and
+ * {@link #commit(Batch)}.
+ *
+ * <p>The read position is kept in a cursor file which is replaced after every commit but not synced, so
+ * after a crash some committed updates may be read again. Every update sets a complete device state, so
+ * applying a run of updates once more in the same order leads to the same result.
+ *
+ * <p>Appends are synced by group commit: an appender syncs everything appended up to then, and appenders
+ * waiting for it meanwhile find their updates synced and return without a sync of their own.
+ *
+ * <p>Any number of threads may append, a single thread reads and commits.
+ */
+public final class DeviceStateJournal implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceStateJournal.class);
+    private static final Pattern SEGMENT = Pattern.compile("outbox-(\\d+)\\.log");
+    private static final String CURSOR = "outbox.cursor";
+
+    private final Path dir;
+    private final int segmentBytes;
+    // Guards the fields below. Records are read outside of it up to the positions taken under it.
+    private final Object lock = new Object();
+    // generation -> segment, from the one being read to the one being appended
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>();
+    private LogSegment tail;
+    private long readGeneration;
+    private int readOffset;
+    private long size;
+    // Number of updates ever appended, the sequence number of the last one
+    private long appended;
+    private boolean closed;
+    // Guards syncing. Taken before lock, never while holding it.
+    private final Object syncLock = new Object();
+    // Sequence number of the last synced update, guarded by syncLock
+    private long synced;
+
+    private DeviceStateJournal(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens a journal in a directory, creating both if they do not exist.
+     */
+    @NonNull
+    public static DeviceStateJournal open(Path dir, int segmentBytes) throws IOException {
+        DeviceStateJournal journal = new DeviceStateJournal(dir.toAbsolutePath(), segmentBytes);
+        Files.createDirectories(journal.dir);
+        try {
+            journal.recover();
+        } catch (IOException | RuntimeException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Appends an update and syncs it to the disk.
+     *
+     * @throws DbConnectionException if the journal cannot be written
+     */
+    public void append(DeviceStateUpdate update) {
+        append(Collections.singletonList(update));
+    }
+
+    /**
+     * Appends updates in their order and syncs them to the disk at once. Either all updates are appended or,
+     * if one of them does not fit into a segment, none.
+     *
+     * @throws DbConnectionException if the journal cannot be written
+     */
+    public void append(List<DeviceStateUpdate> updates) {
+        if (updates.isEmpty()) return;
+        byte[] kinds = new byte[updates.size()];
+        byte[][] addresses = new byte[updates.size()][];
+        for (int i = 0; i < addresses.length; i++) {
+            kinds[i] = kindOf(updates.get(i));
+            addresses[i] = LogSegment.encode(updates.get(i).getAddress());
+            if (LogSegment.sizeOf(addresses[i]) > segmentBytes)
+                throw new IllegalArgumentException("A record does not fit into a journal segment");
+        }
+        long epochMillis = System.currentTimeMillis();
+        long sequence;
+        synchronized (lock) {
+            if (closed) throw new DbConnectionException("Journal is closed");
+            for (int i = 0; i < addresses.length; i++) {
+                int value = updates.get(i).getValue();
+                if (!tail.append(kinds[i], epochMillis, value, addresses[i])) {
+                    roll();
+                    tail.append(kinds[i], epochMillis, value, addresses[i]);
+                }
+                size++;
+                appended++;
+            }
+            sequence = appended;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * @return up to a given number of the oldest updates not committed yet.
+     */
+    @NonNull
+    public Batch peek(int maxUpdates) {
+        long generation;
+        int offset;
+        // generation -> position up to which records may be read
+        NavigableMap<Long, Integer> ends = new TreeMap<>();
+        NavigableMap<Long, LogSegment> readable;
+        synchronized (lock) {
+            if (closed) throw new DbConnectionException("Journal is closed");
+            generation = readGeneration;
+            offset = readOffset;
+            readable = new TreeMap<>(segments.tailMap(generation, true));
+            for (Map.Entry<Long, LogSegment> e : readable.entrySet()) ends.put(e.getKey(), e.getValue().position());
+        }
+        List<DeviceStateUpdate> updates = new ArrayList<>(Math.min(maxUpdates, 1024));
+        long[] firstEpochMillis = {0};
+        while (updates.size() < maxUpdates) {
+            if (offset >= ends.get(generation)) {
+                Long next = readable.higherKey(generation);
+                if (next == null) break;
+                generation = next;
+                offset = 0;
+                continue;
+            }
+            offset = readable.get(generation).readAt(offset, (kind, epochMillis, value, address) -> {
+                if (updates.isEmpty()) firstEpochMillis[0] = epochMillis;
+                updates.add(updateOf(kind, value, address));
+            });
+            if (offset < 0) throw new IllegalStateException("Journal segment " + generation + " is corrupted");
+        }
+        return new Batch(Collections.unmodifiableList(updates), firstEpochMillis[0], generation, offset);
+    }
+
+    /**
+     * Moves the read position past a batch returned by {@link #peek(int)} and deletes segments read through.
+     *
+     * @throws DbConnectionException if the read position cannot be saved
+     */
+    public void commit(Batch batch) {
+        List<LogSegment> consumed = new ArrayList<>();
+        synchronized (lock) {
+            if (closed) throw new DbConnectionException("Journal is closed");
+            readGeneration = batch.generation;
+            readOffset = batch.offset;
+            size -= batch.updates.size();
+            Map<Long, LogSegment> before = segments.headMap(readGeneration);
+            consumed.addAll(before.values());
+            before.clear();
+        }
+        try {
+            writeCursor(batch.generation, batch.offset);
+        } catch (IOException e) {
+            throw new DbConnectionException("Cannot save journal position", e);
+        }
+        for (LogSegment s : consumed) {
+            try {
+                s.close();
+                Files.deleteIfExists(s.path());
+            } catch (IOException e) {
+                // Left for the next start
+                LOGGER.debug("Cannot delete {}", s.path(), e);
+            }
+        }
+    }
+
+    /**
+     * @return number of updates not committed yet.
+     */
+    public long size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            for (LogSegment s : segments.values()) s.close();
+        }
+    }
+
+    /**
+     * Reads the cursor, replays segments to find where data ends and counts updates after the cursor.
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.forEach(p -> {
+                Matcher m = SEGMENT.matcher(p.getFileName().toString());
+                if (m.matches()) files.put(Long.parseLong(m.group(1)), p);
+            });
+        }
+        Path cursor = dir.resolve(CURSOR);
+        if (Files.exists(cursor)) {
+            ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(cursor));
+            readGeneration = b.getLong();
+            readOffset = b.getInt();
+        } else {
+            readGeneration = files.isEmpty() ? 0 : files.firstKey();
+            readOffset = 0;
+        }
+        for (Map.Entry<Long, Path> e : files.entrySet()) {
+            if (e.getKey() < readGeneration) {
+                Files.deleteIfExists(e.getValue());
+                continue;
+            }
+            LogSegment s = LogSegment.open(e.getValue(), e.getKey(), segmentBytes);
+            segments.put(e.getKey(), s);
+            if (!s.replay((kind, epochMillis, value, address) -> {}))
+                LOGGER.warn("Journal segment {} has a torn tail", e.getValue());
+            int offset = (e.getKey() == readGeneration) ? readOffset : 0;
+            while (offset >= 0 && offset < s.position()) {
+                offset = s.readAt(offset, (kind, epochMillis, value, address) -> {});
+                // A torn record is not counted
+                if (offset >= 0) size++;
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.put(readGeneration, LogSegment.open(segmentPath(readGeneration), readGeneration, segmentBytes));
+        } else if (!segments.containsKey(readGeneration)) {
+            // The cursor points to a segment which has not been created
+            readGeneration = segments.firstKey();
+            readOffset = 0;
+        }
+        tail = segments.lastEntry().getValue();
+        if (size > 0) LOGGER.info("Journal in {} has {} updates", dir, size);
+    }
+
+    /**
+     * Switches appending to a new segment. The old one is synced first, so a durable record is never
+     * preceded by a lost one.
+     */
+    private void roll() {
+        try {
+            tail.force();
+            long next = tail.generation() + 1;
+            tail = LogSegment.open(segmentPath(next), next, segmentBytes);
+            segments.put(next, tail);
+        } catch (IOException e) {
+            throw new DbConnectionException("Cannot roll journal over", e);
+        }
+    }
+
+    /**
+     * Syncs the tail up to the last appended update unless an update is synced already. Earlier segments are
+     * synced when rolled over, so the tail is the only one to sync.
+     */
+    private void sync(long sequence) {
+        synchronized (syncLock) {
+            if (synced >= sequence) return;
+            long upTo;
+            LogSegment written;
+            synchronized (lock) {
+                upTo = appended;
+                written = tail;
+            }
+            written.force();
+            synced = upTo;
+        }
+    }
+
+    private void writeCursor(long generation, int offset) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(8 + 4);
+        b.putLong(generation);
+        b.putInt(offset);
+        Path tmp = dir.resolve(CURSOR + ".tmp");
+        Files.write(tmp, b.array());
+        Files.move(tmp, dir.resolve(CURSOR), ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+
+    @NonNull
+    private Path segmentPath(long generation) {
+        return dir.resolve("outbox-" + generation + ".log");
+    }
+
+    private static byte kindOf(DeviceStateUpdate update) {
+        switch (update.getKind()) {
+            case VALUE:
+                return LogSegment.ON;
+            case OFF:
+                return LogSegment.OFF;
+            case REMOVE:
+                return LogSegment.REMOVE;
+            default:
+                throw new IllegalArgumentException("Unknown update kind " + update.getKind());
+        }
+    }
+
+    @NonNull
+    private static DeviceStateUpdate updateOf(byte kind, int value, String address) {
+        switch (kind) {
+            case LogSegment.ON:
+                return DeviceStateUpdate.value(address, value);
+            case LogSegment.OFF:
+                return DeviceStateUpdate.off(address);
+            default:
+                return DeviceStateUpdate.remove(address);
+        }
+    }
+
+    /**
+     * Updates returned by {@link #peek(int)} together with the position after them.
+     */
+    public static final class Batch {
+        private final List<DeviceStateUpdate> updates;
+        private final long firstEpochMillis;
+        private final long generation;
+        private final int offset;
+
+        private Batch(List<DeviceStateUpdate> updates, long firstEpochMillis, long generation, int offset) {
+            this.updates = updates;
+            this.firstEpochMillis = firstEpochMillis;
+            this.generation = generation;
+            this.offset = offset;
+        }
+
+        @NonNull
+        public List<DeviceStateUpdate> getUpdates() {
+            return updates;
+        }
+
+        /**
+         * @return when the first update was appended, 0 if the batch is empty.
+         */
+        public long getFirstEpochMillis() {
+            return firstEpochMillis;
+        }
+
+        public boolean isEmpty() {
+            return updates.isEmpty();
+        }
+    }
+}
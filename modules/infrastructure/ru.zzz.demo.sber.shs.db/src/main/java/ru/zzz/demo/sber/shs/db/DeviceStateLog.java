@@ -0,0 +1,413 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * An embedded log-structured store of device states in a local directory. It needs no external service.
+ *
+ * <p>Every change is appended to a memory-mapped log segment and applied to an in-memory index, which
+ * serves reads. Appends are made durable by group commit: a single thread syncs the log and completes all
+ * appends written since the previous sync at once.
+ *
+ * <p>When a segment is full, or by timer, the log rolls over to a new segment and the index is written to
+ * a snapshot. The snapshot covers everything before the new segment, so older segments are deleted.
+ * On start the latest snapshot and the segments after it are replayed into the index. Records hold
+ * complete device states, so replaying a record twice does no harm.
+ *
+ * <p>It does nothing unless {@link DeviceStorageConfiguration.Engine#LOG} is configured.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@Component("SHS.Infrastructure.DeviceStateLog")
+@ManagedResource(objectName = "SHS:type=Db,name=DeviceStateLog")
+public class DeviceStateLog implements InitializingBean, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceStateLog.class);
+    private static final Pattern SEGMENT = Pattern.compile("device-state-(\\d+)\\.log");
+    private static final Pattern SNAPSHOT = Pattern.compile("device-state-(\\d+)\\.snapshot");
+
+    private final ServerConfig config;
+    private final Map<String, DeviceDto> devices = new ConcurrentHashMap<>();
+    // Guards appending to the current segment and applying changes to the index
+    private final Object appendLock = new Object();
+    private final BlockingQueue<SyncRequest> syncRequests = new LinkedBlockingQueue<>();
+    private Path dir;
+    private int segmentBytes;
+    private LogSegment segment;
+    private volatile boolean open;
+    private Thread syncer;
+    private ScheduledExecutorService compactor;
+
+    private final LongAdder records = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder synced = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+
+    @Autowired
+    public DeviceStateLog(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws IOException {
+        if (DeviceStorageConfiguration.Engine.of(config) != DeviceStorageConfiguration.Engine.LOG) return;
+        dir = Paths.get(config.dbLogDir()).toAbsolutePath();
+        segmentBytes = config.dbLogSegmentBytes();
+        Files.createDirectories(dir);
+        recover();
+        open = true;
+        syncer = new Thread(this::syncLoop, "db-log-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "db-log-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = config.dbLogCompactionIntervalMillis();
+        compactor.scheduleWithFixedDelay(this::compactQuietly, interval, interval, MILLISECONDS);
+        LOGGER.info("Device state log in {} has {} devices", dir, devices.size());
+    }
+
+    @Override
+    public void destroy() throws InterruptedException, IOException {
+        if (!open) return;
+        synchronized (appendLock) {
+            open = false;
+        }
+        compactor.shutdown();
+        compactor.awaitTermination(10, SECONDS);
+        // Syncs everything appended so far and stops
+        syncRequests.add(SyncRequest.STOP);
+        syncer.join(SECONDS.toMillis(10));
+        segment.close();
+    }
+
+    /**
+     * Appends updates to the log and applies them to the index.
+     *
+     * @return a future completed when the updates are on the disk.
+     * It fails with {@link DbConnectionException} if the log cannot be written.
+     */
+    @NonNull
+    CompletableFuture<Void> append(List<DeviceStateUpdate> updates) {
+        SyncRequest request;
+        synchronized (appendLock) {
+            if (!open) throw new DbConnectionException("Device state log is closed");
+            // Encoding fails before anything is written
+            List<byte[]> addresses = new ArrayList<>(updates.size());
+            for (DeviceStateUpdate u : updates) {
+                byte[] address = LogSegment.encode(u.getAddress());
+                if (LogSegment.sizeOf(address) > segmentBytes)
+                    throw new IllegalArgumentException(
+                            "A record of " + u.getAddress() + " does not fit into a log segment");
+                addresses.add(address);
+            }
+            long epochMillis = System.currentTimeMillis();
+            for (int i = 0; i < updates.size(); i++) {
+                DeviceStateUpdate u = updates.get(i);
+                byte kind;
+                int value;
+                switch (u.getKind()) {
+                    case VALUE:
+                        kind = LogSegment.ON;
+                        value = u.getValue();
+                        break;
+                    case OFF:
+                        DeviceDto existing = devices.get(u.getAddress());
+                        kind = LogSegment.OFF;
+                        value = (existing == null) ? 0 : existing.getValue();
+                        break;
+                    case REMOVE:
+                        kind = LogSegment.REMOVE;
+                        value = 0;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown update kind " + u.getKind());
+                }
+                write(kind, epochMillis, value, addresses.get(i));
+                apply(kind, epochMillis, value, u.getAddress());
+            }
+            request = new SyncRequest(segment);
+            syncRequests.add(request);
+        }
+        return request.done;
+    }
+
+    /**
+     * @return the current state of all devices. It reflects appends not synced yet.
+     */
+    @NonNull
+    Collection<DeviceDto> devices() {
+        return Collections.unmodifiableCollection(devices.values());
+    }
+
+    /**
+     * Rolls the log over and writes a snapshot covering all segments before the new one. Does nothing if
+     * nothing has been appended since the previous snapshot.
+     */
+    synchronized void compact() throws IOException {
+        long covered;
+        synchronized (appendLock) {
+            if (!open) return;
+            if (segment.position() == 0 && Files.exists(snapshotPath(segment.generation()))) return;
+            if (segment.position() > 0) roll();
+            covered = segment.generation();
+        }
+        // Appends go on in the new segment, the index is at least as new as the older segments
+        List<DeviceDto> state = new ArrayList<>(devices.values());
+        List<byte[]> addresses = new ArrayList<>(state.size());
+        int size = 0;
+        for (DeviceDto d : state) {
+            byte[] address = LogSegment.encode(d.getAddr());
+            addresses.add(address);
+            size += LogSegment.sizeOf(address);
+        }
+        Path tmp = dir.resolve("device-state-" + covered + ".snapshot.tmp");
+        Files.deleteIfExists(tmp);
+        LogSegment snapshot = LogSegment.open(tmp, covered, size);
+        try {
+            for (int i = 0; i < state.size(); i++) {
+                DeviceDto d = state.get(i);
+                snapshot.append(d.isOn() ? LogSegment.ON : LogSegment.OFF,
+                        d.getLastSaveDateUtc().toInstant(ZoneOffset.UTC).toEpochMilli(), d.getValue(),
+                        addresses.get(i));
+            }
+            snapshot.force();
+        } finally {
+            snapshot.close();
+        }
+        Files.move(tmp, snapshotPath(covered), ATOMIC_MOVE, REPLACE_EXISTING);
+        deleteBefore(SNAPSHOT, covered);
+        deleteBefore(SEGMENT, covered);
+        compactions.increment();
+        LOGGER.debug("Device state log is compacted to {} devices", state.size());
+    }
+
+    @ManagedAttribute(description = "Number of devices in the log")
+    public int getDevices() {
+        return devices.size();
+    }
+
+    @ManagedAttribute(description = "Number of records appended")
+    public long getRecords() {
+        return records.sum();
+    }
+
+    @ManagedAttribute(description = "Number of log syncs")
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    @ManagedAttribute(description = "Average number of appends made durable by a sync")
+    public double getAverageAppendsPerSync() {
+        long count = syncs.sum();
+        return count == 0 ? 0 : (double) synced.sum() / count;
+    }
+
+    @ManagedAttribute(description = "Number of compactions")
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @ManagedAttribute(description = "Bytes written to the current segment")
+    public int getSegmentPosition() {
+        synchronized (appendLock) {
+            return (segment == null) ? 0 : segment.position();
+        }
+    }
+
+    /**
+     * Loads the latest snapshot, replays segments after it and opens the last segment for appending.
+     */
+    private void recover() throws IOException {
+        TreeMap<Long, Path> snapshots = list(SNAPSHOT);
+        long covered = 0;
+        if (!snapshots.isEmpty()) {
+            covered = snapshots.lastKey();
+            LogSegment snapshot = LogSegment.open(snapshots.lastEntry().getValue(), covered, 0);
+            try {
+                if (!snapshot.replay(this::apply))
+                    throw new IllegalStateException("Snapshot " + snapshot.path() + " is corrupted");
+            } finally {
+                snapshot.close();
+            }
+        }
+        for (Map.Entry<Long, Path> e : list(SEGMENT).entrySet()) {
+            if (e.getKey() < covered) {
+                // Left by a compaction which did not finish deleting
+                Files.deleteIfExists(e.getValue());
+                continue;
+            }
+            if (segment != null) segment.close();
+            segment = LogSegment.open(e.getValue(), e.getKey(), segmentBytes);
+            if (!segment.replay(this::apply)) LOGGER.warn("Device state log {} has a torn tail", e.getValue());
+        }
+        if (segment == null) segment = LogSegment.open(segmentPath(covered), covered, segmentBytes);
+    }
+
+    /**
+     * Appends a record, rolling the log over if the segment is full. The record must fit into a segment.
+     */
+    private void write(byte kind, long epochMillis, int value, byte[] address) {
+        if (!segment.append(kind, epochMillis, value, address)) {
+            roll();
+            segment.append(kind, epochMillis, value, address);
+            // A full segment is a sign the log grows fast
+            compactor.execute(this::compactQuietly);
+        }
+        records.increment();
+    }
+
+    private void apply(byte kind, long epochMillis, int value, String address) {
+        if (kind == LogSegment.REMOVE) {
+            devices.remove(address);
+        } else {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC);
+            devices.put(address, DeviceDto.of(address, kind == LogSegment.ON, value, time));
+        }
+    }
+
+    /**
+     * Switches appending to a new segment. The old one is synced first, so a durable record is never
+     * preceded by a lost one.
+     */
+    private void roll() {
+        try {
+            segment.force();
+            LogSegment next = LogSegment.open(segmentPath(segment.generation() + 1), segment.generation() + 1,
+                    segmentBytes);
+            // Pending sync requests still refer to the old segment
+            segment.close();
+            segment = next;
+        } catch (IOException e) {
+            throw new DbConnectionException("Cannot roll device state log over", e);
+        }
+    }
+
+    private void syncLoop() {
+        List<SyncRequest> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(syncRequests.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            syncRequests.drainTo(batch);
+            Set<LogSegment> segments = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (SyncRequest r : batch) {
+                if (r == SyncRequest.STOP) {
+                    stop = true;
+                } else {
+                    segments.add(r.segment);
+                }
+            }
+            try {
+                for (LogSegment s : segments) s.force();
+                for (SyncRequest r : batch) r.done.complete(null);
+            } catch (RuntimeException e) {
+                DbConnectionException failure = new DbConnectionException("Cannot sync device state log", e);
+                for (SyncRequest r : batch) r.done.completeExceptionally(failure);
+            }
+            syncs.increment();
+            synced.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Cannot compact device state log", e);
+        }
+    }
+
+    @NonNull
+    private Path segmentPath(long generation) {
+        return dir.resolve("device-state-" + generation + ".log");
+    }
+
+    @NonNull
+    private Path snapshotPath(long generation) {
+        return dir.resolve("device-state-" + generation + ".snapshot");
+    }
+
+    /**
+     * @return generation -> file
+     */
+    @NonNull
+    private TreeMap<Long, Path> list(Pattern pattern) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.forEach(p -> {
+                Matcher m = pattern.matcher(p.getFileName().toString());
+                if (m.matches()) files.put(Long.parseLong(m.group(1)), p);
+            });
+        }
+        return files;
+    }
+
+    private void deleteBefore(Pattern pattern, long generation) throws IOException {
+        for (Path p : list(pattern).headMap(generation).values()) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException e) {
+                // Some platforms do not delete mapped files, the next compaction retries
+                LOGGER.debug("Cannot delete {}", p, e);
+            }
+        }
+    }
+
+    private static final class SyncRequest {
+        static final SyncRequest STOP = new SyncRequest(null);
+
+        private final LogSegment segment;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private SyncRequest(LogSegment segment) {
+            this.segment = segment;
+        }
+    }
+}
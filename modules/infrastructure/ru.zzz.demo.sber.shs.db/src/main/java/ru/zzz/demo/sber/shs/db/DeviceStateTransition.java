@@ -0,0 +1,67 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+
+import java.time.LocalDateTime;
+
+/**
+ * A device state change kept in the {@link DeviceHistoryRepository}.
+ * Invariants:
+ * <pre>
+ * /\ address is not empty
+ * /\ value >= 0
+ * /\ state = REMOVED => value = 0
+ * </pre>
+ */
+public final class DeviceStateTransition {
+    public enum State {
+        ON,
+        OFF,
+        REMOVED
+    }
+
+    private final String address;
+    private final State state;
+    private final int value;
+    private final LocalDateTime changeDateUtc;
+
+    private DeviceStateTransition(String address, State state, int value, LocalDateTime changeDateUtc) {
+        this.address = address;
+        this.state = state;
+        this.value = value;
+        this.changeDateUtc = changeDateUtc;
+    }
+
+    @NonNull
+    public static DeviceStateTransition of(String address, State state, int value, LocalDateTime changeDateUtc) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException("address");
+        if (state == null || changeDateUtc == null) throw new IllegalArgumentException();
+        if (value < 0) throw new IllegalArgumentException("Negative value");
+        if (state == State.REMOVED && value != 0) throw new IllegalArgumentException("A removed device has a value");
+        return new DeviceStateTransition(address, state, value, changeDateUtc);
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    @NonNull
+    public State getState() {
+        return state;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    @NonNull
+    public LocalDateTime getChangeDateUtc() {
+        return changeDateUtc;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceStateTransition{" + address + ' ' + state + '=' + value + " at " + changeDateUtc + '}';
+    }
+}
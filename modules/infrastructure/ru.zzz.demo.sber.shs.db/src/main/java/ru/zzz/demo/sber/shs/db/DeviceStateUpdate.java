@@ -0,0 +1,72 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+
+/**
+ * A single device state change to be written by {@link DeviceStorageRepository#applyAll(java.util.List)}.
+ * Kinds match single record operations of the repository.
+ * Invariants:
+ * <pre>
+ * /\ address is not empty
+ * /\ kind = VALUE => value >= 0
+ * </pre>
+ */
+public final class DeviceStateUpdate {
+    public enum Kind {
+        /** See {@link DeviceStorageRepository#setDeviceValue(String, int)} */
+        VALUE,
+        /** See {@link DeviceStorageRepository#setDeviceIsOff(String)} */
+        OFF,
+        /** See {@link DeviceStorageRepository#removeDevice(String)} */
+        REMOVE
+    }
+
+    private final Kind kind;
+    private final String address;
+    private final int value;
+
+    private DeviceStateUpdate(Kind kind, String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException("address");
+        this.kind = kind;
+        this.address = address;
+        this.value = value;
+    }
+
+    @NonNull
+    public static DeviceStateUpdate value(String address, int value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value");
+        return new DeviceStateUpdate(Kind.VALUE, address, value);
+    }
+
+    @NonNull
+    public static DeviceStateUpdate off(String address) {
+        return new DeviceStateUpdate(Kind.OFF, address, 0);
+    }
+
+    @NonNull
+    public static DeviceStateUpdate remove(String address) {
+        return new DeviceStateUpdate(Kind.REMOVE, address, 0);
+    }
+
+    @NonNull
+    public Kind getKind() {
+        return kind;
+    }
+
+    @NonNull
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return a new value. It has sense for {@link Kind#VALUE} only.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceStateUpdate{" + kind + ' ' + address + (kind == Kind.VALUE ? "=" + value : "") + '}';
+    }
+}
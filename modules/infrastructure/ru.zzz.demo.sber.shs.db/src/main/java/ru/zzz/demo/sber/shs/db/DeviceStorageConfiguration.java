@@ -0,0 +1,68 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.util.Locale;
+
+/**
+ * Assembles the {@link DeviceStorageRepository} out of a storage engine and optional stages in front of it
+ * according to the {@link ServerConfig}, and the {@link DeviceHistoryRepository}.
+ */
+@Configuration("SHS.Infrastructure.DeviceStorageConfiguration")
+class DeviceStorageConfiguration {
+    /**
+     * Where device states are kept.
+     */
+    enum Engine {
+        /** Oracle, see {@link PooledDeviceRepository} */
+        ORACLE,
+        /** A local embedded log, see {@link DeviceStateLog} */
+        LOG;
+
+        @NonNull
+        static Engine of(ServerConfig config) {
+            return valueOf(config.dbEngine().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private final ServerConfig config;
+
+    @Autowired
+    DeviceStorageConfiguration(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Bean("SHS.Infrastructure.DeviceStorageRepository")
+    @NonNull
+    DeviceStorageRepository deviceStorageRepository(ConnectionPool pool, DbScheduler scheduler, DeviceStateLog log) {
+        DeviceStorageRepository engine = engine(pool, scheduler, log);
+        if (!config.dbWriteBehindEnabled()) return engine;
+        return new WriteBehindDeviceStorageRepository(engine, config.dbWriteBehindBatchSize(),
+                config.dbWriteBehindFlushIntervalMillis(),
+                WriteBehindDeviceStorageRepository.Ack.valueOf(config.dbWriteBehindAck().toUpperCase(Locale.ROOT)));
+    }
+
+    @Bean("SHS.Infrastructure.DeviceHistoryRepository")
+    @NonNull
+    DeviceHistoryRepository deviceHistoryRepository(ConnectionPool pool, DbScheduler scheduler) {
+        return new PooledDeviceHistoryRepository(pool, scheduler, config.dbFetchSize());
+    }
+
+    @NonNull
+    private DeviceStorageRepository engine(ConnectionPool pool, DbScheduler scheduler, DeviceStateLog log) {
+        switch (Engine.of(config)) {
+            case ORACLE:
+                // A partition holds a connection until it is read, more partitions than connections would wait
+                int readPartitions = Math.min(config.dbReadPartitions(), config.dbPoolSize());
+                return new PooledDeviceRepository(pool, scheduler, readPartitions, config.dbFetchSize());
+            case LOG:
+                return new LogDeviceRepository(log);
+            default:
+                throw new IllegalStateException("Unknown storage engine " + config.dbEngine());
+        }
+    }
+}
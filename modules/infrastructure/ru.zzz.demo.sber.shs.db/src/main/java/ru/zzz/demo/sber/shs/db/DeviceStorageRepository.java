@@ -4,9 +4,13 @@ import org.springframework.lang.NonNull;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.time.LocalDateTime;
+import java.util.List;
+
 /**
  * An interface of a devices storage (DB).
- * No connection polling is done. Everything goes through a single connection.
+ * Implementations may be called from many threads at once. Any call may fail with
+ * {@link DbOverloadedException} when the storage is saturated.
  */
 public interface DeviceStorageRepository {
     /**
@@ -48,8 +52,37 @@ public interface DeviceStorageRepository {
     Mono<Boolean> removeDevice(String address);
 
     /**
-     * @return Flux(all device records as DTO)
+     * Applies state updates in the given order. Implementations may send consecutive updates of the same
+     * kind in one round trip.
+     *
+     * @param updates updates to apply
+     * @return Mono(true)
+     * <p>Mono({@link DbActionException}) if the device state was updated but the storage was not.
+     * <p>Mono({@link DbConnectionException}) if the device state was updated but the storage was not.
+     * @throws IllegalArgumentException if updates is null
+     */
+    @NonNull
+    Mono<Boolean> applyAll(List<DeviceStateUpdate> updates);
+
+    /**
+     * @return Flux(all device records as DTO) in no particular order
      */
     @NonNull
     Flux<DeviceDto> readAll();
+
+    /**
+     * @param sinceUtc the earliest last_save_date_utc to read, inclusive
+     * @return Flux(device records saved since a given moment as DTO) in no particular order.
+     * Removed records are not reported.
+     */
+    @NonNull
+    Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc);
+
+    /**
+     * @return Mono(number of device records)
+     * <p>Mono({@link DbActionException}) if the storage cannot count records.
+     * <p>Mono({@link DbConnectionException}) if the storage cannot count records.
+     */
+    @NonNull
+    Mono<Long> count();
 }
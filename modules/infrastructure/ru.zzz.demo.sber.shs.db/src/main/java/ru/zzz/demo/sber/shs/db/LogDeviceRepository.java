@@ -0,0 +1,76 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Storage backed by the embedded {@link DeviceStateLog}. Writes complete when they are on the local disk,
+ * reads are served from memory.
+ *
+ * @see DeviceStorageConfiguration
+ */
+class LogDeviceRepository implements DeviceStorageRepository {
+    private final DeviceStateLog log;
+
+    LogDeviceRepository(DeviceStateLog log) {
+        this.log = log;
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.value(address, value)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.off(address)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return append(Collections.singletonList(DeviceStateUpdate.remove(address)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        if (updates.isEmpty()) return Mono.just(true);
+        return append(updates);
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        return Flux.defer(() -> Flux.fromIterable(log.devices()));
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return readAll().filter(d -> !d.getLastSaveDateUtc().isBefore(sinceUtc));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return Mono.fromSupplier(() -> (long) log.devices().size());
+    }
+
+    @NonNull
+    private Mono<Boolean> append(List<DeviceStateUpdate> updates) {
+        return Mono.fromFuture(() -> log.append(updates)).thenReturn(true);
+    }
+}
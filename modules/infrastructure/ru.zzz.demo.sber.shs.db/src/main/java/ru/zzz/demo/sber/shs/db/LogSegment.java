@@ -0,0 +1,198 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A memory-mapped file of a fixed capacity holding device state records one after another. A record is
+ * <pre>
+ * crc32 of the rest: int, kind: byte, epoch millis: long, value: int, address length: short, address: UTF-8
+ * </pre>
+ * A file is zero filled when created, so the first record with zero kind and checksum marks the end of data.
+ *
+ * <p>Records are appended by one thread at a time, {@link #force()} may be called by another thread.
+ */
+class LogSegment {
+    static final byte ON = 1;
+    /** The value of an off record is the one the device had when it was switched off */
+    static final byte OFF = 2;
+    static final byte REMOVE = 3;
+
+    private static final int HEADER_BYTES = 4 + 1 + 8 + 4 + 2;
+    private static final int END = -1;
+    private static final int CORRUPTED = -2;
+
+    private final Path path;
+    private final long generation;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private LogSegment(Path path, long generation, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.generation = generation;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Opens or creates a file and maps it. A file shorter than the capacity is extended by zeros.
+     */
+    @NonNull
+    static LogSegment open(Path path, long generation, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, CREATE, READ, WRITE);
+        try {
+            int size = (int) Math.max(capacity, channel.size());
+            return new LogSegment(path, generation, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of bytes a record takes.
+     */
+    static int sizeOf(byte[] address) {
+        return HEADER_BYTES + address.length;
+    }
+
+    @NonNull
+    static byte[] encode(String address) {
+        byte[] bytes = address.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) throw new IllegalArgumentException("Address is too long: " + address);
+        return bytes;
+    }
+
+    @NonNull
+    Path path() {
+        return path;
+    }
+
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * @return number of bytes written.
+     */
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * @return false if the record does not fit into the rest of the segment.
+     */
+    boolean append(byte kind, long epochMillis, int value, byte[] address) {
+        int start = buffer.position();
+        if (buffer.remaining() < sizeOf(address)) return false;
+        buffer.position(start + 4);
+        buffer.put(kind).putLong(epochMillis).putInt(value).putShort((short) address.length).put(address);
+        buffer.putInt(start, checksum(start, buffer.position()));
+        return true;
+    }
+
+    /**
+     * Reads records from the start of the segment and leaves the position after the last valid one. A torn
+     * or corrupted tail is zero filled, so records appended later do not run into it.
+     *
+     * @return false if the segment had a corrupted tail.
+     */
+    boolean replay(RecordConsumer consumer) {
+        int start = 0;
+        while (true) {
+            int end = next(start);
+            if (end == END) {
+                buffer.position(start);
+                return true;
+            }
+            if (end == CORRUPTED) {
+                zeroTail(start);
+                return false;
+            }
+            read(start, consumer);
+            start = end;
+        }
+    }
+
+    /**
+     * Reads a single record without moving the append position. Records before {@link #position()} may be
+     * read by one thread while another one is appending.
+     *
+     * @return the offset of the next record, or -1 if there is no valid record at the offset.
+     */
+    int readAt(int offset, RecordConsumer consumer) {
+        int end = next(offset);
+        if (end < 0) return -1;
+        read(offset, consumer);
+        return end;
+    }
+
+    /**
+     * Writes changes of the mapped memory to the disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it is garbage collected.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return the offset after a record starting at the given one, {@link #END} if there are no more records
+     * or {@link #CORRUPTED} if the record is not valid.
+     */
+    private int next(int start) {
+        if (buffer.limit() - start < HEADER_BYTES) return END;
+        int crc = buffer.getInt(start);
+        byte kind = buffer.get(start + 4);
+        if (crc == 0 && kind == 0) return END;
+        int length = buffer.getShort(start + 4 + 1 + 8 + 4) & 0xFFFF;
+        int end = start + HEADER_BYTES + length;
+        if (kind < ON || kind > REMOVE || end > buffer.limit() || checksum(start, end) != crc) return CORRUPTED;
+        return end;
+    }
+
+    private void read(int start, RecordConsumer consumer) {
+        int length = buffer.getShort(start + 4 + 1 + 8 + 4) & 0xFFFF;
+        byte[] address = new byte[length];
+        ByteBuffer b = buffer.duplicate();
+        b.position(start + HEADER_BYTES);
+        b.get(address);
+        consumer.accept(buffer.get(start + 4), buffer.getLong(start + 5), buffer.getInt(start + 5 + 8),
+                new String(address, StandardCharsets.UTF_8));
+    }
+
+    private int checksum(int from, int to) {
+        ByteBuffer b = buffer.duplicate();
+        b.limit(to);
+        b.position(from + 4);
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private void zeroTail(int from) {
+        for (int i = from; i < buffer.limit(); i++) buffer.put(i, (byte) 0);
+        buffer.position(from);
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(byte kind, long epochMillis, int value, String address);
+    }
+}
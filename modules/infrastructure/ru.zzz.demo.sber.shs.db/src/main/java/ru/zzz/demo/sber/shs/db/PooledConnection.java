@@ -0,0 +1,137 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.lang.NonNull;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A connection owned by a {@link ConnectionPool}. It is used by a single thread between
+ * {@link ConnectionPool#acquire()} and {@link ConnectionPool#release(PooledConnection, Throwable)}.
+ *
+ * <p>Statements are prepared through the connection and belong to it, callers never close them. If the
+ * statement cache is enabled a statement is kept open and reused by the next caller preparing the same SQL,
+ * otherwise it is closed when the connection is returned to the pool. The cache lives and dies with the
+ * connection, so a replaced connection never leaks its statements to a new one. Storage SQL is a fixed
+ * set of strings, so the cache is not bounded.
+ */
+class PooledConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PooledConnection.class);
+
+    private final Connection connection;
+    private final boolean cacheStatements;
+    private final LongAdder prepared;
+    private final LongAdder reused;
+    // SQL -> an open statement
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    // Statements to close on release when the cache is disabled
+    private final List<Statement> uncached = new ArrayList<>();
+    private long lastUsedNanos;
+
+    /**
+     * @param prepared incremented every time a statement is prepared by the database
+     * @param reused   incremented every time a cached statement is reused
+     */
+    PooledConnection(Connection connection, boolean cacheStatements, LongAdder prepared, LongAdder reused) {
+        this.connection = connection;
+        this.cacheStatements = cacheStatements;
+        this.prepared = prepared;
+        this.reused = reused;
+        this.lastUsedNanos = System.nanoTime();
+    }
+
+    @NonNull
+    Connection get() {
+        return connection;
+    }
+
+    /**
+     * @return a callable statement with cleared parameters. The caller must not close it.
+     */
+    @NonNull
+    CallableStatement prepareCall(String sql) throws SQLException {
+        PreparedStatement s = cached(sql);
+        if (s != null) return (CallableStatement) s;
+        return (CallableStatement) own(sql, connection.prepareCall(sql));
+    }
+
+    /**
+     * @return a prepared statement with cleared parameters. The caller must not close it.
+     */
+    @NonNull
+    PreparedStatement prepareStatement(String sql) throws SQLException {
+        PreparedStatement s = cached(sql);
+        if (s != null) return s;
+        return own(sql, connection.prepareStatement(sql));
+    }
+
+    /**
+     * @return nanoseconds passed since the connection was returned to the pool last time.
+     */
+    long idleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    /**
+     * Closes statements which are not cached. Called when the connection is returned to the pool.
+     */
+    void releaseStatements() {
+        for (Statement s : uncached) closeQuietly(s);
+        uncached.clear();
+    }
+
+    /**
+     * Closes all statements. Called when a call has failed, as a statement may be left in an unknown state.
+     */
+    void discardStatements() {
+        releaseStatements();
+        for (Statement s : statements.values()) closeQuietly(s);
+        statements.clear();
+    }
+
+    void close() throws SQLException {
+        discardStatements();
+        connection.close();
+    }
+
+    private PreparedStatement cached(String sql) throws SQLException {
+        PreparedStatement s = statements.get(sql);
+        if (s == null) return null;
+        s.clearParameters();
+        reused.increment();
+        return s;
+    }
+
+    @NonNull
+    private PreparedStatement own(String sql, PreparedStatement s) {
+        prepared.increment();
+        if (cacheStatements) {
+            statements.put(sql, s);
+        } else {
+            uncached.add(s);
+        }
+        return s;
+    }
+
+    private static void closeQuietly(Statement s) {
+        try {
+            s.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close a statement", e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Oracle backed history. The relation is partitioned by day of a change, so a read of a period scans the
+ * partitions of the period only. Inserts go as a single JDBC batch, which the driver sends as array DML.
+ *
+ * @see DeviceStorageConfiguration
+ */
+class PooledDeviceHistoryRepository implements DeviceHistoryRepository {
+    private static final String INSERT =
+            "insert into shs_device_history (address, state, val, change_date_utc) values (?, ?, ?, ?)";
+    private static final String READ = "select address, state, val, change_date_utc from shs_device_history " +
+            "where address = ? and change_date_utc >= ? and change_date_utc < ? order by change_date_utc";
+
+    private final PooledJdbc jdbc;
+
+    /**
+     * @param fetchSize number of rows fetched from a cursor in one round trip
+     */
+    PooledDeviceHistoryRepository(ConnectionPool pool, DbScheduler scheduler, int fetchSize) {
+        this.jdbc = new PooledJdbc(pool, scheduler, fetchSize);
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> insertAll(List<DeviceStateTransition> transitions) {
+        if (transitions == null) throw new IllegalArgumentException();
+        if (transitions.isEmpty()) return Mono.just(true);
+        return jdbc.execute("Cannot insert " + transitions.size() + " device state transitions", c -> {
+            PreparedStatement stm = c.prepareStatement(INSERT);
+            for (DeviceStateTransition t : transitions) {
+                stm.setString(1, t.getAddress());
+                stm.setString(2, t.getState().name());
+                stm.setInt(3, t.getValue());
+                stm.setTimestamp(4, Timestamp.valueOf(t.getChangeDateUtc()));
+                stm.addBatch();
+            }
+            stm.executeBatch();
+        });
+    }
+
+    @Override
+    @NonNull
+    public Flux<DeviceStateTransition> read(String address, LocalDateTime fromUtc, LocalDateTime toUtc) {
+        if (address == null || address.isEmpty() || fromUtc == null || toUtc == null)
+            throw new IllegalArgumentException();
+        return jdbc.query("Cannot get history of device " + address, READ, stm -> {
+            stm.setString(1, address);
+            stm.setTimestamp(2, Timestamp.valueOf(fromUtc));
+            stm.setTimestamp(3, Timestamp.valueOf(toUtc));
+        }, PooledDeviceHistoryRepository::toTransition);
+    }
+
+    @NonNull
+    private static DeviceStateTransition toTransition(ResultSet rs) throws SQLException {
+        return DeviceStateTransition.of(rs.getString("address"),
+                DeviceStateTransition.State.valueOf(rs.getString("state")), rs.getInt("val"),
+                rs.getTimestamp("change_date_utc").toLocalDateTime());
+    }
+}
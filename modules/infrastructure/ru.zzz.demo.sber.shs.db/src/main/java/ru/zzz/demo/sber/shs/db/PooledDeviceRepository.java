@@ -0,0 +1,174 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.concurrent.Queues;
+
+import java.sql.CallableStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Oracle backed storage. Every call takes its own connection from the {@link ConnectionPool}, so calls
+ * from different threads run in parallel. Blocking JDBC calls always run on the {@link DbScheduler}
+ * whatever thread subscribes, see {@link PooledJdbc}. Statements are prepared through {@link PooledConnection}, which may cache
+ * them, and are never closed here.
+ *
+ * @see DeviceStorageConfiguration
+ */
+class PooledDeviceRepository implements DeviceStorageRepository {
+    private static final String SET_DEVICE_VALUE = "{call shs_api_pkg.set_device_value(?,?)}";
+    private static final String SET_DEVICE_IS_OFF = "{call shs_api_pkg.set_device_is_off(?)}";
+    private static final String REMOVE_DEVICE = "{call shs_api_pkg.remove_device(?)}";
+    private static final String READ_ALL = "select address, is_on, val, last_save_date_utc from shs_device_state";
+    private static final String READ_PARTITION = READ_ALL + " where ora_hash(address, ?) = ?";
+    private static final String READ_CHANGED = READ_ALL + " where last_save_date_utc >= ?";
+    private static final String COUNT = "select count(*) from shs_device_state";
+
+    private final PooledJdbc jdbc;
+    private final int readPartitions;
+
+    /**
+     * @param readPartitions number of hash partitions {@link #readAll()} reads in parallel
+     * @param fetchSize      number of rows fetched from a cursor in one round trip
+     */
+    PooledDeviceRepository(ConnectionPool pool, DbScheduler scheduler, int readPartitions, int fetchSize) {
+        if (readPartitions <= 0) throw new IllegalArgumentException("read partitions must be positive");
+        this.jdbc = new PooledJdbc(pool, scheduler, fetchSize);
+        this.readPartitions = readPartitions;
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return jdbc.execute("Cannot set device " + address + " value", c -> {
+            CallableStatement stm = c.prepareCall(SET_DEVICE_VALUE);
+            stm.setString(1, address);
+            stm.setInt(2, value);
+            stm.execute();
+        });
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return jdbc.execute("Cannot switch device " + address + " off", c -> {
+            CallableStatement stm = c.prepareCall(SET_DEVICE_IS_OFF);
+            stm.setString(1, address);
+            stm.execute();
+        });
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return jdbc.execute("Cannot remove device " + address, c -> {
+            CallableStatement stm = c.prepareCall(REMOVE_DEVICE);
+            stm.setString(1, address);
+            stm.execute();
+        });
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        if (updates.isEmpty()) return Mono.just(true);
+        return jdbc.execute("Cannot apply " + updates.size() + " device state updates", c -> {
+            // Every run of updates of the same kind goes as a single JDBC batch
+            int from = 0;
+            while (from < updates.size()) {
+                DeviceStateUpdate.Kind kind = updates.get(from).getKind();
+                int to = from;
+                CallableStatement stm = c.prepareCall(callOf(kind));
+                for (; to < updates.size() && updates.get(to).getKind() == kind; to++) {
+                    DeviceStateUpdate u = updates.get(to);
+                    stm.setString(1, u.getAddress());
+                    if (kind == DeviceStateUpdate.Kind.VALUE) stm.setInt(2, u.getValue());
+                    stm.addBatch();
+                }
+                stm.executeBatch();
+                from = to;
+            }
+        });
+    }
+
+    /**
+     * Splits the relation into hash partitions of addresses and reads them in parallel, each on its own
+     * connection. Records of different partitions are interleaved.
+     */
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        if (readPartitions == 1) return read(READ_ALL, stm -> {});
+        // Partitions are not cancelled by a failure of another one, so they do not fail after cancellation
+        return Flux.range(0, readPartitions).flatMapDelayError(partition -> read(READ_PARTITION, stm -> {
+            stm.setInt(1, readPartitions - 1);
+            stm.setInt(2, partition);
+        }), readPartitions, Queues.SMALL_BUFFER_SIZE).onErrorMap(Exceptions::isMultiple, e -> {
+            // Report failures of partitions as the failure of the first one
+            List<Throwable> failures = Exceptions.unwrapMultiple(e);
+            Throwable first = failures.get(0);
+            for (Throwable t : failures.subList(1, failures.size())) first.addSuppressed(t);
+            return first;
+        });
+    }
+
+    /**
+     * Reads in a single query, changes are expected to be few.
+     */
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return read(READ_CHANGED, stm -> stm.setTimestamp(1, Timestamp.valueOf(sinceUtc)));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return jdbc.call("Cannot count devices", c -> {
+            try (ResultSet rs = c.prepareStatement(COUNT).executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        });
+    }
+
+    @NonNull
+    private Flux<DeviceDto> read(String select, PooledJdbc.ParameterBinder binder) {
+        return jdbc.query("Cannot get a list", select, binder, PooledDeviceRepository::toDto);
+    }
+
+    @NonNull
+    private static DeviceDto toDto(ResultSet rs) throws SQLException {
+        return DeviceDto.of(rs.getString("address"), isOn(rs.getString("is_on")), rs.getInt("val"),
+                rs.getTimestamp("last_save_date_utc").toLocalDateTime());
+    }
+
+    @NonNull
+    private static String callOf(DeviceStateUpdate.Kind kind) {
+        switch (kind) {
+            case VALUE:
+                return SET_DEVICE_VALUE;
+            case OFF:
+                return SET_DEVICE_IS_OFF;
+            case REMOVE:
+                return REMOVE_DEVICE;
+            default:
+                throw new IllegalArgumentException("Unknown update kind " + kind);
+        }
+    }
+
+    private static boolean isOn(String s) {
+        return "Y".equals(s);
+    }
+}
@@ -0,0 +1,161 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+
+/**
+ * Runs JDBC calls on connections of a {@link ConnectionPool} on the {@link DbScheduler} and maps SQL errors
+ * in a uniform way. Transient and recoverable errors mean the connection is ok but the query is not and
+ * are reported as {@link DbActionException}. Others are reported as {@link DbConnectionException}, the pool
+ * evicts the connection if it is broken.
+ */
+class PooledJdbc {
+    private final ConnectionPool pool;
+    private final DbScheduler scheduler;
+    private final int fetchSize;
+
+    /**
+     * @param fetchSize number of rows fetched from a cursor in one round trip
+     */
+    PooledJdbc(ConnectionPool pool, DbScheduler scheduler, int fetchSize) {
+        if (fetchSize <= 0) throw new IllegalArgumentException("fetch size must be positive");
+        this.pool = pool;
+        this.scheduler = scheduler;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Runs an action on a pooled connection.
+     *
+     * @return Mono(true) when the action is done.
+     */
+    @NonNull
+    Mono<Boolean> execute(String errorMessage, SqlAction action) {
+        return call(errorMessage, c -> {
+            action.run(c);
+            return true;
+        });
+    }
+
+    /**
+     * Runs a call returning a result on a pooled connection.
+     */
+    @NonNull
+    <T> Mono<T> call(String errorMessage, SqlCall<T> call) {
+        return scheduler.run(Mono.fromCallable(() -> {
+            PooledConnection pc = pool.acquire();
+            SQLException failure = null;
+            try {
+                return call.run(pc);
+            } catch (SQLTransientException | SQLRecoverableException e) {
+                // The connection is ok, something's wrong with the query
+                failure = e;
+                throw new DbActionException(errorMessage, e);
+            } catch (SQLException e) {
+                // Notify circuit breaker, the pool evicts the connection if it is broken
+                failure = e;
+                throw new DbConnectionException(errorMessage, e);
+            } finally {
+                pool.release(pc, failure);
+            }
+        }));
+    }
+
+    /**
+     * Runs a query and emits its rows as they are fetched. The connection is held until the rows are read
+     * or the subscription is cancelled.
+     */
+    @NonNull
+    <T> Flux<T> query(String errorMessage, String select, ParameterBinder binder, RowMapper<T> mapper) {
+        return scheduler.run(Flux.generate(
+                () -> new Query(pool, select, binder, fetchSize),
+                (query, sink) -> {
+                    try {
+                        if (query.rs.next()) {
+                            sink.next(mapper.map(query.rs));
+                        } else {
+                            sink.complete();
+                        }
+                    } catch (SQLTransientException | SQLRecoverableException e) {
+                        // The connection is ok, something's wrong with the query
+                        query.fail(e);
+                        sink.error(new DbActionException(errorMessage, e));
+                    } catch (SQLException e) {
+                        // Notify circuit breaker, the pool evicts the connection if it is broken
+                        query.fail(e);
+                        sink.error(new DbConnectionException(errorMessage, e));
+                    }
+                    return query;
+                }, Query::close));
+    }
+
+    @FunctionalInterface
+    interface SqlAction {
+        void run(PooledConnection c) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface SqlCall<T> {
+        T run(PooledConnection c) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface ParameterBinder {
+        void bind(PreparedStatement stm) throws SQLException;
+    }
+
+    @FunctionalInterface
+    interface RowMapper<T> {
+        /**
+         * @return an object made of the current row. It must not move the cursor.
+         */
+        T map(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * An open cursor holding a pooled connection until it is closed.
+     */
+    private static class Query {
+        private final ConnectionPool pool;
+        private final PooledConnection pc;
+        private final ResultSet rs;
+        private SQLException failure;
+
+        Query(ConnectionPool pool, String select, ParameterBinder binder, int fetchSize) throws SQLException {
+            this.pool = pool;
+            this.pc = pool.acquire();
+            try {
+                PreparedStatement stm = pc.prepareStatement(select);
+                stm.setFetchSize(fetchSize);
+                binder.bind(stm);
+                rs = stm.executeQuery();
+            } catch (SQLException e) {
+                pool.release(pc, e);
+                throw e;
+            }
+        }
+
+        void fail(SQLException e) {
+            failure = e;
+        }
+
+        public void close() {
+            try {
+                // The statement belongs to the connection
+                rs.close();
+            } catch (SQLException e) {
+                failure = e;
+                throw new DbActionException("Cannot close query result", e);
+            } finally {
+                pool.release(pc, failure);
+            }
+        }
+    }
+}
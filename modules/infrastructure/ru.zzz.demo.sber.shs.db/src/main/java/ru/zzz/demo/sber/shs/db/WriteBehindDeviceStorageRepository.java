@@ -0,0 +1,381 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.LocalDateTime;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Delays writes to an underlying repository and applies them in batches. Pending updates of the same
+ * address are collapsed, so only the latest state of a device is written. A batch is flushed when there
+ * are enough pending addresses or by timer, whatever comes first.
+ *
+ * <p>Depending on {@link Ack} a caller is notified either right after its update is queued or after the
+ * batch containing it is applied. In the former case updates of a failed batch are queued again.
+ *
+ * <p>A batch failed with {@link DbActionException} is written address by address, so the storage rejecting
+ * updates of one address fails only them. Rejected updates are dropped, or failed in the latter case, as
+ * retrying them will not help.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Db,name=WriteBehind")
+public class WriteBehindDeviceStorageRepository implements DeviceStorageRepository, InitializingBean,
+        DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindDeviceStorageRepository.class);
+
+    /**
+     * When an update is considered done.
+     */
+    public enum Ack {
+        /** Right after the update is queued. Storage errors are not reported to the caller. */
+        ENQUEUE,
+        /** After the batch containing the update is written. */
+        FLUSH
+    }
+
+    private final DeviceStorageRepository delegate;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Ack ack;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    WriteBehindDeviceStorageRepository(DeviceStorageRepository delegate, int batchSize, long flushIntervalMillis,
+            Ack ack) {
+        if (batchSize <= 0) throw new IllegalArgumentException("batch size must be positive");
+        if (flushIntervalMillis <= 0) throw new IllegalArgumentException("flush interval must be positive");
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.ack = ack;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread t = new Thread(runnable, "db-write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        if (flusher == null) return;
+        // The last flush is queued after the scheduled ones
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        if (!flusher.awaitTermination(10, SECONDS))
+            LOGGER.warn("{} device states were not written on shutdown", pending.size());
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceValue(String address, int value) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return enqueue(DeviceStateUpdate.value(address, value));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> setDeviceIsOff(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return enqueue(DeviceStateUpdate.off(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> removeDevice(String address) {
+        if (address == null || address.isEmpty()) throw new IllegalArgumentException();
+        return enqueue(DeviceStateUpdate.remove(address));
+    }
+
+    @Override
+    @NonNull
+    public Mono<Boolean> applyAll(List<DeviceStateUpdate> updates) {
+        if (updates == null) throw new IllegalArgumentException();
+        // Mono.when subscribes in order, so updates of an address are queued in order
+        return Mono.when(updates.stream().map(this::enqueue).collect(Collectors.toList())).thenReturn(true);
+    }
+
+    /**
+     * Writes pending updates before reading, so the result reflects all updates accepted so far.
+     */
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readAll() {
+        return flushed().thenMany(Flux.defer(delegate::readAll));
+    }
+
+    /**
+     * Writes pending updates before reading, so the result reflects all updates accepted so far.
+     */
+    @Override
+    @NonNull
+    public Flux<DeviceDto> readChangedSince(LocalDateTime sinceUtc) {
+        if (sinceUtc == null) throw new IllegalArgumentException();
+        return flushed().thenMany(Flux.defer(() -> delegate.readChangedSince(sinceUtc)));
+    }
+
+    /**
+     * Writes pending updates before counting, so removed and added devices are taken into account.
+     */
+    @Override
+    @NonNull
+    public Mono<Long> count() {
+        return flushed().then(Mono.defer(delegate::count));
+    }
+
+    @ManagedAttribute(description = "Number of addresses waiting to be written")
+    public int getPending() {
+        return pending.size();
+    }
+
+    @ManagedAttribute(description = "Number of updates collapsed with a newer update of the same address")
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @ManagedAttribute(description = "Number of batches written")
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    @ManagedAttribute(description = "Number of records written")
+    public long getWritten() {
+        return written.sum();
+    }
+
+    @ManagedAttribute(description = "Number of batches failed")
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    @ManagedAttribute(description = "Number of addresses whose updates the storage rejected and were dropped")
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    @NonNull
+    private Mono<Boolean> enqueue(DeviceStateUpdate update) {
+        return Mono.defer(() -> {
+            CompletableFuture<Boolean> waiter = (ack == Ack.FLUSH) ? new CompletableFuture<>() : null;
+            Pending next = Pending.of(update, waiter);
+            pending.merge(update.getAddress(), next, (existing, ignored) -> {
+                coalesced.increment();
+                return existing.followedBy(next);
+            });
+            if (pending.size() >= batchSize) requestFlush();
+            return (waiter == null) ? Mono.just(true) : Mono.fromFuture(waiter);
+        });
+    }
+
+    /**
+     * @return Mono completing when everything pending at the moment of subscription is written or failed.
+     */
+    @NonNull
+    private Mono<Void> flushed() {
+        return Mono.fromFuture(() -> CompletableFuture.runAsync(this::flush, flusher));
+    }
+
+    private void requestFlush() {
+        if (!flushRequested.compareAndSet(false, true)) return;
+        try {
+            flusher.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the last flush is already queued
+            flushRequested.set(false);
+        }
+    }
+
+    /**
+     * Writes everything pending at the moment. Runs on the flusher thread only, so batches are written
+     * one by one and updates of an address are never reordered.
+     */
+    private void flush() {
+        flushRequested.set(false);
+        while (!pending.isEmpty()) {
+            List<Map.Entry<String, Pending>> batch = take();
+            if (batch.isEmpty() || !write(batch)) return;
+        }
+    }
+
+    @NonNull
+    private List<Map.Entry<String, Pending>> take() {
+        List<Map.Entry<String, Pending>> batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+        Iterator<String> addresses = pending.keySet().iterator();
+        while (batch.size() < batchSize && addresses.hasNext()) {
+            String address = addresses.next();
+            Pending p = pending.remove(address);
+            if (p != null) batch.add(new SimpleImmutableEntry<>(address, p));
+        }
+        return batch;
+    }
+
+    /**
+     * @return false if the storage has failed and the rest of pending updates should wait.
+     */
+    private boolean write(List<Map.Entry<String, Pending>> batch) {
+        List<DeviceStateUpdate> updates = toUpdates(batch);
+        try {
+            delegate.applyAll(updates).block();
+        } catch (DbActionException e) {
+            failedBatches.increment();
+            if (batch.size() == 1) {
+                reject(batch.get(0), updates, e);
+                return true;
+            }
+            // Find out which addresses the storage rejects
+            for (int i = 0; i < batch.size(); i++) {
+                if (!write(Collections.singletonList(batch.get(i)))) {
+                    retryLater(batch.subList(i + 1, batch.size()), e);
+                    return false;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            failedBatches.increment();
+            LOGGER.warn("Cannot write {} device states", batch.size(), e);
+            retryLater(batch, e);
+            return false;
+        }
+        batches.increment();
+        written.add(updates.size());
+        for (Map.Entry<String, Pending> entry : batch) entry.getValue().complete();
+        return true;
+    }
+
+    private void reject(Map.Entry<String, Pending> entry, List<DeviceStateUpdate> updates, DbActionException e) {
+        if (ack == Ack.FLUSH) {
+            entry.getValue().fail(e);
+            return;
+        }
+        dropped.increment();
+        LOGGER.error("Storage rejected {}, they are dropped", updates, e);
+    }
+
+    private void retryLater(List<Map.Entry<String, Pending>> batch, RuntimeException e) {
+        for (Map.Entry<String, Pending> entry : batch) {
+            Pending failed = entry.getValue();
+            if (ack == Ack.FLUSH) {
+                failed.fail(e);
+            } else {
+                // Retry later unless a newer update overrides this one
+                pending.merge(entry.getKey(), failed, (newer, ignored) -> failed.followedBy(newer));
+            }
+        }
+    }
+
+    /**
+     * Orders updates so removals go first, then values, then switching off. It matches the order in which
+     * {@link Pending} collapses them and lets the delegate send each kind as a single batch.
+     */
+    @NonNull
+    private static List<DeviceStateUpdate> toUpdates(List<Map.Entry<String, Pending>> batch) {
+        List<DeviceStateUpdate> updates = new ArrayList<>(batch.size());
+        for (Map.Entry<String, Pending> e : batch)
+            if (e.getValue().remove) updates.add(DeviceStateUpdate.remove(e.getKey()));
+        for (Map.Entry<String, Pending> e : batch)
+            if (e.getValue().value != null) updates.add(DeviceStateUpdate.value(e.getKey(), e.getValue().value));
+        for (Map.Entry<String, Pending> e : batch)
+            if (e.getValue().off) updates.add(DeviceStateUpdate.off(e.getKey()));
+        return updates;
+    }
+
+    /**
+     * Collapsed updates of one address: an optional removal followed by an optional value followed by an
+     * optional switching off. Instances are immutable.
+     */
+    private static final class Pending {
+        private final boolean remove;
+        private final Integer value;
+        private final boolean off;
+        private final List<CompletableFuture<Boolean>> waiters;
+
+        private Pending(boolean remove, Integer value, boolean off, List<CompletableFuture<Boolean>> waiters) {
+            this.remove = remove;
+            this.value = value;
+            this.off = off;
+            this.waiters = waiters;
+        }
+
+        @NonNull
+        static Pending of(DeviceStateUpdate u, CompletableFuture<Boolean> waiter) {
+            List<CompletableFuture<Boolean>> waiters =
+                    (waiter == null) ? Collections.emptyList() : Collections.singletonList(waiter);
+            switch (u.getKind()) {
+                case VALUE:
+                    return new Pending(false, u.getValue(), false, waiters);
+                case OFF:
+                    return new Pending(false, null, true, waiters);
+                case REMOVE:
+                    return new Pending(true, null, false, waiters);
+                default:
+                    throw new IllegalArgumentException("Unknown update kind " + u.getKind());
+            }
+        }
+
+        /**
+         * @return the result of applying this and then the next updates.
+         */
+        @NonNull
+        Pending followedBy(Pending next) {
+            List<CompletableFuture<Boolean>> all;
+            if (next.waiters.isEmpty()) {
+                all = waiters;
+            } else if (waiters.isEmpty()) {
+                all = next.waiters;
+            } else {
+                all = new ArrayList<>(waiters.size() + next.waiters.size());
+                all.addAll(waiters);
+                all.addAll(next.waiters);
+            }
+            // Removal discards everything before it
+            if (next.remove) return new Pending(true, next.value, next.off, all);
+            // A value switches a device on
+            if (next.value != null) return new Pending(remove, next.value, next.off, all);
+            return new Pending(remove, value, off || next.off, all);
+        }
+
+        void complete() {
+            for (CompletableFuture<Boolean> w : waiters) w.complete(true);
+        }
+
+        void fail(Throwable t) {
+            for (CompletableFuture<Boolean> w : waiters) w.completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ConnectionPoolTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void beforeEach() {
+        when(config.dbConnectionString()).thenReturn("jdbc:h2:mem:ConnectionPoolTest");
+        when(config.dbUserName()).thenReturn("sa");
+        when(config.dbUserPassword()).thenReturn("");
+        when(config.dbEngine()).thenReturn("oracle");
+        when(config.dbPoolSize()).thenReturn(2);
+        when(config.dbPoolAcquireTimeoutMillis()).thenReturn(50L);
+        when(config.dbPoolValidationIntervalMillis()).thenReturn(30000L);
+        pool = new ConnectionPool(config);
+    }
+
+    @AfterEach
+    void afterEach() {
+        pool.destroy();
+    }
+
+    @Test
+    void releasedConnectionIsReused() {
+        PooledConnection first = pool.acquire();
+        pool.release(first, null);
+        PooledConnection second = pool.acquire();
+        assertSame(first, second);
+        pool.release(second, null);
+        assertEquals(1, pool.getOpened());
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    void exhaustedPoolFailsAfterTimeout() {
+        PooledConnection a = pool.acquire();
+        PooledConnection b = pool.acquire();
+        assertEquals(1.0, pool.getUtilisation());
+        assertThrows(DbConnectionException.class, pool::acquire);
+        assertEquals(1, pool.getAcquireTimeouts());
+        pool.release(a, null);
+        pool.release(b, null);
+        assertEquals(0.0, pool.getUtilisation());
+    }
+
+    @Test
+    void brokenConnectionIsEvicted() throws SQLException {
+        PooledConnection broken = pool.acquire();
+        broken.get().close();
+        pool.release(broken, new SQLException("connection reset"));
+        assertEquals(1, pool.getEvicted());
+        PooledConnection next = pool.acquire();
+        assertNotSame(broken, next);
+        pool.release(next, null);
+    }
+
+    @Test
+    void healthyConnectionIsKeptAfterQueryError() {
+        PooledConnection c = pool.acquire();
+        pool.release(c, new SQLException("ORA-00942: table or view does not exist"));
+        assertEquals(0, pool.getEvicted());
+        PooledConnection next = pool.acquire();
+        assertSame(c, next);
+        pool.release(next, null);
+    }
+
+    @Test
+    void cachedStatementIsReusedByNextCaller() throws SQLException {
+        when(config.dbStatementCacheEnabled()).thenReturn(true);
+        PooledConnection c = pool.acquire();
+        PreparedStatement first = c.prepareStatement("select 1");
+        pool.release(c, null);
+        c = pool.acquire();
+        assertSame(first, c.prepareStatement("select 1"));
+        assertFalse(first.isClosed());
+        pool.release(c, null);
+        assertEquals(1, pool.getStatementsPrepared());
+        assertEquals(1, pool.getStatementsReused());
+    }
+
+    @Test
+    void uncachedStatementIsClosedOnRelease() throws SQLException {
+        when(config.dbStatementCacheEnabled()).thenReturn(false);
+        PooledConnection c = pool.acquire();
+        PreparedStatement first = c.prepareStatement("select 1");
+        pool.release(c, null);
+        assertTrue(first.isClosed());
+        c = pool.acquire();
+        assertNotSame(first, c.prepareStatement("select 1"));
+        pool.release(c, null);
+        assertEquals(0, pool.getStatementsReused());
+    }
+
+    @Test
+    void failedCallDropsCachedStatements() throws SQLException {
+        when(config.dbStatementCacheEnabled()).thenReturn(true);
+        PooledConnection c = pool.acquire();
+        PreparedStatement first = c.prepareStatement("select 1");
+        pool.release(c, new SQLException("ORA-01013: user requested cancel of current operation"));
+        assertTrue(first.isClosed());
+        c = pool.acquire();
+        assertNotSame(first, c.prepareStatement("select 1"));
+        pool.release(c, null);
+    }
+
+    @Test
+    void poolIsNotSetUpForAnotherEngine() throws Exception {
+        when(config.dbEngine()).thenReturn("log");
+        ConnectionPool unused = new ConnectionPool(config);
+        unused.afterPropertiesSet();
+        assertThrows(DbConnectionException.class, unused::acquire);
+        assertEquals(0, unused.getOpened());
+        unused.destroy();
+    }
+}
@@ -0,0 +1,69 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DbSchedulerTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private DbScheduler scheduler;
+
+    @BeforeEach
+    void beforeEach() {
+        when(config.dbThreads()).thenReturn(1);
+        when(config.dbQueueCapacity()).thenReturn(1);
+        scheduler = new DbScheduler(config);
+        scheduler.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void afterEach() {
+        scheduler.destroy();
+    }
+
+    @Test
+    void callsRunOnStorageThreads() {
+        StepVerifier.create(scheduler.run(Mono.fromCallable(() -> Thread.currentThread().getName())))
+                .expectNextMatches(name -> name.startsWith("db-io-"))
+                .verifyComplete();
+        StepVerifier.create(scheduler.run(Flux.range(0, 3).map(i -> Thread.currentThread().getName())))
+                .expectNextMatches(name -> name.startsWith("db-io-"))
+                .expectNextCount(2)
+                .verifyComplete();
+    }
+
+    @Test
+    void callsBeyondQueueCapacityAreRejected() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mono<Boolean> blocking = Mono.fromCallable(() -> {
+            started.countDown();
+            return release.await(5, SECONDS);
+        });
+        // Occupies the only thread
+        scheduler.run(blocking).subscribe();
+        assertTrue(started.await(5, SECONDS));
+        // Occupies the only queue slot
+        Mono<Boolean> queued = scheduler.run(Mono.just(true)).cache();
+        queued.subscribe();
+        StepVerifier.create(scheduler.run(Mono.just(true)))
+                .expectError(DbOverloadedException.class)
+                .verify(Duration.ofSeconds(5));
+        assertEquals(1, scheduler.getRejected());
+        release.countDown();
+        StepVerifier.create(queued).expectNext(true).expectComplete().verify(Duration.ofSeconds(5));
+    }
+}
@@ -0,0 +1,117 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DeviceHistoryTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private ConnectionPool pool;
+    private DbScheduler scheduler;
+    private DeviceHistory history;
+
+    @BeforeEach
+    void beforeEach() throws SQLException {
+        when(config.dbConnectionString()).thenReturn(H2Storage.create("DeviceHistoryTest"));
+        when(config.dbUserName()).thenReturn("sa");
+        when(config.dbUserPassword()).thenReturn("");
+        when(config.dbPoolSize()).thenReturn(2);
+        when(config.dbPoolAcquireTimeoutMillis()).thenReturn(1000L);
+        when(config.dbPoolValidationIntervalMillis()).thenReturn(30000L);
+        when(config.dbStatementCacheEnabled()).thenReturn(true);
+        when(config.dbThreads()).thenReturn(2);
+        when(config.dbQueueCapacity()).thenReturn(10);
+        when(config.historyEnabled()).thenReturn(true);
+        when(config.historyBufferSize()).thenReturn(100);
+        when(config.historyBatchSize()).thenReturn(2);
+        // Batches are written when they are full or before reads only
+        when(config.historyFlushIntervalMillis()).thenReturn(60000L);
+        pool = new ConnectionPool(config);
+        scheduler = new DbScheduler(config);
+        scheduler.afterPropertiesSet();
+    }
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        if (history != null) history.destroy();
+        scheduler.destroy();
+        pool.destroy();
+    }
+
+    @Test
+    void recordedChangesAreWrittenInBatchesAndRead() {
+        open(new PooledDeviceHistoryRepository(pool, scheduler, 100));
+        LocalDateTime from = LocalDateTime.now(ZoneOffset.UTC).minusMinutes(1);
+        history.record("written", DeviceStateTransition.State.OFF, 0);
+        history.record("other", DeviceStateTransition.State.OFF, 0);
+        history.record("written", DeviceStateTransition.State.ON, 0);
+        history.record("written", DeviceStateTransition.State.ON, 1);
+        history.record("written", DeviceStateTransition.State.REMOVED, 0);
+        // Reading writes the rest first
+        StepVerifier.create(history.read("written", from, from.plusMinutes(2)))
+                .expectNextMatches(t -> t.getState() == DeviceStateTransition.State.OFF)
+                .expectNextMatches(t -> t.getState() == DeviceStateTransition.State.ON && t.getValue() == 0)
+                .expectNextMatches(t -> t.getState() == DeviceStateTransition.State.ON && t.getValue() == 1)
+                .expectNextMatches(t -> t.getState() == DeviceStateTransition.State.REMOVED)
+                .verifyComplete();
+        assertEquals(5, history.getWritten());
+        assertEquals(3, history.getBatches());
+        StepVerifier.create(history.read("written", from.minusMinutes(2), from)).verifyComplete();
+    }
+
+    @Test
+    void changesAreDroppedWhenBufferIsFull() {
+        when(config.historyBufferSize()).thenReturn(2);
+        when(config.historyBatchSize()).thenReturn(100);
+        open(new PooledDeviceHistoryRepository(pool, scheduler, 100));
+        for (int i = 0; i < 3; i++) history.record("dropped", DeviceStateTransition.State.ON, i);
+        assertEquals(2, history.getRecorded());
+        assertEquals(1, history.getDropped());
+        assertEquals(2, history.getBuffered());
+    }
+
+    @Test
+    void failedBatchIsRetried() throws InterruptedException {
+        when(config.historyBatchSize()).thenReturn(1);
+        when(config.historyFlushIntervalMillis()).thenReturn(20L);
+        AtomicBoolean storageDown = new AtomicBoolean(true);
+        DeviceHistoryRepository repository = mock(DeviceHistoryRepository.class);
+        when(repository.insertAll(any())).thenAnswer(invocation -> Mono.fromCallable(() -> {
+            if (storageDown.get()) throw new DbConnectionException("down");
+            return true;
+        }));
+        open(repository);
+        history.record("retried", DeviceStateTransition.State.ON, 1);
+        await(() -> history.getFailedBatches() > 0);
+        assertEquals(0, history.getWritten());
+        storageDown.set(false);
+        await(() -> history.getWritten() == 1);
+    }
+
+    private void open(DeviceHistoryRepository repository) {
+        history = new DeviceHistory(config, repository);
+        history.afterPropertiesSet();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,133 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeviceStateJournalTest {
+    @TempDir
+    Path dir;
+    private DeviceStateJournal journal;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        journal = DeviceStateJournal.open(dir, 4096);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        journal.close();
+    }
+
+    @Test
+    void updatesAreReadInOrder() {
+        journal.append(DeviceStateUpdate.value("a", 5));
+        journal.append(DeviceStateUpdate.off("a"));
+        journal.append(DeviceStateUpdate.remove("b"));
+        DeviceStateJournal.Batch batch = journal.peek(10);
+        assertEquals("[DeviceStateUpdate{VALUE a=5}, DeviceStateUpdate{OFF a}, DeviceStateUpdate{REMOVE b}]",
+                batch.getUpdates().toString());
+        assertEquals(3, journal.size());
+        // Peeking does not consume
+        assertEquals(3, journal.peek(10).getUpdates().size());
+        journal.commit(batch);
+        assertEquals(0, journal.size());
+        assertTrue(journal.peek(10).isEmpty());
+    }
+
+    @Test
+    void committedUpdatesAreNotReadAfterRestart() throws IOException {
+        for (int i = 0; i < 5; i++) journal.append(DeviceStateUpdate.value("a", i));
+        journal.commit(journal.peek(3));
+        reopen();
+        assertEquals(2, journal.size());
+        assertEquals("[3, 4]", values(journal.peek(10)));
+    }
+
+    @Test
+    void consumedSegmentsAreDeleted() throws IOException {
+        // A record takes 20 bytes, so a 4K segment holds about 200
+        for (int i = 0; i < 1000; i++) journal.append(DeviceStateUpdate.value("a", i));
+        assertTrue(segments() > 1);
+        int read = 0;
+        while (true) {
+            DeviceStateJournal.Batch batch = journal.peek(64);
+            if (batch.isEmpty()) break;
+            assertEquals(read, batch.getUpdates().get(0).getValue());
+            read += batch.getUpdates().size();
+            journal.commit(batch);
+        }
+        assertEquals(1000, read);
+        assertEquals(1, segments());
+        reopen();
+        assertEquals(0, journal.size());
+        journal.append(DeviceStateUpdate.value("a", 1000));
+        assertEquals("[1000]", values(journal.peek(10)));
+    }
+
+    @Test
+    void batchIsAppendedInOrderAcrossSegments() {
+        List<DeviceStateUpdate> updates = IntStream.range(0, 500).mapToObj(i -> DeviceStateUpdate.value("a", i))
+                .collect(Collectors.toList());
+        journal.append(updates);
+        assertEquals(500, journal.size());
+        DeviceStateJournal.Batch batch = journal.peek(1000);
+        assertEquals(updates.toString(), batch.getUpdates().toString());
+    }
+
+    @Test
+    void batchWithTooLargeRecordIsNotAppendedAtAll() {
+        char[] address = new char[5000];
+        Arrays.fill(address, 'x');
+        assertThrows(IllegalArgumentException.class, () -> journal.append(Arrays.asList(
+                DeviceStateUpdate.value("a", 1), DeviceStateUpdate.value(new String(address), 2))));
+        assertEquals(0, journal.size());
+        assertTrue(journal.peek(10).isEmpty());
+    }
+
+    @Test
+    void recordCutByCursorIsNotCounted() throws IOException {
+        journal.append(DeviceStateUpdate.value("a", 1));
+        journal.append(DeviceStateUpdate.value("a", 2));
+        journal.commit(journal.peek(1));
+        journal.close();
+        // The cursor points inside the second record
+        ByteBuffer cursor = ByteBuffer.wrap(Files.readAllBytes(dir.resolve("outbox.cursor")));
+        cursor.putInt(8, cursor.getInt(8) + 1);
+        Files.write(dir.resolve("outbox.cursor"), cursor.array());
+        journal = DeviceStateJournal.open(dir, 4096);
+        assertEquals(0, journal.size());
+    }
+
+    private void reopen() throws IOException {
+        journal.close();
+        journal = DeviceStateJournal.open(dir, 4096);
+    }
+
+    private long segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(".log")).count();
+        }
+    }
+
+    private static String values(DeviceStateJournal.Batch batch) {
+        List<Integer> values = batch.getUpdates().stream().map(DeviceStateUpdate::getValue)
+                .collect(Collectors.toList());
+        return values.toString();
+    }
+}
@@ -0,0 +1,170 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.test.StepVerifier;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DeviceStateLogTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    @TempDir
+    Path dir;
+    private DeviceStateLog log;
+    private LogDeviceRepository repository;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        when(config.dbEngine()).thenReturn("log");
+        when(config.dbLogDir()).thenReturn(dir.toString());
+        when(config.dbLogSegmentBytes()).thenReturn(4096);
+        when(config.dbLogCompactionIntervalMillis()).thenReturn(Duration.ofHours(1).toMillis());
+        open();
+    }
+
+    @AfterEach
+    void afterEach() throws IOException, InterruptedException {
+        log.destroy();
+    }
+
+    @Test
+    void stateIsReplayedAfterRestart() throws IOException, InterruptedException {
+        repository.setDeviceValue("a", 5).block();
+        repository.setDeviceValue("b", 7).block();
+        repository.setDeviceIsOff("b").block();
+        repository.setDeviceValue("c", 1).block();
+        repository.removeDevice("c").block();
+        restart();
+        Map<String, DeviceDto> state = read();
+        assertEquals(2, state.size());
+        assertTrue(state.get("a").isOn());
+        assertEquals(5, state.get("a").getValue());
+        assertFalse(state.get("b").isOn());
+        // Switching off keeps the value
+        assertEquals(7, state.get("b").getValue());
+    }
+
+    @Test
+    void fullSegmentIsCompacted() throws IOException, InterruptedException {
+        // A record of these addresses takes 24 bytes, so the 4K segment rolls over several times
+        for (int i = 0; i < 1000; i++) repository.setDeviceValue("d" + (i % 10), i).block();
+        await(() -> log.getCompactions() > 0);
+        log.compact();
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(2, files.count(), "a snapshot and the current segment");
+        }
+        restart();
+        Map<String, DeviceDto> state = read();
+        assertEquals(10, state.size());
+        assertEquals(999, state.get("d9").getValue());
+    }
+
+    @Test
+    void tornTailIsIgnored() throws IOException, InterruptedException {
+        repository.setDeviceValue("a", 5).block();
+        int end = log.getSegmentPosition();
+        log.destroy();
+        Path segment = dir.resolve("device-state-0.log");
+        try (FileChannel channel = FileChannel.open(segment, WRITE)) {
+            // Half of a record written before a crash
+            channel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, LogSegment.ON, 0, 0}), end);
+        }
+        open();
+        assertEquals(end, log.getSegmentPosition());
+        repository.setDeviceValue("b", 6).block();
+        restart();
+        assertEquals(2, read().size());
+    }
+
+    @Test
+    void batchWithTooLargeRecordIsNotWrittenAtAll() {
+        String tooLarge = String.join("", Collections.nCopies(5000, "x"));
+        int position = log.getSegmentPosition();
+        long records = log.getRecords();
+        assertThrows(IllegalArgumentException.class, () -> log.append(Arrays.asList(
+                DeviceStateUpdate.value("a", 1), DeviceStateUpdate.value(tooLarge, 2))));
+        assertEquals(position, log.getSegmentPosition());
+        assertEquals(records, log.getRecords());
+        assertTrue(read().isEmpty());
+    }
+
+    @Test
+    void appendsWaitingForASyncShareTheNextOne() throws InterruptedException {
+        // The syncer completes appends itself, so a completion callback holds it within a sync
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        while (held.getCount() > 0) {
+            log.append(Collections.singletonList(DeviceStateUpdate.value("held", 0))).thenRun(() -> {
+                if (!"db-log-sync".equals(Thread.currentThread().getName())) return;
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            held.await(100, MILLISECONDS);
+        }
+        // The held sync is counted when it is over
+        long syncs = log.getSyncs() + 1;
+        long records = log.getRecords();
+        CompletableFuture<?>[] appends = IntStream.range(0, 200)
+                .mapToObj(i -> log.append(Collections.singletonList(DeviceStateUpdate.value("d" + i, i))))
+                .toArray(CompletableFuture[]::new);
+        release.countDown();
+        CompletableFuture.allOf(appends).join();
+        assertEquals(records + 200, log.getRecords());
+        assertEquals(syncs + 1, log.getSyncs());
+        StepVerifier.create(repository.count()).expectNext(201L).verifyComplete();
+    }
+
+    private void open() throws IOException {
+        log = new DeviceStateLog(config);
+        log.afterPropertiesSet();
+        repository = new LogDeviceRepository(log);
+    }
+
+    private void restart() throws IOException, InterruptedException {
+        log.destroy();
+        open();
+    }
+
+    private Map<String, DeviceDto> read() {
+        return repository.readAll().collectList().block().stream()
+                .collect(Collectors.toMap(DeviceDto::getAddr, Function.identity()));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,69 @@
+package ru.zzz.demo.sber.shs.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * An in-memory H2 stand-in for the Oracle schema of package/db.ora.sql: the shs_device_state and
+ * shs_device_history relations and shs_api_pkg procedures implemented as Java aliases. Procedures must be
+ * public for H2.
+ */
+public final class H2Storage {
+    private H2Storage() {
+    }
+
+    /**
+     * Creates the schema in a named in-memory database, which lives until the JVM exits.
+     *
+     * @return a connection string of the database
+     */
+    static String create(String name) throws SQLException {
+        String url = "jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1";
+        try (Connection c = DriverManager.getConnection(url, "sa", ""); Statement s = c.createStatement()) {
+            s.execute("create table if not exists shs_device_state (address varchar(255) primary key, " +
+                    "is_on char(1) not null, val int not null, last_save_date_utc timestamp not null)");
+            s.execute("create table if not exists shs_device_history (address varchar(255) not null, " +
+                    "state varchar(8) not null, val int not null, change_date_utc timestamp not null)");
+            s.execute("create schema if not exists shs_api_pkg");
+            s.execute("create alias if not exists shs_api_pkg.set_device_value for \"" +
+                    H2Storage.class.getName() + ".setDeviceValue\"");
+            s.execute("create alias if not exists shs_api_pkg.set_device_is_off for \"" +
+                    H2Storage.class.getName() + ".setDeviceIsOff\"");
+            s.execute("create alias if not exists shs_api_pkg.remove_device for \"" +
+                    H2Storage.class.getName() + ".removeDevice\"");
+        }
+        return url;
+    }
+
+    public static void setDeviceValue(Connection c, String address, int value) throws SQLException {
+        try (PreparedStatement s = c.prepareStatement("merge into shs_device_state key (address) " +
+                "values (?, 'Y', ?, current_timestamp)")) {
+            s.setString(1, address);
+            s.setInt(2, value);
+            s.executeUpdate();
+        }
+    }
+
+    public static void setDeviceIsOff(Connection c, String address) throws SQLException {
+        try (PreparedStatement s = c.prepareStatement("update shs_device_state " +
+                "set is_on = 'N', last_save_date_utc = current_timestamp where address = ?")) {
+            s.setString(1, address);
+            if (s.executeUpdate() > 0) return;
+        }
+        try (PreparedStatement s = c.prepareStatement("insert into shs_device_state " +
+                "values (?, 'N', 0, current_timestamp)")) {
+            s.setString(1, address);
+            s.executeUpdate();
+        }
+    }
+
+    public static void removeDevice(Connection c, String address) throws SQLException {
+        try (PreparedStatement s = c.prepareStatement("delete from shs_device_state where address = ?")) {
+            s.setString(1, address);
+            s.executeUpdate();
+        }
+    }
+}
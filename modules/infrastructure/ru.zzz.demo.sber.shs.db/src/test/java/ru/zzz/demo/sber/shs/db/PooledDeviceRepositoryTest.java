@@ -0,0 +1,99 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PooledDeviceRepositoryTest {
+    private final ServerConfig config = mock(ServerConfig.class);
+    private ConnectionPool pool;
+    private DbScheduler scheduler;
+    private PooledDeviceRepository repository;
+
+    @BeforeEach
+    void beforeEach() throws SQLException {
+        when(config.dbConnectionString()).thenReturn(H2Storage.create("PooledDeviceRepositoryTest"));
+        when(config.dbUserName()).thenReturn("sa");
+        when(config.dbUserPassword()).thenReturn("");
+        when(config.dbEngine()).thenReturn("oracle");
+        when(config.dbPoolSize()).thenReturn(4);
+        when(config.dbPoolAcquireTimeoutMillis()).thenReturn(1000L);
+        when(config.dbPoolValidationIntervalMillis()).thenReturn(30000L);
+        when(config.dbStatementCacheEnabled()).thenReturn(true);
+        when(config.dbThreads()).thenReturn(4);
+        when(config.dbQueueCapacity()).thenReturn(10);
+        pool = new ConnectionPool(config);
+        scheduler = new DbScheduler(config);
+        scheduler.afterPropertiesSet();
+        repository = new PooledDeviceRepository(pool, scheduler, 1, 100);
+        for (DeviceDto d : repository.readAll().collectList().block()) repository.removeDevice(d.getAddr()).block();
+    }
+
+    @AfterEach
+    void afterEach() {
+        scheduler.destroy();
+        pool.destroy();
+    }
+
+    @Test
+    void writtenStateIsRead() {
+        repository.setDeviceValue("a", 5).block();
+        repository.setDeviceIsOff("b").block();
+        StepVerifier.create(repository.readAll().sort((x, y) -> x.getAddr().compareTo(y.getAddr())))
+                .expectNextMatches(d -> d.getAddr().equals("a") && d.isOn() && d.getValue() == 5)
+                .expectNextMatches(d -> d.getAddr().equals("b") && !d.isOn())
+                .verifyComplete();
+    }
+
+    @Test
+    void statementsArePreparedOncePerConnection() {
+        when(config.dbPoolSize()).thenReturn(1);
+        ConnectionPool single = new ConnectionPool(config);
+        try {
+            PooledDeviceRepository r = new PooledDeviceRepository(single, scheduler, 1, 100);
+            for (int i = 0; i < 10; i++) r.setDeviceValue("a", i).block();
+            r.applyAll(asList(DeviceStateUpdate.value("a", 1), DeviceStateUpdate.off("a"))).block();
+            r.readAll().blockLast();
+            r.readAll().blockLast();
+            // set_device_value, set_device_is_off and the select
+            assertEquals(3, single.getStatementsPrepared());
+            assertEquals(1, single.getOpened());
+        } finally {
+            single.destroy();
+        }
+    }
+
+    @Test
+    void changedRecordsAreRead() throws InterruptedException {
+        repository.setDeviceValue("a", 1).block();
+        Thread.sleep(20);
+        LocalDateTime since = repository.readAll().blockLast().getLastSaveDateUtc().plus(10, ChronoUnit.MILLIS);
+        Thread.sleep(20);
+        repository.setDeviceValue("b", 2).block();
+        StepVerifier.create(repository.readChangedSince(since))
+                .expectNextMatches(d -> d.getAddr().equals("b") && d.getValue() == 2)
+                .verifyComplete();
+    }
+
+    @Test
+    void partitionsCoverAllRecords() {
+        for (int i = 0; i < 100; i++) repository.setDeviceValue("dev" + i, i).block();
+        PooledDeviceRepository partitioned = new PooledDeviceRepository(pool, scheduler, 3, 7);
+        StepVerifier.create(partitioned.count()).expectNext(100L).verifyComplete();
+        Set<String> read = partitioned.readAll().map(DeviceDto::getAddr).collect(Collectors.toSet()).block();
+        assertEquals(100, read.size());
+    }
+}
@@ -0,0 +1,100 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Storage throughput with and without the statement cache against H2. H2 parses a statement in process,
+ * so the gain here is a lower bound of the one against Oracle, where every parse is a round trip.
+ *
+ * <p>Run {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class StatementCacheBenchmark {
+    private static final int DEVICES = 1000;
+
+    @Param({"false", "true"})
+    public boolean cacheStatements;
+
+    private ConnectionPool pool;
+    private DbScheduler scheduler;
+    private PooledDeviceRepository repository;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        ServerConfig config = mock(ServerConfig.class);
+        when(config.dbConnectionString()).thenReturn(H2Storage.create("StatementCacheBenchmark"));
+        when(config.dbUserName()).thenReturn("sa");
+        when(config.dbUserPassword()).thenReturn("");
+        when(config.dbEngine()).thenReturn("oracle");
+        when(config.dbPoolSize()).thenReturn(4);
+        when(config.dbPoolAcquireTimeoutMillis()).thenReturn(5000L);
+        when(config.dbPoolValidationIntervalMillis()).thenReturn(30000L);
+        when(config.dbStatementCacheEnabled()).thenReturn(cacheStatements);
+        when(config.dbThreads()).thenReturn(4);
+        when(config.dbQueueCapacity()).thenReturn(100);
+        pool = new ConnectionPool(config);
+        scheduler = new DbScheduler(config);
+        scheduler.afterPropertiesSet();
+        repository = new PooledDeviceRepository(pool, scheduler, 1, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.destroy();
+        pool.destroy();
+    }
+
+    @Benchmark
+    public Boolean setDeviceValue() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return repository.setDeviceValue("dev" + random.nextInt(DEVICES), random.nextInt()).block();
+    }
+
+    @Benchmark
+    public Boolean applyAll() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String address = "dev" + random.nextInt(DEVICES);
+        return repository.applyAll(asList(DeviceStateUpdate.value(address, random.nextInt()),
+                DeviceStateUpdate.off(address))).block();
+    }
+
+    @Benchmark
+    public Long readAll() {
+        return repository.readAll().count().block();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(StatementCacheBenchmark.class.getSimpleName()).build()).run();
+    }
+}
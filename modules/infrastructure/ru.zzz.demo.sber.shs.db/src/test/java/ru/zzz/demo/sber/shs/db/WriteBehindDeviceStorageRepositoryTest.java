@@ -0,0 +1,124 @@
+package ru.zzz.demo.sber.shs.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class WriteBehindDeviceStorageRepositoryTest {
+    private static final long NEVER = Duration.ofHours(1).toMillis();
+
+    private final DeviceStorageRepository delegate = mock(DeviceStorageRepository.class);
+    private final List<List<String>> written = Collections.synchronizedList(new ArrayList<>());
+    private WriteBehindDeviceStorageRepository repository;
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        repository.destroy();
+    }
+
+    @Test
+    void updatesOfOneAddressAreCollapsed() {
+        recordWrites();
+        start(100, WriteBehindDeviceStorageRepository.Ack.ENQUEUE);
+        StepVerifier.create(repository.setDeviceValue("a", 1)).expectNext(true).verifyComplete();
+        StepVerifier.create(repository.setDeviceValue("a", 2)).expectNext(true).verifyComplete();
+        StepVerifier.create(repository.setDeviceValue("a", 3)).expectNext(true).verifyComplete();
+        StepVerifier.create(repository.setDeviceValue("b", 7)).expectNext(true).verifyComplete();
+        StepVerifier.create(repository.setDeviceIsOff("b")).expectNext(true).verifyComplete();
+        // readAll writes pending updates first
+        StepVerifier.create(repository.readAll()).verifyComplete();
+        assertEquals(1, written.size());
+        List<String> batch = written.get(0);
+        assertEquals(new HashSet<>(asList("VALUE a=3", "VALUE b=7", "OFF b")), new HashSet<>(batch));
+        // switching off goes after values
+        assertEquals("OFF b", batch.get(batch.size() - 1));
+        assertEquals(3, repository.getCoalesced());
+    }
+
+    @Test
+    void removalIsWrittenBeforeReRegistration() {
+        recordWrites();
+        start(100, WriteBehindDeviceStorageRepository.Ack.ENQUEUE);
+        repository.setDeviceValue("a", 5).block();
+        repository.removeDevice("a").block();
+        repository.setDeviceIsOff("a").block();
+        repository.readAll().blockLast();
+        assertEquals(asList(asList("REMOVE a", "OFF a")), written);
+    }
+
+    @Test
+    void flushAckCompletesWhenBatchIsWritten() {
+        recordWrites();
+        start(2, WriteBehindDeviceStorageRepository.Ack.FLUSH);
+        Mono<Boolean> a = repository.setDeviceValue("a", 1);
+        Mono<Boolean> b = repository.setDeviceValue("b", 2);
+        // The second address fills the batch
+        StepVerifier.create(Mono.zip(a, b))
+                .expectNextCount(1)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        assertEquals(1, written.size());
+    }
+
+    @Test
+    void flushAckReportsStorageErrors() {
+        when(delegate.applyAll(anyList())).thenReturn(
+                Mono.error(new DbConnectionException("DB fail", new SQLException("sql"))));
+        start(1, WriteBehindDeviceStorageRepository.Ack.FLUSH);
+        StepVerifier.create(repository.setDeviceIsOff("a"))
+                .expectError(DbConnectionException.class)
+                .verify(Duration.ofSeconds(5));
+        assertEquals(1, repository.getFailedBatches());
+    }
+
+    @Test
+    void rejectedAddressIsDroppedAndOthersAreWritten() {
+        recordWrites();
+        start(100, WriteBehindDeviceStorageRepository.Ack.ENQUEUE);
+        repository.setDeviceValue("a", 1).block();
+        repository.setDeviceValue("bad", 2).block();
+        repository.setDeviceIsOff("c").block();
+        repository.readAll().blockLast();
+        assertEquals(new HashSet<>(asList(asList("VALUE a=1"), asList("OFF c"))), new HashSet<>(written));
+        assertEquals(1, repository.getDropped());
+        assertEquals(0, repository.getPending());
+        // The rejected address is not retried
+        repository.readAll().blockLast();
+        assertEquals(2, written.size());
+    }
+
+    private void recordWrites() {
+        when(delegate.readAll()).thenReturn(Flux.empty());
+        when(delegate.applyAll(anyList())).thenAnswer(invocation -> {
+            List<DeviceStateUpdate> updates = invocation.getArgument(0);
+            if (updates.stream().anyMatch(u -> u.getAddress().equals("bad")))
+                return Mono.error(new DbActionException("bad", new SQLException("sql")));
+            written.add(updates.stream()
+                    .map(u -> u.getKind() + " " + u.getAddress() +
+                            (u.getKind() == DeviceStateUpdate.Kind.VALUE ? "=" + u.getValue() : ""))
+                    .collect(Collectors.toList()));
+            return Mono.just(true);
+        });
+    }
+
+    private void start(int batchSize, WriteBehindDeviceStorageRepository.Ack ack) {
+        repository = new WriteBehindDeviceStorageRepository(delegate, batchSize, NEVER, ack);
+        repository.afterPropertiesSet();
+    }
+}
@@ -0,0 +1,43 @@
+package ru.zzz.demo.sber.shs.device;
+
+import org.springframework.lang.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface emulates an asynchronous variant of message passing interface to a device stub. A caller
+ * does not wait for a reply, so it may send many requests without waiting for replies to previous ones.
+ * Requests to the same device are executed in the order they are sent.
+ */
+public interface AsyncDeviceManager {
+    /**
+     * Registers a new Device stub if it didn't exist and issues a comment on it.
+     *
+     * @param msg a requested commend.
+     * @return future reply. Errors are indicated as a {@link Reply.Error}, the future does not fail.
+     *
+     * @throws IllegalArgumentException is an msg is null.
+     */
+    @NonNull
+    CompletableFuture<Reply> acceptAsync(Request msg);
+
+    /**
+     * Issues a batch of commands without waiting for replies. Commands to a device are executed in the order
+     * of the batch.
+     *
+     * @param msgs requested commends.
+     * @return future replies in the order of requests. Errors are indicated as a {@link Reply.Error}, the future
+     * does not fail.
+     *
+     * @throws IllegalArgumentException is msgs is null or contains null.
+     */
+    @NonNull
+    default CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs) {
+        if (msgs == null || msgs.contains(null)) throw new IllegalArgumentException();
+        List<CompletableFuture<Reply>> replies = new ArrayList<>(msgs.size());
+        for (Request msg : msgs) replies.add(acceptAsync(msg));
+        return PendingReplies.all(replies);
+    }
+}
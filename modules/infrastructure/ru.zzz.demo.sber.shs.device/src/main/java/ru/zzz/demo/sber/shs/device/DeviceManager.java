@@ -2,6 +2,9 @@ package ru.zzz.demo.sber.shs.device;
 
 import org.springframework.lang.NonNull;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This interface emulates a synchronous variant of message passing interface to a device stub.
  */
@@ -16,4 +19,21 @@ public interface DeviceManager {
      */
     @NonNull
     Reply accept(Request msg);
+
+    /**
+     * Issues a batch of commands, e.g. commands to many devices or a few steps of a command to one device.
+     * Commands to a device are executed in the order of the batch.
+     *
+     * @param msgs requested commends.
+     * @return replies in the order of requests. Errors are indicated as a {@link Reply.Error}.
+     *
+     * @throws IllegalArgumentException is msgs is null or contains null.
+     */
+    @NonNull
+    default List<Reply> acceptAll(List<Request> msgs) {
+        if (msgs == null || msgs.contains(null)) throw new IllegalArgumentException();
+        List<Reply> replies = new ArrayList<>(msgs.size());
+        for (Request msg : msgs) replies.add(accept(msg));
+        return replies;
+    }
 }
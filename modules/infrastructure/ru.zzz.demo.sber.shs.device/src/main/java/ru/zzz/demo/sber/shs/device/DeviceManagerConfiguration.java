@@ -0,0 +1,43 @@
+package ru.zzz.demo.sber.shs.device;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.config.ServerConfig;
+import ru.zzz.demo.sber.shs.device.gateway.GatewayDeviceManager;
+import ru.zzz.demo.sber.shs.device.simulator.DeviceClass;
+import ru.zzz.demo.sber.shs.device.simulator.DeviceSimulator;
+import ru.zzz.demo.sber.shs.device.stub.DeviceStubsManager;
+
+/**
+ * Chooses the {@link DeviceManager} according to the {@link ServerConfig}: a device gateway, a simulator of
+ * devices for load tests or in-process stubs.
+ */
+@Configuration("SHS.Infrastructure.DeviceManagerConfiguration")
+class DeviceManagerConfiguration {
+    private final ServerConfig config;
+
+    @Autowired
+    DeviceManagerConfiguration(ServerConfig config) {
+        this.config = config;
+    }
+
+    @Bean("SHS.Infrastructure.DeviceManager")
+    @NonNull
+    DeviceManager deviceManager() {
+        if (config.deviceGatewayEnabled())
+            return new GatewayDeviceManager(config.deviceGatewayHost(), config.deviceGatewayPort(),
+                    config.deviceGatewayConnections(), config.deviceCallTimeoutMillis());
+        if (config.deviceSimulatorEnabled()) {
+            DeviceSimulator simulator = new DeviceSimulator(config.deviceSimulatorDevices(),
+                    DeviceClass.parseAll(config.deviceSimulatorClasses()), config.deviceSimulatorSeed(),
+                    Runtime.getRuntime().availableProcessors(), config.deviceCallTimeoutMillis());
+            if (config.deviceSimulatorStormIntervalMillis() > 0)
+                simulator.scheduleStorms(config.deviceSimulatorStormIntervalMillis(),
+                        config.deviceSimulatorStormDurationMillis(), config.deviceSimulatorStormFraction());
+            return simulator;
+        }
+        return new DeviceStubsManager();
+    }
+}
@@ -0,0 +1,127 @@
+package ru.zzz.demo.sber.shs.device;
+
+import org.springframework.lang.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Requests sent to a device channel and not replied yet. A reply coming from the channel is matched to its
+ * request by the correlation id, so replies may come in any order.
+ *
+ * <p>A request may have a deadline: if it is not replied in time, it is replied with an error and forgotten,
+ * so a reply lost by the channel does not hold its caller and its entry forever. A request whose future is
+ * cancelled by the caller is forgotten too.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+public final class PendingReplies {
+    private final Map<Long, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+    // Deadline of a request, 0 if requests wait for replies forever
+    private final long timeoutMillis;
+    // Fires deadlines, null if there are none
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Requests wait for replies until the channel is closed.
+     */
+    public PendingReplies() {
+        this(0, null);
+    }
+
+    /**
+     * @param timeoutMillis time to wait for a reply, 0 to wait until the channel is closed
+     * @param timer         fires deadlines, may be null if there are none
+     * @throws IllegalArgumentException if the timeout is negative or there is a timeout but no timer
+     */
+    public PendingReplies(long timeoutMillis, ScheduledExecutorService timer) {
+        if (timeoutMillis < 0 || (timeoutMillis > 0 && timer == null))
+            throw new IllegalArgumentException("timeout must not be negative and needs a timer");
+        this.timeoutMillis = timeoutMillis;
+        this.timer = timer;
+    }
+
+    /**
+     * @return future reply to the request, completed by {@link #complete(long, Reply)} or by the deadline.
+     * @throws IllegalArgumentException if msg is null
+     * @throws IllegalStateException    if the request is pending already
+     */
+    @NonNull
+    public CompletableFuture<Reply> register(Request msg) {
+        if (msg == null) throw new IllegalArgumentException();
+        long correlationId = msg.getCorrelationId();
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        if (pending.putIfAbsent(correlationId, reply) != null)
+            throw new IllegalStateException("Request " + correlationId + " is pending already");
+        ScheduledFuture<?> deadline = null;
+        if (timeoutMillis > 0) {
+            try {
+                deadline = timer.schedule(() -> complete(correlationId, Reply.error("Device " + msg.getAddress() +
+                        " has not replied in " + timeoutMillis + " ms")), timeoutMillis, MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The timer is shut down along with the channel, which fails all requests
+            }
+        }
+        ScheduledFuture<?> scheduled = deadline;
+        // Forgets the request however the reply is completed, e.g. cancelled by the caller
+        reply.whenComplete((r, e) -> {
+            pending.remove(correlationId, reply);
+            if (scheduled != null) scheduled.cancel(false);
+        });
+        return reply;
+    }
+
+    /**
+     * Completes a pending request.
+     *
+     * @return false if there is no such pending request, i.e. the reply is late or unexpected.
+     */
+    public boolean complete(long correlationId, Reply reply) {
+        if (reply == null) throw new IllegalArgumentException();
+        CompletableFuture<Reply> future = pending.remove(correlationId);
+        return future != null && future.complete(reply);
+    }
+
+    /**
+     * Replies all pending requests with an error, e.g. when the channel is closed.
+     *
+     * @return number of requests replied.
+     */
+    public int failAll(String reason) {
+        int failed = 0;
+        for (Long correlationId : pending.keySet()) {
+            if (complete(correlationId, Reply.error(reason))) failed++;
+        }
+        return failed;
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    /**
+     * @return future replies in the order of the given ones, completed when all of them are. Cancelling it
+     * cancels the given ones.
+     */
+    @NonNull
+    public static CompletableFuture<List<Reply>> all(List<CompletableFuture<Reply>> replies) {
+        CompletableFuture<List<Reply>> all = CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    List<Reply> list = new ArrayList<>(replies.size());
+                    for (CompletableFuture<Reply> r : replies) list.add(r.join());
+                    return list;
+                });
+        all.whenComplete((list, e) -> {
+            if (all.isCancelled()) replies.forEach(r -> r.cancel(false));
+        });
+        return all;
+    }
+}
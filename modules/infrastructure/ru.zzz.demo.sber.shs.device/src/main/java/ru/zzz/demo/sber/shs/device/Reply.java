@@ -6,6 +6,11 @@ import org.springframework.lang.NonNull;
  * A base type of a devices' replies. Subtypes describe reply commands.
  */
 public class Reply {
+    /**
+     * Reason of an error reply of a device which is off to a request it executes only when it is on.
+     */
+    public static final String DEVICE_IS_OFF = "Device is off";
+
     private Reply() {
     }
 
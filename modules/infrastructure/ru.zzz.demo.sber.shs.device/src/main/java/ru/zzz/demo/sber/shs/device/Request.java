@@ -2,25 +2,37 @@ package ru.zzz.demo.sber.shs.device;
 
 import org.springframework.lang.NonNull;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A base type of a request to a device. Subtypes describe commands.
+ * Every request gets a correlation id unique within the process, a reply to it is matched by the id, so
+ * many requests may be in flight on one device channel.
  * Invariant for all commands:
  * /\ address!=null
  * /\ address is not empty
  */
 public class Request {
+    private static final AtomicLong NEXT_CORRELATION_ID = new AtomicLong();
+
     private final String address;
+    private final long correlationId;
 
     private Request(String address) {
         if (address == null || address.isEmpty())
             throw new IllegalArgumentException("address");
         this.address = address;
+        this.correlationId = NEXT_CORRELATION_ID.incrementAndGet();
     }
 
     public String getAddress() {
         return address;
     }
 
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
     @NonNull
     public static Request on(String address) {
         return new On(address);
@@ -0,0 +1,72 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+/**
+ * A message of the device gateway protocol: a request or a reply with the correlation id of the request.
+ *
+ * <p>A decoded request gets a correlation id of its own, the frame keeps the one of the sender, so a reply
+ * is sent with it.
+ *
+ * @see DeviceProtocol
+ */
+public final class DeviceFrame {
+    private final long correlationId;
+    private final Request request;
+    private final Reply reply;
+
+    private DeviceFrame(long correlationId, Request request, Reply reply) {
+        this.correlationId = correlationId;
+        this.request = request;
+        this.reply = reply;
+    }
+
+    /**
+     * @return a frame of a request with its own correlation id
+     */
+    @NonNull
+    public static DeviceFrame of(Request request) {
+        if (request == null) throw new IllegalArgumentException();
+        return new DeviceFrame(request.getCorrelationId(), request, null);
+    }
+
+    @NonNull
+    public static DeviceFrame of(long correlationId, Request request) {
+        if (request == null) throw new IllegalArgumentException();
+        return new DeviceFrame(correlationId, request, null);
+    }
+
+    @NonNull
+    public static DeviceFrame of(long correlationId, Reply reply) {
+        if (reply == null) throw new IllegalArgumentException();
+        return new DeviceFrame(correlationId, null, reply);
+    }
+
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * @return the request, null if it is a reply frame
+     */
+    @Nullable
+    public Request getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the reply, null if it is a request frame
+     */
+    @Nullable
+    public Reply getReply() {
+        return reply;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceFrame{" + correlationId + " " + ((request != null) ? request : reply) + '}';
+    }
+}
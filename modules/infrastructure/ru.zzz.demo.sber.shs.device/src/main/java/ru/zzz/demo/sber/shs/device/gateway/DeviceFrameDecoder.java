@@ -0,0 +1,34 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+import static ru.zzz.demo.sber.shs.device.gateway.DeviceProtocol.LENGTH_FIELD_LENGTH;
+import static ru.zzz.demo.sber.shs.device.gateway.DeviceProtocol.MAX_FRAME_LENGTH;
+
+/**
+ * Reads {@link DeviceFrame}s from the inbound bytes. A frame is parsed from a slice of the cumulated buffer,
+ * so its bytes are not copied.
+ */
+final class DeviceFrameDecoder extends LengthFieldBasedFrameDecoder {
+    DeviceFrameDecoder() {
+        super(MAX_FRAME_LENGTH, 0, LENGTH_FIELD_LENGTH, 0, LENGTH_FIELD_LENGTH);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) return null;
+        try {
+            return DeviceProtocol.read(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
+        return buffer.retainedSlice(index, length);
+    }
+}
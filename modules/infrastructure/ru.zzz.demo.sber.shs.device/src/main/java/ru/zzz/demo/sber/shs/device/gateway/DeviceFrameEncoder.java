@@ -0,0 +1,22 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+/**
+ * Writes {@link DeviceFrame}s straight into the outbound buffer. Stateless, so one instance serves all channels.
+ */
+@ChannelHandler.Sharable
+final class DeviceFrameEncoder extends MessageToByteEncoder<DeviceFrame> {
+    static final DeviceFrameEncoder INSTANCE = new DeviceFrameEncoder();
+
+    private DeviceFrameEncoder() {
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, DeviceFrame frame, ByteBuf out) {
+        DeviceProtocol.write(frame, out);
+    }
+}
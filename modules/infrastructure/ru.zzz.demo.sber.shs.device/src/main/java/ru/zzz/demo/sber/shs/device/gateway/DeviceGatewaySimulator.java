@@ -0,0 +1,152 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
+import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.Request;
+import ru.zzz.demo.sber.shs.device.simulator.DeviceClass;
+import ru.zzz.demo.sber.shs.device.simulator.DeviceSimulator;
+import ru.zzz.demo.sber.shs.device.stub.DeviceStubsManager;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A device gateway serving the {@link DeviceProtocol} on behalf of a {@link DeviceManager}, device stubs or
+ * a {@link DeviceSimulator}. It is meant for tests and local runs: start it with {@link #main(String[])} and
+ * point the server to it with {@code device.gateway.enabled=true}.
+ *
+ * <p>Requests to an {@link AsyncDeviceManager} are replied as their replies come. Requests to others are
+ * executed on the connection thread as they come, their replies are flushed once per read.
+ */
+public class DeviceGatewaySimulator implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceGatewaySimulator.class);
+
+    private final EventLoopGroup group;
+    private final ChannelGroup clients = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final Channel server;
+
+    /**
+     * Starts serving the port.
+     *
+     * @param port port to listen to, 0 for any free one
+     */
+    public DeviceGatewaySimulator(DeviceManager dm, int port) throws InterruptedException {
+        if (dm == null) throw new IllegalArgumentException();
+        AtomicInteger threadNumber = new AtomicInteger();
+        group = new NioEventLoopGroup(0, runnable -> {
+            Thread t = new Thread(runnable, "device-gateway-simulator-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        RequestHandler handler = new RequestHandler(dm);
+        try {
+            server = new ServerBootstrap()
+                    .group(group)
+                    .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.TCP_NODELAY, true)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            clients.add(ch);
+                            ch.pipeline().addLast(new DeviceFrameDecoder(), DeviceFrameEncoder.INSTANCE, handler);
+                        }
+                    })
+                    .bind(port).sync().channel();
+        } catch (InterruptedException | RuntimeException e) {
+            group.shutdownGracefully(0, 1, SECONDS);
+            throw e;
+        }
+    }
+
+    /**
+     * @return port the simulator listens to.
+     */
+    public int getPort() {
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    /**
+     * Stops serving and drops connections of clients.
+     */
+    @Override
+    public void close() {
+        server.close().awaitUninterruptibly(1, SECONDS);
+        clients.close().awaitUninterruptibly(1, SECONDS);
+        group.shutdownGracefully(0, 1, SECONDS).awaitUninterruptibly(10, SECONDS);
+    }
+
+    /**
+     * Runs the gateway until the process is stopped.
+     *
+     * @param args port to listen to, 7070 by default; then optionally number of simulated devices, seed and
+     *             classes as in {@link DeviceClass#parseAll(String)}, device stubs if there is no number
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7070;
+        DeviceManager dm = (args.length > 1)
+                ? new DeviceSimulator(Integer.parseInt(args[1]),
+                DeviceClass.parseAll((args.length > 3) ? args[3] : "device:1:fixed(0):0"),
+                (args.length > 2) ? Long.parseLong(args[2]) : 1)
+                : new DeviceStubsManager();
+        DeviceGatewaySimulator simulator = new DeviceGatewaySimulator(dm, port);
+        LOGGER.info("Device gateway simulator listens to port {}", simulator.getPort());
+        simulator.server.closeFuture().sync();
+    }
+
+    @ChannelHandler.Sharable
+    private static class RequestHandler extends SimpleChannelInboundHandler<DeviceFrame> {
+        private final DeviceManager dm;
+        // The device manager if it is asynchronous, null otherwise
+        private final AsyncDeviceManager async;
+
+        RequestHandler(DeviceManager dm) {
+            this.dm = dm;
+            this.async = (dm instanceof AsyncDeviceManager) ? (AsyncDeviceManager) dm : null;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DeviceFrame frame) {
+            Request request = frame.getRequest();
+            if (request == null) {
+                LOGGER.warn("Unexpected reply from {}: {}", ctx.channel().remoteAddress(), frame);
+                return;
+            }
+            long correlationId = frame.getCorrelationId();
+            if (async != null) {
+                async.acceptAsync(request).thenAccept(reply ->
+                        ctx.writeAndFlush(DeviceFrame.of(correlationId, reply), ctx.voidPromise()));
+            } else {
+                ctx.write(DeviceFrame.of(correlationId, dm.accept(request)), ctx.voidPromise());
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.warn("Connection from {} failed", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The binary framing of the device gateway protocol. All numbers are big-endian.
+ *
+ * <pre>
+ * frame   := length:int32 type:int8 correlationId:int64 payload    length counts bytes after itself
+ * ON, OFF, GET payload := address:string
+ * SET payload          := address:string value:int32
+ * OK payload           := (none)
+ * ERROR payload        := reason:string
+ * VAL payload          := value:int32
+ * string  := length:uint16 UTF-8 bytes
+ * </pre>
+ *
+ * <p>Frames are written to and read from buffers in place, no intermediate byte arrays are made. A reply
+ * carries the correlation id of its request, so requests and replies of many devices share a connection and
+ * replies may come in any order.
+ */
+final class DeviceProtocol {
+    static final int LENGTH_FIELD_LENGTH = 4;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+    /**
+     * The longest frame with its length: a SET with the longest address.
+     */
+    static final int MAX_FRAME_LENGTH = LENGTH_FIELD_LENGTH + Byte.BYTES + Long.BYTES + Short.BYTES +
+            MAX_STRING_LENGTH + Integer.BYTES;
+
+    private static final byte ON = 1;
+    private static final byte OFF = 2;
+    private static final byte SET = 3;
+    private static final byte GET = 4;
+    private static final byte OK = 17;
+    private static final byte ERROR = 18;
+    private static final byte VAL = 19;
+
+    private DeviceProtocol() {
+    }
+
+    /**
+     * Writes a frame with its length.
+     *
+     * @throws EncoderException if a string is too long
+     */
+    static void write(DeviceFrame frame, ByteBuf out) {
+        int lengthIndex = out.writerIndex();
+        out.writeInt(0);
+        Request request = frame.getRequest();
+        if (request != null) {
+            writeRequest(frame.getCorrelationId(), request, out);
+        } else {
+            writeReply(frame.getCorrelationId(), frame.getReply(), out);
+        }
+        out.setInt(lengthIndex, out.writerIndex() - lengthIndex - LENGTH_FIELD_LENGTH);
+    }
+
+    /**
+     * Reads a frame without its length.
+     *
+     * @throws CorruptedFrameException if the frame is not valid
+     */
+    @NonNull
+    static DeviceFrame read(ByteBuf in) {
+        try {
+            byte type = in.readByte();
+            long correlationId = in.readLong();
+            DeviceFrame frame;
+            switch (type) {
+                case ON:
+                    frame = DeviceFrame.of(correlationId, Request.on(readString(in)));
+                    break;
+                case OFF:
+                    frame = DeviceFrame.of(correlationId, Request.off(readString(in)));
+                    break;
+                case SET:
+                    frame = DeviceFrame.of(correlationId, Request.set(readString(in), in.readInt()));
+                    break;
+                case GET:
+                    frame = DeviceFrame.of(correlationId, Request.get(readString(in)));
+                    break;
+                case OK:
+                    frame = DeviceFrame.of(correlationId, Reply.ok());
+                    break;
+                case ERROR:
+                    frame = DeviceFrame.of(correlationId, Reply.error(readString(in)));
+                    break;
+                case VAL:
+                    frame = DeviceFrame.of(correlationId, Reply.val(in.readInt()));
+                    break;
+                default:
+                    throw new CorruptedFrameException("Unknown frame type " + type);
+            }
+            if (in.isReadable()) throw new CorruptedFrameException(in.readableBytes() + " bytes after a frame");
+            return frame;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new CorruptedFrameException("Invalid frame", e);
+        }
+    }
+
+    private static void writeRequest(long correlationId, Request request, ByteBuf out) {
+        if (request instanceof Request.On) {
+            out.writeByte(ON).writeLong(correlationId);
+            writeString(request.getAddress(), out);
+        } else if (request instanceof Request.Off) {
+            out.writeByte(OFF).writeLong(correlationId);
+            writeString(request.getAddress(), out);
+        } else if (request instanceof Request.Set) {
+            out.writeByte(SET).writeLong(correlationId);
+            writeString(request.getAddress(), out);
+            out.writeInt(((Request.Set) request).getVal());
+        } else if (request instanceof Request.Get) {
+            out.writeByte(GET).writeLong(correlationId);
+            writeString(request.getAddress(), out);
+        } else {
+            throw new EncoderException("Request of unknown type " + request);
+        }
+    }
+
+    private static void writeReply(long correlationId, Reply reply, ByteBuf out) {
+        if (reply instanceof Reply.Ok) {
+            out.writeByte(OK).writeLong(correlationId);
+        } else if (reply instanceof Reply.Error) {
+            out.writeByte(ERROR).writeLong(correlationId);
+            writeString(((Reply.Error) reply).getReason(), out);
+        } else if (reply instanceof Reply.Val) {
+            out.writeByte(VAL).writeLong(correlationId);
+            out.writeInt(((Reply.Val) reply).getVal());
+        } else {
+            throw new EncoderException("Reply of unknown type " + reply);
+        }
+    }
+
+    private static void writeString(String s, ByteBuf out) {
+        int lengthIndex = out.writerIndex();
+        out.writeShort(0);
+        int length = ByteBufUtil.writeUtf8(out, s);
+        if (length > MAX_STRING_LENGTH) throw new EncoderException("String of " + length + " bytes is too long");
+        out.setShort(lengthIndex, length);
+    }
+
+    @NonNull
+    private static String readString(ByteBuf in) {
+        return in.readCharSequence(in.readUnsignedShort(), UTF_8).toString();
+    }
+}
@@ -0,0 +1,312 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
+import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.PendingReplies;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Manages devices through a device gateway over TCP using the {@link DeviceProtocol}.
+ *
+ * <p>Requests to all devices are multiplexed over a few connections. Requests to a device always go over the
+ * same connection, so they reach the gateway in order. Many requests may be in flight on a connection, a reply
+ * is matched to its request by the correlation id. A batch is written to each connection at once and flushed
+ * once.
+ *
+ * <p>A request is replied with {@link Reply.Error} if its connection is down or goes down before the reply, or if
+ * the reply does not come in time, so a gateway which stops answering on a live connection does not hold callers.
+ * A connection which goes down is reconnected in the background.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Device,name=Gateway")
+public class GatewayDeviceManager implements DeviceManager, AsyncDeviceManager, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayDeviceManager.class);
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final long replyTimeoutMillis;
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final Connection[] connections;
+    private volatile boolean closed;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder notConnected = new LongAdder();
+    private final LongAdder unexpectedReplies = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    /**
+     * Connects to the gateway, waits for the connections for a while. Connections which are not established
+     * in time keep connecting in the background.
+     *
+     * @param replyTimeoutMillis time to wait for a reply to a request
+     * @throws IllegalArgumentException if connection count or reply timeout is not positive
+     */
+    public GatewayDeviceManager(String host, int port, int connectionCount, long replyTimeoutMillis) {
+        if (host == null || connectionCount <= 0 || replyTimeoutMillis <= 0)
+            throw new IllegalArgumentException(
+                    "gateway host must be set, connection count and reply timeout must be positive");
+        this.host = host;
+        this.port = port;
+        this.replyTimeoutMillis = replyTimeoutMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        group = new NioEventLoopGroup(connectionCount, runnable -> {
+            Thread t = new Thread(runnable, "device-gateway-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT_MILLIS);
+        connections = new Connection[connectionCount];
+        List<ChannelFuture> connects = new ArrayList<>(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            connections[i] = new Connection(i);
+            connects.add(connections[i].connect());
+        }
+        for (ChannelFuture f : connects) f.awaitUninterruptibly(CONNECT_TIMEOUT_MILLIS + 1000, MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        closed = true;
+        for (Connection c : connections) {
+            Channel ch = c.channel;
+            if (ch != null) ch.close().awaitUninterruptibly(1, SECONDS);
+        }
+        group.shutdownGracefully(0, 1, SECONDS).awaitUninterruptibly(10, SECONDS);
+        for (Connection c : connections) c.pending.failAll("Device gateway is closed");
+    }
+
+    @NonNull
+    @Override
+    public Reply accept(Request msg) {
+        return acceptAsync(msg).join();
+    }
+
+    @NonNull
+    @Override
+    public CompletableFuture<Reply> acceptAsync(Request msg) {
+        if (msg == null)
+            throw new IllegalArgumentException();
+        Connection c = connectionOf(msg);
+        CompletableFuture<Reply> reply = c.pending.register(msg);
+        c.send(Collections.singletonList(msg));
+        return reply;
+    }
+
+    @NonNull
+    @Override
+    public CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs) {
+        if (msgs == null || msgs.contains(null))
+            throw new IllegalArgumentException();
+        List<CompletableFuture<Reply>> replies = new ArrayList<>(msgs.size());
+        // Parts of the batch by connections, null if a connection has none
+        List<List<Request>> parts = new ArrayList<>(Collections.nCopies(connections.length, null));
+        for (Request msg : msgs) {
+            Connection c = connectionOf(msg);
+            replies.add(c.pending.register(msg));
+            if (parts.get(c.index) == null) parts.set(c.index, new ArrayList<>());
+            parts.get(c.index).add(msg);
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            if (parts.get(i) != null) connections[i].send(parts.get(i));
+        }
+        return PendingReplies.all(replies);
+    }
+
+    @ManagedAttribute(description = "Number of connections to the gateway established")
+    public int getConnected() {
+        int connected = 0;
+        for (Connection c : connections) {
+            Channel ch = c.channel;
+            if (ch != null && ch.isActive()) connected++;
+        }
+        return connected;
+    }
+
+    @ManagedAttribute(description = "Number of requests waiting for a reply")
+    public int getPending() {
+        int pending = 0;
+        for (Connection c : connections) pending += c.pending.size();
+        return pending;
+    }
+
+    @ManagedAttribute(description = "Number of requests sent to the gateway")
+    public long getSent() {
+        return sent.sum();
+    }
+
+    @ManagedAttribute(description = "Number of requests failed because the connection was down")
+    public long getNotConnected() {
+        return notConnected.sum();
+    }
+
+    @ManagedAttribute(description = "Number of replies without a pending request")
+    public long getUnexpectedReplies() {
+        return unexpectedReplies.sum();
+    }
+
+    @ManagedAttribute(description = "Number of reconnections to the gateway")
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    private Connection connectionOf(Request msg) {
+        return connections[Math.floorMod(msg.getAddress().hashCode(), connections.length)];
+    }
+
+    /**
+     * A connection to the gateway with requests sent over it and not replied yet.
+     */
+    private class Connection {
+        private final int index;
+        // Deadlines are fired by the event loops
+        private final PendingReplies pending = new PendingReplies(replyTimeoutMillis, group);
+        private volatile Channel channel;
+
+        Connection(int index) {
+            this.index = index;
+        }
+
+        ChannelFuture connect() {
+            ChannelFuture f = bootstrap.clone()
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new DeviceFrameDecoder(), DeviceFrameEncoder.INSTANCE,
+                                    new ReplyHandler(Connection.this));
+                        }
+                    })
+                    .connect(host, port);
+            // Requests are failed until the channel is active
+            channel = f.channel();
+            f.addListener((ChannelFuture connected) -> {
+                if (connected.isSuccess()) {
+                    LOGGER.info("Connection {} to device gateway {}:{} is established", index, host, port);
+                } else {
+                    LOGGER.warn("Connection {} to device gateway {}:{} failed: {}", index, host, port,
+                            connected.cause().toString());
+                    reconnectLater();
+                }
+            });
+            return f;
+        }
+
+        void disconnected() {
+            channel = null;
+            int failed = pending.failAll("Device gateway connection is closed");
+            if (closed) return;
+            LOGGER.warn("Connection {} to device gateway {}:{} is closed, {} requests failed", index, host, port,
+                    failed);
+            reconnectLater();
+        }
+
+        private void reconnectLater() {
+            if (closed) return;
+            try {
+                group.schedule(() -> {
+                    if (closed) return;
+                    reconnects.increment();
+                    connect();
+                }, RECONNECT_DELAY_MILLIS, MILLISECONDS);
+            } catch (RuntimeException e) {
+                // The group is shut down
+            }
+        }
+
+        /**
+         * Sends registered requests in order and flushes them once.
+         */
+        void send(List<Request> msgs) {
+            Channel ch = channel;
+            if (ch == null || !ch.isActive()) {
+                notConnected.add(msgs.size());
+                for (Request msg : msgs)
+                    pending.complete(msg.getCorrelationId(), Reply.error("Device gateway is not connected"));
+                return;
+            }
+            if (ch.eventLoop().inEventLoop()) {
+                write(ch, msgs);
+            } else {
+                try {
+                    ch.eventLoop().execute(() -> write(ch, msgs));
+                } catch (RuntimeException e) {
+                    for (Request msg : msgs)
+                        pending.complete(msg.getCorrelationId(), Reply.error("Device gateway is closed"));
+                }
+            }
+        }
+
+        private void write(Channel ch, List<Request> msgs) {
+            for (Request msg : msgs) {
+                ch.write(DeviceFrame.of(msg)).addListener(f -> {
+                    if (!f.isSuccess())
+                        pending.complete(msg.getCorrelationId(), Reply.error("Device gateway write failed: "
+                                + f.cause()));
+                });
+            }
+            ch.flush();
+            sent.add(msgs.size());
+        }
+    }
+
+    private class ReplyHandler extends SimpleChannelInboundHandler<DeviceFrame> {
+        private final Connection connection;
+
+        ReplyHandler(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DeviceFrame frame) {
+            Reply reply = frame.getReply();
+            if (reply == null || !connection.pending.complete(frame.getCorrelationId(), reply))
+                unexpectedReplies.increment();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            connection.disconnected();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            LOGGER.warn("Connection {} to device gateway {}:{} failed", connection.index, host, port, cause);
+            ctx.close();
+        }
+    }
+}
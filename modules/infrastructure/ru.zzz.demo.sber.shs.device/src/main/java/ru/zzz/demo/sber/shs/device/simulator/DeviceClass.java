@@ -0,0 +1,74 @@
+package ru.zzz.demo.sber.shs.device.simulator;
+
+import org.springframework.lang.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class of simulated devices: their share among all devices, reply latency and rate of failed requests.
+ */
+public final class DeviceClass {
+    private final String name;
+    private final double weight;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+
+    /**
+     * @param weight    share of devices of the class relative to weights of other classes, positive
+     * @param errorRate share of requests failed, from 0 to 1
+     */
+    public DeviceClass(String name, double weight, LatencyDistribution latency, double errorRate) {
+        if (name == null || latency == null || !(weight > 0) || !(errorRate >= 0 && errorRate <= 1))
+            throw new IllegalArgumentException("Invalid device class " + name);
+        this.name = name;
+        this.weight = weight;
+        this.latency = latency;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Parses classes separated by {@code ;}, a class is {@code name:weight:latency:errorRate}, e.g.
+     * {@code lamp:80:uniform(1,5):0.001;thermostat:20:lognormal(20,200):0.01}.
+     *
+     * @throws IllegalArgumentException if the string is not a list of classes
+     * @see LatencyDistribution#parse(String)
+     */
+    @NonNull
+    public static List<DeviceClass> parseAll(String s) {
+        if (s == null) throw new IllegalArgumentException();
+        List<DeviceClass> classes = new ArrayList<>();
+        for (String c : s.split(";")) {
+            if (c.trim().isEmpty()) continue;
+            String[] parts = c.trim().split(":");
+            if (parts.length != 4) throw new IllegalArgumentException("Invalid device class " + c);
+            classes.add(new DeviceClass(parts[0].trim(), Double.parseDouble(parts[1].trim()),
+                    LatencyDistribution.parse(parts[2].trim()), Double.parseDouble(parts[3].trim())));
+        }
+        if (classes.isEmpty()) throw new IllegalArgumentException("No device classes in " + s);
+        return classes;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    @NonNull
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceClass{" + name + '}';
+    }
+}
@@ -0,0 +1,351 @@
+package ru.zzz.demo.sber.shs.device.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.lang.NonNull;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
+import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.PendingReplies;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Simulates a large number of devices for load tests: devices reply with a latency and fail requests at rates
+ * of their {@link DeviceClass}, and disconnect storms make a share of devices unreachable for a while.
+ *
+ * <p>Devices are numbered from 0. An address ending with a device number, e.g. {@code dev42}, is that device,
+ * other addresses are hashed to device numbers. State of devices is kept in primitive arrays indexed by the
+ * number, so millions of devices take a few bytes each.
+ *
+ * <p>Devices are served by channels, a channel is a thread owning a part of devices and their state, so no
+ * locks are taken. A request is applied to the device at once in the order of arrival, its reply is delayed by
+ * the latency, but not before the reply to the previous request to the device.
+ *
+ * <p>A request may have a deadline, so a device of a class with a long latency does not hold a synchronous
+ * caller longer than it would wait for a real device.
+ *
+ * <p>Classes of devices, latencies, failures and storms come from random numbers of the seed, so a load test
+ * is reproducible as far as the order of requests to each channel is.
+ *
+ * <p>Instances of this class are thread safe.
+ */
+@ManagedResource(objectName = "SHS:type=Device,name=Simulator")
+public class DeviceSimulator implements DeviceManager, AsyncDeviceManager, DisposableBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceSimulator.class);
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+    private final int deviceCount;
+    private final DeviceClass[] classes;
+    // Index of the class of each device
+    private final byte[] classOf;
+    // A bit per device, set if it is on. A word of bits belongs to a single channel
+    private final long[] on;
+    private final int[] values;
+    // System.nanoTime() of the reply to the last request to each device
+    private final long[] repliedAt;
+    private final Channel[] channels;
+    private final PendingReplies pending;
+    private final SplittableRandom stormRandom;
+    // Fires storms and reply deadlines
+    private final ScheduledThreadPoolExecutor stormTimer;
+    private volatile Storm storm;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+    private final LongAdder storms = new LongAdder();
+
+    public DeviceSimulator(int deviceCount, List<DeviceClass> classes, long seed) {
+        this(deviceCount, classes, seed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @throws IllegalArgumentException if there are no devices, classes or channels, or too many classes
+     */
+    public DeviceSimulator(int deviceCount, List<DeviceClass> classes, long seed, int channelCount) {
+        this(deviceCount, classes, seed, channelCount, 0);
+    }
+
+    /**
+     * @param replyTimeoutMillis time to wait for a reply to a request, 0 to wait for as long as the latency
+     * @throws IllegalArgumentException if there are no devices, classes or channels, or too many classes, or
+     *                                  the reply timeout is negative
+     */
+    public DeviceSimulator(int deviceCount, List<DeviceClass> classes, long seed, int channelCount,
+            long replyTimeoutMillis) {
+        if (deviceCount <= 0 || channelCount <= 0 || classes == null || classes.isEmpty()
+                || classes.size() > Byte.MAX_VALUE || replyTimeoutMillis < 0)
+            throw new IllegalArgumentException(
+                    "device count, classes and channel count must be positive, timeout must not be negative");
+        this.deviceCount = deviceCount;
+        this.classes = classes.toArray(new DeviceClass[0]);
+        SplittableRandom random = new SplittableRandom(seed);
+        classOf = assignClasses(deviceCount, this.classes, random.split());
+        on = new long[(deviceCount + 63) >>> 6];
+        values = new int[deviceCount];
+        repliedAt = new long[deviceCount];
+        channels = new Channel[channelCount];
+        for (int i = 0; i < channelCount; i++) channels[i] = new Channel(i, random.split());
+        stormRandom = random.split();
+        stormTimer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread t = new Thread(runnable, "device-simulator-storms");
+            t.setDaemon(true);
+            return t;
+        });
+        // Deadlines of replied requests are cancelled
+        stormTimer.setRemoveOnCancelPolicy(true);
+        pending = new PendingReplies(replyTimeoutMillis, stormTimer);
+    }
+
+    /**
+     * Starts disconnect storms at random intervals, until the simulator is destroyed.
+     *
+     * @param meanIntervalMillis mean time between starts of storms, positive
+     * @param durationMillis     duration of a storm
+     * @param fraction           share of devices disconnected by a storm, from 0 to 1
+     */
+    public void scheduleStorms(long meanIntervalMillis, long durationMillis, double fraction) {
+        if (meanIntervalMillis <= 0) throw new IllegalArgumentException("storm interval must be positive");
+        scheduleStorm(meanIntervalMillis, durationMillis, fraction);
+    }
+
+    private void scheduleStorm(long meanIntervalMillis, long durationMillis, double fraction) {
+        long delay;
+        synchronized (stormRandom) {
+            delay = (long) (-meanIntervalMillis * Math.log(1 - stormRandom.nextDouble()));
+        }
+        try {
+            stormTimer.schedule(() -> {
+                startStorm(fraction, durationMillis);
+                scheduleStorm(meanIntervalMillis, durationMillis, fraction);
+            }, delay, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The simulator is destroyed
+        }
+    }
+
+    /**
+     * Disconnects a random share of devices for a while. Requests to them are replied with {@link Reply.Error}.
+     * A storm ends the previous one.
+     */
+    @ManagedOperation(description = "Disconnects a share of devices for a number of milliseconds")
+    public void startStorm(double fraction, long durationMillis) {
+        if (!(fraction >= 0 && fraction <= 1) || durationMillis < 0)
+            throw new IllegalArgumentException("Invalid storm");
+        long salt;
+        synchronized (stormRandom) {
+            salt = stormRandom.nextLong();
+        }
+        storm = new Storm(System.nanoTime() + MILLISECONDS.toNanos(durationMillis), salt, fraction);
+        storms.increment();
+        LOGGER.info("Disconnect storm of {} devices for {} ms", fraction, durationMillis);
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        stormTimer.shutdownNow();
+        for (Channel c : channels) c.executor.shutdownNow();
+        for (Channel c : channels) c.executor.awaitTermination(10, SECONDS);
+        pending.failAll("Device channel is closed");
+    }
+
+    @NonNull
+    @Override
+    public Reply accept(Request msg) {
+        return acceptAsync(msg).join();
+    }
+
+    @NonNull
+    @Override
+    public CompletableFuture<Reply> acceptAsync(Request msg) {
+        if (msg == null)
+            throw new IllegalArgumentException();
+        CompletableFuture<Reply> reply = pending.register(msg);
+        int device = deviceOf(msg.getAddress());
+        Channel c = channels[(device >>> 6) % channels.length];
+        try {
+            c.executor.execute(() -> c.receive(device, msg));
+        } catch (RejectedExecutionException e) {
+            pending.complete(msg.getCorrelationId(), Reply.error("Device channel is closed"));
+        }
+        return reply;
+    }
+
+    /**
+     * @return class of the device, for tests.
+     */
+    @NonNull
+    DeviceClass classOf(String address) {
+        return classes[classOf[deviceOf(address)]];
+    }
+
+    /**
+     * @return number of the device, the number the address ends with if there is such a device.
+     */
+    int deviceOf(String address) {
+        int digits = 0;
+        int number = 0;
+        for (int i = address.length() - 1; i >= 0 && digits < 9; i--, digits++) {
+            char c = address.charAt(i);
+            if (c < '0' || c > '9') break;
+            number += (c - '0') * POWERS_OF_TEN[digits];
+        }
+        if (digits > 0 && number < deviceCount) return number;
+        return Math.floorMod(address.hashCode(), deviceCount);
+    }
+
+    @ManagedAttribute(description = "Number of simulated devices")
+    public int getDevices() {
+        return deviceCount;
+    }
+
+    @ManagedAttribute(description = "Number of requests")
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @ManagedAttribute(description = "Number of requests waiting for a reply")
+    public int getPending() {
+        return pending.size();
+    }
+
+    @ManagedAttribute(description = "Number of requests failed by the error rate of the device class")
+    public long getInjectedErrors() {
+        return injectedErrors.sum();
+    }
+
+    @ManagedAttribute(description = "Number of requests failed because the device was disconnected by a storm")
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    @ManagedAttribute(description = "Number of disconnect storms")
+    public long getStorms() {
+        return storms.sum();
+    }
+
+    @ManagedAttribute(description = "Whether a disconnect storm is going on")
+    public boolean isStormActive() {
+        Storm s = storm;
+        return s != null && System.nanoTime() - s.untilNanos < 0;
+    }
+
+    private static byte[] assignClasses(int deviceCount, DeviceClass[] classes, SplittableRandom random) {
+        double[] cumulative = new double[classes.length];
+        double total = 0;
+        for (int i = 0; i < classes.length; i++) cumulative[i] = total += classes[i].getWeight();
+        byte[] classOf = new byte[deviceCount];
+        for (int d = 0; d < deviceCount; d++) {
+            double r = random.nextDouble() * total;
+            byte c = 0;
+            while (c < classes.length - 1 && r >= cumulative[c]) c++;
+            classOf[d] = c;
+        }
+        return classOf;
+    }
+
+    /**
+     * A thread serving devices, only it reads and writes state of its devices.
+     */
+    private class Channel {
+        private final ScheduledThreadPoolExecutor executor;
+        private final SplittableRandom random;
+
+        Channel(int index, SplittableRandom random) {
+            this.random = random;
+            executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread t = new Thread(runnable, "device-simulator-" + index);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        void receive(int device, Request msg) {
+            requests.increment();
+            long now = System.nanoTime();
+            DeviceClass dc = classes[classOf[device]];
+            Reply reply;
+            Storm s = storm;
+            if (s != null && s.disconnects(device, now)) {
+                disconnected.increment();
+                reply = Reply.error("Device is disconnected");
+            } else if (random.nextDouble() < dc.getErrorRate()) {
+                injectedErrors.increment();
+                reply = Reply.error("Device failed");
+            } else {
+                reply = apply(device, msg);
+            }
+            long replyAt = Math.max(now + dc.getLatency().sampleNanos(random), repliedAt[device]);
+            repliedAt[device] = replyAt;
+            if (replyAt - now <= 0) {
+                pending.complete(msg.getCorrelationId(), reply);
+            } else {
+                executor.schedule(() -> pending.complete(msg.getCorrelationId(), reply), replyAt - now,
+                        NANOSECONDS);
+            }
+        }
+
+        private Reply apply(int device, Request msg) {
+            int word = device >>> 6;
+            long bit = 1L << device;
+            if (msg instanceof Request.On) {
+                on[word] |= bit;
+                return Reply.ok();
+            } else if (msg instanceof Request.Off) {
+                on[word] &= ~bit;
+                return Reply.ok();
+            } else if (msg instanceof Request.Set) {
+                int val = ((Request.Set) msg).getVal();
+                if (val < 0) return Reply.error("Cannot set");
+                if ((on[word] & bit) == 0) return Reply.error(Reply.DEVICE_IS_OFF);
+                values[device] = val;
+                return Reply.ok();
+            } else if (msg instanceof Request.Get) {
+                if ((on[word] & bit) == 0) return Reply.error(Reply.DEVICE_IS_OFF);
+                return Reply.val(values[device]);
+            } else {
+                return Reply.error("Request of unknown type " + msg);
+            }
+        }
+    }
+
+    /**
+     * Devices disconnected until a time: a share of them chosen by a hash of their numbers with a salt.
+     */
+    private static final class Storm {
+        private final long untilNanos;
+        private final long salt;
+        private final double fraction;
+
+        Storm(long untilNanos, long salt, double fraction) {
+            this.untilNanos = untilNanos;
+            this.salt = salt;
+            this.fraction = fraction;
+        }
+
+        boolean disconnects(int device, long now) {
+            if (now - untilNanos >= 0) return false;
+            // The MurmurHash3 finalizer, spreads neighbouring numbers evenly
+            long z = device + salt;
+            z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+            z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            z = z ^ (z >>> 33);
+            return (z >>> 11) * 0x1.0p-53 < fraction;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ru.zzz.demo.sber.shs.device.simulator;
+
+import org.springframework.lang.NonNull;
+
+import java.util.SplittableRandom;
+
+/**
+ * Latency of a simulated device reply.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+    /**
+     * @return latency in nanoseconds, not negative.
+     */
+    long sampleNanos(SplittableRandom random);
+
+    /**
+     * Parses a distribution, all times are in milliseconds:
+     * <ul>
+     * <li>{@code fixed(t)}: always t;</li>
+     * <li>{@code uniform(min,max)}: evenly between min and max;</li>
+     * <li>{@code exp(mean)}: exponential with the mean;</li>
+     * <li>{@code lognormal(median,p99)}: log-normal with the median and the 99th percentile, a long tail.</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if the string is not a distribution
+     */
+    @NonNull
+    static LatencyDistribution parse(String s) {
+        if (s == null) throw new IllegalArgumentException();
+        int open = s.indexOf('(');
+        if (open < 0 || !s.endsWith(")")) throw new IllegalArgumentException("Invalid latency distribution " + s);
+        String name = s.substring(0, open).trim();
+        String[] args = s.substring(open + 1, s.length() - 1).split(",");
+        double[] millis = new double[args.length];
+        for (int i = 0; i < args.length; i++) {
+            millis[i] = Double.parseDouble(args[i].trim());
+            if (millis[i] < 0) throw new IllegalArgumentException("Negative latency in " + s);
+        }
+        switch (name) {
+            case "fixed":
+                if (millis.length != 1) break;
+                long fixed = (long) (millis[0] * 1e6);
+                return random -> fixed;
+            case "uniform":
+                if (millis.length != 2 || millis[0] > millis[1]) break;
+                long min = (long) (millis[0] * 1e6);
+                long range = (long) (millis[1] * 1e6) - min;
+                return random -> (range == 0) ? min : min + random.nextLong(range + 1);
+            case "exp":
+                if (millis.length != 1) break;
+                double mean = millis[0] * 1e6;
+                return random -> (long) (-mean * Math.log(1 - random.nextDouble()));
+            case "lognormal":
+                if (millis.length != 2 || millis[0] <= 0 || millis[0] > millis[1]) break;
+                double mu = Math.log(millis[0] * 1e6);
+                // The 99th percentile of the standard normal distribution is 2.326
+                double sigma = (Math.log(millis[1] * 1e6) - mu) / 2.326;
+                return random -> {
+                    // A standard normal number by the Box-Muller transform
+                    double z = Math.sqrt(-2 * Math.log(1 - random.nextDouble()))
+                            * Math.cos(2 * Math.PI * random.nextDouble());
+                    return (long) Math.exp(mu + sigma * z);
+                };
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("Invalid latency distribution " + s);
+    }
+}
@@ -1,6 +1,7 @@
 package ru.zzz.demo.sber.shs.device.stub;
 
 import ru.zzz.demo.sber.shs.device.DeviceException;
+import ru.zzz.demo.sber.shs.device.Reply;
 
 /**
  * A stub supporting On/off flag and raw int value.
@@ -33,7 +34,7 @@ class DeviceStub {
     public void setVal(int val) {
         if (val < 0) throw new DeviceException("Cannot set");
         synchronized (lock) {
-            if (!isOn) throw new DeviceException("Device is off");
+            if (!isOn) throw new DeviceException(Reply.DEVICE_IS_OFF);
             this.val = val;
         }
     }
@@ -45,7 +46,7 @@ class DeviceStub {
      */
     public int getVal() {
         synchronized (lock) {
-            if (!isOn) throw new DeviceException("Device is off");
+            if (!isOn) throw new DeviceException(Reply.DEVICE_IS_OFF);
             return val;
         }
     }
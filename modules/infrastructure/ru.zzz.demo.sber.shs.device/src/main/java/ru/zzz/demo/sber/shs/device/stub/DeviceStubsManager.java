@@ -1,17 +1,60 @@
 package ru.zzz.demo.sber.shs.device.stub;
 
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.lang.NonNull;
-import org.springframework.stereotype.Component;
+import ru.zzz.demo.sber.shs.device.AsyncDeviceManager;
 import ru.zzz.demo.sber.shs.device.DeviceException;
 import ru.zzz.demo.sber.shs.device.DeviceManager;
+import ru.zzz.demo.sber.shs.device.PendingReplies;
 import ru.zzz.demo.sber.shs.device.Reply;
 import ru.zzz.demo.sber.shs.device.Request;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
-@Component("SHS.Infrastructure.DeviceStubsManager")
-class DeviceStubsManager implements DeviceManager {
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Device stubs replying synchronously or asynchronously.
+ *
+ * <p>Asynchronous requests are executed by channels, a channel is a thread serving a part of devices. So
+ * requests to a device are executed in order, while a caller may have many of them in flight. A batch is split
+ * by channels, a channel executes its part of the batch at once.
+ */
+public class DeviceStubsManager implements DeviceManager, AsyncDeviceManager, DisposableBean {
     private final ConcurrentHashMap<String, DeviceStub> stubs = new ConcurrentHashMap<>();
+    private final PendingReplies pending = new PendingReplies();
+    private final ExecutorService[] channels;
+
+    public DeviceStubsManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DeviceStubsManager(int channelCount) {
+        if (channelCount <= 0) throw new IllegalArgumentException("channel count must be positive");
+        channels = new ExecutorService[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            String name = "device-stub-" + i;
+            channels[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread t = new Thread(runnable, name);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        for (ExecutorService c : channels) c.shutdown();
+        for (ExecutorService c : channels) c.awaitTermination(10, SECONDS);
+        pending.failAll("Device channel is closed");
+    }
 
     @NonNull
     @Override
@@ -38,4 +81,51 @@ class DeviceStubsManager implements DeviceManager {
             return Reply.error(e.getMessage());
         }
     }
+
+    @NonNull
+    @Override
+    public CompletableFuture<Reply> acceptAsync(Request msg) {
+        if (msg == null)
+            throw new IllegalArgumentException();
+        CompletableFuture<Reply> reply = pending.register(msg);
+        execute(channelOf(msg), Collections.singletonList(msg));
+        return reply;
+    }
+
+    @NonNull
+    @Override
+    public CompletableFuture<List<Reply>> acceptAllAsync(List<Request> msgs) {
+        if (msgs == null || msgs.contains(null))
+            throw new IllegalArgumentException();
+        List<CompletableFuture<Reply>> replies = new ArrayList<>(msgs.size());
+        // Parts of the batch by channels, null if a channel has none
+        List<List<Request>> parts = new ArrayList<>(Collections.nCopies(channels.length, null));
+        for (Request msg : msgs) {
+            replies.add(pending.register(msg));
+            int channel = channelOf(msg);
+            if (parts.get(channel) == null) parts.set(channel, new ArrayList<>());
+            parts.get(channel).add(msg);
+        }
+        for (int channel = 0; channel < parts.size(); channel++) {
+            if (parts.get(channel) != null) execute(channel, parts.get(channel));
+        }
+        return PendingReplies.all(replies);
+    }
+
+    private int channelOf(Request msg) {
+        return Math.floorMod(msg.getAddress().hashCode(), channels.length);
+    }
+
+    /**
+     * Executes pending requests in order on a channel.
+     */
+    private void execute(int channel, List<Request> msgs) {
+        try {
+            channels[channel].execute(() -> {
+                for (Request msg : msgs) pending.complete(msg.getCorrelationId(), accept(msg));
+            });
+        } catch (RejectedExecutionException e) {
+            for (Request msg : msgs) pending.complete(msg.getCorrelationId(), Reply.error("Device channel is closed"));
+        }
+    }
 }
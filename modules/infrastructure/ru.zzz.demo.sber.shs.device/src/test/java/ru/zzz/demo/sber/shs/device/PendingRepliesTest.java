@@ -0,0 +1,48 @@
+package ru.zzz.demo.sber.shs.device;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PendingRepliesTest {
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void afterEach() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    void requestNotRepliedInTimeIsFailedAndForgotten() {
+        PendingReplies pending = new PendingReplies(20, timer);
+        Request msg = Request.on("a");
+        CompletableFuture<Reply> reply = pending.register(msg);
+        assertEquals(1, pending.size());
+        assertTrue(reply.join() instanceof Reply.Error);
+        assertEquals(0, pending.size());
+        // A late reply is unexpected
+        assertFalse(pending.complete(msg.getCorrelationId(), Reply.ok()));
+    }
+
+    @Test
+    void cancelledRequestsAreForgotten() {
+        PendingReplies pending = new PendingReplies();
+        CompletableFuture<Reply> single = pending.register(Request.on("a"));
+        List<CompletableFuture<Reply>> batch = Arrays.asList(pending.register(Request.on("b")),
+                pending.register(Request.off("c")));
+        assertEquals(3, pending.size());
+        single.cancel(false);
+        PendingReplies.all(batch).cancel(false);
+        assertTrue(batch.get(0).isCancelled());
+        assertEquals(0, pending.size());
+    }
+}
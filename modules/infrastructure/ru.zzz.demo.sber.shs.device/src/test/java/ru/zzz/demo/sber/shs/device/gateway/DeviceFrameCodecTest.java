@@ -0,0 +1,81 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.DecoderException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeviceFrameCodecTest {
+    private final EmbeddedChannel channel = new EmbeddedChannel(new DeviceFrameDecoder(),
+            DeviceFrameEncoder.INSTANCE);
+
+    @AfterEach
+    void afterEach() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void requestsAreDecodedAsEncoded() {
+        DeviceFrame set = roundTrip(DeviceFrame.of(Request.set("кухня/свет", -7)));
+        assertTrue(set.getRequest() instanceof Request.Set);
+        assertEquals("кухня/свет", set.getRequest().getAddress());
+        assertEquals(-7, ((Request.Set) set.getRequest()).getVal());
+        assertTrue(roundTrip(DeviceFrame.of(Request.on("a"))).getRequest() instanceof Request.On);
+        assertTrue(roundTrip(DeviceFrame.of(Request.off("a"))).getRequest() instanceof Request.Off);
+        assertTrue(roundTrip(DeviceFrame.of(Request.get("a"))).getRequest() instanceof Request.Get);
+    }
+
+    @Test
+    void repliesAreDecodedAsEncoded() {
+        DeviceFrame ok = roundTrip(DeviceFrame.of(Long.MAX_VALUE, Reply.ok()));
+        assertEquals(Long.MAX_VALUE, ok.getCorrelationId());
+        assertTrue(ok.getReply() instanceof Reply.Ok);
+        assertNull(ok.getRequest());
+        assertEquals("off", ((Reply.Error) roundTrip(DeviceFrame.of(1, Reply.error("off"))).getReply()).getReason());
+        assertEquals(42, ((Reply.Val) roundTrip(DeviceFrame.of(1, Reply.val(42))).getReply()).getVal());
+    }
+
+    @Test
+    void longestFrameIsDecoded() {
+        StringBuilder address = new StringBuilder();
+        for (int i = 0; i < 0xFFFF; i++) address.append('a');
+        DeviceFrame set = roundTrip(DeviceFrame.of(Request.set(address.toString(), 1)));
+        assertEquals(0xFFFF, set.getRequest().getAddress().length());
+    }
+
+    @Test
+    void framesAreDecodedFromFragments() {
+        ByteBuf bytes = Unpooled.buffer();
+        DeviceProtocol.write(DeviceFrame.of(1, Reply.val(1)), bytes);
+        DeviceProtocol.write(DeviceFrame.of(2, Request.set("a", 2)), bytes);
+        while (bytes.isReadable()) channel.writeInbound(bytes.readRetainedSlice(1));
+        bytes.release();
+        assertEquals(1, ((DeviceFrame) channel.readInbound()).getCorrelationId());
+        assertEquals(2, ((DeviceFrame) channel.readInbound()).getCorrelationId());
+        assertNull(channel.readInbound());
+    }
+
+    @Test
+    void unknownFrameIsRejected() {
+        ByteBuf bytes = Unpooled.buffer().writeInt(9).writeByte(99).writeLong(1);
+        assertThrows(DecoderException.class, () -> channel.writeInbound(bytes));
+    }
+
+    private DeviceFrame roundTrip(DeviceFrame frame) {
+        assertTrue(channel.writeOutbound(frame));
+        ByteBuf bytes = channel.readOutbound();
+        assertTrue(channel.writeInbound(bytes));
+        DeviceFrame decoded = channel.readInbound();
+        assertEquals(frame.getCorrelationId(), decoded.getCorrelationId());
+        return decoded;
+    }
+}
@@ -0,0 +1,83 @@
+package ru.zzz.demo.sber.shs.device.gateway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+import ru.zzz.demo.sber.shs.device.stub.DeviceStubsManager;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GatewayDeviceManagerTest {
+    private final DeviceStubsManager stubs = new DeviceStubsManager(2);
+    private DeviceGatewaySimulator simulator;
+    private GatewayDeviceManager dm;
+
+    @BeforeEach
+    void beforeEach() throws InterruptedException {
+        simulator = new DeviceGatewaySimulator(stubs, 0);
+        dm = new GatewayDeviceManager("localhost", simulator.getPort(), 2, 5000);
+    }
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        dm.destroy();
+        simulator.close();
+        stubs.destroy();
+    }
+
+    @Test
+    void pipelinedRequestsToManyDevicesAreReplied() {
+        assertEquals(2, dm.getConnected());
+        List<CompletableFuture<Reply>> replies = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            replies.add(dm.acceptAsync(Request.on("dev" + i)));
+            replies.add(dm.acceptAsync(Request.set("dev" + i, i)));
+        }
+        for (CompletableFuture<Reply> r : replies) assertTrue(r.join() instanceof Reply.Ok);
+        assertEquals(999, ((Reply.Val) dm.accept(Request.get("dev999"))).getVal());
+        assertEquals(0, dm.getPending());
+    }
+
+    @Test
+    void batchIsRepliedInOrderOfRequests() {
+        List<Reply> replies = dm.acceptAllAsync(Arrays.asList(Request.on("a"), Request.set("a", 5), Request.get("b"),
+                Request.get("a"))).join();
+        assertTrue(replies.get(0) instanceof Reply.Ok);
+        assertTrue(replies.get(1) instanceof Reply.Ok);
+        assertTrue(replies.get(2) instanceof Reply.Error);
+        assertEquals(5, ((Reply.Val) replies.get(3)).getVal());
+    }
+
+    @Test
+    void requestsFailWhenGatewayIsDown() {
+        simulator.close();
+        Reply reply = dm.accept(Request.on("a"));
+        assertTrue(reply instanceof Reply.Error);
+        assertEquals(0, dm.getPending());
+    }
+
+    @Test
+    void requestsNotRepliedInTimeFail() throws IOException {
+        // Connections are accepted by the system, but nothing is ever read or written
+        try (ServerSocket deaf = new ServerSocket(0)) {
+            GatewayDeviceManager deafDm = new GatewayDeviceManager("localhost", deaf.getLocalPort(), 1, 50);
+            try {
+                assertEquals(1, deafDm.getConnected());
+                assertTrue(deafDm.accept(Request.on("a")) instanceof Reply.Error);
+                assertEquals(0, deafDm.getPending());
+            } finally {
+                deafDm.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package ru.zzz.demo.sber.shs.device.simulator;
+
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeviceSimulatorTest {
+    @Test
+    void devicesBehaveAsStubs() throws InterruptedException {
+        DeviceSimulator dm = new DeviceSimulator(1000, DeviceClass.parseAll("d:1:fixed(0):0"), 1, 4);
+        try {
+            assertEquals("Device is off", ((Reply.Error) dm.accept(Request.get("dev1"))).getReason());
+            assertTrue(dm.accept(Request.on("dev1")) instanceof Reply.Ok);
+            assertTrue(dm.accept(Request.set("dev1", 7)) instanceof Reply.Ok);
+            assertTrue(dm.accept(Request.set("dev1", -1)) instanceof Reply.Error);
+            assertEquals(7, ((Reply.Val) dm.accept(Request.get("dev1"))).getVal());
+            // Neighbouring devices are independent
+            assertTrue(dm.accept(Request.get("dev2")) instanceof Reply.Error);
+            assertTrue(dm.accept(Request.on("living room lamp")) instanceof Reply.Ok);
+        } finally {
+            dm.destroy();
+        }
+    }
+
+    @Test
+    void pipelinedRequestsWithRandomLatencyAreAppliedInOrder() throws InterruptedException {
+        DeviceSimulator dm = new DeviceSimulator(1000, DeviceClass.parseAll("d:1:uniform(0,5):0"), 1, 4);
+        try {
+            List<CompletableFuture<Reply>> replies = new ArrayList<>();
+            replies.add(dm.acceptAsync(Request.on("dev5")));
+            for (int i = 0; i < 20; i++) replies.add(dm.acceptAsync(Request.set("dev5", i)));
+            CompletableFuture<Reply> value = dm.acceptAsync(Request.get("dev5"));
+            for (CompletableFuture<Reply> r : replies) assertTrue(r.join() instanceof Reply.Ok);
+            assertEquals(19, ((Reply.Val) value.join()).getVal());
+        } finally {
+            dm.destroy();
+        }
+    }
+
+    @Test
+    void replyIsDelayedByLatency() throws InterruptedException {
+        DeviceSimulator dm = new DeviceSimulator(10, DeviceClass.parseAll("d:1:fixed(50):0"), 1, 1);
+        try {
+            long start = System.nanoTime();
+            dm.accept(Request.on("dev0"));
+            assertTrue(System.nanoTime() - start >= 50_000_000);
+        } finally {
+            dm.destroy();
+        }
+    }
+
+    @Test
+    void errorsAndStormsAreInjected() throws InterruptedException {
+        DeviceSimulator dm = new DeviceSimulator(1000, DeviceClass.parseAll("ok:1:fixed(0):0;bad:1:fixed(0):1"), 1);
+        try {
+            for (int i = 0; i < 100; i++) {
+                Reply reply = dm.accept(Request.on("dev" + i));
+                assertEquals(dm.classOf("dev" + i).getName().equals("bad"), reply instanceof Reply.Error);
+            }
+            assertTrue(dm.getInjectedErrors() > 0);
+            dm.startStorm(1, 60_000);
+            assertEquals("Device is disconnected", ((Reply.Error) dm.accept(Request.on("dev0"))).getReason());
+            dm.startStorm(0, 0);
+            assertTrue(!dm.isStormActive());
+        } finally {
+            dm.destroy();
+        }
+    }
+
+    @Test
+    void classesOfDevicesDependOnSeedOnly() throws InterruptedException {
+        List<DeviceClass> classes = DeviceClass.parseAll("a:3:fixed(0):0;b:1:fixed(0):0");
+        DeviceSimulator first = new DeviceSimulator(10_000, classes, 42, 1);
+        DeviceSimulator second = new DeviceSimulator(10_000, classes, 42, 2);
+        try {
+            int a = 0;
+            for (int i = 0; i < 10_000; i++) {
+                assertEquals(first.classOf("dev" + i), second.classOf("dev" + i));
+                if (first.classOf("dev" + i).getName().equals("a")) a++;
+            }
+            assertTrue(a > 7000 && a < 8000);
+        } finally {
+            first.destroy();
+            second.destroy();
+        }
+    }
+
+    @Test
+    void latencyDistributionsAreParsed() {
+        SplittableRandom random = new SplittableRandom(1);
+        assertEquals(2_000_000, LatencyDistribution.parse("fixed(2)").sampleNanos(random));
+        long uniform = LatencyDistribution.parse("uniform(1, 3)").sampleNanos(random);
+        assertTrue(uniform >= 1_000_000 && uniform <= 3_000_000);
+        LatencyDistribution lognormal = LatencyDistribution.parse("lognormal(10,100)");
+        int above = 0;
+        for (int i = 0; i < 10_000; i++) if (lognormal.sampleNanos(random) > 100_000_000) above++;
+        assertTrue(above > 50 && above < 200);
+        assertThrows(IllegalArgumentException.class, () -> LatencyDistribution.parse("normal(1)"));
+        assertThrows(IllegalArgumentException.class, () -> DeviceClass.parseAll("a:1:fixed(1)"));
+    }
+}
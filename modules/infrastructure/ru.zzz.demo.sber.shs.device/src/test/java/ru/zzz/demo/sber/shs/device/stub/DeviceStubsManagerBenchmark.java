@@ -0,0 +1,94 @@
+package ru.zzz.demo.sber.shs.device.stub;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Switching a device on as two requests, On and Set: synchronously one after another, asynchronously
+ * waiting for each reply, asynchronously pipelined, waiting for both replies at once, and as a batch of both.
+ * Stubs reply in no time, so the difference is the cost of a round trip to a channel thread.
+ *
+ * <p>Run {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DeviceStubsManagerBenchmark {
+    @Param({"1000"})
+    public int devices;
+
+    private DeviceStubsManager dm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dm = new DeviceStubsManager();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        dm.destroy();
+    }
+
+    @Benchmark
+    public Reply sync() {
+        String address = address();
+        dm.accept(Request.on(address));
+        return dm.accept(Request.set(address, 1));
+    }
+
+    @Benchmark
+    public Reply asyncRoundTrips() {
+        String address = address();
+        dm.acceptAsync(Request.on(address)).join();
+        return dm.acceptAsync(Request.set(address, 1)).join();
+    }
+
+    @Benchmark
+    public Reply asyncPipelined() {
+        String address = address();
+        CompletableFuture<Reply> on = dm.acceptAsync(Request.on(address));
+        CompletableFuture<Reply> set = dm.acceptAsync(Request.set(address, 1));
+        return on.thenCombine(set, (o, s) -> s).join();
+    }
+
+    @Benchmark
+    public Reply asyncBatch() {
+        String address = address();
+        return dm.acceptAllAsync(Arrays.asList(Request.on(address), Request.set(address, 1))).join().get(1);
+    }
+
+    private String address() {
+        return "dev" + ThreadLocalRandom.current().nextInt(devices);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeviceStubsManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
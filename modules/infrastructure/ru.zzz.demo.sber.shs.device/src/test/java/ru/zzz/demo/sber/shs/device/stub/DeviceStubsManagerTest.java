@@ -0,0 +1,53 @@
+package ru.zzz.demo.sber.shs.device.stub;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.zzz.demo.sber.shs.device.Reply;
+import ru.zzz.demo.sber.shs.device.Request;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeviceStubsManagerTest {
+    private final DeviceStubsManager dm = new DeviceStubsManager(4);
+
+    @AfterEach
+    void afterEach() throws InterruptedException {
+        dm.destroy();
+    }
+
+    @Test
+    void pipelinedRequestsToDeviceAreExecutedInOrder() {
+        List<CompletableFuture<Reply>> replies = new ArrayList<>();
+        replies.add(dm.acceptAsync(Request.on("a")));
+        for (int i = 0; i < 100; i++) replies.add(dm.acceptAsync(Request.set("a", i)));
+        CompletableFuture<Reply> value = dm.acceptAsync(Request.get("a"));
+        for (CompletableFuture<Reply> r : replies) assertTrue(r.join() instanceof Reply.Ok);
+        assertEquals(99, ((Reply.Val) value.join()).getVal());
+    }
+
+    @Test
+    void batchIsRepliedInOrderOfRequests() {
+        List<Reply> replies = dm.acceptAllAsync(Arrays.asList(Request.on("a"), Request.set("a", 5), Request.get("b"),
+                Request.get("a"), Request.on("b"))).join();
+        assertEquals(5, replies.size());
+        assertTrue(replies.get(0) instanceof Reply.Ok);
+        assertTrue(replies.get(1) instanceof Reply.Ok);
+        // b is switched on later in the batch
+        assertTrue(replies.get(2) instanceof Reply.Error);
+        assertEquals(5, ((Reply.Val) replies.get(3)).getVal());
+        assertTrue(replies.get(4) instanceof Reply.Ok);
+    }
+
+    @Test
+    void pendingRequestsAreRepliedOnClose() throws InterruptedException {
+        dm.destroy();
+        Reply reply = dm.acceptAsync(Request.on("a")).join();
+        assertTrue(reply instanceof Reply.Error);
+    }
+}
@@ -2,8 +2,11 @@ package ru.zzz.demo.sber.shs.server.impl;
 
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableMBeanExport;
 
 @Configuration("SHS.Infrastructure.HttpServer.ServerConfiguration")
 @ComponentScan(basePackages = {"ru.zzz.demo.sber.shs"})
+// Publishes @ManagedResource components (pools, schedulers, breakers) as JMX MBeans
+@EnableMBeanExport
 public class ServerConfiguration {
 }
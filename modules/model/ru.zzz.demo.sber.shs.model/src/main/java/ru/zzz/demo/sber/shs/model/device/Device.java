@@ -2,14 +2,18 @@ package ru.zzz.demo.sber.shs.model.device;
 
 import org.springframework.lang.NonNull;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
- * Represents a Device and its parameters in memory. Keeps history to revert value changes.
- * Invariants:
+ * Represents a Device and its parameters in memory. Keeps the last value changes to undo and redo them.
+ *
+ * <p>Whether the device is on and its value are packed into one long, which is read without a lock and updated by
+ * compare-and-set. {@link #getState()} reads both at once. Only changes of the value take a lock, the one of the
+ * history.
+ *
+ * <p>Invariants:
  * <pre>
  * /\ defaultValue >= 0
  * /\ value >= 0
@@ -19,24 +23,34 @@ import java.util.Optional;
  * <p>Instances of this class are thread safe.
  */
 public class Device {
+    private static final AtomicLongFieldUpdater<Device> STATE =
+            AtomicLongFieldUpdater.newUpdater(Device.class, "state");
+    private static final long ON = 1;
+    private static final int VALUE_SHIFT = 32;
+    /**
+     * Number of value changes a device keeps to undo unless another is given.
+     */
+    public static final int DEFAULT_HISTORY_DEPTH = 32;
+
     private final int defaultValue;
     private final DeviceAddress addr;
-    private final Deque<Integer> history = new ArrayDeque<>();
-    private final Object lock = new Object();
-    private int value;
-    private boolean isOn;
+    // Values to undo and redo changes, guarded by itself
+    private final ValueHistory history;
+    // The value in the high half, ON bit in the low one
+    private volatile long state;
 
     private Device(int defaultValue, DeviceAddress address) {
         this.defaultValue = defaultValue;
         this.addr = address;
-        value = defaultValue;
+        this.history = new ValueHistory(DEFAULT_HISTORY_DEPTH);
+        state = pack(defaultValue, false);
     }
 
-    private Device(DeviceAddress address, int value, boolean isOn) {
+    private Device(DeviceAddress address, int value, boolean isOn, int historyDepth) {
         this.addr = address;
-        this.value = value;
-        this.isOn = isOn;
         this.defaultValue = 0;
+        this.history = new ValueHistory(historyDepth);
+        state = pack(value, isOn);
     }
 
     /**
@@ -91,9 +105,25 @@ public class Device {
      */
     @NonNull
     public static Device of(DeviceAddress address, int value, boolean isOn) {
+        return of(address, value, isOn, DEFAULT_HISTORY_DEPTH);
+    }
+
+    /**
+     * Factory
+     *
+     * @param address      nonempty device address
+     * @param value        current value
+     * @param isOn         is on
+     * @param historyDepth number of value changes to keep to undo, 0 to keep none
+     * @return new Device
+     * @throws IllegalArgumentException on empty address, negative value or negative historyDepth
+     */
+    @NonNull
+    public static Device of(DeviceAddress address, int value, boolean isOn, int historyDepth) {
         if (address == null) throw new IllegalArgumentException("Empty address");
         if (value < 0) throw new IllegalArgumentException("Negative value");
-        return new Device(address, value, isOn);
+        if (historyDepth < 0) throw new IllegalArgumentException("Negative historyDepth");
+        return new Device(address, value, isOn, historyDepth);
     }
 
     public int getDefaultValue() {
@@ -106,55 +136,141 @@ public class Device {
     }
 
     public void on() {
-        synchronized (lock) {
-            isOn = true;
-        }
+        long s;
+        do {
+            s = state;
+        } while (!STATE.compareAndSet(this, s, s | ON));
     }
 
     public void off() {
-        synchronized (lock) {
-            isOn = false;
-        }
+        long s;
+        do {
+            s = state;
+        } while (!STATE.compareAndSet(this, s, s & ~ON));
     }
 
     public boolean isOn() {
-        synchronized (lock) {
-            return isOn;
-        }
+        return isOn(state);
     }
 
     public Optional<Integer> getValue() {
-        synchronized (lock) {
-            return isOn ? Optional.of(value) : Optional.empty();
+        long s = state;
+        return isOn(s) ? Optional.of(valueOf(s)) : Optional.empty();
+    }
+
+    /**
+     * @return the value whether the device is on or off. An off device keeps it until it is switched on.
+     */
+    public int getLastValue() {
+        return valueOf(state);
+    }
+
+    /**
+     * Reads whether the device is on and its value at once, without allocation.
+     *
+     * @return the state to pass to {@link #isOn(long)} and {@link #valueOf(long)}.
+     */
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * @param state the state returned by {@link #getState()}
+     */
+    public static boolean isOn(long state) {
+        return (state & ON) != 0;
+    }
+
+    /**
+     * @param state the state returned by {@link #getState()}
+     * @return the value whether the device is on or off.
+     */
+    public static int valueOf(long state) {
+        return (int) (state >>> VALUE_SHIFT);
+    }
+
+    /**
+     * Sets the value the device actually has, e.g. when it was changed bypassing the model. The value changes made
+     * before are forgotten, they cannot be undone.
+     *
+     * @param value value, must be >= 0.
+     * @throws IllegalArgumentException if value < 0.
+     */
+    public void resetValue(int value) {
+        if (value < 0) throw new IllegalArgumentException("value must not be negative");
+        synchronized (history) {
+            history.clear();
+            long s;
+            do {
+                s = state;
+            } while (!STATE.compareAndSet(this, s, pack(value, isOn(s))));
+        }
+    }
+
+    /**
+     * Sets the value and whether the device is on at once, e.g. when the device was changed bypassing the model,
+     * so readers never see one of them changed without the other. The value changes made before are forgotten.
+     *
+     * @param value value, must be >= 0.
+     * @throws IllegalArgumentException if value < 0.
+     */
+    public void resetState(int value, boolean isOn) {
+        if (value < 0) throw new IllegalArgumentException("value must not be negative");
+        synchronized (history) {
+            history.clear();
+            STATE.set(this, pack(value, isOn));
         }
     }
 
     public int incrementValue() {
-        synchronized (lock) {
-            checkIsOn();
-            history.push(value);
-            value++;
+        synchronized (history) {
+            int value = setValueIfOn(1);
+            history.push(value - 1);
             return value;
         }
     }
 
     public int decrementValue() {
-        synchronized (lock) {
-            checkIsOn();
-            if (value == 0)
-                return value;
-            history.push(value);
-            value--;
+        synchronized (history) {
+            if (valueOf(checkIsOn()) == 0)
+                return 0;
+            int value = setValueIfOn(-1);
+            history.push(value + 1);
             return value;
         }
     }
 
+    /**
+     * Reverts the last value change not reverted yet, if it is kept.
+     *
+     * @return the value, unchanged if there is nothing to undo.
+     * @throws DeviceIsOffException if the device is off
+     */
     public int undoValueChange() {
-        synchronized (lock) {
-            checkIsOn();
-            if (history.isEmpty())
-                return value;
-            value = history.pop();
+        synchronized (history) {
+            long s = checkIsOn();
+            if (!history.canUndo())
+                return valueOf(s);
+            // The device may be switched off meanwhile, so the history moves only once the value is set
+            int value = setValueIfOn(history.peekUndo() - valueOf(s));
+            history.undo(valueOf(s));
+            return value;
+        }
+    }
+
+    /**
+     * Makes again the last value change reverted by {@link #undoValueChange()}, unless the value was changed since.
+     *
+     * @return the value, unchanged if there is nothing to redo.
+     * @throws DeviceIsOffException if the device is off
+     */
+    public int redoValueChange() {
+        synchronized (history) {
+            long s = checkIsOn();
+            if (!history.canRedo())
+                return valueOf(s);
+            int value = setValueIfOn(history.peekRedo() - valueOf(s));
+            history.redo(valueOf(s));
             return value;
         }
     }
@@ -174,21 +290,39 @@ public class Device {
 
     @Override
     public String toString() {
-        boolean localIsOn;
-        int localVolume;
-        synchronized (lock) {
-            localIsOn = isOn;
-            localVolume = value;
-        }
+        long s = state;
         return "Device{" +
                 "defaultVolume=" + defaultValue +
                 ", addr=" + addr +
-                ", state=" + (localIsOn ? "ON" : "OFF") +
-                ", volume=" + localVolume +
+                ", state=" + (isOn(s) ? "ON" : "OFF") +
+                ", volume=" + valueOf(s) +
                 '}';
     }
 
-    private void checkIsOn() {
-        if (!isOn) throw new DeviceIsOffException(addr);
+    /**
+     * @return the state.
+     */
+    private long checkIsOn() {
+        long s = state;
+        if (!isOn(s)) throw new DeviceIsOffException(addr);
+        return s;
+    }
+
+    /**
+     * Adds a delta to the value unless the device is switched off meanwhile. The value is changed by the holder
+     * of the history lock only, so it is the one the caller checked.
+     *
+     * @return the new value.
+     */
+    private int setValueIfOn(int delta) {
+        long s;
+        do {
+            s = checkIsOn();
+        } while (!STATE.compareAndSet(this, s, s + ((long) delta << VALUE_SHIFT)));
+        return valueOf(s) + delta;
+    }
+
+    private static long pack(int value, boolean isOn) {
+        return ((long) value << VALUE_SHIFT) | (isOn ? ON : 0);
     }
 }
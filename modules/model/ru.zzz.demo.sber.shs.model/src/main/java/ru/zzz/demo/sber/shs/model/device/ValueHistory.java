@@ -0,0 +1,101 @@
+package ru.zzz.demo.sber.shs.model.device;
+
+/**
+ * Values of a device to undo and redo its changes, the last depth ones. Older values are overwritten.
+ *
+ * <p>Values are kept in a ring: the undo values lie before the cursor and the redo values from it on. Undo and
+ * redo swap the current value with the one they return, so they do not allocate.
+ *
+ * <p>Instances of this class are not thread safe.
+ */
+final class ValueHistory {
+    private final int[] ring;
+    // Index of the slot the next change writes to
+    private int cursor;
+    private int undoable;
+    private int redoable;
+
+    /**
+     * @param depth maximum number of changes to undo, 0 to keep none
+     */
+    ValueHistory(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative");
+        ring = new int[depth];
+    }
+
+    /**
+     * Remembers the value before a change. Changes undone before cannot be redone after it.
+     */
+    void push(int value) {
+        if (ring.length == 0) return;
+        ring[cursor] = value;
+        cursor = next(cursor);
+        if (undoable < ring.length) undoable++;
+        redoable = 0;
+    }
+
+    boolean canUndo() {
+        return undoable > 0;
+    }
+
+    boolean canRedo() {
+        return redoable > 0;
+    }
+
+    /**
+     * @return the value {@link #undo(int)} would return.
+     * @throws IllegalStateException if there is nothing to undo
+     */
+    int peekUndo() {
+        if (undoable == 0) throw new IllegalStateException("Nothing to undo");
+        return ring[(cursor == 0) ? ring.length - 1 : cursor - 1];
+    }
+
+    /**
+     * @param current the value to return by redo
+     * @return the value before the last change.
+     * @throws IllegalStateException if there is nothing to undo
+     */
+    int undo(int current) {
+        if (undoable == 0) throw new IllegalStateException("Nothing to undo");
+        cursor = (cursor == 0) ? ring.length - 1 : cursor - 1;
+        int value = ring[cursor];
+        ring[cursor] = current;
+        undoable--;
+        redoable++;
+        return value;
+    }
+
+    /**
+     * @return the value {@link #redo(int)} would return.
+     * @throws IllegalStateException if there is nothing to redo
+     */
+    int peekRedo() {
+        if (redoable == 0) throw new IllegalStateException("Nothing to redo");
+        return ring[cursor];
+    }
+
+    /**
+     * @param current the value to return by undo
+     * @return the value after the last undone change.
+     * @throws IllegalStateException if there is nothing to redo
+     */
+    int redo(int current) {
+        if (redoable == 0) throw new IllegalStateException("Nothing to redo");
+        int value = ring[cursor];
+        ring[cursor] = current;
+        cursor = next(cursor);
+        undoable++;
+        redoable--;
+        return value;
+    }
+
+    void clear() {
+        undoable = 0;
+        redoable = 0;
+    }
+
+    private int next(int index) {
+        return (index + 1 == ring.length) ? 0 : index + 1;
+    }
+}
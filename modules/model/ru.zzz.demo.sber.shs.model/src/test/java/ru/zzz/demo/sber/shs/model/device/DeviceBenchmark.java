@@ -0,0 +1,91 @@
+package ru.zzz.demo.sber.shs.model.device;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * Reading the state of a device, by one call and by {@code isOn()} and {@code getValue()} as descriptors did,
+ * while other threads read it, switch it on and off or change its value.
+ *
+ * <p>Run {@link #main(String[])} with the test classpath.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceBenchmark {
+    private Device device;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        device = Device.of(DeviceAddress.of("device"), 0, true);
+    }
+
+    @Benchmark
+    @Group("read")
+    @GroupThreads(4)
+    public long readState() {
+        return device.getState();
+    }
+
+    @Benchmark
+    @Group("readPair")
+    @GroupThreads(4)
+    public Integer readPair() {
+        return device.isOn() ? device.getValue().orElse(null) : null;
+    }
+
+    @Benchmark
+    @Group("readWhileSwitching")
+    @GroupThreads(3)
+    public long readWhileSwitchingReader() {
+        return device.getState();
+    }
+
+    @Benchmark
+    @Group("readWhileSwitching")
+    @GroupThreads(1)
+    public void readWhileSwitchingWriter() {
+        if (device.isOn()) device.off();
+        else device.on();
+    }
+
+    @Benchmark
+    @Group("readWhileChanging")
+    @GroupThreads(3)
+    public long readWhileChangingReader() {
+        return device.getState();
+    }
+
+    @Benchmark
+    @Group("readWhileChanging")
+    @GroupThreads(1)
+    public int readWhileChangingWriter() {
+        int value = device.incrementValue();
+        // Keep the undo history short
+        device.undoValueChange();
+        return value;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DeviceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
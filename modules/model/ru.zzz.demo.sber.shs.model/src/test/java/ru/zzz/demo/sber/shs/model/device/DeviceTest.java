@@ -2,6 +2,12 @@ package ru.zzz.demo.sber.shs.model.device;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class DeviceTest {
@@ -58,4 +64,184 @@ public class DeviceTest {
         d.undoValueChange();
         assertEquals(1, d.getValue().orElseThrow(IllegalStateException::new));
     }
-}
\ No newline at end of file
+
+    @Test
+    void resetValueCannotBeUndone() {
+        Device d = Device.of("addr", 1);
+        d.on();
+        d.incrementValue();
+        d.resetValue(5);
+        assertEquals(5, d.getValue().orElseThrow(IllegalStateException::new));
+        d.undoValueChange();
+        assertEquals(5, d.getValue().orElseThrow(IllegalStateException::new));
+    }
+
+    @Test
+    void resetStateSwitchesOnWithValue() {
+        Device d = Device.of("addr", 1);
+        d.on();
+        d.incrementValue();
+        d.off();
+        d.resetState(5, true);
+        long state = d.getState();
+        assertTrue(Device.isOn(state));
+        assertEquals(5, Device.valueOf(state));
+        assertEquals(5, d.undoValueChange());
+    }
+
+    @Test
+    void redoAfterUndo() {
+        Device d = Device.of("addr", 1);
+        d.on();
+        d.incrementValue();
+        d.incrementValue();
+        assertEquals(2, d.undoValueChange());
+        assertEquals(1, d.undoValueChange());
+        assertEquals(2, d.redoValueChange());
+        assertEquals(3, d.redoValueChange());
+        assertEquals(3, d.redoValueChange());
+        // A new change drops changes to redo
+        d.undoValueChange();
+        d.decrementValue();
+        assertEquals(1, d.getLastValue());
+        assertEquals(1, d.redoValueChange());
+        assertEquals(2, d.undoValueChange());
+    }
+
+    @Test
+    void onlyLastChangesAreKept() {
+        Device d = Device.of(DeviceAddress.of("addr"), 0, true, 3);
+        for (int i = 0; i < 10; i++) d.incrementValue();
+        for (int i = 0; i < 10; i++) d.undoValueChange();
+        assertEquals(7, d.getLastValue());
+        for (int i = 0; i < 10; i++) d.redoValueChange();
+        assertEquals(10, d.getLastValue());
+        Device none = Device.of(DeviceAddress.of("addr"), 0, true, 0);
+        none.incrementValue();
+        assertEquals(1, none.undoValueChange());
+        assertThrows(IllegalArgumentException.class, () -> Device.of(DeviceAddress.of("addr"), 0, true, -1));
+    }
+
+    @Test
+    void stateIsReadAtOnce() {
+        Device d = Device.of("addr", 7);
+        long off = d.getState();
+        assertFalse(Device.isOn(off));
+        assertEquals(7, Device.valueOf(off));
+        d.on();
+        d.incrementValue();
+        long on = d.getState();
+        assertTrue(Device.isOn(on));
+        assertEquals(8, Device.valueOf(on));
+        // A state is a snapshot
+        assertFalse(Device.isOn(off));
+    }
+
+    /**
+     * Switching on and off races with value changes: neither may overwrite the other.
+     */
+    @Test
+    void switchingDoesNotLoseValueChanges() throws InterruptedException {
+        Device d = Device.of("addr");
+        d.on();
+        AtomicInteger incremented = new AtomicInteger();
+        AtomicBoolean stop = new AtomicBoolean();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> {
+            await(start);
+            for (int i = 0; i < 100_000; i++) {
+                if ((i & 1) == 0) d.off();
+                else d.on();
+            }
+            stop.set(true);
+        }, "TestSwitch-switchingDoesNotLoseValueChanges"));
+        for (int t = 0; t < 3; t++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                while (!stop.get()) {
+                    try {
+                        d.incrementValue();
+                        incremented.incrementAndGet();
+                    } catch (DeviceIsOffException e) {
+                        // Switched off meanwhile
+                    }
+                }
+            }, "TestIncrement-switchingDoesNotLoseValueChanges-" + t));
+        }
+        for (Thread t : threads) t.start();
+        start.countDown();
+        for (Thread t : threads) t.join(10_000);
+        assertTrue(d.isOn());
+        assertEquals(incremented.get(), d.getLastValue());
+    }
+
+    /**
+     * Undo and redo race with switching off: a change failed as the device is off leaves the history as it was.
+     */
+    @Test
+    void switchingOffDoesNotMoveHistory() throws InterruptedException {
+        Device d = Device.of("addr");
+        d.on();
+        for (int i = 0; i < 10; i++) d.incrementValue();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread switcher = new Thread(() -> {
+            while (!stop.get()) {
+                d.off();
+                d.on();
+            }
+        }, "TestSwitch-switchingOffDoesNotMoveHistory");
+        switcher.start();
+        for (int i = 0; i < 100_000; i++) {
+            try {
+                if ((i & 1) == 0) d.undoValueChange();
+                else d.redoValueChange();
+            } catch (DeviceIsOffException e) {
+                // Switched off meanwhile
+            }
+        }
+        stop.set(true);
+        switcher.join(10_000);
+        // Every change to undo is still one step back
+        for (int value = d.getLastValue(); value > 0; value--) assertEquals(value - 1, d.undoValueChange());
+        assertEquals(0, d.undoValueChange());
+    }
+
+    /**
+     * A reader sees the states a writer makes in order: the value never goes back and the device is on whenever
+     * the value is odd, as the writer only makes it odd while the device is on.
+     */
+    @Test
+    void statesAreSeenConsistently() throws InterruptedException {
+        Device d = Device.of("addr");
+        int changes = 100_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < changes; i++) {
+                d.on();
+                d.incrementValue();
+                d.incrementValue();
+                d.off();
+            }
+        }, "TestWrite-statesAreSeenConsistently");
+        writer.start();
+        long last = 0;
+        int seen = 0;
+        while (Device.valueOf(last) < 2 * changes) {
+            long s = d.getState();
+            assertTrue(Device.valueOf(s) >= Device.valueOf(last));
+            if (Device.valueOf(s) % 2 == 1) assertTrue(Device.isOn(s));
+            if (s != last) seen++;
+            last = s;
+        }
+        writer.join(10_000);
+        assertTrue(seen > 0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -12,15 +12,13 @@ GRANT UNLIMITED TABLESPACE TO shs_state_data;
 
 -- shs_state_warehouse holds indicators historical data
 -- in a real DB it would be better to create a dedicate tablespace
-/*
-CREATE USER shs_state_warehouse IDENTIFIED BY shs_state_data ACCOUNT LOCK;
+CREATE USER shs_state_warehouse IDENTIFIED BY shs_state_warehouse ACCOUNT LOCK;
 
 GRANT "CONNECT" TO shs_state_warehouse;
 GRANT "RESOURCE" TO shs_state_warehouse;
 GRANT "SELECT_CATALOG_ROLE" TO shs_state_warehouse;
 ALTER USER shs_state_warehouse DEFAULT ROLE "CONNECT", "RESOURCE", "SELECT_CATALOG_ROLE";
-GRANT UNLIMITED TABLESPACE TO shs_state_data;
-*/
+GRANT UNLIMITED TABLESPACE TO shs_state_warehouse;
 
 -- shs_api holds no data but views and packages to insert or access data
 
@@ -57,6 +55,27 @@ ALTER TABLE SHS_STATE_DATA.shs_device_state ADD (
 ALTER TABLE SHS_STATE_DATA.SHS_DEVICE_STATE
  ADD UNIQUE (ADDRESS);
 
+-- ============= warehouse objects
+
+-- Every device state change. A partition per day, old partitions can be dropped or moved to a cheaper
+-- storage as a whole. Rows are inserted by the server in batches and never updated.
+CREATE TABLE SHS_STATE_WAREHOUSE.shs_device_history
+(
+  address          VARCHAR2(1024) NOT NULL,
+  state            VARCHAR2(8) NOT NULL,
+  val              NUMBER NOT NULL,
+  change_date_utc  TIMESTAMP(6) NOT NULL
+)
+PARTITION BY RANGE (change_date_utc) INTERVAL (NUMTODSINTERVAL(1, 'DAY'))
+(PARTITION shs_device_history_p0 VALUES LESS THAN (TIMESTAMP '2020-01-01 00:00:00'));
+
+ALTER TABLE SHS_STATE_WAREHOUSE.shs_device_history ADD (
+  CHECK (state in ('ON', 'OFF', 'REMOVED')) ENABLE VALIDATE,
+  CHECK (val >= 0) ENABLE VALIDATE);
+
+CREATE INDEX SHS_STATE_WAREHOUSE.shs_device_history_addr_idx
+  ON SHS_STATE_WAREHOUSE.shs_device_history (address, change_date_utc) LOCAL;
+
 -- ============= api objects
 
 GRANT SELECT ON shs_state_data.shs_device_state TO shs_api;
@@ -68,6 +87,13 @@ CREATE OR REPLACE VIEW shs_api.shs_device_state AS
 select address, is_on, val, last_save_date AS last_save_date_utc
 from shs_state_data.shs_device_state;
 
+GRANT SELECT ON shs_state_warehouse.shs_device_history TO shs_api;
+GRANT INSERT ON shs_state_warehouse.shs_device_history TO shs_api;
+
+CREATE OR REPLACE VIEW shs_api.shs_device_history AS
+select address, state, val, change_date_utc
+from shs_state_warehouse.shs_device_history;
+
 CREATE OR REPLACE PACKAGE SHS_API.shs_api_pkg AS
 /******************************************************************************
    Creates a devise state record with a given address, val and is_on='Y'